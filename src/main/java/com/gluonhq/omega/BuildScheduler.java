@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega;
+
+import com.gluonhq.omega.util.BuildMetrics;
+import com.gluonhq.omega.util.BuilderSizing;
+import com.gluonhq.omega.util.FileDeps;
+import com.gluonhq.omega.util.RepositoryEviction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds an application for several targets (e.g. host, ios-sim and ios) at the same time.
+ *
+ * Each target gets its own build root and configuration. The builds are admitted
+ * against a memory and CPU budget: a target starts when the heap estimated for its
+ * builder fits in the memory that is left, otherwise it waits until a running build
+ * finishes. The SDKs are set up once, before any build starts.
+ */
+public class BuildScheduler {
+
+    private final long memoryBudget;
+    private final int cpuBudget;
+    private final BuildMetrics metrics = new BuildMetrics();
+
+    private long usedMemory;
+    private int usedCpus;
+    private int running;
+
+    /**
+     * Creates a scheduler that uses 70% of the memory and all the CPUs available to the build
+     */
+    public BuildScheduler() {
+        this(BuilderSizing.getAvailableMemory() * 7 / 10, BuilderSizing.getAvailableProcessors());
+    }
+
+    /**
+     * Creates a scheduler with an explicit budget
+     * @param memoryBudget the memory that can be used by all the builder heaps, in bytes
+     * @param cpuBudget the number of builder threads that can run at the same time
+     */
+    public BuildScheduler(long memoryBudget, int cpuBudget) {
+        this.memoryBudget = memoryBudget;
+        this.cpuBudget = Math.max(1, cpuBudget);
+    }
+
+    /**
+     * Compiles and optionally links the application for each target
+     *
+     * @param buildRoot Omega directory, (e.g. build/omega). Each target is built in a sibling
+     *                  directory named after it (e.g. build/omega-ios), so the iOS sources are still
+     *                  found relative to the project directory
+     * @param config the required configuration, copied for each target
+     * @param cp the list of directories and jars that make up the class path
+     * @param targets the targets to build (e.g. host, ios-sim, ios)
+     * @param link true to link each target after it is compiled
+     * @return the sessions of the targets, in the order they were given
+     * @throws Exception if any of the targets fails, with the other failures as suppressed exceptions
+     */
+    public List<BuildSession> build(String buildRoot, Config config, String cp, List<String> targets,
+                                    boolean link) throws Exception {
+        Path root = (buildRoot != null && ! buildRoot.isEmpty() ?
+                Paths.get(buildRoot) : Paths.get(System.getProperty("user.dir"))).toAbsolutePath();
+        List<Path> classPath = Stream.of(cp.split(File.pathSeparator))
+                .map(Paths::get)
+                .collect(Collectors.toList());
+
+        Map<String, BuildSession> sessions = new LinkedHashMap<>();
+        for (String target : targets) {
+            Config targetConfig = new Config(config);
+            targetConfig.setTarget(target);
+            sessions.put(target, Omega.createSession(
+                    root.resolveSibling(root.getFileName() + "-" + target).toString(), targetConfig, target));
+        }
+        setupDependencies(sessions.values());
+
+        ExecutorService executor = Executors.newFixedThreadPool(sessions.size(), r -> {
+            Thread thread = new Thread(r, "omega-build");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<String, Future<?>> futures = new LinkedHashMap<>();
+            for (Map.Entry<String, BuildSession> entry : sessions.entrySet()) {
+                BuildSession session = entry.getValue();
+                futures.put(entry.getKey(), executor.submit(() -> {
+                    Thread.currentThread().setName("omega-build-" + entry.getKey());
+                    build(session, cp, classPath, link);
+                    return null;
+                }));
+            }
+            Exception failure = null;
+            for (Map.Entry<String, Future<?>> future : futures.entrySet()) {
+                try {
+                    future.getValue().get();
+                } catch (ExecutionException e) {
+                    Exception cause = e.getCause() instanceof Exception ?
+                            (Exception) e.getCause() : new RuntimeException(e.getCause());
+                    System.err.println("Build failed for target " + future.getKey() + ": " + cause);
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+            // the builds are done, their SDKs can be evicted again
+            sessions.values().forEach(BuildSession::close);
+            writeReport(root, config);
+        }
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * Returns the time spent setting up the SDKs and waiting for resources
+     * @return the metrics of the scheduler
+     */
+    public BuildMetrics getMetrics() {
+        return metrics;
+    }
+
+    // sessions for the same OS share their SDKs, and the Graal libs are shared by all of them
+    private void setupDependencies(Iterable<BuildSession> sessions) throws IOException {
+        Map<String, List<Path>> done = new HashMap<>();
+        try (BuildMetrics.Timer timer = metrics.start("dependencies")) {
+            for (BuildSession session : sessions) {
+                Config config = session.getConfig();
+                // the installed components depend on the backend and on JavaFX
+                String key = config.getDepsRoot() + File.pathSeparator + config.getStaticRoot() +
+                        File.pathSeparator + config.getJavaFXRoot() + File.pathSeparator + config.getBackend() +
+                        File.pathSeparator + config.isUseJavaFX();
+                List<Path> leased = done.get(key);
+                if (leased == null) {
+                    // the SDKs are installed concurrently
+                    List<Path> entries = Collections.synchronizedList(new ArrayList<>());
+                    FileDeps.setupDependencies(config, metrics, lease -> {
+                        entries.add(lease.getEntry());
+                        session.addLease(lease);
+                    });
+                    done.put(key, entries);
+                } else {
+                    // each session holds its own leases, as it can end before the others
+                    for (Path entry : leased) {
+                        session.addLease(RepositoryEviction.lease(entry));
+                    }
+                }
+                session.setDependenciesResolved(true);
+            }
+        }
+    }
+
+    private void build(BuildSession session, String cp, List<Path> classPath, boolean link) throws Exception {
+        Config config = session.getConfig();
+        BuilderSizing sizing = BuilderSizing.compute(config, classPath, session.getGvmPath());
+        long memory = Math.min(sizing.getMaxHeap(), memoryBudget);
+        int cpus = acquire(session.getTarget(), memory, Math.min(sizing.getThreads(), cpuBudget));
+        try {
+            if (config.getBuilderThreads() <= 0) {
+                config.setBuilderThreads(cpus);
+            }
+            session.compile(cp);
+        } finally {
+            release(memory, cpus);
+        }
+        if (link) {
+            session.link(session.getGvmPath().resolve("tmp"));
+        }
+    }
+
+    // returns the number of CPUs granted, which can be less than requested when other builds are running
+    private synchronized int acquire(String target, long memory, int cpus) throws InterruptedException {
+        try (BuildMetrics.Timer timer = metrics.start("queue." + target)) {
+            while (running > 0 && (usedMemory + memory > memoryBudget || usedCpus >= cpuBudget)) {
+                System.err.println("Target " + target + " waiting for resources: " + toMB(memory) +
+                        " MB needed, " + toMB(memoryBudget - usedMemory) + " MB free");
+                wait();
+            }
+        }
+        int granted = Math.max(1, Math.min(cpus, cpuBudget - usedCpus));
+        usedMemory += memory;
+        usedCpus += granted;
+        running++;
+        System.err.println("Starting target " + target + " with " + toMB(memory) + " MB and " +
+                granted + " threads (" + running + " running)");
+        return granted;
+    }
+
+    private synchronized void release(long memory, int cpus) {
+        usedMemory -= memory;
+        usedCpus -= cpus;
+        running--;
+        notifyAll();
+    }
+
+    private void writeReport(Path root, Config config) {
+        Map<String, String> labels = new HashMap<>();
+        labels.put("app", config.getAppName());
+        labels.put("phase", "schedule");
+        try {
+            metrics.writeReport(root.resolve("schedule-report.json"), labels);
+        } catch (IOException e) {
+            System.err.println("Error writing build metrics: " + e.getMessage());
+        } finally {
+            metrics.close();
+        }
+    }
+
+    private static long toMB(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+}
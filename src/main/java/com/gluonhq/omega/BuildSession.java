@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega;
+
+import com.gluonhq.omega.target.IosTargetConfiguration;
+import com.gluonhq.omega.target.LinuxTargetConfiguration;
+import com.gluonhq.omega.target.MacosTargetConfiguration;
+import com.gluonhq.omega.target.TargetConfiguration;
+import com.gluonhq.omega.util.BuildMetrics;
+import com.gluonhq.omega.util.BuilderOutputListener;
+import com.gluonhq.omega.util.RepositoryEviction;
+import com.gluonhq.omega.util.StartupBenchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Holds the state of a single build: its configuration, target, directories and
+ * the native-image builder bridge.
+ *
+ * Sessions don't share mutable state, so different applications or targets can be
+ * built concurrently from the same JVM, as long as each build uses its own build root.
+ *
+ * A session leases the SDKs it uses from the Omega repository, so they are not evicted
+ * while it builds. Closing the session releases them; its results can still be read.
+ */
+public class BuildSession implements AutoCloseable {
+
+    private final Config config;
+    private final String target;
+    private final Path omegaPath;
+    private final Path gvmPath;
+
+    private final String graalSdk;
+    private final String javaSdk;
+    private final String javafxSdk;
+    private final boolean useJavaFX;
+    private final boolean useLLVM;
+
+    private final SVMBridge bridge;
+    private volatile BuildMetrics metrics = new BuildMetrics();
+    private final List<BuilderOutputListener> builderListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean dependenciesResolved;
+    private final List<RepositoryEviction.Lease> leases = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a build session
+     * @param buildRoot Omega directory, (e.g. build/omega). If null or empty, the current directory is used
+     * @param config the required configuration
+     * @param target  the host machine, iOS sim or device
+     * @throws IOException if the gvm directory can't be created
+     */
+    public BuildSession(String buildRoot, Config config, String target) throws IOException {
+        if (config.getMainClassName() == null || config.getMainClassName().isEmpty()) {
+            throw new RuntimeException("MainClassName is not set");
+        }
+        if (config.getAppName() == null || config.getAppName().isEmpty()) {
+            throw new RuntimeException("AppName is not set");
+        }
+        // a copy, so sessions created from the same config don't share their SDK roots
+        this.config = new Config(config);
+        this.target = target;
+
+        omegaPath = buildRoot != null && ! buildRoot.isEmpty() ?
+                Paths.get(buildRoot) : Paths.get(System.getProperty("user.dir"));
+        gvmPath = Files.createDirectories(omegaPath.toAbsolutePath().resolve("gvm"));
+        System.err.println("gvmDir = " + gvmPath);
+
+        String os = Omega.getTarget(this.config);
+        Path graallibs = SVMBridge.USER_OMEGA_PATH
+                .resolve("graalLibs")
+                .resolve(this.config.getGraalLibsVersion())
+                .resolve("lib");
+        this.config.setDepsRoot(graallibs.toString());
+        Path javalibs = SVMBridge.USER_OMEGA_PATH
+                .resolve("javaStaticSdk")
+                .resolve(this.config.getJavaStaticSdkVersion())
+                .resolve(os + "-libs-" + this.config.getJavaStaticSdkVersion());
+        this.config.setStaticRoot(javalibs.toString());
+        this.config.setJavaFXRoot(SVMBridge.USER_OMEGA_PATH.resolve("javafxStaticSdk")
+                .resolve(this.config.getJavafxStaticSdkVersion())
+                .resolve(os + "-sdk").toString());
+
+        graalSdk = graallibs.toString();
+        javaSdk = javalibs.toString();
+        javafxSdk = this.config.getJavaFXRoot();
+        useJavaFX = this.config.isUseJavaFX();
+        useLLVM = "llvm".equals(this.config.getBackend());
+
+        bridge = new SVMBridge(this);
+    }
+
+    /**
+     * Compiles the application
+     * @param cp the list of directories and jars that make up the class path
+     * @throws Exception
+     */
+    public void compile(String cp) throws Exception {
+        List<Path> classPath = Stream.of(cp.split(File.pathSeparator))
+                .map(Paths::get)
+                .collect(Collectors.toList());
+
+        runPhase("compile", () -> createTargetConfiguration()
+                .compile(gvmPath, classPath, config.getMainClassName(), config.getAppName(), target));
+    }
+
+    /**
+     * Links the application
+     * @param workDir the directory of the application (e.g. build/omega/gvm/tmp)
+     * @throws Exception
+     */
+    public void link(Path workDir) throws Exception {
+        runPhase("link", () -> createTargetConfiguration().link(workDir, config.getAppName(), target));
+    }
+
+    /**
+     * Runs the application
+     * @throws Exception
+     */
+    public void run() throws Exception {
+        runPhase("run", () -> createTargetConfiguration().run(omegaPath, config.getAppName(), target));
+    }
+
+    /**
+     * Benchmarks the executable linked for the host, and the main class on HotSpot with the
+     * same class path. The percentiles of the time to main and to exit, the peak resident
+     * memory and the page faults are written to the benchmark report
+     * @param cp the list of directories and jars that make up the class path
+     * @throws Exception
+     */
+    public void benchmark(String cp) throws Exception {
+        runPhase("benchmark", () -> {
+            StartupBenchmark.record("native", benchmarkExecutable(), metrics);
+
+            String mainClass = config.getMainClassName();
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", cp,
+                    mainClass.substring(mainClass.indexOf('/') + 1)));
+            command.addAll(config.getBenchmarkArgs());
+            StartupBenchmark.record("hotspot", StartupBenchmark.run(command, omegaPath,
+                    config.getBenchmarkWarmupRuns(), config.getBenchmarkRuns(),
+                    config.getBenchmarkCpus(), config.getBenchmarkStartMarker(),
+                    config.getBenchmarkTimeout()), metrics);
+
+            for (String name : Arrays.asList("native", "hotspot")) {
+                System.err.println(name + ": " + StartupBenchmark.summary(name, metrics));
+            }
+        });
+    }
+
+    List<StartupBenchmark.Sample> benchmarkExecutable() throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(getExecutable().toString());
+        command.addAll(config.getBenchmarkArgs());
+        return StartupBenchmark.run(command, omegaPath, config.getBenchmarkWarmupRuns(),
+                config.getBenchmarkRuns(), config.getBenchmarkCpus(), config.getBenchmarkStartMarker(),
+                config.getBenchmarkTimeout());
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public Path getOmegaPath() {
+        return omegaPath;
+    }
+
+    public Path getGvmPath() {
+        return gvmPath;
+    }
+
+    /**
+     * Returns the executable linked for the host machine
+     * @return the path of the executable
+     */
+    public Path getExecutable() {
+        if (! "host".equals(config.getTarget())) {
+            throw new RuntimeException("No executable for target: " + config.getTarget());
+        }
+        return omegaPath.resolve(Omega.macHost ? "mac" : "linux")
+                .resolve(config.getAppName())
+                .resolve(config.getAppName());
+    }
+
+    public String getGraalSdk() {
+        return graalSdk;
+    }
+
+    public String getJavaSdk() {
+        return javaSdk;
+    }
+
+    public String getJavaFXSdk() {
+        return javafxSdk;
+    }
+
+    public boolean isUseJavaFX() {
+        return useJavaFX;
+    }
+
+    public boolean isUseLLVM() {
+        return useLLVM;
+    }
+
+    public SVMBridge getBridge() {
+        return bridge;
+    }
+
+    /**
+     * Returns the metrics of the phase (compile, link or run) in progress
+     * @return the metrics
+     */
+    public BuildMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Adds a listener for the phase timings, memory figures and analysis counts
+     * reported by the native-image builder
+     * @param listener the listener, called on the builder output thread
+     */
+    public void addBuilderOutputListener(BuilderOutputListener listener) {
+        builderListeners.add(listener);
+    }
+
+    public void removeBuilderOutputListener(BuilderOutputListener listener) {
+        builderListeners.remove(listener);
+    }
+
+    List<BuilderOutputListener> getBuilderOutputListeners() {
+        return builderListeners;
+    }
+
+    /**
+     * @return true if the SDKs were already set up for this session, e.g. by a {@link BuildScheduler}
+     */
+    public boolean isDependenciesResolved() {
+        return dependenciesResolved;
+    }
+
+    void setDependenciesResolved(boolean dependenciesResolved) {
+        this.dependenciesResolved = dependenciesResolved;
+    }
+
+    /**
+     * Keeps an entry of the Omega repository from being evicted until the session is closed
+     * @param lease the lease on the entry
+     */
+    public void addLease(RepositoryEviction.Lease lease) {
+        leases.add(lease);
+    }
+
+    /**
+     * Releases the SDKs and caches leased by the session. They are set up and leased again
+     * if the session builds after it is closed
+     */
+    @Override
+    public void close() {
+        dependenciesResolved = false;
+        for (RepositoryEviction.Lease lease : leases) {
+            lease.close();
+        }
+        leases.clear();
+    }
+
+    private interface Phase {
+        void run() throws Exception;
+    }
+
+    private void runPhase(String name, Phase phase) throws Exception {
+        metrics = new BuildMetrics();
+        String result = "failure";
+        try (BuildMetrics.Timer timer = metrics.start(name)) {
+            phase.run();
+            result = "success";
+        } finally {
+            writeMetrics(name, result);
+        }
+    }
+
+    private void writeMetrics(String phase, String result) {
+        Map<String, String> labels = new HashMap<>();
+        labels.put("app", config.getAppName());
+        labels.put("target", target);
+        labels.put("phase", phase);
+        labels.put("result", result);
+        try {
+            Path report = gvmPath.resolve(phase + "-report.json");
+            metrics.writeReport(report, labels);
+            System.err.println("Build report written to " + report);
+            if (config.getPrometheusMetricsDir() != null) {
+                metrics.writePrometheus(Paths.get(config.getPrometheusMetricsDir())
+                        .resolve("omega-" + config.getAppName() + "-" + phase + ".prom"), labels);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing build metrics: " + e.getMessage());
+        } finally {
+            metrics.close();
+        }
+    }
+
+    private TargetConfiguration createTargetConfiguration() {
+        if (target.startsWith("ios")) {
+            return new IosTargetConfiguration(this, omegaPath.getParent().getParent().resolve("src").resolve("ios"));
+        } else if (Omega.macHost) {
+            return new MacosTargetConfiguration(this);
+        } else if (Omega.linux) {
+            return new LinuxTargetConfiguration(this);
+        }
+        throw new RuntimeException("target not found: " + target);
+    }
+}
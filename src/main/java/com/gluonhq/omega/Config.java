@@ -27,6 +27,7 @@
  */
 package com.gluonhq.omega;
 
+import java.util.Collections;
 import java.util.List;
 
 public class Config {
@@ -43,17 +44,117 @@ public class Config {
     private String backend;
     private List<String> bundlesList;
     private List<String> resourcesList;
+    private List<String> resourcesIncludeList;
+    private List<String> resourcesExcludeList;
     private List<String> reflectionList;
     private List<String> jniList;
     private List<String> delayInitList;
     private List<String> runtimeArgsList;
     private List<String> releaseSymbolsList;
+    private boolean reflectionMinimization;
+    private boolean classInitAnalysis;
+    private boolean sizeReport;
+    private List<String> runArgs;
+    private boolean pgoInstrument;
+    private String pgoProfile;
+    private List<String> pgoTrainingArgs;
+    private boolean useTracingAgent;
+    private String tracingAgentJavaHome;
+    private List<String> tracingAgentArgs;
+    private long tracingAgentTimeout = 60;
+
+    private boolean useBuildCache = true;
+    private long buildCacheSize = 5L * 1024 * 1024 * 1024;
+    private String remoteBuildCache;
+    private boolean remoteBuildCachePush = true;
+    private long repositorySize = 20L * 1024 * 1024 * 1024;
+    private List<String> sdkMirrors;
+    private boolean sdkDeltaUpdates = true;
+
+    private boolean useBuildDaemon;
+    private int daemonMaxBuilds = 20;
+    private long daemonHeapLimit;
+
+    private boolean builderAutoSizing = true;
+    private long builderMaxHeap;
+    private long builderStackSize = 10L * 1024 * 1024;
+    private String builderGC;
+    private int builderThreads;
+
+    private String prometheusMetricsDir;
+
+    private int benchmarkRuns = 10;
+    private int benchmarkWarmupRuns = 2;
+    private String benchmarkCpus;
+    private List<String> benchmarkArgs;
+    private long benchmarkTimeout = 60;
+    private String benchmarkStartMarker;
 
     private String appName;
     private String mainClassName;
 
     public Config() {}
 
+    /**
+     * Creates a copy of a configuration, e.g. to build the same application for another target
+     * @param other the configuration to copy
+     */
+    public Config(Config other) {
+        this.graalLibsVersion = other.graalLibsVersion;
+        this.javaStaticSdkVersion = other.javaStaticSdkVersion;
+        this.javafxStaticSdkVersion = other.javafxStaticSdkVersion;
+        this.depsRoot = other.depsRoot;
+        this.JavaFXRoot = other.JavaFXRoot;
+        this.StaticRoot = other.StaticRoot;
+        this.useJavaFX = other.useJavaFX;
+        this.target = other.target;
+        this.backend = other.backend;
+        this.bundlesList = other.bundlesList;
+        this.resourcesList = other.resourcesList;
+        this.resourcesIncludeList = other.resourcesIncludeList;
+        this.resourcesExcludeList = other.resourcesExcludeList;
+        this.reflectionList = other.reflectionList;
+        this.jniList = other.jniList;
+        this.delayInitList = other.delayInitList;
+        this.runtimeArgsList = other.runtimeArgsList;
+        this.releaseSymbolsList = other.releaseSymbolsList;
+        this.reflectionMinimization = other.reflectionMinimization;
+        this.classInitAnalysis = other.classInitAnalysis;
+        this.sizeReport = other.sizeReport;
+        this.runArgs = other.runArgs;
+        this.pgoInstrument = other.pgoInstrument;
+        this.pgoProfile = other.pgoProfile;
+        this.pgoTrainingArgs = other.pgoTrainingArgs;
+        this.useTracingAgent = other.useTracingAgent;
+        this.tracingAgentJavaHome = other.tracingAgentJavaHome;
+        this.tracingAgentArgs = other.tracingAgentArgs;
+        this.tracingAgentTimeout = other.tracingAgentTimeout;
+        this.useBuildCache = other.useBuildCache;
+        this.buildCacheSize = other.buildCacheSize;
+        this.remoteBuildCache = other.remoteBuildCache;
+        this.remoteBuildCachePush = other.remoteBuildCachePush;
+        this.repositorySize = other.repositorySize;
+        this.sdkMirrors = other.sdkMirrors;
+        this.sdkDeltaUpdates = other.sdkDeltaUpdates;
+        this.useBuildDaemon = other.useBuildDaemon;
+        this.daemonMaxBuilds = other.daemonMaxBuilds;
+        this.daemonHeapLimit = other.daemonHeapLimit;
+        this.builderAutoSizing = other.builderAutoSizing;
+        this.builderMaxHeap = other.builderMaxHeap;
+        this.builderStackSize = other.builderStackSize;
+        this.builderGC = other.builderGC;
+        this.builderThreads = other.builderThreads;
+        this.prometheusMetricsDir = other.prometheusMetricsDir;
+        this.benchmarkRuns = other.benchmarkRuns;
+        this.benchmarkWarmupRuns = other.benchmarkWarmupRuns;
+        this.benchmarkCpus = other.benchmarkCpus;
+        this.benchmarkArgs = other.benchmarkArgs;
+        this.benchmarkTimeout = other.benchmarkTimeout;
+        this.benchmarkStartMarker = other.benchmarkStartMarker;
+        this.appName = other.appName;
+        this.mainClassName = other.mainClassName;
+    }
+
     public String getGraalLibsVersion() {
         return graalLibsVersion;
     }
@@ -174,6 +275,32 @@ public class Config {
         return resourcesList;
     }
 
+    public List<String> getResourcesIncludeList() {
+        return resourcesIncludeList == null ? Collections.emptyList() : resourcesIncludeList;
+    }
+
+    /**
+     * Sets rules for resources to include whatever their extension
+     * @param resourcesIncludeList a list of globs for the resource name, optionally preceded
+     *                             by a glob for the jar name, e.g. "mylib-*.jar:data/**"
+     */
+    public void setResourcesIncludeList(List<String> resourcesIncludeList) {
+        this.resourcesIncludeList = resourcesIncludeList;
+    }
+
+    public List<String> getResourcesExcludeList() {
+        return resourcesExcludeList;
+    }
+
+    /**
+     * Sets rules for resources to leave out, even if they match an extension or an include rule
+     * @param resourcesExcludeList a list of globs for the resource name, optionally preceded
+     *                             by a glob for the jar name. If null, META-INF/** is excluded
+     */
+    public void setResourcesExcludeList(List<String> resourcesExcludeList) {
+        this.resourcesExcludeList = resourcesExcludeList;
+    }
+
     public List<String> getReflectionList() {
         return reflectionList;
     }
@@ -234,6 +361,426 @@ public class Config {
         this.runtimeArgsList = runtimeArgsList;
     }
 
+    public boolean isReflectionMinimization() {
+        return reflectionMinimization;
+    }
+
+    /**
+     * Registers for reflection only the members the application is found to use, instead of
+     * all the members of each class in the default lists. The reflection list set with
+     * {@link #setReflectionList(List)} is still registered with all its members
+     * @param reflectionMinimization true to scan the class path and minimize the reflection config
+     */
+    public void setReflectionMinimization(boolean reflectionMinimization) {
+        this.reflectionMinimization = reflectionMinimization;
+    }
+
+    public boolean isClassInitAnalysis() {
+        return classInitAnalysis;
+    }
+
+    /**
+     * Initializes at build time the classes whose static initializers are found to be safe,
+     * in addition to the ones set with {@link #setDelayInitList(List)}. The recommended list
+     * is written to class-init.txt in the gvm directory
+     * @param classInitAnalysis true to analyze the static initializers of the class path
+     */
+    public void setClassInitAnalysis(boolean classInitAnalysis) {
+        this.classInitAnalysis = classInitAnalysis;
+    }
+
+    public boolean isSizeReport() {
+        return sizeReport;
+    }
+
+    /**
+     * Attributes the size of the compiled object to Java packages, classes and methods, and
+     * compares it with the previous build. The sizes are written to size-report.properties
+     * in the gvm directory
+     * @param sizeReport true to read the symbols of the object after each compilation
+     */
+    public void setSizeReport(boolean sizeReport) {
+        this.sizeReport = sizeReport;
+    }
+
+    public List<String> getRunArgs() {
+        return runArgs == null ? Collections.emptyList() : runArgs;
+    }
+
+    /**
+     * Sets the arguments passed to the application when it is run
+     * @param runArgs the application arguments
+     */
+    public void setRunArgs(List<String> runArgs) {
+        this.runArgs = runArgs;
+    }
+
+    public boolean isPgoInstrument() {
+        return pgoInstrument;
+    }
+
+    /**
+     * Builds an image that writes an execution profile when it exits. Requires a GraalVM
+     * SDK with profile-guided optimization
+     * @param pgoInstrument true to build an instrumented image
+     */
+    public void setPgoInstrument(boolean pgoInstrument) {
+        this.pgoInstrument = pgoInstrument;
+    }
+
+    public String getPgoProfile() {
+        return pgoProfile;
+    }
+
+    /**
+     * Sets the execution profile used to optimize the image. Requires a GraalVM SDK with
+     * profile-guided optimization
+     * @param pgoProfile the path of the profile written by an instrumented image, or null
+     */
+    public void setPgoProfile(String pgoProfile) {
+        this.pgoProfile = pgoProfile;
+    }
+
+    public List<String> getPgoTrainingArgs() {
+        return pgoTrainingArgs == null ? Collections.emptyList() : pgoTrainingArgs;
+    }
+
+    /**
+     * Sets the arguments that make the application run its training workload, and exit
+     * @param pgoTrainingArgs the application arguments
+     */
+    public void setPgoTrainingArgs(List<String> pgoTrainingArgs) {
+        this.pgoTrainingArgs = pgoTrainingArgs;
+    }
+
+    public boolean isUseTracingAgent() {
+        return useTracingAgent;
+    }
+
+    /**
+     * Runs the application on a JVM with the native-image tracing agent before it is compiled,
+     * and adds the reflection, JNI and resource configurations it captures to the default ones
+     * @param useTracingAgent true to run the tracing agent
+     */
+    public void setUseTracingAgent(boolean useTracingAgent) {
+        this.useTracingAgent = useTracingAgent;
+    }
+
+    public String getTracingAgentJavaHome() {
+        return tracingAgentJavaHome;
+    }
+
+    /**
+     * Sets the JDK that runs the application with the tracing agent
+     * @param tracingAgentJavaHome a GraalVM JDK with the native-image agent. If null, the current JDK is used
+     */
+    public void setTracingAgentJavaHome(String tracingAgentJavaHome) {
+        this.tracingAgentJavaHome = tracingAgentJavaHome;
+    }
+
+    public List<String> getTracingAgentArgs() {
+        return tracingAgentArgs == null ? Collections.emptyList() : tracingAgentArgs;
+    }
+
+    /**
+     * Sets the arguments passed to the application when it runs with the tracing agent,
+     * e.g. to run a script that goes through its features and exits
+     * @param tracingAgentArgs the application arguments
+     */
+    public void setTracingAgentArgs(List<String> tracingAgentArgs) {
+        this.tracingAgentArgs = tracingAgentArgs;
+    }
+
+    public long getTracingAgentTimeout() {
+        return tracingAgentTimeout;
+    }
+
+    /**
+     * Sets how long the application runs with the tracing agent before it is stopped
+     * @param tracingAgentTimeout the time in seconds (default 60)
+     */
+    public void setTracingAgentTimeout(long tracingAgentTimeout) {
+        this.tracingAgentTimeout = tracingAgentTimeout;
+    }
+
+    public boolean isUseBuildCache() {
+        return useBuildCache;
+    }
+
+    /**
+     * Enables or disables reusing native-image output from previous builds with the same inputs
+     * @param useBuildCache true to enable the build cache (default)
+     */
+    public void setUseBuildCache(boolean useBuildCache) {
+        this.useBuildCache = useBuildCache;
+    }
+
+    public long getBuildCacheSize() {
+        return buildCacheSize;
+    }
+
+    /**
+     * Sets the disk budget of the build cache. Least recently used entries
+     * are evicted when it is exceeded
+     * @param buildCacheSize the maximum size in bytes (default 5 GB)
+     */
+    public void setBuildCacheSize(long buildCacheSize) {
+        this.buildCacheSize = buildCacheSize;
+    }
+
+    public long getRepositorySize() {
+        return repositorySize;
+    }
+
+    /**
+     * Sets the disk budget of the user Omega repository (~/.gluon/omega), with the SDKs,
+     * their zips and the caches. The least recently used ones that no running build holds
+     * are evicted when it is exceeded
+     * @param repositorySize the maximum size in bytes (default 20 GB), or 0 to never evict
+     */
+    public void setRepositorySize(long repositorySize) {
+        this.repositorySize = repositorySize;
+    }
+
+    public List<String> getSdkMirrors() {
+        return sdkMirrors == null ? Collections.emptyList() : sdkMirrors;
+    }
+
+    /**
+     * Sets the locations the SDKs are downloaded from, tried in order. Each one has the
+     * layout of the Gluon download server (e.g. graallibs/graallibs-20.0.0.zip)
+     * @param sdkMirrors http(s) or file URLs (e.g. file:///mnt/ci/omega-mirror/), or null
+     *                   to use the Gluon download server (default)
+     */
+    public void setSdkMirrors(List<String> sdkMirrors) {
+        this.sdkMirrors = sdkMirrors;
+    }
+
+    public boolean isSdkDeltaUpdates() {
+        return sdkDeltaUpdates;
+    }
+
+    /**
+     * Enables or disables installing a new SDK version from a delta against a version
+     * already installed, when the mirror has one
+     * @param sdkDeltaUpdates true to look for deltas first (default)
+     */
+    public void setSdkDeltaUpdates(boolean sdkDeltaUpdates) {
+        this.sdkDeltaUpdates = sdkDeltaUpdates;
+    }
+
+    public String getRemoteBuildCache() {
+        return remoteBuildCache;
+    }
+
+    /**
+     * Sets a build cache shared by several machines, checked when the local build cache misses
+     * @param remoteBuildCache a directory (e.g. /mnt/ci/omega-cache) or an http(s) URL that supports
+     *                         GET and PUT, or null to only use the local build cache (default)
+     */
+    public void setRemoteBuildCache(String remoteBuildCache) {
+        this.remoteBuildCache = remoteBuildCache;
+    }
+
+    public boolean isRemoteBuildCachePush() {
+        return remoteBuildCachePush;
+    }
+
+    /**
+     * Sets whether the objects built on this machine are uploaded to the remote build cache
+     * @param remoteBuildCachePush false to only download from the remote build cache
+     */
+    public void setRemoteBuildCachePush(boolean remoteBuildCachePush) {
+        this.remoteBuildCachePush = remoteBuildCachePush;
+    }
+
+    public boolean isUseBuildDaemon() {
+        return useBuildDaemon;
+    }
+
+    /**
+     * Runs native-image builds on a resident builder JVM that is kept between builds,
+     * instead of starting a new builder process each time
+     * @param useBuildDaemon true to use the builder daemon
+     */
+    public void setUseBuildDaemon(boolean useBuildDaemon) {
+        this.useBuildDaemon = useBuildDaemon;
+    }
+
+    public int getDaemonMaxBuilds() {
+        return daemonMaxBuilds;
+    }
+
+    /**
+     * Sets the number of builds after which a builder daemon is recycled
+     * @param daemonMaxBuilds the number of builds (default 20)
+     */
+    public void setDaemonMaxBuilds(int daemonMaxBuilds) {
+        this.daemonMaxBuilds = daemonMaxBuilds;
+    }
+
+    public long getDaemonHeapLimit() {
+        return daemonHeapLimit;
+    }
+
+    /**
+     * Sets the heap usage after a build above which a builder daemon is recycled
+     * @param daemonHeapLimit the limit in bytes, or 0 for 75% of the daemon max heap
+     */
+    public void setDaemonHeapLimit(long daemonHeapLimit) {
+        this.daemonHeapLimit = daemonHeapLimit;
+    }
+
+    public boolean isBuilderAutoSizing() {
+        return builderAutoSizing;
+    }
+
+    /**
+     * Sizes the builder JVM heap, GC and threads from the memory and CPUs available
+     * to the build, including container limits, and from the heap used by previous builds
+     * @param builderAutoSizing false to use the fixed legacy settings
+     */
+    public void setBuilderAutoSizing(boolean builderAutoSizing) {
+        this.builderAutoSizing = builderAutoSizing;
+    }
+
+    public long getBuilderMaxHeap() {
+        return builderMaxHeap;
+    }
+
+    /**
+     * Sets the max heap of the builder JVM
+     * @param builderMaxHeap the max heap in bytes, or 0 to compute it
+     */
+    public void setBuilderMaxHeap(long builderMaxHeap) {
+        this.builderMaxHeap = builderMaxHeap;
+    }
+
+    public long getBuilderStackSize() {
+        return builderStackSize;
+    }
+
+    /**
+     * Sets the thread stack size of the builder JVM
+     * @param builderStackSize the stack size in bytes (default 10 MB)
+     */
+    public void setBuilderStackSize(long builderStackSize) {
+        this.builderStackSize = builderStackSize;
+    }
+
+    public String getBuilderGC() {
+        return builderGC;
+    }
+
+    /**
+     * Sets the garbage collector of the builder JVM
+     * @param builderGC the GC name (e.g. Serial, Parallel, G1), or null to choose it from the heap size
+     */
+    public void setBuilderGC(String builderGC) {
+        this.builderGC = builderGC;
+    }
+
+    public int getBuilderThreads() {
+        return builderThreads;
+    }
+
+    /**
+     * Sets the number of threads used by the native-image builder
+     * @param builderThreads the number of threads, or 0 to compute it
+     */
+    public void setBuilderThreads(int builderThreads) {
+        this.builderThreads = builderThreads;
+    }
+
+    public String getPrometheusMetricsDir() {
+        return prometheusMetricsDir;
+    }
+
+    /**
+     * Sets a directory where the build metrics are also written in the Prometheus text format,
+     * e.g. the node exporter textfile collector directory
+     * @param prometheusMetricsDir the directory, or null to only write the JSON report
+     */
+    public void setPrometheusMetricsDir(String prometheusMetricsDir) {
+        this.prometheusMetricsDir = prometheusMetricsDir;
+    }
+
+    public int getBenchmarkRuns() {
+        return benchmarkRuns;
+    }
+
+    /**
+     * Sets how many times the executable runs when it is benchmarked
+     * @param benchmarkRuns the number of measured runs (default 10)
+     */
+    public void setBenchmarkRuns(int benchmarkRuns) {
+        this.benchmarkRuns = benchmarkRuns;
+    }
+
+    public int getBenchmarkWarmupRuns() {
+        return benchmarkWarmupRuns;
+    }
+
+    /**
+     * Sets how many times the executable runs before it is measured, to warm the file cache
+     * @param benchmarkWarmupRuns the number of runs that are not measured (default 2)
+     */
+    public void setBenchmarkWarmupRuns(int benchmarkWarmupRuns) {
+        this.benchmarkWarmupRuns = benchmarkWarmupRuns;
+    }
+
+    public String getBenchmarkCpus() {
+        return benchmarkCpus;
+    }
+
+    /**
+     * Pins the benchmarked processes to some CPUs, with taskset. Only on Linux
+     * @param benchmarkCpus a CPU list (e.g. "2" or "2-3"), or null to not pin the processes
+     */
+    public void setBenchmarkCpus(String benchmarkCpus) {
+        this.benchmarkCpus = benchmarkCpus;
+    }
+
+    public List<String> getBenchmarkArgs() {
+        return benchmarkArgs == null ? Collections.emptyList() : benchmarkArgs;
+    }
+
+    /**
+     * Sets the arguments passed to the application when it is benchmarked, e.g. to make it
+     * exit once it has started
+     * @param benchmarkArgs the application arguments
+     */
+    public void setBenchmarkArgs(List<String> benchmarkArgs) {
+        this.benchmarkArgs = benchmarkArgs;
+    }
+
+    public long getBenchmarkTimeout() {
+        return benchmarkTimeout;
+    }
+
+    /**
+     * Sets how long each benchmark run can take before the application is stopped
+     * @param benchmarkTimeout the time in seconds (default 60)
+     */
+    public void setBenchmarkTimeout(long benchmarkTimeout) {
+        this.benchmarkTimeout = benchmarkTimeout;
+    }
+
+    public String getBenchmarkStartMarker() {
+        return benchmarkStartMarker;
+    }
+
+    /**
+     * Sets the text the application prints once it has started. The time to main of a
+     * benchmark run is taken when a line containing it is printed. Without a marker, it is
+     * taken at the first output, and applications that print nothing, like most JavaFX
+     * applications, have no time to main
+     * @param benchmarkStartMarker the text, or null to use the first output
+     */
+    public void setBenchmarkStartMarker(String benchmarkStartMarker) {
+        this.benchmarkStartMarker = benchmarkStartMarker;
+    }
+
     public String getAppName() {
         return appName;
     }
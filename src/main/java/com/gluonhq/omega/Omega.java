@@ -28,29 +28,25 @@
 
 package com.gluonhq.omega;
 
-import com.gluonhq.omega.target.IosTargetConfiguration;
-import com.gluonhq.omega.target.LinuxTargetConfiguration;
-import com.gluonhq.omega.target.MacosTargetConfiguration;
-import com.gluonhq.omega.target.TargetConfiguration;
+import com.gluonhq.omega.daemon.BuilderDaemonClient;
+import com.gluonhq.omega.util.BuildMetrics;
+import com.gluonhq.omega.util.StartupBenchmark;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Map;
 
 public class Omega {
 
-    private static Path omegaPath;
-    private static Path gvmPath;
-
     static boolean linux = false;
     static boolean macHost = false;
-    private static Config config;
+
+    // the most recent session, backing the static accessors
+    private static volatile BuildSession lastSession;
 
     static {
         String osname = System.getProperty("os.name");
@@ -62,12 +58,30 @@ public class Omega {
         }
     }
 
-    private static void setConfig(Config config) {
-        Omega.config = config;
+    /**
+     * Returns the configuration of the most recent build. Concurrent builds
+     * should use {@link BuildSession#getConfig()} instead
+     * @return the configuration, or null if no build was started
+     */
+    public static Config getConfig() {
+        BuildSession session = lastSession;
+        return session == null ? null : session.getConfig();
     }
 
-    public static Config getConfig() {
-        return config;
+    /**
+     * Creates a new build session. Each session keeps its own state, so several
+     * sessions can run at the same time for different applications and targets
+     *
+     * @param buildRoot Omega directory, (e.g. build/omega)
+     * @param config the required configuration
+     * @param target  the host machine, iOS sim or device
+     * @return a new session
+     * @throws IOException
+     */
+    public static BuildSession createSession(String buildRoot, Config config, String target) throws IOException {
+        BuildSession session = new BuildSession(buildRoot, config, target);
+        lastSession = session;
+        return session;
     }
 
     /**
@@ -80,15 +94,9 @@ public class Omega {
      * @throws Exception
      */
     public static void nativeCompile(String buildRoot, Config config, String cp, String target) throws Exception {
-        prepareConfig(config);
-        prepareDirs(buildRoot);
-
-        List<Path> classPath = Stream.of(cp.split(File.pathSeparator))
-                .map(Paths::get)
-                .collect(Collectors.toList());
-
-        TargetConfiguration targetConfig = getTargetConfiguration(target);
-        targetConfig.compile(gvmPath, classPath, config.getMainClassName(), config.getAppName(), target);
+        try (BuildSession session = createSession(buildRoot, config, target)) {
+            session.compile(cp);
+        }
     }
 
     /**
@@ -100,11 +108,9 @@ public class Omega {
      * @throws Exception
      */
     public static void nativeLink(String buildRoot, Path workDir, Config config, String target) throws Exception {
-        prepareConfig(config);
-        prepareDirs(buildRoot);
-
-        TargetConfiguration targetConfig = getTargetConfiguration(target);
-        targetConfig.link(workDir, config.getAppName(), target);
+        try (BuildSession session = createSession(buildRoot, config, target)) {
+            session.link(workDir);
+        }
     }
 
     /**
@@ -115,11 +121,108 @@ public class Omega {
      * @throws Exception
      */
     public static void nativeRun(Path workDir, Config config, String target) throws Exception {
-        prepareConfig(config);
-        prepareDirs(workDir.toString());
+        try (BuildSession session = createSession(workDir.toString(), config, target)) {
+            session.run();
+        }
+    }
+
+    /**
+     * Compiles and links the application for several targets, running the builds
+     * that fit in the available memory and CPUs at the same time
+     *
+     * @param buildRoot Omega directory, (e.g. build/omega)
+     * @param config the required configuration
+     * @param cp the list of directories and jars that make up the class path
+     * @param targets the targets to build (e.g. host, ios-sim, ios)
+     * @return the sessions of the targets
+     * @throws Exception
+     */
+    public static List<BuildSession> nativeBuild(String buildRoot, Config config, String cp,
+                                                 List<String> targets) throws Exception {
+        return new BuildScheduler().build(buildRoot, config, cp, targets, true);
+    }
 
-        TargetConfiguration targetConfig = getTargetConfiguration(target);
-        targetConfig.run(workDir, config.getAppName(), target);
+    /**
+     * Compiles and links the application for the host, then benchmarks the executable and the
+     * main class on HotSpot. The percentiles are written to benchmark-report.json in the gvm directory
+     *
+     * @param buildRoot Omega directory, (e.g. build/omega)
+     * @param config the required configuration, with the benchmark settings
+     * @param cp the list of directories and jars that make up the class path
+     * @return the session of the build
+     * @throws Exception
+     */
+    public static BuildSession nativeBenchmark(String buildRoot, Config config, String cp) throws Exception {
+        try (BuildSession session = createSession(buildRoot, config, "host")) {
+            session.compile(cp);
+            session.link(session.getGvmPath().resolve("tmp"));
+            session.benchmark(cp);
+            return session;
+        }
+    }
+
+    /**
+     * Builds the application for the host with profile-guided optimization: an instrumented
+     * image runs the training workload, and the image is rebuilt with the profile it wrote
+     *
+     * @param buildRoot Omega directory, (e.g. build/omega)
+     * @param config the required configuration, with the training arguments
+     * @param cp the list of directories and jars that make up the class path
+     * @return the session of the optimized build
+     * @throws Exception
+     */
+    public static BuildSession nativePgoBuild(String buildRoot, Config config, String cp) throws Exception {
+        return new PgoBuilder().build(buildRoot, config, cp);
+    }
+
+    /**
+     * Builds the application for the host twice, without and with the class initialization
+     * analysis, and compares the startup of both executables. The percentiles are written to
+     * class-init-benchmark.json in the build root
+     *
+     * @param buildRoot Omega directory, (e.g. build/omega). The baseline is built in buildRoot-baseline.
+     *                  If null or empty, the current directory is used
+     * @param config the required configuration, with the benchmark settings
+     * @param cp the list of directories and jars that make up the class path
+     * @return the metrics with the time to main and to exit of each build
+     * @throws Exception
+     */
+    public static BuildMetrics benchmarkClassInit(String buildRoot, Config config, String cp) throws Exception {
+        Path root = buildRoot != null && ! buildRoot.isEmpty() ?
+                Paths.get(buildRoot) : Paths.get(System.getProperty("user.dir"));
+        Config baseline = new Config(config);
+        baseline.setTarget("host");
+        baseline.setClassInitAnalysis(false);
+        Config analyzed = new Config(baseline);
+        analyzed.setClassInitAnalysis(true);
+
+        BuildMetrics metrics = new BuildMetrics();
+        try {
+            measureStartup(root + "-baseline", baseline, cp, "baseline", metrics);
+            measureStartup(root.toString(), analyzed, cp, "analyzed", metrics);
+            System.err.println(String.format("Time to main: %s -> %s, time to exit: %s -> %s",
+                    StartupBenchmark.format(metrics, "baseline.time-to-main-us.p50", 1000, "ms"),
+                    StartupBenchmark.format(metrics, "analyzed.time-to-main-us.p50", 1000, "ms"),
+                    StartupBenchmark.format(metrics, "baseline.time-to-exit-us.p50", 1000, "ms"),
+                    StartupBenchmark.format(metrics, "analyzed.time-to-exit-us.p50", 1000, "ms")));
+
+            Map<String, String> labels = new HashMap<>();
+            labels.put("app", config.getAppName());
+            labels.put("phase", "class-init-benchmark");
+            metrics.writeReport(root.resolve("class-init-benchmark.json"), labels);
+        } finally {
+            metrics.close();
+        }
+        return metrics;
+    }
+
+    private static void measureStartup(String buildRoot, Config config, String cp,
+                                       String name, BuildMetrics metrics) throws Exception {
+        try (BuildSession session = createSession(buildRoot, config, "host")) {
+            session.compile(cp);
+            session.link(session.getGvmPath().resolve("tmp"));
+            StartupBenchmark.record(name, session.benchmarkExecutable(), metrics);
+        }
     }
 
     /**
@@ -136,7 +239,7 @@ public class Omega {
             } else if (osname.toLowerCase(Locale.ROOT).contains("mac")) {
                 target = "macosx";
             }
-        } else if ("ios".equals(Omega.config.getTarget()) || "ios-sim".equals(config.getTarget())) {
+        } else if ("ios".equals(config.getTarget()) || "ios-sim".equals(config.getTarget())) {
             target = "ios";
         } else {
             throw new RuntimeException("No valid target: " + config.getTarget());
@@ -146,42 +249,64 @@ public class Omega {
 
     /**
      * Returns the list of runtime arguments
-     * @return a list of runtime arguments
+     * @return a list of runtime arguments, or null if no build was started
      */
     public static List<String> getRuntimeArgs() {
-        return SVMBridge.runtimeArgs;
+        BuildSession session = lastSession;
+        return session == null ? null : session.getBridge().getRuntimeArgs();
     }
 
     /**
      * Returns the list with the classpath
-     * @return a list with the classpath
+     * @return a list with the classpath, or null if no build was started
      */
     public static List<String> getClassPath() {
-        return SVMBridge.classPath;
+        BuildSession session = lastSession;
+        return session == null ? null : session.getBridge().getClassPath();
     }
 
     /**
      * Returns the list with the module path
-     * @return a list with the module path
+     * @return a list with the module path, or null if no build was started
      */
     public static List<String> getModulePath() {
-        return SVMBridge.modulePath;
+        BuildSession session = lastSession;
+        return session == null ? null : session.getBridge().getModulePath();
     }
 
     /**
      * Returns the list with the upgrade module path
-     * @return a list with the upgrade module path
+     * @return a list with the upgrade module path, or null if no build was started
      */
     public static List<String> getUpgradeModulePath() {
-        return SVMBridge.upgradeModulePath;
+        BuildSession session = lastSession;
+        return session == null ? null : session.getBridge().getUpgradeModulePath();
     }
 
     /**
      * Returns the list with the default bundles
-     * @return a list with the default bundles
+     * @return a list with the default bundles, or null if no build was started
      */
     public static List<String> getBundlesList() {
-        return SVMBridge.getBundlesList();
+        BuildSession session = lastSession;
+        return session == null ? null : session.getBridge().getBundlesList();
+    }
+
+    /**
+     * Returns the builder daemons that are currently running
+     * @return a list with the status of each daemon, including the number of builds it has served
+     * @throws IOException
+     */
+    public static List<BuilderDaemonClient.DaemonInfo> getBuildDaemons() throws IOException {
+        return SVMBridge.getDaemonClient(new Config()).getDaemons();
+    }
+
+    /**
+     * Stops the builder daemons that are not running a build
+     * @throws IOException
+     */
+    public static void stopBuildDaemons() throws IOException {
+        SVMBridge.getDaemonClient(new Config()).stopDaemons();
     }
 
     /**
@@ -215,8 +340,6 @@ public class Omega {
             config.setAppName(appName);
             config.setMainClassName(mainClassName);
 
-            SVMBridge.init();
-
             Omega.nativeCompile(buildRoot, config, cp, target);
 
             Path workDir = Path.of(args[5]);
@@ -225,48 +348,4 @@ public class Omega {
             e.printStackTrace();
         }
     }
-
-    // private
-
-    private static String prepareDirs(String buildRoot) {
-        String gvmDir = null;
-        try {
-            omegaPath = buildRoot != null && ! buildRoot.isEmpty() ?
-                    Paths.get(buildRoot) : Paths.get(System.getProperty("user.dir"));
-            String rootDir = omegaPath.toAbsolutePath().toString();
-
-            gvmPath = Paths.get(rootDir, "gvm");
-            gvmPath = Files.createDirectories(gvmPath);
-            gvmDir = gvmPath.toAbsolutePath().toString();
-            System.err.println("gvmDir = " + gvmDir);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return gvmDir;
-    }
-
-    private static void prepareConfig(Config config) {
-        if (config.getMainClassName() == null || config.getMainClassName().isEmpty()) {
-            throw new RuntimeException("MainClassName is not set");
-        }
-        if (config.getAppName() == null || config.getAppName().isEmpty()) {
-            throw new RuntimeException("AppName is not set");
-        }
-        setConfig(config);
-    }
-
-    private static TargetConfiguration getTargetConfiguration(String target) {
-        TargetConfiguration config;
-        if (target.startsWith("ios")) {
-            config = new IosTargetConfiguration(omegaPath.getParent().getParent().resolve("src").resolve("ios"));
-        } else if (macHost) {
-            config = new MacosTargetConfiguration();
-        } else if (linux) {
-            config = new LinuxTargetConfiguration();
-        } else {
-            throw new RuntimeException("target not found: "+target);
-        }
-        return config;
-    }
-
 }
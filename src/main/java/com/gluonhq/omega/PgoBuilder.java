@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega;
+
+import com.gluonhq.omega.util.BuildCache;
+import com.gluonhq.omega.util.BuildMetrics;
+import com.gluonhq.omega.util.RepositoryEviction;
+import com.gluonhq.omega.util.StartupBenchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds an application for the host with profile-guided optimization.
+ *
+ * The cycle has three builds: a baseline, an instrumented image that runs the training
+ * workload through {@link BuildSession#run()} and writes an execution profile when it
+ * exits, and the image optimized with that profile. The profile is stored next to the
+ * build cache, under the fingerprint of the baseline build and the training and run
+ * arguments, so later builds of unchanged code and workload skip the instrumented build
+ * and the training run.
+ *
+ * Profile-guided optimization is only available in GraalVM Enterprise: with other SDKs
+ * the cycle fails before the first build.
+ */
+public class PgoBuilder {
+
+    // the file written by an instrumented image, in its working directory
+    private static final String PROFILE_NAME = "default.iprof";
+    private static final Path PROFILE_ROOT = SVMBridge.USER_OMEGA_PATH.resolve("cache").resolve("pgo");
+
+    private final BuildMetrics metrics = new BuildMetrics();
+
+    /**
+     * Runs the profile-guided optimization cycle. The baseline and the optimized image run
+     * the training workload with the benchmark settings, and their times are written to
+     * pgo-report.json in the build root
+     *
+     * @param buildRoot Omega directory, (e.g. build/omega). The baseline and the instrumented
+     *                  image are built in buildRoot-baseline and buildRoot-instrumented
+     * @param config the required configuration, with the training arguments
+     * @param cp the list of directories and jars that make up the class path
+     * @return the session of the optimized build
+     * @throws Exception
+     */
+    public BuildSession build(String buildRoot, Config config, String cp) throws Exception {
+        Config baseline = new Config(config);
+        baseline.setTarget("host");
+        baseline.setPgoInstrument(false);
+        baseline.setPgoProfile(null);
+        baseline.setBenchmarkArgs(config.getPgoTrainingArgs());
+
+        BuildSession baselineSession = Omega.createSession(buildRoot + "-baseline", baseline, "host");
+        BuildSession optimizedSession = null;
+        try {
+            if (! baselineSession.getBridge().isPgoSupported()) {
+                throw new RuntimeException("Profile-guided optimization is not supported by the GraalVM SDK at " +
+                        baselineSession.getGraalSdk() + ", it requires GraalVM Enterprise");
+            }
+            compileAndLink(baselineSession, cp);
+
+            Path profile = PROFILE_ROOT.resolve(getProfileKey(baselineSession.getBridge().getCompileFingerprint(), baseline))
+                    .resolve(PROFILE_NAME);
+            // held until the optimized build is done
+            baselineSession.addLease(RepositoryEviction.lease(profile.getParent()));
+            if (Files.isRegularFile(profile)) {
+                System.err.println("Reusing the profile " + profile);
+                metrics.increment("pgo.profile-reused");
+            } else {
+                train(buildRoot + "-instrumented", baseline, cp, profile);
+            }
+
+            Config optimized = new Config(baseline);
+            optimized.setPgoProfile(profile.toString());
+            optimizedSession = Omega.createSession(buildRoot, optimized, "host");
+            compileAndLink(optimizedSession, cp);
+
+            StartupBenchmark.record("baseline", baselineSession.benchmarkExecutable(), metrics);
+            StartupBenchmark.record("optimized", optimizedSession.benchmarkExecutable(), metrics);
+        } finally {
+            baselineSession.close();
+            if (optimizedSession != null) {
+                optimizedSession.close();
+            }
+        }
+        for (String name : new String[] {"baseline", "optimized"}) {
+            long latency = metrics.getGauge(name + ".time-to-exit-us.p50");
+            if (latency > 0) {
+                metrics.setGauge(name + ".workloads-per-hour", 3_600_000_000L / latency);
+            }
+            System.err.println(String.format("%s: training workload p50 %d ms, p90 %d ms, %d per hour",
+                    name, latency / 1000, metrics.getGauge(name + ".time-to-exit-us.p90") / 1000,
+                    metrics.getGauge(name + ".workloads-per-hour")));
+        }
+        writeReport(Paths.get(buildRoot), config);
+        return optimizedSession;
+    }
+
+    // the profile depends on the workload the training run executes, not only on the image
+    private static String getProfileKey(String fingerprint, Config baseline) {
+        List<String> values = new ArrayList<>();
+        baseline.getPgoTrainingArgs().forEach(arg -> values.add("training:" + arg));
+        baseline.getRunArgs().forEach(arg -> values.add("run:" + arg));
+        return BuildCache.deriveKey(fingerprint, values);
+    }
+
+    private void train(String buildRoot, Config baseline, String cp, Path profile) throws Exception {
+        Config instrumented = new Config(baseline);
+        instrumented.setPgoInstrument(true);
+        instrumented.setRunArgs(baseline.getPgoTrainingArgs());
+        Path written;
+        try (BuildSession session = Omega.createSession(buildRoot, instrumented, "host")) {
+            compileAndLink(session, cp);
+
+            written = session.getOmegaPath().resolve(PROFILE_NAME);
+            Files.deleteIfExists(written);
+            try (BuildMetrics.Timer timer = metrics.start("pgo.training")) {
+                session.run();
+            }
+        }
+        if (! Files.isRegularFile(written)) {
+            throw new IOException("The instrumented application didn't write " + written +
+                    ", check that the training workload exits normally");
+        }
+        Files.createDirectories(profile.getParent());
+        Path tmp = Files.createTempFile(profile.getParent(), PROFILE_NAME, ".tmp");
+        Files.copy(written, tmp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, profile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.err.println("Stored the profile " + profile);
+    }
+
+    private void compileAndLink(BuildSession session, String cp) throws Exception {
+        session.compile(cp);
+        session.link(session.getGvmPath().resolve("tmp"));
+    }
+
+    private void writeReport(Path root, Config config) {
+        Map<String, String> labels = new HashMap<>();
+        labels.put("app", config.getAppName());
+        labels.put("phase", "pgo");
+        try {
+            metrics.writeReport(root.resolve("pgo-report.json"), labels);
+        } catch (IOException e) {
+            System.err.println("Error writing build metrics: " + e.getMessage());
+        } finally {
+            metrics.close();
+        }
+    }
+}
@@ -27,103 +27,172 @@
  */
 package com.gluonhq.omega;
 
+import com.gluonhq.omega.daemon.BuilderDaemonClient;
 import com.gluonhq.omega.target.AbstractTargetConfiguration;
 import com.gluonhq.omega.target.LinuxTargetConfiguration;
 import com.gluonhq.omega.target.MacosTargetConfiguration;
+import com.gluonhq.omega.util.ArtifactManifest;
+import com.gluonhq.omega.util.BuildCache;
+import com.gluonhq.omega.util.BuildMetrics;
+import com.gluonhq.omega.util.CacheStore;
+import com.gluonhq.omega.util.ClassInitAnalyzer;
+import com.gluonhq.omega.util.BuilderEvent;
+import com.gluonhq.omega.util.BuilderOutputParser;
+import com.gluonhq.omega.util.BuilderSizing;
 import com.gluonhq.omega.util.FileDeps;
 import com.gluonhq.omega.util.FileOps;
+import com.gluonhq.omega.util.ProcessOutput;
+import com.gluonhq.omega.util.ReflectionConfig;
+import com.gluonhq.omega.util.ReflectionScanner;
+import com.gluonhq.omega.util.ResourceIndex;
+import com.gluonhq.omega.util.SizeReport;
+import com.gluonhq.omega.util.TracingAgent;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
 
 public class SVMBridge {
 
-    public static String GRAALSDK;
-    public static String JFXSDK;
-    public static String JAVASDK;
-    public static boolean USE_JAVAFX;
-    private static boolean USE_LLVM;
-
     public static final Path USER_OMEGA_PATH = Path.of(System.getProperty("user.home"))
             .resolve(".gluon").resolve("omega");
 
-    private static final List<String> CUSTOM_REFLECTION_LIST = new ArrayList<>();
-    private static final List<String> CUSTOM_JNI_LIST = new ArrayList<>();
-    private static final List<String> CUSTOM_DELAY_INIT_LIST = new ArrayList<>();
-    private static final List<String> CUSTOM_RELEASE_SYMBOL_LIST = new ArrayList<>();
-
-    static List<String> classPath;
-    static List<String> modulePath;
-    static List<String> upgradeModulePath;
-    static List<String> runtimeArgs;
-
-    private static Path workDir;
-    private static List<Path> classDir;
-    private static String mainClass;
-    private static String appName;
-
-    private static final List<String> bundlesList = new ArrayList<>(Arrays.asList(
+    private static final List<String> bundlesList = Arrays.asList(
             "com/sun/javafx/scene/control/skin/resources/controls",
             "com.sun.javafx.tk.quantum.QuantumMessagesBundle"
-    ));
+    );
 
     private static final List<String> resourcesList = Arrays.asList(
             "frag", "fxml", "css", "gls", "ttf",
             "png", "jpg", "jpeg", "gif", "bmp",
             "license", "json");
 
-    private static AbstractTargetConfiguration config;
-
-    static void init() {
-        Config omegaConfig = Omega.getConfig();
-        String target = Omega.getTarget(omegaConfig);
-        Path graallibs = USER_OMEGA_PATH
-                .resolve("graalLibs")
-                .resolve(omegaConfig.getGraalLibsVersion())
-                .resolve("lib");
-        omegaConfig.setDepsRoot(graallibs.toString());
-        Path javalibs = USER_OMEGA_PATH
-                .resolve("javaStaticSdk")
-                .resolve(omegaConfig.getJavaStaticSdkVersion())
-                .resolve(target + "-libs-" + omegaConfig.getJavaStaticSdkVersion());
-        omegaConfig.setStaticRoot(javalibs.toString());
-        omegaConfig.setJavaFXRoot(USER_OMEGA_PATH.resolve("javafxStaticSdk")
-                .resolve(omegaConfig.getJavafxStaticSdkVersion())
-                .resolve(target + "-sdk").toString());
-        SVMBridge.GRAALSDK = graallibs.toString();
-        SVMBridge.JAVASDK = javalibs.toString();
-        SVMBridge.JFXSDK = omegaConfig.getJavaFXRoot();
-        SVMBridge.USE_JAVAFX = omegaConfig.isUseJavaFX();
-        SVMBridge.USE_LLVM = "llvm".equals(omegaConfig.getBackend());
-        SVMBridge.CUSTOM_REFLECTION_LIST.addAll(omegaConfig.getReflectionList());
-        SVMBridge.CUSTOM_JNI_LIST.addAll(omegaConfig.getJniList());
-        SVMBridge.CUSTOM_DELAY_INIT_LIST.addAll(omegaConfig.getDelayInitList());
-        SVMBridge.CUSTOM_RELEASE_SYMBOL_LIST.addAll(omegaConfig.getReleaseSymbolsList());
+    // the builder options and classes of profile-guided optimization, in GraalVM Enterprise
+    private static final String PGO_INSTRUMENT_OPTION = "-H:+PGOInstrument";
+    private static final String PGO_FILES_OPTION = "-H:PGOFiles=";
+    private static final String PGO_PACKAGE = "com/oracle/svm/hosted/pgo/";
+
+    // the number of packages, classes and methods listed in the size report
+    private static final int SIZE_REPORT_TOP = 20;
+    private static final String UNRESOLVED_FILE = "reflection-unresolved.txt";
+    private static final String CLASS_INIT_REPORT = "class-init.txt";
+
+    private final BuildSession session;
+    private final Config omegaConfig;
+
+    private final List<String> customReflectionList = new ArrayList<>();
+    private final List<String> customJniList = new ArrayList<>();
+    private final List<String> customDelayInitList = new ArrayList<>();
+    private final List<String> customReleaseSymbolList = new ArrayList<>();
+
+    private List<String> classPath;
+    private List<String> modulePath;
+    private List<String> upgradeModulePath;
+    private List<String> runtimeArgs;
+    private Set<String> buildTimeInitList = new LinkedHashSet<>();
+
+    private AbstractTargetConfiguration config;
+    private Path workDir;
+    private List<Path> classDir;
+    private String mainClass;
+    private String appName;
+    private String suffix;
+    private List<String> jvmArgs;
+    private List<String> compileCommand;
+    private String compileKey;
+    private BuilderSizing sizing;
+    private ProcessOutput builderOutput;
+
+    SVMBridge(BuildSession session) {
+        this.session = session;
+        this.omegaConfig = session.getConfig();
+        customReflectionList.addAll(omegaConfig.getReflectionList());
+        customJniList.addAll(omegaConfig.getJniList());
+        customDelayInitList.addAll(omegaConfig.getDelayInitList());
+        customReleaseSymbolList.addAll(omegaConfig.getReleaseSymbolsList());
+    }
 
+    /**
+     * Downloads and verifies the SDKs required by the session
+     */
+    public void init() {
+        if (session.isDependenciesResolved()) {
+            return;
+        }
         // LIBS
         try {
-            FileDeps.setupDependencies(omegaConfig);
+            FileDeps.setupDependencies(omegaConfig, session.getMetrics(), session::addLease);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public static void compile(Path workingDir, List<Path> gClassdir, String className, String appName,
-                               AbstractTargetConfiguration configuration) throws Exception {
+    /**
+     * Runs the application with the native-image tracing agent
+     * @param classPath the application class path
+     * @param className the main class, optionally with its module (e.g. module/com.example.Main)
+     */
+    public void trace(List<Path> classPath, String className) throws Exception {
+        String main = className.contains("/") ? className.substring(className.indexOf("/") + 1) : className;
+        TracingAgent.run(omegaConfig, classPath, main, getTracingAgentDir(), session.getMetrics());
+    }
+
+    /**
+     * @return the directory where the tracing agent writes its configuration files
+     */
+    public Path getTracingAgentDir() {
+        return session.getGvmPath().resolve("agent");
+    }
+
+    public void compile(Path workingDir, List<Path> gClassdir, String className, String appName,
+                        AbstractTargetConfiguration configuration) throws Exception {
         init();
+        prepare(workingDir, gClassdir, className, appName, configuration);
+        compileImage();
+    }
+
+    /**
+     * Generates the configuration files and the builder command line
+     */
+    public void prepare(Path workingDir, List<Path> gClassdir, String className, String appName,
+                        AbstractTargetConfiguration configuration) throws Exception {
+        setup(workingDir, gClassdir, className, appName, configuration);
+        createConfigs();
+        createCommand();
+    }
+
+    /**
+     * Sets the application to build, before its configuration files and builder command
+     * line are created
+     */
+    public void setup(Path workingDir, List<Path> gClassdir, String className, String appName,
+                      AbstractTargetConfiguration configuration) {
         config = configuration;
-        deleteDirectory(workingDir.resolve("tmp").toFile());
         workingDir.toFile().mkdir();
 
         mainClass = className;
@@ -136,23 +205,84 @@ public class SVMBridge {
         workDir = workingDir;
         System.err.println("workDir: " + workDir);
 
-        SVMBridge.appName = appName;
-        System.err.println("appName: " + SVMBridge.appName);
+        this.appName = appName;
+        System.err.println("appName: " + this.appName);
 
         classDir = gClassdir;
         System.err.println("classDir: " + classDir);
 
-        String suffix = config instanceof LinuxTargetConfiguration ? "linux" :
+        suffix = config instanceof LinuxTargetConfiguration ? "linux" :
                 config instanceof MacosTargetConfiguration ? "mac" : "ios";
+    }
+
+    /**
+     * Generates the reflection, JNI and resource configuration files, the class
+     * initialization report and the release symbols
+     */
+    public void createConfigs() throws Exception {
         createReflectionConfig(suffix);
         createJNIConfig(suffix);
+        createResourceConfig(suffix);
+        analyzeClassInitialization();
 
         createReleaseSymbols();
+    }
+
+    /**
+     * Returns a digest of the inputs of the configuration files: the class path contents,
+     * the configuration, the tracing agent files and the Omega classes with the default lists
+     * @return the fingerprint of the configuration files
+     * @throws IOException
+     */
+    public String getConfigsFingerprint() throws IOException {
+        List<Path> agentFiles = new ArrayList<>();
+        if (omegaConfig.isUseTracingAgent()) {
+            Path agentDir = getTracingAgentDir();
+            agentFiles.add(agentDir.resolve(TracingAgent.REFLECTION_CONFIG));
+            agentFiles.add(agentDir.resolve(TracingAgent.JNI_CONFIG));
+            agentFiles.add(agentDir.resolve(TracingAgent.RESOURCE_CONFIG));
+        }
+        List<String> values = new ArrayList<>(Arrays.asList(mainClass, appName, suffix));
+        try {
+            Path omega = Paths.get(SVMBridge.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            values.add(omega.toString() + ":" + Files.size(omega) + ":" + Files.getLastModifiedTime(omega).toMillis());
+        } catch (URISyntaxException | SecurityException | NullPointerException e) {
+            values.add("omega:unknown");
+        }
+        return BuildCache.computeKey(classDir, agentFiles, omegaConfig, values, workDir);
+    }
+
+    /**
+     * @return the files written by {@link #createConfigs()}
+     */
+    public List<Path> getConfigsOutputs() {
+        List<Path> outputs = new ArrayList<>(Arrays.asList(
+                workDir.resolve("reflectionconfig-" + suffix + ".json"),
+                workDir.resolve("jniconfig-" + suffix + ".json"),
+                workDir.resolve("resourceconfig-" + suffix + ".json"),
+                workDir.resolve("release.symbols")));
+        if (omegaConfig.isClassInitAnalysis()) {
+            outputs.add(workDir.resolve(CLASS_INIT_REPORT));
+        }
+        return outputs;
+    }
+
+    /**
+     * Creates the builder command line, from the configuration files
+     */
+    public void createCommand() throws Exception {
+        // also when the configuration files are up to date and weren't generated again
+        buildTimeInitList = new LinkedHashSet<>(customDelayInitList);
+        if (omegaConfig.isClassInitAnalysis()) {
+            buildTimeInitList.addAll(ClassInitAnalyzer.Result.readBuildTimeClasses(workDir.resolve(CLASS_INIT_REPORT)));
+        }
 
         setClassPath();
         setModulePath();
         setUpgradeModulePath();
         setRuntimeArgs(suffix);
+        sizing = BuilderSizing.compute(omegaConfig, classDir, workDir);
+        runtimeArgs.addAll(sizing.getBuilderArgs());
 
         String cp = classPath.stream()
                 .collect(Collectors.joining(File.pathSeparator));
@@ -173,15 +303,13 @@ public class SVMBridge {
         if (suffix.startsWith("ios")) {
             linkedList.add("-Dtargetos.name=iOS");
         }
-        linkedList.add("-Xss10m");
-        linkedList.add("-Xms1g");
-        linkedList.add("-Xmx13441813704");
+        linkedList.addAll(sizing.getJvmArgs());
 //        linkedList.add("-Dprism.marlinrasterizer=false");
         linkedList.add("-Duser.country=US");
         linkedList.add("-Duser.language=en");
-        linkedList.add("-Dgraalvm.version=" + Omega.getConfig().getGraalLibsVersion());
+        linkedList.add("-Dgraalvm.version=" + omegaConfig.getGraalLibsVersion());
 
-        if (configuration.isCrossCompile()) {
+        if (config.isCrossCompile()) {
             linkedList.add("-Dsvm.platform=org.graalvm.nativeimage.Platform$DARWIN_AArch64");
             linkedList.add("-Dsvm.targetArch=arm");
         } else if (Omega.macHost) {
@@ -192,12 +320,12 @@ public class SVMBridge {
             // TODO: Set platform for iOS, sim
             linkedList.add("-Dsvm.platform=org.graalvm.nativeimage.Platform$DARWIN_AMD64");
         }
-        if (USE_LLVM) {
+        if (session.isUseLLVM()) {
             linkedList.add("-Dsvm.llvm.root=/Users/loicottet/Projects/graal/llclib/");
         }
         linkedList.add("-Xdebug");
         linkedList.add("-Xrunjdwp:transport=dt_socket,server=y,address=8000,suspend=n");
-        linkedList.add("-Dorg.graalvm.version=" + Omega.getConfig().getGraalLibsVersion());
+        linkedList.add("-Dorg.graalvm.version=" + omegaConfig.getGraalLibsVersion());
         linkedList.add("-Dcom.oracle.graalvm.isaot=true");
         linkedList.add("--add-exports");
         linkedList.add("jdk.internal.vm.ci/jdk.vm.ci.runtime=ALL-UNNAMED");
@@ -245,15 +373,19 @@ public class SVMBridge {
         linkedList.add(mp);
         linkedList.add("--upgrade-module-path");
         linkedList.add(ump);
-        linkedList.add("-cp");
-        linkedList.add(cp);
 
         ProcessBuilder compileBuilder = new ProcessBuilder("java");
         compileBuilder.command().addAll(linkedList);
+        compileBuilder.command().add("-cp");
+        compileBuilder.command().add(cp);
         compileBuilder.command().add("com.oracle.svm.hosted.NativeImageGeneratorRunner");
-        List<String> runtimeArgs = Omega.getRuntimeArgs();
         List<String> bundles = getBundlesList();
-        bundles.addAll(Omega.getConfig().getBundlesList());
+        bundles.addAll(omegaConfig.getBundlesList());
+        if (omegaConfig.isUseTracingAgent()) {
+            TracingAgent.getBundles(getTracingAgentDir()).stream()
+                    .filter(b -> ! bundles.contains(b))
+                    .forEach(bundles::add);
+        }
         if (! bundles.isEmpty()) {
             runtimeArgs.add("-H:IncludeResourceBundles=" +
                     bundles.stream().collect(Collectors.joining(",")));
@@ -266,69 +398,318 @@ public class SVMBridge {
         System.err.println("compileCmd = " + compileCmd);
         FileOps.createScript(workDir.resolve("compile.sh"), compileCmd);
 
-        Process compileProcess = compileBuilder.start();
-        FileOps.mergeProcessOutput(compileProcess.getInputStream());
-        int result = compileProcess.waitFor();
+        jvmArgs = linkedList;
+        compileCommand = compileBuilder.command();
+        compileKey = null;
+    }
+
+    /**
+     * Returns a digest of all the inputs of the native-image build
+     * @return the fingerprint of the build, also used as build cache key
+     * @throws IOException
+     */
+    public String getCompileFingerprint() throws IOException {
+        if (compileKey == null) {
+            compileKey = computeCompileKey(omegaConfig, true);
+        }
+        return compileKey;
+    }
+
+    private String computeCompileKey(Config config, boolean withReflectionConfig) throws IOException {
+        // the heap and threads depend on the machine, not on the image
+        List<String> sizingArgs = new ArrayList<>(sizing.getJvmArgs());
+        sizingArgs.addAll(sizing.getBuilderArgs());
+        List<String> command = compileCommand.stream()
+                .filter(arg -> ! sizingArgs.contains(arg))
+                .collect(Collectors.toList());
+        List<Path> configFiles = new ArrayList<>();
+        if (withReflectionConfig) {
+            configFiles.add(workDir.resolve("reflectionconfig-" + suffix + ".json"));
+        }
+        configFiles.add(workDir.resolve("jniconfig-" + suffix + ".json"));
+        configFiles.add(workDir.resolve("resourceconfig-" + suffix + ".json"));
+        if (config.getPgoProfile() != null) {
+            configFiles.add(Paths.get(config.getPgoProfile()));
+        }
+        return BuildCache.computeKey(classDir, configFiles, config, command, workDir);
+    }
+
+    /**
+     * Returns the objects produced by the last native-image build
+     * @return a list with the object files
+     * @throws IOException
+     */
+    public List<Path> getCompileOutputs() throws IOException {
+        List<Path> outputs = ArtifactManifest.read(workDir.resolve("tmp")).getPaths();
+        outputs.add(workDir.resolve("tmp").resolve(ArtifactManifest.FILE_NAME));
+        return outputs;
+    }
+
+    // the builder writes the objects to a temporary directory under tmp, so they are searched only once
+    private ArtifactManifest writeArtifactManifest() throws IOException {
+        Path tmp = workDir.resolve("tmp");
+        ArtifactManifest manifest = new ArtifactManifest();
+        manifest.add(appName, FileOps.findObject(tmp, appName));
+        if (session.isUseLLVM()) {
+            manifest.add("llvm", FileOps.findObject(tmp, "llvm"));
+        }
+        manifest.write(tmp);
+        return manifest;
+    }
+
+    /**
+     * Runs the native-image builder with the command line generated by {@link #prepare}
+     */
+    public void compileImage() throws Exception {
+        deleteDirectory(workDir.resolve("tmp").toFile());
+
+        // LLVM builds produce an additional object, not handled by the cache
+        BuildCache buildCache = null;
+        String cacheKey = null;
+        if (omegaConfig.isUseBuildCache() && ! session.isUseLLVM()) {
+            buildCache = new BuildCache(USER_OMEGA_PATH.resolve("cache").resolve("native-image"),
+                    omegaConfig.getBuildCacheSize());
+            if (omegaConfig.getRemoteBuildCache() != null && ! omegaConfig.getRemoteBuildCache().isEmpty()) {
+                buildCache.setRemoteStore(CacheStore.of(omegaConfig.getRemoteBuildCache()),
+                        omegaConfig.isRemoteBuildCachePush());
+            }
+            cacheKey = getCompileFingerprint();
+            System.err.println("build cache key = " + cacheKey);
+            Optional<Path> cached = buildCache.restore(cacheKey, this.appName + ".o",
+                    workDir.resolve("tmp").resolve(this.appName + ".o"));
+            long[] stats = buildCache.getTotalStats();
+            if (cached.isPresent()) {
+                session.getMetrics().increment("cache.hits");
+                session.getMetrics().increment("cache.remote-hits", buildCache.getRemoteHits());
+                System.err.println("Build cache hit, restored " + cached.get() +
+                        " (hits: " + stats[0] + ", misses: " + stats[1] + ")");
+                writeArtifactManifest();
+                return;
+            }
+            session.getMetrics().increment("cache.misses");
+            System.err.println("Build cache miss (hits: " + stats[0] + ", misses: " + stats[1] + ")");
+        }
+
+        AtomicLong peakHeap = new AtomicLong();
+        BuilderOutputParser parser = new BuilderOutputParser();
+        parser.addListener(event -> {
+            if (event instanceof BuilderEvent.Phase) {
+                peakHeap.accumulateAndGet(((BuilderEvent.Phase) event).getHeapBytes(), Math::max);
+            }
+        });
+        parser.addListener(this::recordBuilderEvent);
+        session.getBuilderOutputListeners().forEach(parser::addListener);
+        int result = -1;
+        if (omegaConfig.isUseBuildDaemon()) {
+            result = compileWithDaemon(parser);
+        }
+        if (result < 0) {
+            ProcessBuilder compileBuilder = new ProcessBuilder(compileCommand);
+            compileBuilder.directory(workDir.toFile());
+            compileBuilder.redirectErrorStream(true);
+            Process compileProcess = compileBuilder.start();
+            builderOutput = ProcessOutput.start("native-image", compileProcess.getInputStream(),
+                    session.getGvmPath(), parser);
+            result = session.getMetrics().waitFor("native-image", compileProcess);
+            builderOutput.close();
+        }
         System.err.println("result of compile = " + result);
+        if (peakHeap.get() > 0) {
+            System.err.println("peak builder heap = " + peakHeap.get() / (1024 * 1024) + " MB of " +
+                    sizing.getMaxHeap() / (1024 * 1024) + " MB");
+            BuilderSizing.recordPeak(workDir, peakHeap.get());
+        }
         if (result != 0) {
+            if (builderOutput != null) {
+                builderOutput.printTail();
+            }
             throw new RuntimeException("Error compiling");
         }
+        ArtifactManifest manifest = writeArtifactManifest();
+        recordImageSize(manifest.get(this.appName));
+        if (omegaConfig.isSizeReport()) {
+            createSizeReport(manifest.get(this.appName));
+        }
+        if (buildCache != null) {
+            buildCache.store(cacheKey, manifest.get(this.appName));
+        }
+    }
+
+    /*
+     * Keeps the size of the last image built with and without reflection minimization,
+     * to report the difference. The sizes are keyed by the fingerprint of the build without
+     * the reflection settings, so only images built from the same code are compared
+     */
+    private void recordImageSize(Path object) throws IOException {
+        long size = Files.size(object);
+        session.getMetrics().setGauge("image.size", size);
+        boolean minimal = omegaConfig.isReflectionMinimization();
+        Path history = workDir.resolve("image-size.properties");
+        Properties sizes = new Properties();
+        if (Files.isRegularFile(history)) {
+            try (InputStream is = Files.newInputStream(history)) {
+                sizes.load(is);
+            }
+        }
+        String fingerprint = getImageSizeFingerprint();
+        // the sizes of other code can't be compared anymore
+        sizes.stringPropertyNames().stream()
+                .filter(name -> ! name.startsWith(fingerprint + "."))
+                .forEach(sizes::remove);
+        sizes.setProperty(fingerprint + (minimal ? ".minimal" : ".full"), Long.toString(size));
+        try (OutputStream os = Files.newOutputStream(history)) {
+            sizes.store(os, "Omega image sizes");
+        }
+        if (sizes.containsKey(fingerprint + ".full") && sizes.containsKey(fingerprint + ".minimal")) {
+            long full = Long.parseLong(sizes.getProperty(fingerprint + ".full"));
+            long reduced = Long.parseLong(sizes.getProperty(fingerprint + ".minimal"));
+            System.err.println("Image size: " + full / 1024 + " kB with the full reflection config, " +
+                    reduced / 1024 + " kB with the minimized one (" +
+                    String.format(Locale.ROOT, "%+.1f%%", 100.0 * (reduced - full) / full) + ")");
+        }
+    }
+
+    // the compile fingerprint, without the reflection mode and the reflection config it generates
+    private String getImageSizeFingerprint() throws IOException {
+        Config sameReflection = new Config(omegaConfig);
+        sameReflection.setReflectionMinimization(false);
+        return computeCompileKey(sameReflection, false);
+    }
+
+    /*
+     * The report of the previous build is kept to show which packages grew
+     */
+    private void createSizeReport(Path object) throws IOException {
+        SizeReport report;
+        try (BuildMetrics.Timer timer = session.getMetrics().start("size-report")) {
+            List<Path> classPath = new ArrayList<>(getScanPath());
+            classPath.addAll(getBuilderClasspath());
+            report = SizeReport.create(object, SizeReport.getClassNames(classPath));
+        }
+        report.print(SIZE_REPORT_TOP);
+        session.getMetrics().setGauge("image.code-size", report.getCodeSize());
+        session.getMetrics().setGauge("image.data-size", report.getDataSize());
+
+        Path current = workDir.resolve(SizeReport.FILE_NAME);
+        if (Files.isRegularFile(current)) {
+            report.printDiff(SizeReport.read(current), SIZE_REPORT_TOP);
+            Files.move(current, workDir.resolve("size-report-previous.properties"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        report.write(current);
     }
 
-    public static void linkSetup() {
+    private void recordBuilderEvent(BuilderEvent event) {
+        BuildMetrics metrics = session.getMetrics();
+        if (event instanceof BuilderEvent.Phase) {
+            BuilderEvent.Phase phase = (BuilderEvent.Phase) event;
+            metrics.record("builder." + phase.getName(), TimeUnit.MILLISECONDS.toNanos(phase.getMillis()));
+            if (phase.getHeapBytes() > 0) {
+                metrics.setGauge("builder.heap." + phase.getName(), phase.getHeapBytes());
+            }
+        } else if (event instanceof BuilderEvent.Count) {
+            metrics.setGauge("builder." + event.getName(), ((BuilderEvent.Count) event).getValue());
+        } else if (event instanceof BuilderEvent.Memory) {
+            metrics.setGauge("builder." + event.getName(), ((BuilderEvent.Memory) event).getBytes());
+        }
+    }
+
+    private int compileWithDaemon(Consumer<String> listener) {
+        // a resident JVM can't keep the fixed debugger port
+        List<String> daemonJvmArgs = jvmArgs.stream()
+                .filter(s -> ! s.startsWith("-Xdebug") && ! s.startsWith("-Xrunjdwp"))
+                .collect(Collectors.toList());
+        BuilderDaemonClient client = getDaemonClient(omegaConfig);
+        builderOutput = ProcessOutput.open("native-image", session.getGvmPath(), listener);
+        try (BuildMetrics.Timer timer = session.getMetrics().start("native-image-daemon")) {
+            return client.build(daemonJvmArgs, classPath, runtimeArgs, builderOutput.getSink());
+        } catch (IOException e) {
+            // no daemon took the build, a daemon that fails during the build returns its exit code
+            System.err.println("Builder daemon not available, using a builder process: " + e.getMessage());
+            return -1;
+        } finally {
+            builderOutput.close();
+        }
+    }
+
+    static BuilderDaemonClient getDaemonClient(Config omegaConfig) {
+        return new BuilderDaemonClient(USER_OMEGA_PATH.resolve("daemons"),
+                omegaConfig.getDaemonMaxBuilds(), omegaConfig.getDaemonHeapLimit());
+    }
+
+    public void linkSetup() {
         init();
     }
 
-    private static void setClassPath() {
+    private void setClassPath() {
         classPath = getBuilderClasspath().stream()
                 .map(Path::toString)
                 .collect(Collectors.toList());
     }
 
-    private static List<Path> getBuilderClasspath() {
+    /**
+     * Checks if the builder of the GraalVM SDK can instrument and optimize images with
+     * execution profiles, which is only available in GraalVM Enterprise
+     * @return true if the builder has the profile-guided optimization classes
+     * @throws IOException
+     */
+    public boolean isPgoSupported() throws IOException {
+        for (Path jar : getBuilderClasspath()) {
+            if (! Files.isRegularFile(jar)) {
+                continue;
+            }
+            try (ZipFile zip = new ZipFile(jar.toFile())) {
+                if (zip.stream().anyMatch(e -> e.getName().startsWith(PGO_PACKAGE))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private List<Path> getBuilderClasspath() {
         List<Path> answer = new LinkedList<>();
 //        if (useJavaModules()) { // TODO
-            answer.add(Paths.get(GRAALSDK, "jvmci/graal-sdk.jar"));
-            answer.add(Paths.get(GRAALSDK, "jvmci/graal.jar"));
+            answer.add(Paths.get(session.getGraalSdk(), "jvmci/graal-sdk.jar"));
+            answer.add(Paths.get(session.getGraalSdk(), "jvmci/graal.jar"));
 //        }
-        answer.add(Paths.get(GRAALSDK, "svm/builder/svm.jar"));
-        answer.add(Paths.get(GRAALSDK, "svm/builder/objectfile.jar"));
-        answer.add(Paths.get(GRAALSDK, "svm/builder/pointsto.jar"));
-
-        if (USE_LLVM) {
-            answer.add(Paths.get(GRAALSDK, "svm/builder/svm-llvm.jar"));
-            answer.add(Paths.get(GRAALSDK, "svm/builder/graal-llvm.jar"));
-            answer.add(Paths.get(GRAALSDK, "svm/builder/llvm-platform-specific.jar"));
-            answer.add(Paths.get(GRAALSDK, "svm/builder/llvm-wrapper.jar"));
-            answer.add(Paths.get(GRAALSDK, "svm/builder/javacpp.jar"));
+        answer.add(Paths.get(session.getGraalSdk(), "svm/builder/svm.jar"));
+        answer.add(Paths.get(session.getGraalSdk(), "svm/builder/objectfile.jar"));
+        answer.add(Paths.get(session.getGraalSdk(), "svm/builder/pointsto.jar"));
+
+        if (session.isUseLLVM()) {
+            answer.add(Paths.get(session.getGraalSdk(), "svm/builder/svm-llvm.jar"));
+            answer.add(Paths.get(session.getGraalSdk(), "svm/builder/graal-llvm.jar"));
+            answer.add(Paths.get(session.getGraalSdk(), "svm/builder/llvm-platform-specific.jar"));
+            answer.add(Paths.get(session.getGraalSdk(), "svm/builder/llvm-wrapper.jar"));
+            answer.add(Paths.get(session.getGraalSdk(), "svm/builder/javacpp.jar"));
         }
         return answer;
     }
 
-    private static void setModulePath() {
+    private void setModulePath() {
         modulePath = getBuilderModulePath().stream()
                 .map(Path::toString)
                 .collect(Collectors.toList());
     }
 
-    private static List<Path> getBuilderModulePath() {
+    private List<Path> getBuilderModulePath() {
         List<Path> paths = new ArrayList<>();
-        paths.add(Paths.get(GRAALSDK, "jvmci/graal-sdk.jar"));
-        paths.add(Paths.get(GRAALSDK,"truffle/truffle-api.jar"));
+        paths.add(Paths.get(session.getGraalSdk(), "jvmci/graal-sdk.jar"));
+        paths.add(Paths.get(session.getGraalSdk(),"truffle/truffle-api.jar"));
         return paths;
     }
 
-    private static void setUpgradeModulePath() {
+    private void setUpgradeModulePath() {
         upgradeModulePath = getBuilderUpgradeModulePath().stream()
                 .map(Path::toString)
                 .collect(Collectors.toList());
     }
 
-    private static List<Path> getBuilderUpgradeModulePath() {
-        return Arrays.asList(Paths.get(GRAALSDK,"jvmci/graal.jar"));
+    private List<Path> getBuilderUpgradeModulePath() {
+        return Arrays.asList(Paths.get(session.getGraalSdk(),"jvmci/graal.jar"));
     }
 
-    private static void setRuntimeArgs(String suffix) {
+    private void setRuntimeArgs(String suffix) throws IOException {
         String cp = getBuilderClasspath().stream().map(Path::toString)
                 .collect(Collectors.joining(File.pathSeparator));
         cp = cp + File.pathSeparator + classDir.stream()
@@ -340,7 +721,7 @@ public class SVMBridge {
                 .map(p -> p.getFileName().toString())
                 .collect(Collectors.joining(File.pathSeparator));
         try {
-            String javafxJars = USE_JAVAFX ? Files.walk(Paths.get(JFXSDK + "/lib"))
+            String javafxJars = session.isUseJavaFX() ? Files.walk(Paths.get(session.getJavaFXSdk() + "/lib"))
                     .filter(p -> p.toString().endsWith(".jar"))
                     .filter(p -> {
                         String jarName = p.getFileName().toString()
@@ -361,7 +742,7 @@ public class SVMBridge {
         runtimeArgs = new ArrayList<>(Arrays.asList(
                 "-imagecp", cp,
                 "-H:Path=" + workDir,
-                "-H:CLibraryPath=" + Paths.get(GRAALSDK).resolve("svm/clibraries/" + hostedNative).toFile().getAbsolutePath(),
+                "-H:CLibraryPath=" + Paths.get(session.getGraalSdk()).resolve("svm/clibraries/" + hostedNative).toFile().getAbsolutePath(),
                 "-H:Class=" + mainClass,
                 "-H:+ReportExceptionStackTraces",
                 "-H:ReflectionConfigurationFiles=" + workDir + "/reflectionconfig-" + suffix + ".json"
@@ -372,15 +753,15 @@ public class SVMBridge {
             runtimeArgs.add("-H:+SharedLibrary");
         }
         runtimeArgs.add("-H:TempDirectory=" + workDir.resolve("tmp").toFile().getAbsolutePath());
-        if (! CUSTOM_DELAY_INIT_LIST.isEmpty()) {
-            String classes = CUSTOM_DELAY_INIT_LIST.stream()
+        if (! buildTimeInitList.isEmpty()) {
+            String classes = buildTimeInitList.stream()
                     .map(s -> s + ":build_time")
                     .collect(Collectors.joining(","));
             runtimeArgs.add("-H:ClassInitialization=" + classes);
 
         }
 
-        runtimeArgs.addAll(getResources());
+        runtimeArgs.add("-H:ResourceConfigurationFiles=" + workDir + "/resourceconfig-" + suffix + ".json");
         runtimeArgs.addAll(Arrays.asList(
                 "-H:Name=" + appName,
                 "-H:+ReportUnsupportedElementsAtRuntime",
@@ -388,7 +769,20 @@ public class SVMBridge {
                 "-H:+AllowIncompleteClasspath",
                 "-H:EnableURLProtocols=http,https"));
 
-        if (USE_LLVM) {
+        if (omegaConfig.isPgoInstrument() || omegaConfig.getPgoProfile() != null) {
+            if (! isPgoSupported()) {
+                throw new RuntimeException("Profile-guided optimization is not supported by the GraalVM SDK at " +
+                        session.getGraalSdk() + ", it requires GraalVM Enterprise");
+            }
+            if (omegaConfig.isPgoInstrument()) {
+                runtimeArgs.add(PGO_INSTRUMENT_OPTION);
+            }
+            if (omegaConfig.getPgoProfile() != null) {
+                runtimeArgs.add(PGO_FILES_OPTION + Paths.get(omegaConfig.getPgoProfile()).toAbsolutePath());
+            }
+        }
+
+        if (session.isUseLLVM()) {
             runtimeArgs.add("-H:CompilerBackend=llvm");
             runtimeArgs.add("-H:-AOTInline");
             runtimeArgs.add("-H:-SpawnIsolates");
@@ -397,68 +791,147 @@ public class SVMBridge {
         }
     }
 
-    private static List<String> getResources() {
-        List<String> resources = new ArrayList<>(resourcesList);
-        resources.addAll(Omega.getConfig().getResourcesList());
+    private void createResourceConfig(String suffix) throws IOException {
+        List<String> extensions = new ArrayList<>(resourcesList);
+        extensions.addAll(omegaConfig.getResourcesList());
+        List<String> excludes = omegaConfig.getResourcesExcludeList() == null ?
+                ResourceIndex.DEFAULT_EXCLUDES : omegaConfig.getResourcesExcludeList();
 
-        List<String> list = resources.stream()
-                .map(s -> "-H:IncludeResources=.*/.*" + s + "$")
-                .collect(Collectors.toList());
-        list.addAll(resources.stream()
-                .map(s -> "-H:IncludeResources=.*" + s + "$")
-                .collect(Collectors.toList()));
-        return list;
+        ResourceIndex index;
+        try (BuildMetrics.Timer timer = session.getMetrics().start("resource-index")) {
+            index = ResourceIndex.build(classDir, extensions,
+                    omegaConfig.getResourcesIncludeList(), excludes);
+        }
+        index.printReport();
+        session.getMetrics().setGauge("resources.count", index.getNames().size());
+        session.getMetrics().setGauge("resources.bytes", index.getBytes());
+
+        List<String> patterns = omegaConfig.isUseTracingAgent() ?
+                TracingAgent.getResourcePatterns(getTracingAgentDir()) : Collections.emptyList();
+        index.write(workDir.resolve("resourceconfig-" + suffix + ".json"), patterns);
     }
 
-    private static void createReflectionConfig(String suffix) throws Exception {
-        Path reflectionPath = workDir.resolve("reflectionconfig-" + suffix + ".json");
-        File f = reflectionPath.toFile();
-        if (f.exists()) {
-            f.delete();
+    private List<Path> getScanPath() throws IOException {
+        List<Path> scanPath = new ArrayList<>(classDir);
+        if (session.isUseJavaFX()) {
+            try (Stream<Path> jars = Files.list(Paths.get(session.getJavaFXSdk(), "lib"))) {
+                jars.filter(p -> p.toString().endsWith(".jar")).forEach(scanPath::add);
+            }
         }
-        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f)))) {
-            bw.write("[\n");
-            writeSingleEntry(bw, mainClass, false);
-            if (USE_JAVAFX) {
+        return scanPath;
+    }
+
+    private void analyzeClassInitialization() throws IOException {
+        if (! omegaConfig.isClassInitAnalysis()) {
+            return;
+        }
+        ClassInitAnalyzer.Result result;
+        try (BuildMetrics.Timer timer = session.getMetrics().start("class-init-analysis")) {
+            result = ClassInitAnalyzer.analyze(classDir);
+        }
+        result.write(workDir.resolve(CLASS_INIT_REPORT));
+        System.err.println("Class initialization: " + result.getBuildTimeClasses().size() +
+                " classes at build time, " + result.getRunTimeClasses().size() + " at run time");
+        session.getMetrics().setGauge("class-init.build-time", result.getBuildTimeClasses().size());
+        session.getMetrics().setGauge("class-init.run-time", result.getRunTimeClasses().size());
+    }
+
+    private void createReflectionConfig(String suffix) throws Exception {
+        ReflectionConfig reflection = new ReflectionConfig();
+        if (omegaConfig.isReflectionMinimization()) {
+            addMinimalReflection(reflection);
+        } else {
+            reflection.addClass(mainClass);
+            if (session.isUseJavaFX()) {
                 for (String javafxClass : config.getReflectionClassList()) {
-                    writeEntry(bw, javafxClass);
+                    reflection.addClass(javafxClass);
                 }
             }
-            for (String customClass : CUSTOM_REFLECTION_LIST) {
-                writeEntry(bw, customClass);
-            }
-            bw.write("]");
         }
+        for (String customClass : customReflectionList) {
+            reflection.addClass(customClass);
+        }
+        mergeTracingAgentConfig(reflection, TracingAgent.REFLECTION_CONFIG);
+        reflection.write(workDir.resolve("reflectionconfig-" + suffix + ".json"));
+        session.getMetrics().setGauge("reflection.classes", reflection.size());
+        session.getMetrics().setGauge("reflection.members", reflection.getMemberCount());
     }
 
-    private static void createJNIConfig(String suffix) throws Exception {
-        Path reflectionPath = workDir.resolve("jniconfig-" + suffix + ".json");
-        File f = reflectionPath.toFile();
-        if (f.exists()) {
-            f.delete();
+    /*
+     * The default lists are loaded by name and instantiated, so their classes keep their
+     * constructors, and only the methods and fields found by the scanner are added
+     */
+    private void addMinimalReflection(ReflectionConfig reflection) throws IOException {
+        ReflectionScanner.Usage usage;
+        try (BuildMetrics.Timer timer = session.getMetrics().start("reflection-scan")) {
+            usage = ReflectionScanner.scan(getScanPath());
         }
-        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f)))) {
-            bw.write("[\n");
-            bw.write("  {\n    \"name\" : \"" + mainClass + "\"\n  }\n");
-            for (String javaClass : config.getJavaJNIClassList()) {
-                // TODO: create list of exclusions
-                writeEntry(bw, javaClass,
-                        suffix.equals("mac") && javaClass.equals("java.lang.Thread"));
+        System.err.println("Reflection scan: " + usage.getClasses().size() + " classes, " +
+                usage.getUnresolved() + " unresolved calls");
+        session.getMetrics().setGauge("reflection.unresolved", usage.getUnresolved());
+        List<String> unresolved = usage.getUnresolvedCalls();
+        unresolved.stream()
+                .limit(SIZE_REPORT_TOP)
+                .forEach(call -> System.err.println("    unresolved: " + call));
+        if (unresolved.size() > SIZE_REPORT_TOP) {
+            System.err.println("    ... " + (unresolved.size() - SIZE_REPORT_TOP) + " more in " + UNRESOLVED_FILE);
+        }
+        Files.write(workDir.resolve(UNRESOLVED_FILE), unresolved);
+
+        reflection.addClass(mainClass, ReflectionConfig.CONSTRUCTORS);
+        reflection.addClass(mainClass, Collections.singletonList(ReflectionConfig.ALL_PUBLIC_METHODS));
+        if (session.isUseJavaFX()) {
+            for (String javafxClass : config.getReflectionClassList()) {
+                reflection.addClass(javafxClass, ReflectionConfig.CONSTRUCTORS);
             }
-            if (USE_JAVAFX) {
-                for (String javafxClass : config.getJavaFXJNIClassList()) {
-                    writeEntry(bw, javafxClass);
-                }
+        }
+        for (String className : usage.getClasses()) {
+            reflection.addClass(className, Collections.emptyList());
+            if (usage.hasConstructors(className)) {
+                reflection.addClass(className, ReflectionConfig.CONSTRUCTORS);
+            }
+            if (usage.isFxmlController(className)) {
+                reflection.addClass(className, Arrays.asList(ReflectionConfig.ALL_DECLARED_CONSTRUCTORS,
+                        ReflectionConfig.ALL_DECLARED_FIELDS, ReflectionConfig.ALL_DECLARED_METHODS));
             }
-            for (String javafxClass : CUSTOM_JNI_LIST) {
-                writeEntry(bw, javafxClass);
+            if (usage.isFxmlType(className)) {
+                reflection.addClass(className, Arrays.asList(ReflectionConfig.ALL_PUBLIC_CONSTRUCTORS,
+                        ReflectionConfig.ALL_PUBLIC_METHODS));
             }
+            usage.getMethods(className).forEach(m -> reflection.addMethod(className, m));
+            usage.getFields(className).forEach(f -> reflection.addField(className, f));
+        }
+    }
 
-            bw.write("]");
+    private void mergeTracingAgentConfig(ReflectionConfig reflectionConfig, String fileName) throws IOException {
+        Path file = getTracingAgentDir().resolve(fileName);
+        if (omegaConfig.isUseTracingAgent() && Files.isRegularFile(file)) {
+            int added = reflectionConfig.merge(file);
+            System.err.println("Added " + added + " classes from the tracing agent " + fileName);
         }
     }
 
-    private static void createReleaseSymbols() throws Exception {
+    private void createJNIConfig(String suffix) throws Exception {
+        ReflectionConfig jni = new ReflectionConfig();
+        jni.addClass(mainClass, Collections.emptyList());
+        for (String javaClass : config.getJavaJNIClassList()) {
+            // TODO: create list of exclusions
+            jni.addClass(javaClass, suffix.equals("mac") && javaClass.equals("java.lang.Thread") ?
+                    Collections.emptyList() : ReflectionConfig.ALL);
+        }
+        if (session.isUseJavaFX()) {
+            for (String javafxClass : config.getJavaFXJNIClassList()) {
+                jni.addClass(javafxClass);
+            }
+        }
+        for (String javafxClass : customJniList) {
+            jni.addClass(javafxClass);
+        }
+        mergeTracingAgentConfig(jni, TracingAgent.JNI_CONFIG);
+        jni.write(workDir.resolve("jniconfig-" + suffix + ".json"));
+    }
+
+    private void createReleaseSymbols() throws Exception {
         Path releaseSymbols = workDir.resolve("release.symbols");
         File f = releaseSymbols.toFile();
         if (f.exists()) {
@@ -468,47 +941,37 @@ public class SVMBridge {
             for (String release : config.getReleaseSymbolsList()) {
                 bw.write(release.concat("\n"));
             }
-            for (String release : CUSTOM_RELEASE_SYMBOL_LIST) {
+            for (String release : customReleaseSymbolList) {
                 bw.write(release.concat("\n"));
             }
         }
     }
 
-    private static void writeEntry(BufferedWriter bw, String javaClass) throws Exception {
-        writeEntry(bw, javaClass, false);
+    private static Path getJavaHome() {
+        return Paths.get(System.getProperty("java.home"));
+    }
+
+    public List<String> getBundlesList() {
+        if (session.isUseJavaFX()) {
+            return new ArrayList<>(bundlesList);
+        }
+        return new ArrayList<>();
     }
 
-    private static void writeEntry(BufferedWriter bw, String javaClass, boolean exclude) throws Exception {
-        bw.write(",\n");
-        writeSingleEntry(bw, javaClass, exclude);
+    public List<String> getClassPath() {
+        return classPath;
     }
 
-    private static void writeSingleEntry (BufferedWriter bw, String javaClass, boolean exclude) throws Exception {
-        bw.write("  {\n");
-        bw.write("    \"name\" : \"" + javaClass + "\"");
-        if (! exclude) {
-            bw.write(",\n");
-            bw.write("    \"allDeclaredConstructors\" : true,\n");
-            bw.write("    \"allPublicConstructors\" : true,\n");
-            bw.write("    \"allDeclaredFields\" : true,\n");
-            bw.write("    \"allPublicFields\" : true,\n");
-            bw.write("    \"allDeclaredMethods\" : true,\n");
-            bw.write("    \"allPublicMethods\" : true\n");
-        } else {
-            bw.write("\n");
-        }
-        bw.write("  }\n");
+    public List<String> getModulePath() {
+        return modulePath;
     }
 
-    private static Path getJavaHome() {
-        return Paths.get(System.getProperty("java.home"));
+    public List<String> getUpgradeModulePath() {
+        return upgradeModulePath;
     }
 
-    public static List<String> getBundlesList() {
-        if (USE_JAVAFX) {
-            return bundlesList;
-        }
-        return new ArrayList<>();
+    public List<String> getRuntimeArgs() {
+        return runtimeArgs;
     }
 
     static boolean deleteDirectory(File directoryToBeDeleted) {
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Resident builder JVM. It is started by {@link BuilderDaemonClient} with the same JVM
+ * options as a regular native-image builder process, and runs
+ * {@code NativeImageGeneratorRunner} in-process for every build request it receives,
+ * so JVM startup and JIT warmup are paid only once.
+ *
+ * The builder jars are loaded once, by a class loader that is reused for all the builds:
+ * daemons are keyed by the builder class path, and only the application class path,
+ * passed in the builder arguments, changes between builds. {@code System.exit}
+ * calls from the builder are trapped to collect the exit code. That needs a security
+ * manager, which JDK 18 to 23 only allow with {@code -Djava.security.manager=allow}
+ * and JDK 24 no longer supports, so the client doesn't start daemons there. The daemon retires
+ * itself after a number of builds, when its heap usage stays above a limit, or
+ * after being idle for too long.
+ */
+public class BuilderDaemon {
+
+    static final String BUILDER_MAIN = "com.oracle.svm.hosted.NativeImageGeneratorRunner";
+
+    static final byte REQUEST_BUILD = 'B';
+    static final byte REQUEST_STOP = 'S';
+    static final byte FRAME_ACCEPTED = 'A';
+    static final byte FRAME_OUTPUT = 'O';
+    static final byte FRAME_EXIT = 'X';
+
+    private static final int IDLE_TIMEOUT = 3 * 60 * 60 * 1000;
+
+    private static volatile boolean building;
+
+    private final Path registryFile;
+    private final int maxBuilds;
+    private final long heapLimit;
+    private final String token = UUID.randomUUID().toString();
+    private final PrintStream log = System.err;
+
+    private int builds;
+    // the builder class loader, created by the first build
+    private URLClassLoader loader;
+    private List<String> loaderClassPath;
+
+    private BuilderDaemon(Path registryFile, int maxBuilds, long heapLimit) {
+        this.registryFile = registryFile;
+        this.maxBuilds = maxBuilds;
+        this.heapLimit = heapLimit > 0 ? heapLimit : Runtime.getRuntime().maxMemory() / 4 * 3;
+    }
+
+    /**
+     * args[0] the registry file where the daemon publishes its port and status
+     * args[1] the number of builds after which the daemon retires
+     * args[2] the heap usage in bytes above which the daemon retires, 0 for 75% of the max heap
+     */
+    public static void main(String[] args) throws Exception {
+        BuilderDaemon daemon = new BuilderDaemon(Paths.get(args[0]),
+                Integer.parseInt(args[1]), Long.parseLong(args[2]));
+        try {
+            installExitTrap();
+        } catch (UnsupportedOperationException | SecurityException e) {
+            System.err.println("Builder daemon can't trap System.exit: " + e.getMessage());
+            System.exit(1);
+        }
+        daemon.serve();
+        building = false;
+        System.exit(0);
+    }
+
+    private void serve() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 5, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(IDLE_TIMEOUT);
+            publish(server.getLocalPort(), false);
+            log.println("Builder daemon listening on port " + server.getLocalPort());
+            boolean retire = false;
+            while (! retire) {
+                try (Socket socket = server.accept()) {
+                    retire = handle(socket, server.getLocalPort());
+                } catch (SocketTimeoutException e) {
+                    log.println("Builder daemon idle, shutting down");
+                    retire = true;
+                } catch (IOException e) {
+                    log.println("Error serving build request: " + e);
+                    e.printStackTrace(log);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(registryFile);
+            if (loader != null) {
+                loader.close();
+            }
+        }
+    }
+
+    private boolean handle(Socket socket, int port) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte request = in.readByte();
+        if (! token.equals(readString(in))) {
+            log.println("Rejected request with invalid token");
+            return false;
+        }
+        if (request == REQUEST_STOP) {
+            return true;
+        }
+        List<String> builderClassPath = readList(in);
+        List<String> args = readList(in);
+
+        publish(port, true);
+        out.writeByte(FRAME_ACCEPTED);
+        out.flush();
+        int exitCode = runBuild(builderClassPath, args, out);
+        builds++;
+        boolean retire = shouldRetire();
+        if (! retire) {
+            publish(port, false);
+        }
+
+        out.writeByte(FRAME_EXIT);
+        out.writeInt(exitCode);
+        out.writeInt(builds);
+        out.writeBoolean(retire);
+        out.flush();
+        return retire;
+    }
+
+    private int runBuild(List<String> builderClassPath, List<String> args, DataOutputStream out) throws IOException {
+        URLClassLoader loader = getLoader(builderClassPath);
+        int[] exitCode = new int[1];
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream forward = new PrintStream(new FrameOutputStream(out), true, StandardCharsets.UTF_8);
+        try {
+            Thread thread = new Thread(() -> {
+                try {
+                    Class<?> runner = Class.forName(BUILDER_MAIN, true, loader);
+                    runner.getMethod("main", String[].class).invoke(null, (Object) args.toArray(new String[0]));
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof ExitTrappedException) {
+                        exitCode[0] = ((ExitTrappedException) e.getCause()).status;
+                    } else {
+                        e.getCause().printStackTrace();
+                        exitCode[0] = 1;
+                    }
+                } catch (ExitTrappedException e) {
+                    exitCode[0] = e.status;
+                } catch (ReflectiveOperationException e) {
+                    e.printStackTrace();
+                    exitCode[0] = 1;
+                }
+            }, "omega-daemon-build-" + (builds + 1));
+            thread.setContextClassLoader(loader);
+            System.setOut(forward);
+            System.setErr(forward);
+            building = true;
+            thread.start();
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exitCode[0] = 1;
+        } finally {
+            building = false;
+            forward.flush();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        return exitCode[0];
+    }
+
+    /*
+     * The builder classes stay loaded, linked and compiled between builds. The class path
+     * is the same for all the builds of a daemon, a different one replaces the loader
+     */
+    private URLClassLoader getLoader(List<String> builderClassPath) throws IOException {
+        if (loader != null && ! builderClassPath.equals(loaderClassPath)) {
+            log.println("Builder class path changed, loading the builder again");
+            loader.close();
+            loader = null;
+        }
+        if (loader == null) {
+            URL[] urls = new URL[builderClassPath.size()];
+            for (int i = 0; i < urls.length; i++) {
+                urls[i] = Paths.get(builderClassPath.get(i)).toUri().toURL();
+            }
+            loader = new URLClassLoader(urls, ClassLoader.getSystemClassLoader());
+            loaderClassPath = new ArrayList<>(builderClassPath);
+        }
+        return loader;
+    }
+
+    private boolean shouldRetire() {
+        if (builds >= maxBuilds) {
+            log.println("Builder daemon served " + builds + " builds, retiring");
+            return true;
+        }
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        if (used > heapLimit) {
+            log.println("Builder daemon heap usage " + used + " above limit " + heapLimit + ", retiring");
+            return true;
+        }
+        return false;
+    }
+
+    private void publish(int port, boolean busy) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("port", Integer.toString(port));
+        properties.setProperty("pid", Long.toString(ProcessHandle.current().pid()));
+        properties.setProperty("token", token);
+        properties.setProperty("builds", Integer.toString(builds));
+        properties.setProperty("busy", Boolean.toString(busy));
+        Path tmp = registryFile.resolveSibling(registryFile.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tmp)) {
+            properties.store(os, "Omega builder daemon");
+        }
+        Files.move(tmp, registryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // the security manager is deprecated for removal, but it is the only way to trap System.exit
+    @SuppressWarnings("removal")
+    private static void installExitTrap() {
+        System.setSecurityManager(new SecurityManager() {
+            @Override
+            public void checkPermission(Permission perm) {
+            }
+
+            @Override
+            public void checkPermission(Permission perm, Object context) {
+            }
+
+            @Override
+            public void checkExit(int status) {
+                if (building) {
+                    throw new ExitTrappedException(status);
+                }
+            }
+        });
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        // builder arguments like -imagecp can exceed the writeUTF limit
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeList(DataOutputStream out, List<String> list) throws IOException {
+        out.writeInt(list.size());
+        for (String s : list) {
+            writeString(out, s);
+        }
+    }
+
+    static List<String> readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readString(in));
+        }
+        return list;
+    }
+
+    private static class ExitTrappedException extends SecurityException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        ExitTrappedException(int status) {
+            super("System.exit(" + status + ") trapped by builder daemon");
+            this.status = status;
+        }
+    }
+
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+
+        FrameOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            out.writeByte(FRAME_OUTPUT);
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Hands native-image builds over to a resident {@link BuilderDaemon}, starting one if
+ * there is no idle daemon for the same builder JVM options.
+ *
+ * Daemons register themselves in {@code <registry>/<key>-<id>.properties}, where the key
+ * is derived from the JVM options and builder class path, so a daemon is only reused for
+ * builds with the same GraalVM and static SDK versions. A client claims a daemon by
+ * locking {@code <registry>/<key>-<id>.lock} for the whole build, so concurrent builds,
+ * in this or other processes, never pick the same daemon.
+ */
+public class BuilderDaemonClient {
+
+    private static final long START_TIMEOUT = 60_000;
+    private static final int CONNECT_TIMEOUT = 10_000;
+    // the builder can be silent for a long time while it analyzes a large application
+    private static final int READ_TIMEOUT = 30 * 60 * 1000;
+
+    private static final Pattern JAVA_VERSION = Pattern.compile("version \"(1\\.)?(\\d+)");
+
+    private static volatile int javaVersion;
+
+    private final Path registry;
+    private final int maxBuilds;
+    private final long heapLimit;
+
+    /**
+     * Creates a client
+     * @param registry the directory where daemons publish their status
+     * @param maxBuilds the number of builds after which a daemon is recycled
+     * @param heapLimit the heap usage in bytes above which a daemon is recycled, 0 for 75% of its max heap
+     */
+    public BuilderDaemonClient(Path registry, int maxBuilds, long heapLimit) {
+        this.registry = registry;
+        this.maxBuilds = maxBuilds;
+        this.heapLimit = heapLimit;
+    }
+
+    /**
+     * Runs a native-image build on a daemon
+     * @param jvmArgs the options for the builder JVM, without class path
+     * @param builderClassPath the builder class path
+     * @param builderArgs the arguments for NativeImageGeneratorRunner
+     * @param output the stream that receives the builder output
+     * @return the exit code of the build, also when the daemon fails once it has accepted the build
+     * @throws IOException if no daemon could be started or reached, so the build didn't start
+     */
+    public int build(List<String> jvmArgs, List<String> builderClassPath, List<String> builderArgs,
+                     OutputStream output) throws IOException {
+        String key = computeKey(jvmArgs, builderClassPath);
+        Claim claim = claimIdleDaemon(key);
+        if (claim == null) {
+            claim = startDaemon(key, jvmArgs);
+        }
+        try (Claim c = claim) {
+            DaemonInfo daemon = c.daemon;
+            System.err.println("Using builder daemon pid " + daemon.getPid() + " (" + daemon.getBuilds() + " builds served)");
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), daemon.port), CONNECT_TIMEOUT);
+                socket.setSoTimeout(READ_TIMEOUT);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.writeByte(BuilderDaemon.REQUEST_BUILD);
+                BuilderDaemon.writeString(out, daemon.token);
+                BuilderDaemon.writeList(out, builderClassPath);
+                BuilderDaemon.writeList(out, builderArgs);
+                out.flush();
+                byte accepted = in.readByte();
+                if (accepted != BuilderDaemon.FRAME_ACCEPTED) {
+                    throw new IOException("Builder daemon refused the build: " + accepted);
+                }
+                try {
+                    return readFrames(c, in, output);
+                } catch (IOException e) {
+                    // the build ran on the daemon, running it again in a process wouldn't help
+                    System.err.println("Builder daemon pid " + daemon.getPid() + " failed during the build: " + e);
+                    return 1;
+                }
+            }
+        }
+    }
+
+    private int readFrames(Claim claim, DataInputStream in, OutputStream output) throws IOException {
+        DaemonInfo daemon = claim.daemon;
+        byte[] buffer = new byte[8192];
+        while (true) {
+            byte frame = in.readByte();
+            if (frame == BuilderDaemon.FRAME_OUTPUT) {
+                int len = in.readInt();
+                while (len > 0) {
+                    int n = in.read(buffer, 0, Math.min(len, buffer.length));
+                    if (n < 0) {
+                        throw new IOException("Builder daemon closed the connection");
+                    }
+                    output.write(buffer, 0, n);
+                    len -= n;
+                }
+            } else if (frame == BuilderDaemon.FRAME_EXIT) {
+                int exitCode = in.readInt();
+                int builds = in.readInt();
+                boolean retired = in.readBoolean();
+                output.flush();
+                if (retired) {
+                    // unregister it while it is still claimed, so no other build picks it while it shuts down
+                    claim.unregister();
+                }
+                System.err.println("Builder daemon pid " + daemon.getPid() + " has served " + builds + " builds" +
+                        (retired ? " and is being recycled" : ""));
+                return exitCode;
+            } else {
+                throw new IOException("Unexpected frame from builder daemon: " + frame);
+            }
+        }
+    }
+
+    /**
+     * Returns the status of all the registered daemons
+     * @return a list with the registered daemons
+     */
+    public List<DaemonInfo> getDaemons() throws IOException {
+        if (! Files.isDirectory(registry)) {
+            return new ArrayList<>();
+        }
+        List<Path> files;
+        List<Path> lockFiles;
+        try (Stream<Path> list = Files.list(registry)) {
+            files = list.collect(Collectors.toList());
+        }
+        lockFiles = files.stream()
+                .filter(p -> p.getFileName().toString().endsWith(".lock"))
+                .collect(Collectors.toList());
+        files = files.stream()
+                .filter(p -> p.getFileName().toString().endsWith(".properties"))
+                .collect(Collectors.toList());
+        for (Path lockFile : lockFiles) {
+            String name = lockFile.getFileName().toString();
+            Path registryFile = lockFile.resolveSibling(name.substring(0, name.length() - ".lock".length()) + ".properties");
+            if (! files.contains(registryFile)) {
+                // left behind by a daemon that retired, unless the daemon is still starting
+                try (Claim claim = claim(registryFile, false)) {
+                    if (claim != null && claim.daemon == null) {
+                        claim.unregister();
+                    }
+                }
+            }
+        }
+        List<DaemonInfo> daemons = new ArrayList<>();
+        for (Path file : files) {
+            DaemonInfo info = readInfo(file);
+            if (info == null) {
+                continue;
+            }
+            if (info.isAlive()) {
+                daemons.add(info);
+            } else {
+                // left behind by a daemon that didn't shut down cleanly
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(getLockFile(file));
+            }
+        }
+        return daemons;
+    }
+
+    /**
+     * Asks all idle daemons to shut down
+     */
+    public void stopDaemons() throws IOException {
+        for (DaemonInfo daemon : getDaemons()) {
+            try (Claim claim = claim(registry.resolve(daemon.id + ".properties"), false)) {
+                if (claim == null || claim.daemon == null || claim.daemon.isBusy()) {
+                    continue;
+                }
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), daemon.port), CONNECT_TIMEOUT);
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.writeByte(BuilderDaemon.REQUEST_STOP);
+                    BuilderDaemon.writeString(out, daemon.token);
+                    out.flush();
+                }
+                claim.unregister();
+            }
+        }
+    }
+
+    private Claim claimIdleDaemon(String key) throws IOException {
+        for (DaemonInfo daemon : getDaemons()) {
+            if (! daemon.getKey().equals(key) || daemon.isBusy()) {
+                continue;
+            }
+            Claim claim = claim(registry.resolve(daemon.id + ".properties"), false);
+            if (claim == null) {
+                continue;
+            }
+            // read again under the lock, the daemon may have retired meanwhile
+            if (claim.daemon != null && ! claim.daemon.isBusy() && claim.daemon.isAlive()) {
+                return claim;
+            }
+            claim.close();
+        }
+        return null;
+    }
+
+    private Claim startDaemon(String key, List<String> jvmArgs) throws IOException {
+        int version = getJavaVersion();
+        if (version >= 24) {
+            throw new IOException("JDK " + version + " doesn't allow the builder daemon to trap System.exit");
+        }
+        Files.createDirectories(registry);
+        String id = key + "-" + UUID.randomUUID().toString().substring(0, 8);
+        Path registryFile = registry.resolve(id + ".properties");
+        // claimed before it is registered, so no other build can take it first
+        Claim claim = claim(registryFile, true);
+        if (claim == null) {
+            throw new IOException("Can't claim new builder daemon " + id);
+        }
+        List<String> command = new ArrayList<>();
+        command.add("java");
+        command.addAll(jvmArgs);
+        if (version >= 18 && jvmArgs.stream().noneMatch(s -> s.startsWith("-Djava.security.manager"))) {
+            command.add("-Djava.security.manager=allow");
+        }
+        command.add("-cp");
+        command.add(getOmegaClassPath());
+        command.add(BuilderDaemon.class.getName());
+        command.add(registryFile.toString());
+        command.add(Integer.toString(maxBuilds));
+        command.add(Long.toString(heapLimit));
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(registry.resolve(id + ".log").toFile());
+        System.err.println("Starting builder daemon: " + String.join(" ", command));
+        try {
+            Process process = pb.start();
+            long deadline = System.currentTimeMillis() + START_TIMEOUT;
+            while (System.currentTimeMillis() < deadline) {
+                if (Files.isRegularFile(registryFile)) {
+                    DaemonInfo info = readInfo(registryFile);
+                    if (info != null) {
+                        claim.daemon = info;
+                        return claim;
+                    }
+                }
+                if (! process.isAlive()) {
+                    throw new IOException("Builder daemon exited with " + process.exitValue() +
+                            ", see " + registry.resolve(id + ".log"));
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while starting builder daemon");
+                }
+            }
+            process.destroy();
+            throw new IOException("Timeout starting builder daemon");
+        } catch (IOException e) {
+            claim.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Locks the lock file of a daemon, without waiting
+     * @param registryFile the registry file of the daemon
+     * @param create true for a new daemon, the lock file of a registered daemon exists
+     *               until the daemon is unregistered
+     * @return the claim, with the daemon as registered once locked, or null if it is claimed
+     * already or has been unregistered
+     */
+    private static Claim claim(Path registryFile, boolean create) throws IOException {
+        FileChannel channel;
+        try {
+            channel = create ?
+                    FileChannel.open(getLockFile(registryFile), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) :
+                    FileChannel.open(getLockFile(registryFile), StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // claimed by another build in this JVM
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            return null;
+        }
+        return new Claim(registryFile, channel, Files.isRegularFile(registryFile) ? readInfo(registryFile) : null);
+    }
+
+    static Path getLockFile(Path registryFile) {
+        String name = registryFile.getFileName().toString();
+        return registryFile.resolveSibling(name.substring(0, name.length() - ".properties".length()) + ".lock");
+    }
+
+    /**
+     * Returns the feature version of the {@code java} on the path, that runs the daemons
+     * like it runs the builder processes
+     */
+    private static int getJavaVersion() throws IOException {
+        if (javaVersion == 0) {
+            ProcessBuilder pb = new ProcessBuilder("java", "-version");
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+            String output;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                output = reader.lines().collect(Collectors.joining("\n"));
+            }
+            Matcher matcher = JAVA_VERSION.matcher(output);
+            if (! matcher.find()) {
+                throw new IOException("Can't find the version of java: " + output);
+            }
+            javaVersion = Integer.parseInt(matcher.group(2));
+        }
+        return javaVersion;
+    }
+
+    private static String getOmegaClassPath() throws IOException {
+        try {
+            return Paths.get(BuilderDaemon.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException | NullPointerException e) {
+            throw new IOException("Can't locate Omega classes for the builder daemon", e);
+        }
+    }
+
+    private static DaemonInfo readInfo(Path file) {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+        } catch (IOException e) {
+            return null;
+        }
+        if (properties.getProperty("port") == null) {
+            return null;
+        }
+        String name = file.getFileName().toString();
+        String id = name.substring(0, name.length() - ".properties".length());
+        return new DaemonInfo(id, id.substring(0, id.lastIndexOf('-')),
+                Integer.parseInt(properties.getProperty("port")),
+                Long.parseLong(properties.getProperty("pid")),
+                properties.getProperty("token"),
+                Integer.parseInt(properties.getProperty("builds", "0")),
+                Boolean.parseBoolean(properties.getProperty("busy")));
+    }
+
+    private static String computeKey(List<String> jvmArgs, List<String> builderClassPath) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String s : jvmArgs) {
+                digest.update(s.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            for (String s : builderClassPath) {
+                digest.update(s.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static class DaemonInfo {
+        private final String id;
+        private final String key;
+        private final int port;
+        private final long pid;
+        private final String token;
+        private final int builds;
+        private final boolean busy;
+
+        DaemonInfo(String id, String key, int port, long pid, String token, int builds, boolean busy) {
+            this.id = id;
+            this.key = key;
+            this.port = port;
+            this.pid = pid;
+            this.token = token;
+            this.builds = builds;
+            this.busy = busy;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getPid() {
+            return pid;
+        }
+
+        public int getBuilds() {
+            return builds;
+        }
+
+        public boolean isBusy() {
+            return busy;
+        }
+
+        boolean isAlive() {
+            return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+        }
+
+        @Override
+        public String toString() {
+            return "DaemonInfo{pid=" + pid + ", builds=" + builds + ", busy=" + busy + "}";
+        }
+    }
+
+    private static class Claim implements AutoCloseable {
+        private final Path registryFile;
+        private final FileChannel channel;
+        private DaemonInfo daemon;
+
+        Claim(Path registryFile, FileChannel channel, DaemonInfo daemon) {
+            this.registryFile = registryFile;
+            this.channel = channel;
+            this.daemon = daemon;
+        }
+
+        /**
+         * Removes the daemon from the registry, while it is still claimed
+         */
+        void unregister() throws IOException {
+            Files.deleteIfExists(registryFile);
+            try {
+                Files.deleteIfExists(getLockFile(registryFile));
+            } catch (IOException e) {
+                // still open, e.g. on Windows, it is removed by the next getDaemons
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // releases the lock
+            channel.close();
+        }
+    }
+}
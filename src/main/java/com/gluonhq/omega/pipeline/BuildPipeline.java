@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.pipeline;
+
+import com.gluonhq.omega.util.BuildMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a set of {@link BuildStage}s as a DAG: every stage starts as soon as all its
+ * dependencies have completed, so independent stages run concurrently.
+ *
+ * Each successful stage writes a checkpoint with its input fingerprint and outputs to
+ * {@code <checkpointDir>/<stage>.properties}, which lets a rerun resume from the first
+ * stage whose inputs changed.
+ */
+public class BuildPipeline {
+
+    private final Path checkpointDir;
+    private final BuildMetrics metrics;
+    private final Map<String, BuildStage> stages = new LinkedHashMap<>();
+
+    public BuildPipeline(Path checkpointDir) {
+        this(checkpointDir, new BuildMetrics());
+    }
+
+    /**
+     * Creates a pipeline
+     * @param checkpointDir the directory where the stage checkpoints are kept
+     * @param metrics records the time spent in each stage
+     */
+    public BuildPipeline(Path checkpointDir, BuildMetrics metrics) {
+        this.checkpointDir = checkpointDir;
+        this.metrics = metrics;
+    }
+
+    public void add(BuildStage stage) {
+        if (stages.putIfAbsent(stage.getName(), stage) != null) {
+            throw new IllegalArgumentException("Duplicated stage " + stage.getName());
+        }
+    }
+
+    /**
+     * Runs all the stages
+     * @throws Exception the first error thrown by a stage
+     */
+    public void run() throws Exception {
+        List<BuildStage> ordered = sort();
+        Files.createDirectories(checkpointDir);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, ordered.size()), r -> {
+            Thread t = new Thread(r, "omega-stage");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+            for (BuildStage stage : ordered) {
+                CompletableFuture<?>[] dependencies = stage.getDependencies().stream()
+                        .map(futures::get)
+                        .toArray(CompletableFuture<?>[]::new);
+                futures.put(stage.getName(), CompletableFuture.allOf(dependencies)
+                        .thenRunAsync(() -> execute(stage), executor));
+            }
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof StageException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void execute(BuildStage stage) {
+        String name = stage.getName();
+        Thread.currentThread().setName("omega-stage-" + name);
+        try {
+            String fingerprint = null;
+            if (stage.getFingerprint() != null) {
+                try (BuildMetrics.Timer timer = metrics.start("fingerprint." + name)) {
+                    fingerprint = stage.getFingerprint().compute();
+                }
+            }
+            Path checkpoint = checkpointDir.resolve(name + ".properties");
+            if (fingerprint != null && isUpToDate(checkpoint, fingerprint)) {
+                System.err.println("Stage " + name + " is up to date, skipping");
+                metrics.increment("stage.skipped");
+                metrics.increment("stage.skipped." + name);
+                return;
+            }
+            Files.deleteIfExists(checkpoint);
+            System.err.println("Running stage " + name);
+            long start = System.currentTimeMillis();
+            try (BuildMetrics.Timer timer = metrics.start("stage." + name)) {
+                stage.getAction().run();
+            }
+            System.err.println("Stage " + name + " done in " + (System.currentTimeMillis() - start) + " ms");
+            if (fingerprint != null) {
+                writeCheckpoint(checkpoint, fingerprint, stage.getOutputs().get());
+            }
+        } catch (Exception e) {
+            System.err.println("Stage " + name + " failed: " + e);
+            throw new StageException(e);
+        }
+    }
+
+    private static boolean isUpToDate(Path checkpoint, String fingerprint) throws IOException {
+        if (! Files.isRegularFile(checkpoint)) {
+            return false;
+        }
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(checkpoint)) {
+            properties.load(is);
+        }
+        if (! fingerprint.equals(properties.getProperty("fingerprint"))) {
+            return false;
+        }
+        String outputs = properties.getProperty("outputs", "");
+        if (outputs.isEmpty()) {
+            return true;
+        }
+        for (String output : outputs.split(File.pathSeparator)) {
+            if (! Files.exists(Paths.get(output))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeCheckpoint(Path checkpoint, String fingerprint, List<Path> outputs) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("fingerprint", fingerprint);
+        properties.setProperty("outputs", outputs.stream()
+                .map(p -> p.toAbsolutePath().toString())
+                .collect(Collectors.joining(File.pathSeparator)));
+        try (OutputStream os = Files.newOutputStream(checkpoint)) {
+            properties.store(os, "Omega stage checkpoint");
+        }
+    }
+
+    private List<BuildStage> sort() {
+        List<BuildStage> ordered = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Set<String> visiting = new HashSet<>();
+        for (BuildStage stage : stages.values()) {
+            visit(stage, visited, visiting, ordered);
+        }
+        return ordered;
+    }
+
+    private void visit(BuildStage stage, Set<String> visited, Set<String> visiting, List<BuildStage> ordered) {
+        if (visited.contains(stage.getName())) {
+            return;
+        }
+        if (! visiting.add(stage.getName())) {
+            throw new IllegalStateException("Cycle in build pipeline at stage " + stage.getName());
+        }
+        for (String dependency : stage.getDependencies()) {
+            BuildStage dep = stages.get(dependency);
+            if (dep == null) {
+                throw new IllegalStateException("Stage " + stage.getName() + " depends on unknown stage " + dependency);
+            }
+            visit(dep, visited, visiting, ordered);
+        }
+        visiting.remove(stage.getName());
+        visited.add(stage.getName());
+        ordered.add(stage);
+    }
+
+    private static class StageException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StageException(Exception cause) {
+            super(cause);
+        }
+    }
+}
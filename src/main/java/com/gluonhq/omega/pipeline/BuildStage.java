@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.pipeline;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A node of a {@link BuildPipeline}.
+ *
+ * A stage with a fingerprint is skipped when the fingerprint matches the one stored
+ * by its last successful run and all the outputs recorded by that run still exist.
+ * Stages without a fingerprint always run.
+ */
+public class BuildStage {
+
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    public interface Fingerprint {
+        String compute() throws Exception;
+    }
+
+    public interface Outputs {
+        List<Path> get() throws Exception;
+    }
+
+    private final String name;
+    private final Action action;
+    private final List<String> dependencies;
+    private Fingerprint fingerprint;
+    private Outputs outputs = ArrayList::new;
+
+    /**
+     * Creates a stage
+     * @param name the unique name of the stage in its pipeline
+     * @param action the work done by the stage
+     * @param dependencies the names of the stages that have to complete before this one
+     */
+    public BuildStage(String name, Action action, String... dependencies) {
+        this.name = name;
+        this.action = action;
+        this.dependencies = Arrays.asList(dependencies);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getDependencies() {
+        return dependencies;
+    }
+
+    Action getAction() {
+        return action;
+    }
+
+    Fingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Sets the fingerprint of the stage inputs. It is computed once all the dependencies
+     * have completed
+     * @param fingerprint computes a digest of everything the stage output depends on
+     */
+    public void setFingerprint(Fingerprint fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    Outputs getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Sets the files produced by the stage. They are evaluated after the stage has run
+     * @param outputs returns the produced files
+     */
+    public void setOutputs(Outputs outputs) {
+        this.outputs = outputs;
+    }
+
+    @Override
+    public String toString() {
+        return "BuildStage{" + name + " <- " + dependencies + "}";
+    }
+}
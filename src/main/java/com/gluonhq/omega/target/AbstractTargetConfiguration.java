@@ -27,15 +27,37 @@
  */
 package com.gluonhq.omega.target;
 
+import com.gluonhq.omega.BuildSession;
+import com.gluonhq.omega.Config;
+import com.gluonhq.omega.SVMBridge;
+import com.gluonhq.omega.pipeline.BuildPipeline;
+import com.gluonhq.omega.pipeline.BuildStage;
+import com.gluonhq.omega.util.ArtifactManifest;
+import com.gluonhq.omega.util.BuildCache;
+import com.gluonhq.omega.util.FileOps;
+import com.gluonhq.omega.util.ProcessOutput;
+import com.gluonhq.omega.util.TracingAgent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-import static com.gluonhq.omega.SVMBridge.USE_JAVAFX;
 
 public abstract class AbstractTargetConfiguration implements TargetConfiguration {
 
+    final BuildSession session;
+
     Path gvmPath;
     List<Path> classPath;
     String mainClassName;
@@ -43,6 +65,8 @@ public abstract class AbstractTargetConfiguration implements TargetConfiguration
     String target;
     Path workDir;
 
+    private ProcessBuilder linkBuilder;
+
     private static final List<String> javaJNIClassList = Arrays.asList(
             "java.io.File",
             "java.io.FileNotFoundException",
@@ -249,10 +273,93 @@ public abstract class AbstractTargetConfiguration implements TargetConfiguration
             "_JNI_OnLoad_javafx_font"
     );
 
+    AbstractTargetConfiguration(BuildSession session) {
+        this.session = session;
+    }
+
     public abstract void compileApplication() throws Exception;
 
     public abstract void compileAdditionalSources() throws Exception;
 
+    /**
+     * Returns the object files produced by {@link #compileAdditionalSources()}
+     */
+    public abstract List<Path> getAdditionalSourcesOutputs();
+
+    /**
+     * Creates the command that links the native image with the launcher objects and the
+     * static libraries. It is created before the link stage runs, to fingerprint its inputs
+     * @return the link command, without working directory
+     */
+    protected abstract ProcessBuilder createLinkBuilder() throws Exception;
+
+    /**
+     * Returns the executable produced by the link command
+     */
+    protected abstract Path getLinkOutput();
+
+    public void linkApplication() throws Exception {
+        ProcessBuilder linkBuilder = getLinkBuilder();
+        linkBuilder.directory(workDir.toFile());
+        linkBuilder.redirectErrorStream(true);
+        String linkcmds = String.join(" ", linkBuilder.command());
+        logDebug("linkcmds = " + linkcmds);
+        FileOps.createScript(workDir.getParent().resolve("link.sh"), linkcmds);
+
+        Process linkProcess = linkBuilder.start();
+        ProcessOutput output = ProcessOutput.start("link", linkProcess.getInputStream(), session.getGvmPath());
+        int result = waitFor("link", linkProcess, output);
+        logDebug("result of linking = " + result);
+        if (result != 0) {
+            output.printTail();
+            throw new RuntimeException("Error linking");
+        }
+    }
+
+    /**
+     * Waits for a process, recording it in the build metrics, and then for its output. If
+     * the wait fails, the process is stopped, so the threads copying its output end, and the
+     * output is closed all the same
+     * @param name the name of the process (e.g. cc, link, run)
+     * @param process the process
+     * @param output the output of the process
+     * @return the exit value of the process
+     * @throws InterruptedException
+     */
+    protected int waitFor(String name, Process process, ProcessOutput output) throws InterruptedException {
+        try {
+            return session.getMetrics().waitFor(name, process);
+        } finally {
+            if (process.isAlive()) {
+                process.destroyForcibly();
+            }
+            output.close();
+        }
+    }
+
+    /**
+     * Runs the application, copying its output to the run log
+     * @param runBuilder the command of the application, with its working directory
+     * @throws Exception if the application exits with a non-zero value
+     */
+    protected void runApplication(ProcessBuilder runBuilder) throws Exception {
+        runBuilder.redirectErrorStream(true);
+        Process process = runBuilder.start();
+        ProcessOutput output = ProcessOutput.start("run", process.getInputStream(), session.getGvmPath());
+        int result = waitFor("run", process, output);
+        if (result != 0) {
+            output.printTail();
+            throw new RuntimeException("Error running " + appName + ", exit value " + result);
+        }
+    }
+
+    private ProcessBuilder getLinkBuilder() throws Exception {
+        if (linkBuilder == null) {
+            linkBuilder = createLinkBuilder();
+        }
+        return linkBuilder;
+    }
+
     public List<String> getJavaJNIClassList() {
         return javaJNIClassList;
     }
@@ -268,7 +375,7 @@ public abstract class AbstractTargetConfiguration implements TargetConfiguration
     public List<String> getReleaseSymbolsList() {
         ArrayList<String> answer = new ArrayList<>();
         answer.addAll(releaseSymbolsList);
-        if (USE_JAVAFX) {
+        if (session.isUseJavaFX()) {
             answer.addAll(releaseSymbolsFXList);
         }
         return answer;
@@ -289,8 +396,54 @@ public abstract class AbstractTargetConfiguration implements TargetConfiguration
         this.mainClassName = mainClassName;
         this.appName = appName;
         this.target = target;
-        compileAdditionalSources();
-        compileApplication();
+
+        session.getBridge().setup(gvmPath, classPath, mainClassName, appName, this);
+        BuildPipeline pipeline = new BuildPipeline(gvmPath.resolve("checkpoints"), session.getMetrics());
+        createCompileStages().forEach(pipeline::add);
+        pipeline.run();
+    }
+
+    /**
+     * Creates the stages of the compile phase. The native launcher sources are compiled
+     * while the native image is being built. When the tracing agent is enabled, the application
+     * runs with it before the configuration files are generated. The builder command line is
+     * created every time, from the configuration files that may be up to date.
+     * @return the list of stages
+     */
+    protected List<BuildStage> createCompileStages() {
+        SVMBridge bridge = session.getBridge();
+        BuildStage dependencies = new BuildStage("dependencies", bridge::init);
+
+        BuildStage launcher = new BuildStage("launcher", this::compileAdditionalSources);
+        launcher.setFingerprint(this::getAdditionalSourcesFingerprint);
+        launcher.setOutputs(this::getAdditionalSourcesOutputs);
+
+        List<BuildStage> stages = new ArrayList<>(Arrays.asList(dependencies, launcher));
+        List<String> configsDependencies = new ArrayList<>(Collections.singletonList("dependencies"));
+        if (session.getConfig().isUseTracingAgent()) {
+            BuildStage trace = new BuildStage("trace", () -> bridge.trace(classPath, mainClassName));
+            trace.setFingerprint(this::getTraceFingerprint);
+            trace.setOutputs(() -> Collections.singletonList(
+                    bridge.getTracingAgentDir().resolve(TracingAgent.REFLECTION_CONFIG)));
+            stages.add(trace);
+            configsDependencies.add("trace");
+        }
+
+        BuildStage configs = new BuildStage("configs", bridge::createConfigs,
+                configsDependencies.toArray(new String[0]));
+        configs.setFingerprint(bridge::getConfigsFingerprint);
+        configs.setOutputs(bridge::getConfigsOutputs);
+
+        BuildStage command = new BuildStage("command", bridge::createCommand, "configs");
+
+        BuildStage image = new BuildStage("native-image", this::compileApplication, "command");
+        image.setFingerprint(bridge::getCompileFingerprint);
+        image.setOutputs(bridge::getCompileOutputs);
+
+        stages.add(configs);
+        stages.add(command);
+        stages.add(image);
+        return stages;
     }
 
     @Override
@@ -298,6 +451,182 @@ public abstract class AbstractTargetConfiguration implements TargetConfiguration
         this.workDir = workDir;
         this.appName = appName;
         this.target = target;
+        this.linkBuilder = null;
+
+        BuildPipeline pipeline = new BuildPipeline(workDir.getParent().resolve("checkpoints"), session.getMetrics());
+        createLinkStages().forEach(pipeline::add);
+        pipeline.run();
+    }
+
+    /**
+     * Creates the stages of the link phase
+     * @return the list of stages
+     */
+    protected List<BuildStage> createLinkStages() {
+        return Collections.singletonList(createLinkStage());
+    }
+
+    /**
+     * Creates the link stage. It is skipped, reusing the previous executable, when neither
+     * the link command nor the content of its objects and archives have changed
+     * @return the link stage
+     */
+    protected BuildStage createLinkStage() {
+        BuildStage link = new BuildStage("link", this::linkApplication);
+        link.setFingerprint(this::getLinkFingerprint);
+        link.setOutputs(() -> Collections.singletonList(getLinkOutput()));
+        return link;
+    }
+
+    /**
+     * The launcher objects only depend on the target, the bundled native sources and,
+     * for iOS, on the native libraries found in the class path. The content of the class
+     * path entries is digested, as a copy can keep the modification time of a changed
+     * file, and a change in a classes directory doesn't change the directory itself
+     */
+    String getAdditionalSourcesFingerprint() throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, getClass().getName());
+        update(digest, target);
+        update(digest, appName);
+        for (Path path : classPath) {
+            update(digest, "classpath:" + path.toAbsolutePath());
+            BuildCache.digestPath(digest, path);
+        }
+        try {
+            Path omega = Paths.get(AbstractTargetConfiguration.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI());
+            update(digest, "omega:" + omega);
+            BuildCache.digestPath(digest, omega);
+        } catch (URISyntaxException | SecurityException e) {
+            logDebug("Omega location not available: " + e);
+        }
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * The agent run only depends on the content of the application class path, including
+     * the classes nested in its directories, and on the way the application is run
+     */
+    String getTraceFingerprint() throws IOException {
+        Config config = session.getConfig();
+        MessageDigest digest = newDigest();
+        for (Path path : classPath) {
+            update(digest, "classpath:" + path.toAbsolutePath());
+            BuildCache.digestPath(digest, path);
+        }
+        update(digest, mainClassName);
+        update(digest, String.valueOf(config.getTracingAgentJavaHome()));
+        update(digest, String.join(" ", config.getTracingAgentArgs()));
+        update(digest, Long.toString(config.getTracingAgentTimeout()));
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * Digests the link command line and the content of every object and static library it
+     * reads: plain file arguments, files passed through -Wl options and the archives that
+     * -l options resolve to in the -L directories. Relative paths are resolved against the
+     * link working directory
+     */
+    String getLinkFingerprint() throws Exception {
+        List<String> command = getLinkBuilder().command();
+        MessageDigest digest = newDigest();
+        Path output = getLinkOutput().toAbsolutePath().normalize();
+        // the native image objects were digested when they were compiled
+        ArtifactManifest artifacts = ArtifactManifest.read(workDir);
+        for (String arg : command) {
+            update(digest, "arg:" + arg);
+        }
+        for (Path input : getLinkInputs(command, workDir)) {
+            if (! input.equals(output) && Files.isRegularFile(input)) {
+                update(digest, "file:" + input);
+                String artifactDigest = artifacts.getDigest(input);
+                if (artifactDigest != null) {
+                    update(digest, artifactDigest);
+                } else {
+                    digestFile(digest, input);
+                }
+            }
+        }
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * Returns the files a link command may read, in command order
+     * @param command the link command, starting with the linker
+     * @param dir the directory the linker runs in
+     * @return the absolute paths of the inputs, that may not exist
+     */
+    static List<Path> getLinkInputs(List<String> command, Path dir) {
+        List<Path> libDirs = new ArrayList<>();
+        for (int i = 1; i < command.size(); i++) {
+            String arg = command.get(i);
+            if (arg.equals("-L") && i + 1 < command.size()) {
+                libDirs.add(resolve(dir, command.get(++i)));
+            } else if (arg.startsWith("-L")) {
+                libDirs.add(resolve(dir, arg.substring(2)));
+            }
+        }
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 1; i < command.size(); i++) {
+            String arg = command.get(i);
+            if (arg.equals("-o") || arg.equals("-L") || arg.equals("-arch") || arg.equals("-isysroot")) {
+                // the output, or an option value that isn't linked
+                i++;
+            } else if (arg.equals("-l") && i + 1 < command.size()) {
+                inputs.addAll(findLibrary(command.get(++i), libDirs));
+            } else if (arg.startsWith("-l")) {
+                inputs.addAll(findLibrary(arg.substring(2), libDirs));
+            } else if (arg.startsWith("-Wl,")) {
+                for (String option : arg.substring(4).split(",")) {
+                    if (! option.isEmpty() && ! option.startsWith("-")) {
+                        inputs.add(resolve(dir, option));
+                    }
+                }
+            } else if (! arg.startsWith("-")) {
+                inputs.add(resolve(dir, arg));
+            }
+        }
+        return inputs;
+    }
+
+    // the linker uses the first static archive found, -l:name looks for that exact file name
+    private static List<Path> findLibrary(String name, List<Path> libDirs) {
+        String fileName = name.startsWith(":") ? name.substring(1) : "lib" + name + ".a";
+        for (Path libDir : libDirs) {
+            Path library = libDir.resolve(fileName);
+            if (Files.isRegularFile(library)) {
+                return Collections.singletonList(library);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private static Path resolve(Path dir, String path) {
+        return dir.resolve(path).toAbsolutePath().normalize();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static void digestFile(MessageDigest digest, Path file) throws IOException {
+        byte[] buffer = new byte[65536];
+        try (InputStream is = Files.newInputStream(file)) {
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
     }
 
     @Override
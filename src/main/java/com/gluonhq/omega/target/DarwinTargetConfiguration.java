@@ -27,6 +27,8 @@
  */
 package com.gluonhq.omega.target;
 
+import com.gluonhq.omega.BuildSession;
+
 import java.io.File;
 import java.io.FileFilter;
 import java.nio.file.Files;
@@ -35,6 +37,10 @@ abstract class DarwinTargetConfiguration extends AbstractTargetConfiguration {
 
     private final static String SDK_BASE = "/Applications/Xcode.app/Contents/Developer/Platforms/";
 
+    DarwinTargetConfiguration(BuildSession session) {
+        super(session);
+    }
+
     enum SdkDirType {
         MACOSX("MacOSX"),
         IPHONE_DEV("iPhoneOS"),
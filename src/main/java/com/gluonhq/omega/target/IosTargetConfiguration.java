@@ -33,11 +33,14 @@ import com.dd.plist.NSDictionary;
 import com.dd.plist.NSObject;
 import com.dd.plist.NSString;
 import com.dd.plist.PropertyListParser;
-import com.gluonhq.omega.Omega;
-import com.gluonhq.omega.SVMBridge;
+import com.gluonhq.omega.BuildSession;
+import com.gluonhq.omega.pipeline.BuildStage;
+import com.gluonhq.omega.util.BuildMetrics;
 import com.gluonhq.omega.util.DeviceIO;
 import com.gluonhq.omega.util.DeviceLockedException;
+import com.gluonhq.omega.util.ArtifactManifest;
 import com.gluonhq.omega.util.FileOps;
+import com.gluonhq.omega.util.ProcessOutput;
 import com.gluonhq.omega.util.IDevice;
 import com.gluonhq.omega.util.MobileDeviceBridge;
 import com.gluonhq.omega.util.NSDictionaryEx;
@@ -73,7 +76,6 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipFile;
 
-import static com.gluonhq.omega.SVMBridge.USE_JAVAFX;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 public class IosTargetConfiguration extends DarwinTargetConfiguration {
@@ -83,21 +85,21 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
 
     private String arch = ARCH_X86_64;
     private XcodeUtil xcodeUtil;
-    private static String appId;
+    private String appId;
 
     private Path rootPath;
-    private static Path tmpPath;
-    private static Path appPath;
-    private static Path libPath;
+    private Path tmpPath;
+    private Path appPath;
+    private Path libPath;
 
-    private static Path partialPListDir;
-    private static String bundleId;
+    private Path partialPListDir;
+    private String bundleId;
 
-    private static ProvisioningProfile provisioningProfile = null;
-    private static SigningIdentity signingIdentity = null;
+    private ProvisioningProfile provisioningProfile = null;
+    private SigningIdentity signingIdentity = null;
 
-    private static String providedSigningIdentity; // if provided, use this one
-    private static String providedProvisioningProfile; // if provided, use this one
+    private String providedSigningIdentity; // if provided, use this one
+    private String providedProvisioningProfile; // if provided, use this one
     private MobileDeviceBridge mobileDeviceBridge;
     private Pointer devicePointer;;
     private String localPath;
@@ -160,7 +162,8 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
             "iTunesArtwork@2x"
     ));
 
-    public IosTargetConfiguration(Path iosDir) {
+    public IosTargetConfiguration(BuildSession session, Path iosDir) {
+        super(session);
         this.rootPath = iosDir;
         try {
             Files.createDirectories(iosDir);
@@ -189,17 +192,23 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
     public List<String> getReleaseSymbolsList() {
         ArrayList<String> answer = new ArrayList<>();
         answer.addAll(super.getReleaseSymbolsList());
-        if (USE_JAVAFX) {
+        if (session.isUseJavaFX()) {
             answer.addAll(releaseSymbolsIOSList);
         }
         return answer;
     }
 
     @Override
-    public void compileApplication() throws Exception {
+    public void compile(Path gvmPath, List<Path> classPath, String mainClassName, String appName, String target) throws Exception {
+        // the configs stage needs the arch before any stage runs
         setupArch(target);
+        super.compile(gvmPath, classPath, mainClassName, appName, target);
+    }
+
+    @Override
+    public void compileApplication() throws Exception {
         System.err.println("Compiling ios application");
-        SVMBridge.compile(gvmPath, classPath, mainClassName, appName,this);
+        session.getBridge().compileImage();
     }
 
     @Override
@@ -250,27 +259,50 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         String cmds = String.join(" ", processBuilder.command());
         processBuilder.redirectErrorStream(true);
         Process p = processBuilder.start();
-        FileOps.mergeProcessOutput(p.getInputStream());
-        int result = p.waitFor();
+        ProcessOutput output = ProcessOutput.start("cc", p.getInputStream(), session.getGvmPath());
+        int result = waitFor("cc", p, output);
         String linkcmds = String.join(" ", processBuilder.command());
         System.err.println("compile cmds = "+linkcmds);
         System.err.println("Result of compile = "+result);
         if (result != 0) {
+            output.printTail();
             throw new RuntimeException("Error compiling additional sources");
         }
     }
 
+    @Override
+    public List<Path> getAdditionalSourcesOutputs() {
+        Path app = gvmPath.getParent().resolve("ios").resolve(appName + ".app");
+        return Arrays.asList(app.resolve("AppDelegate.o"), app.resolve("main.o"), app.resolve("thread.o"));
+    }
+
+    @Override
+    protected List<BuildStage> createLinkStages() {
+        List<BuildStage> stages = new ArrayList<>();
+        stages.add(createLinkStage());
+        stages.add(new BuildStage("package", this::packageApplication, "link"));
+        if (! isSimulator()) {
+            stages.add(new BuildStage("sign", this::signApp, "package"));
+        }
+        return stages;
+    }
+
     @Override
     public void link(Path workDir, String appName, String target) throws Exception {
-        super.link(workDir, appName, target);
         setupArch(target);
-        SVMBridge.linkSetup();
-        Path o = FileOps.findObject(workDir, appName);
+        super.link(workDir, appName, target);
+    }
+
+    @Override
+    protected ProcessBuilder createLinkBuilder() throws Exception {
+        session.getBridge().linkSetup();
+        ArtifactManifest artifacts = ArtifactManifest.read(workDir);
+        Path o = artifacts.get(appName);
         System.err.println("got o at: " + o.toString());
         // LLVM
         Path o2 = null;
-        if ("llvm".equals(Omega.getConfig().getBackend())) {
-            o2 = FileOps.findObject(workDir, "llvm");
+        if ("llvm".equals(session.getConfig().getBackend())) {
+            o2 = artifacts.get("llvm");
             System.err.println("got llvm at: " + o2.toString());
         }
 
@@ -287,7 +319,7 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         linkBuilder.command().add("-o");
         linkBuilder.command().add(appPath.toString() + "/" + appName + "App");
         linkBuilder.command().add("-Wl,-no_implicit_dylibs");
-        if (!"llvm".equals(Omega.getConfig().getBackend())) {
+        if (!"llvm".equals(session.getConfig().getBackend())) {
             linkBuilder.command().add("-Wl,-dead_strip");
         }
         linkBuilder.command().add("-fPIC");
@@ -299,9 +331,9 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
 
         linkBuilder.command().add("-Wl,-exported_symbols_list," + gvmPath.toString() + "/release.symbols");
 
-        if (USE_JAVAFX) {
+        if (session.isUseJavaFX()) {
             javafxLibs.forEach(name ->
-                    linkBuilder.command().add("-Wl,-all_load," + SVMBridge.JFXSDK + "/lib/lib" + name + ".a"));
+                    linkBuilder.command().add("-Wl,-all_load," + session.getJavaFXSdk() + "/lib/lib" + name + ".a"));
         }
 
         Files.list(libPath)
@@ -314,30 +346,25 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         linkBuilder.command().add(appPath.toString() + "/thread.o");
         linkBuilder.command().add(o.toString());
         // LLVM
-        if ("llvm".equals(Omega.getConfig().getBackend()) && o2 != null) {
+        if ("llvm".equals(session.getConfig().getBackend()) && o2 != null) {
             linkBuilder.command().add(o2.toString());
         }
-        linkBuilder.command().add("-L" + SVMBridge.GRAALSDK + "/svm/clibraries/" + (isSimulator() ? "darwin-amd64" : "darwin-arm64"));
-        linkBuilder.command().add("-L" + SVMBridge.JAVASDK);
-        if (USE_JAVAFX) {
-            linkBuilder.command().add("-L" + SVMBridge.JFXSDK + "/lib");
+        linkBuilder.command().add("-L" + session.getGraalSdk() + "/svm/clibraries/" + (isSimulator() ? "darwin-amd64" : "darwin-arm64"));
+        linkBuilder.command().add("-L" + session.getJavaSdk());
+        if (session.isUseJavaFX()) {
+            linkBuilder.command().add("-L" + session.getJavaFXSdk() + "/lib");
         }
         linkBuilder.command().addAll(ioslibs);
 
-        linkBuilder.directory(workDir.toFile());
-        linkBuilder.redirectErrorStream(true);
-        String linkcmds = String.join(" ", linkBuilder.command());
-        logDebug("linkcmds = " + linkcmds);
-        FileOps.createScript(gvmPath.resolve("link.sh"), linkcmds);
+        return linkBuilder;
+    }
 
-        Process linkProcess = linkBuilder.start();
-        FileOps.mergeProcessOutput(linkProcess.getInputStream());
-        int result = linkProcess.waitFor();
-        System.err.println("result of linking = "+result);
-        if (result != 0) {
-            throw new RuntimeException("Error linking");
-        }
+    @Override
+    protected Path getLinkOutput() {
+        return workDir.getParent().getParent().resolve("ios").resolve(appName + ".app").resolve(appName + "App");
+    }
 
+    private void packageApplication() throws Exception {
         appId = appName;
         tmpPath = workDir;
 
@@ -348,9 +375,6 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         Path plist = rootPath.resolve("Default-Info.plist");
         System.err.println("PList at " + plist.toString());
         FileOps.copyStream(new FileInputStream(plist.toFile()), appPath.resolve("Default-Info.plist"));
-        if (! isSimulator()) {
-            signApp();
-        }
     }
 
     @Override
@@ -441,8 +465,9 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
             logDebug("start process...");
             Process p = pb.start();
 
-            FileOps.mergeProcessOutput(p.getInputStream());
+            ProcessOutput output = ProcessOutput.start("run", p.getInputStream(), session.getGvmPath());
             p.waitFor();
+            output.close();
             // xcrun simctl install
             // xcrun simctl launch
         } catch (Throwable ex) {
@@ -511,13 +536,13 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
             NSDictionaryEx dict = new NSDictionaryEx(plist.toFile());
             if (!inited) {
                 // ModuleName not supported
-                String className = Omega.getConfig().getMainClassName();
+                String className = session.getConfig().getMainClassName();
                 if (className.contains("/")) {
                     className = className.substring(className.indexOf("/") + 1);
                 }
                 dict.put("CFBundleIdentifier", className);
-                dict.put("CFBundleExecutable", Omega.getConfig().getAppName() + "App");
-                dict.put("CFBundleName", Omega.getConfig().getAppName());
+                dict.put("CFBundleExecutable", session.getConfig().getAppName() + "App");
+                dict.put("CFBundleName", session.getConfig().getAppName());
                 dict.saveAsXML(plist);
             }
             dict.put("DTPlatformName", xcodeUtil.getPlatformName());
@@ -635,9 +660,10 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         pb.redirectErrorStream(true);
         Process p = pb.start();
 
-        FileOps.mergeProcessOutput(p.getInputStream());
+        ProcessOutput output = ProcessOutput.start("codesign", p.getInputStream(), session.getGvmPath());
         try {
-            boolean res = p.waitFor(10, TimeUnit.SECONDS);
+            boolean res = session.getMetrics().waitFor("codesign", p, 10, TimeUnit.SECONDS);
+            output.close();
             System.err.println("RES for signing = " + res);
         } catch (InterruptedException ex) {
             System.err.println("Error processing codesing " + ex.getMessage());
@@ -665,7 +691,7 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         //  valid on disk
         // satisfies its Designated Requirement
         try {
-            boolean res = p.waitFor(5, TimeUnit.SECONDS);
+            boolean res = session.getMetrics().waitFor("codesign-verify", p, 5, TimeUnit.SECONDS);
             System.err.println("RES for validateCodesign = " + res);
         } catch (InterruptedException ex) {
             System.err.println("Error processing validateCodesign " + ex.getMessage());
@@ -745,7 +771,7 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         return provisioningProfile;
     }
 
-    private static List<SigningIdentity> getSigningIdentity() {
+    private List<SigningIdentity> getSigningIdentity() {
         if (providedSigningIdentity != null) {
             return SigningIdentity.find(providedSigningIdentity);
         }
@@ -777,7 +803,7 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
 
         Process p = pb.start();
         try {
-            p.waitFor();
+            session.getMetrics().waitFor("dsymutil", p);
         } catch (InterruptedException ex) {
             ex.printStackTrace();
         }
@@ -831,7 +857,11 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         }
         Pointer clientPointer = lockDown();
         logDebug("umbrella cp after lockdown = "+clientPointer);
-        if (! uploadInternal()) {
+        boolean uploaded;
+        try (BuildMetrics.Timer timer = session.getMetrics().start("upload")) {
+            uploaded = uploadInternal();
+        }
+        if (! uploaded) {
             logInfo("Upload internal failed");
             return false;
         }
@@ -878,8 +908,8 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         mobileDeviceBridge.unlockClient(p);
     }
 
-    private static int counter;
-    private static long totalFiles;
+    private int counter;
+    private long totalFiles;
 
     private boolean uploadInternal() throws IOException {
         logInfo("UploadInternal start");
@@ -921,6 +951,7 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
                     @Override
                     public FileVisitResult visitFile(Path p, BasicFileAttributes att) {
                         counter += 1;
+                        session.getMetrics().increment("upload.files");
                         logDebug("[" + counter + "/" + totalFiles + "] Visit file with path "+p);
                         String deviceFile = toAbsoluteDevicePath(targetPath, root.relativize(p));
                         try {
@@ -940,6 +971,7 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
                                         logDebug("written: "+written);
                                         totsize = totsize + written;
                                     }
+                                    session.getMetrics().increment("upload.bytes", totsize);
                                     logDebug("Wrote " + totsize + " bytes for file " + deviceFile);
                                 } catch (Exception e) {
                                     e.printStackTrace();
@@ -1246,7 +1278,7 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
 
         Process p = pb.start();
         try {
-            p.waitFor();
+            session.getMetrics().waitFor("actool", p);
         } catch (InterruptedException ex) {
             logSevere("Error running actool: " + ex);
         }
@@ -1287,7 +1319,7 @@ public class IosTargetConfiguration extends DarwinTargetConfiguration {
         };
         t.start();
         try {
-            int a = p.waitFor();
+            session.getMetrics().waitFor("lipo", p);
         } catch (InterruptedException ex) {
             logDebug("Error : " + ex);
         }
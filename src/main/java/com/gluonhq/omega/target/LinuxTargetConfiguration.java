@@ -27,17 +27,18 @@
  */
 package com.gluonhq.omega.target;
 
-import com.gluonhq.omega.Omega;
-import com.gluonhq.omega.SVMBridge;
+import com.gluonhq.omega.BuildSession;
+import com.gluonhq.omega.util.ArtifactManifest;
 import com.gluonhq.omega.util.FileOps;
+import com.gluonhq.omega.util.ProcessOutput;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-import static com.gluonhq.omega.SVMBridge.USE_JAVAFX;
 
 public class LinuxTargetConfiguration extends AbstractTargetConfiguration {
 
@@ -72,6 +73,10 @@ public class LinuxTargetConfiguration extends AbstractTargetConfiguration {
             "-lpthread", "-lz", "-ldl", "-lstrictmath", "-llibchelper", "-lm",
             "-ljava", "-lnio", "-lzip", "-lnet", "-ljvm", "-lj2pkcs11", "-lsunec");
 
+    public LinuxTargetConfiguration(BuildSession session) {
+        super(session);
+    }
+
     @Override
     public List<String> getJavaFXJNIClassList() {
         ArrayList<String> answer = new ArrayList<>();
@@ -90,7 +95,7 @@ public class LinuxTargetConfiguration extends AbstractTargetConfiguration {
 
     public void compileApplication() throws Exception {
         System.err.println("Compiling application for Linux");
-        SVMBridge.compile(gvmPath, classPath, mainClassName, appName,this);
+        session.getBridge().compileImage();
     }
 
     @Override
@@ -106,25 +111,31 @@ public class LinuxTargetConfiguration extends AbstractTargetConfiguration {
         String cmds = String.join(" ", processBuilder.command());
         processBuilder.redirectErrorStream(true);
         Process p = processBuilder.start();
-        FileOps.mergeProcessOutput(p.getInputStream());
-        int result = p.waitFor();
+        ProcessOutput output = ProcessOutput.start("cc", p.getInputStream(), session.getGvmPath());
+        int result = waitFor("cc", p, output);
         System.err.println("Result of compile = "+result);
         if (result != 0) {
+            output.printTail();
             throw new RuntimeException("Error compiling additional sources");
         }
     }
 
     @Override
-    public void link(Path workDir, String appName, String target) throws Exception {
-        super.link(workDir, appName, target);
+    public List<Path> getAdditionalSourcesOutputs() {
+        return Collections.singletonList(gvmPath.getParent().resolve("linux").resolve(appName).resolve("launcher.o"));
+    }
+
+    @Override
+    protected ProcessBuilder createLinkBuilder() throws Exception {
         System.err.println("Linking");
-        SVMBridge.linkSetup();
-        Path o = FileOps.findObject(workDir, appName);
+        session.getBridge().linkSetup();
+        ArtifactManifest artifacts = ArtifactManifest.read(workDir);
+        Path o = artifacts.get(appName);
         System.err.println("got o at: " + o.toString());
         // LLVM
         Path o2 = null;
-        if ("llvm".equals(Omega.getConfig().getBackend())) {
-            o2 = FileOps.findObject(workDir, "llvm");
+        if ("llvm".equals(session.getConfig().getBackend())) {
+            o2 = artifacts.get("llvm");
             System.err.println("got llvm at: " + o2.toString());
         }
 
@@ -134,34 +145,27 @@ public class LinuxTargetConfiguration extends AbstractTargetConfiguration {
 
         ProcessBuilder linkBuilder = new ProcessBuilder("gcc");
         linkBuilder.command().add("-o");
-        linkBuilder.command().add("-Wl,-exported_symbols_list," + gvmPath.toString() + "/release.symbols");
         linkBuilder.command().add(linux.toString() + "/" + appName);
+        linkBuilder.command().add("-Wl,-exported_symbols_list," + gvmPath.toString() + "/release.symbols");
         linkBuilder.command().add(linux.toString() + "/launcher.o");
         linkBuilder.command().add(o.toString());
         // LLVM
-        if ("llvm".equals(Omega.getConfig().getBackend()) && o2 != null) {
+        if ("llvm".equals(session.getConfig().getBackend()) && o2 != null) {
             linkBuilder.command().add(o2.toString());
         }
 
-        linkBuilder.command().add("-L"+SVMBridge.GRAALSDK + "svm/clibraries/linux-amd64");
-        linkBuilder.command().add("-L" + SVMBridge.JAVASDK);
-        if (USE_JAVAFX) {
-            linkBuilder.command().add("-L" + SVMBridge.JFXSDK + "/lib");
-        }
-        linkBuilder.command().addAll(USE_JAVAFX ? linuxlibsFX : linuxlibs);
-        linkBuilder.directory(workDir.toFile());
-        linkBuilder.redirectErrorStream(true);
-        String linkcmds = String.join(" ", linkBuilder.command());
-        logDebug("linkcmds = " + linkcmds);
-        FileOps.createScript(gvmPath.resolve("link.sh"), linkcmds);
-
-        Process linkProcess = linkBuilder.start();
-        FileOps.mergeProcessOutput(linkProcess.getInputStream());
-        int result = linkProcess.waitFor();
-        System.err.println("result of linking = "+result);
-        if (result != 0) {
-            throw new RuntimeException("Error linking");
+        linkBuilder.command().add("-L" + session.getGraalSdk() + "/svm/clibraries/linux-amd64");
+        linkBuilder.command().add("-L" + session.getJavaSdk());
+        if (session.isUseJavaFX()) {
+            linkBuilder.command().add("-L" + session.getJavaFXSdk() + "/lib");
         }
+        linkBuilder.command().addAll(session.isUseJavaFX() ? linuxlibsFX : linuxlibs);
+        return linkBuilder;
+    }
+
+    @Override
+    protected Path getLinkOutput() {
+        return workDir.getParent().getParent().resolve("linux").resolve(appName).resolve(appName);
     }
 
     @Override
@@ -171,10 +175,8 @@ public class LinuxTargetConfiguration extends AbstractTargetConfiguration {
         System.err.println("Running at " + workDir.toString());
         Path mac = workDir.resolve("linux").resolve(appName);
         ProcessBuilder runBuilder = new ProcessBuilder(mac.toString() + "/" + appName);
+        runBuilder.command().addAll(session.getConfig().getRunArgs());
         runBuilder.directory(workDir.toFile());
-        Process start = runBuilder.start();
-
-        FileOps.mergeProcessOutput(start.getInputStream());
-        start.waitFor();
+        runApplication(runBuilder);
     }
 }
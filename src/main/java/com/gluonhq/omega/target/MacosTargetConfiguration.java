@@ -27,9 +27,10 @@
  */
 package com.gluonhq.omega.target;
 
-import com.gluonhq.omega.Omega;
-import com.gluonhq.omega.SVMBridge;
+import com.gluonhq.omega.BuildSession;
+import com.gluonhq.omega.util.ArtifactManifest;
 import com.gluonhq.omega.util.FileOps;
+import com.gluonhq.omega.util.ProcessOutput;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -37,7 +38,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import static com.gluonhq.omega.SVMBridge.USE_JAVAFX;
 
 public class MacosTargetConfiguration extends DarwinTargetConfiguration {
 
@@ -328,6 +328,10 @@ public class MacosTargetConfiguration extends DarwinTargetConfiguration {
             "-Wl,-framework,ApplicationServices", "-Wl,-framework,OpenGL",
             "-Wl,-framework,QuartzCore", "-Wl,-framework,Security");
 
+    public MacosTargetConfiguration(BuildSession session) {
+        super(session);
+    }
+
     @Override
     public List<String> getJavaFXJNIClassList() {
         ArrayList<String> answer = new ArrayList<>();
@@ -348,7 +352,7 @@ public class MacosTargetConfiguration extends DarwinTargetConfiguration {
     public List<String> getReleaseSymbolsList() {
         ArrayList<String> answer = new ArrayList<>();
         answer.addAll(super.getReleaseSymbolsList());
-        if (USE_JAVAFX) {
+        if (session.isUseJavaFX()) {
             answer.addAll(releaseSymbolsMacList);
         }
         return answer;
@@ -357,7 +361,7 @@ public class MacosTargetConfiguration extends DarwinTargetConfiguration {
     @Override
     public void compileApplication() throws Exception {
         logDebug("Compiling MacOS application");
-        SVMBridge.compile(gvmPath, classPath, mainClassName, appName,this);
+        session.getBridge().compileImage();
     }
 
     @Override
@@ -377,26 +381,33 @@ public class MacosTargetConfiguration extends DarwinTargetConfiguration {
         processBuilder.directory(workDir.toFile());
         processBuilder.redirectErrorStream(true);
         Process p = processBuilder.start();
-        FileOps.mergeProcessOutput(p.getInputStream());
-        int result = p.waitFor();
+        ProcessOutput output = ProcessOutput.start("cc", p.getInputStream(), session.getGvmPath());
+        int result = waitFor("cc", p, output);
         String proccmds = String.join(" ", processBuilder.command());
         logDebug("proccmds = " + proccmds);
         logDebug("Result of compile = "+result);
         if (result != 0) {
+            output.printTail();
             throw new RuntimeException("Error compiling additional sources");
         }
     }
 
     @Override
-    public void link(Path workDir, String appName, String target) throws Exception {
-        super.link(workDir, appName, target);
-        SVMBridge.linkSetup();
-        Path o = FileOps.findObject(workDir, appName);
+    public List<Path> getAdditionalSourcesOutputs() {
+        Path mac = gvmPath.getParent().resolve("mac").resolve(appName);
+        return Arrays.asList(mac.resolve("AppDelegate.o"), mac.resolve("launcher.o"));
+    }
+
+    @Override
+    protected ProcessBuilder createLinkBuilder() throws Exception {
+        session.getBridge().linkSetup();
+        ArtifactManifest artifacts = ArtifactManifest.read(workDir);
+        Path o = artifacts.get(appName);
         logDebug("got o at: " + o.toString());
         // LLVM
         Path o2 = null;
-        if ("llvm".equals(Omega.getConfig().getBackend())) {
-            o2 = FileOps.findObject(workDir, "llvm");
+        if ("llvm".equals(session.getConfig().getBackend())) {
+            o2 = artifacts.get("llvm");
             System.err.println("got llvm at: " + o2.toString());
         }
 
@@ -418,30 +429,22 @@ public class MacosTargetConfiguration extends DarwinTargetConfiguration {
 
         linkBuilder.command().add(o.toString());
         // LLVM
-        if ("llvm".equals(Omega.getConfig().getBackend()) && o2 != null) {
+        if ("llvm".equals(session.getConfig().getBackend()) && o2 != null) {
             linkBuilder.command().add(o2.toString());
         }
 
-        linkBuilder.command().add("-L" + SVMBridge.GRAALSDK + "/svm/clibraries/darwin-amd64");
-        linkBuilder.command().add("-L" + SVMBridge.JAVASDK);
-        if (USE_JAVAFX) {
-            linkBuilder.command().add("-L" + SVMBridge.JFXSDK + "/lib");
+        linkBuilder.command().add("-L" + session.getGraalSdk() + "/svm/clibraries/darwin-amd64");
+        linkBuilder.command().add("-L" + session.getJavaSdk());
+        if (session.isUseJavaFX()) {
+            linkBuilder.command().add("-L" + session.getJavaFXSdk() + "/lib");
         }
-        linkBuilder.command().addAll(USE_JAVAFX ? macoslibsFX : macoslibs);
-        linkBuilder.directory(workDir.toFile());
-        linkBuilder.redirectErrorStream(true);
-        String linkcmds = String.join(" ", linkBuilder.command());
-        logDebug("linkcmds = " + linkcmds);
-        FileOps.createScript(gvmPath.resolve("link.sh"), linkcmds);
-
-        Process linkProcess = linkBuilder.start();
-        FileOps.mergeProcessOutput(linkProcess.getInputStream());
-        int result = linkProcess.waitFor();
+        linkBuilder.command().addAll(session.isUseJavaFX() ? macoslibsFX : macoslibs);
+        return linkBuilder;
+    }
 
-        logDebug("result of linking = " + result);
-        if (result != 0) {
-            throw new RuntimeException("Error linking");
-        }
+    @Override
+    protected Path getLinkOutput() {
+        return workDir.getParent().getParent().resolve("mac").resolve(appName).resolve(appName);
     }
 
     @Override
@@ -451,11 +454,8 @@ public class MacosTargetConfiguration extends DarwinTargetConfiguration {
         logDebug("Running at " + workDir.toString());
         Path mac = workDir.resolve("mac").resolve(appName);
         ProcessBuilder runBuilder = new ProcessBuilder(mac.toString() + "/" + appName);
-        runBuilder.redirectErrorStream(true);
+        runBuilder.command().addAll(session.getConfig().getRunArgs());
         runBuilder.directory(workDir.toFile());
-        Process start = runBuilder.start();
-
-        FileOps.mergeProcessOutput(start.getInputStream());
-        start.waitFor();
+        runApplication(runBuilder);
     }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * The artifacts produced by the compile phase, with their size, modification time and
+ * SHA-256 digest.
+ *
+ * The manifest is written next to the artifacts (e.g. gvm/tmp/artifacts.properties), so
+ * that the link and later stages can find them without walking the work dir.
+ */
+public class ArtifactManifest {
+
+    public static final String FILE_NAME = "artifacts.properties";
+
+    private final Properties properties = new Properties();
+
+    /**
+     * Reads the manifest of a directory
+     * @param dir the directory with the compile artifacts (e.g. gvm/tmp)
+     * @return the manifest
+     * @throws IOException if the manifest can't be read
+     */
+    public static ArtifactManifest read(Path dir) throws IOException {
+        Path file = dir.resolve(FILE_NAME);
+        if (! Files.isRegularFile(file)) {
+            throw new IOException("Artifact manifest " + file + " not found, the application has to be compiled first");
+        }
+        ArtifactManifest manifest = new ArtifactManifest();
+        try (InputStream is = Files.newInputStream(file)) {
+            manifest.properties.load(is);
+        }
+        return manifest;
+    }
+
+    /**
+     * Adds an artifact
+     * @param name the name of the artifact (e.g. the application name, or llvm)
+     * @param file the artifact
+     * @throws IOException
+     */
+    public void add(String name, Path file) throws IOException {
+        Path path = file.toAbsolutePath();
+        properties.setProperty(name + ".path", path.toString());
+        properties.setProperty(name + ".size", Long.toString(Files.size(path)));
+        properties.setProperty(name + ".modified", Long.toString(Files.getLastModifiedTime(path).toMillis()));
+        properties.setProperty(name + ".sha256", digest(path));
+    }
+
+    /**
+     * Writes the manifest
+     * @param dir the directory with the compile artifacts
+     * @throws IOException
+     */
+    public void write(Path dir) throws IOException {
+        Path tmp = dir.resolve(FILE_NAME + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tmp)) {
+            properties.store(os, "Omega compile artifacts");
+        }
+        Files.move(tmp, dir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public boolean contains(String name) {
+        return properties.containsKey(name + ".path");
+    }
+
+    /**
+     * Returns an artifact, checking that it wasn't removed or changed since the manifest was written
+     * @param name the name of the artifact
+     * @return the path of the artifact
+     * @throws IOException if the artifact is not in the manifest, or it doesn't match it
+     */
+    public Path get(String name) throws IOException {
+        String path = properties.getProperty(name + ".path");
+        if (path == null) {
+            throw new IOException("Artifact " + name + " not found in the artifact manifest");
+        }
+        Path file = Paths.get(path);
+        if (! isUnchanged(name, file)) {
+            throw new IOException("Artifact " + file + " is missing or was modified after it was compiled");
+        }
+        return file;
+    }
+
+    /**
+     * Returns the recorded digest of a file, if it is one of the artifacts and it didn't change
+     * @param file a file
+     * @return the SHA-256 digest, or null if the file is not in the manifest or it changed
+     */
+    public String getDigest(Path file) {
+        Path path = file.toAbsolutePath();
+        for (String name : getNames()) {
+            if (path.toString().equals(properties.getProperty(name + ".path"))) {
+                return isUnchanged(name, path) ? properties.getProperty(name + ".sha256") : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the paths of all the artifacts
+     */
+    public List<Path> getPaths() {
+        List<Path> paths = new ArrayList<>();
+        for (String name : getNames()) {
+            paths.add(Paths.get(properties.getProperty(name + ".path")));
+        }
+        return paths;
+    }
+
+    private TreeSet<String> getNames() {
+        TreeSet<String> names = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.endsWith(".path")) {
+                names.add(key.substring(0, key.length() - ".path".length()));
+            }
+        }
+        return names;
+    }
+
+    private boolean isUnchanged(String name, Path file) {
+        try {
+            return Files.isRegularFile(file) &&
+                    Long.toString(Files.size(file)).equals(properties.getProperty(name + ".size")) &&
+                    Long.toString(Files.getLastModifiedTime(file).toMillis()).equals(properties.getProperty(name + ".modified"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String digest(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] buffer = new byte[65536];
+        try (InputStream is = Files.newInputStream(file)) {
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return BuildCache.toHex(digest.digest());
+    }
+}
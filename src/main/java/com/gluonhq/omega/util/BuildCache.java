@@ -0,0 +1,545 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import com.gluonhq.omega.Config;
+import com.gluonhq.omega.SVMBridge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed cache for the object file produced by the native-image builder.
+ *
+ * Entries live under {@code <root>/<key>/} and are evicted in least recently used
+ * order once the cache grows beyond its disk budget.
+ */
+public class BuildCache {
+
+    private static final String STATS_FILE = "stats.properties";
+    private static final String LOCK_FILE = ".lock";
+    private static final String ENTRY_MARKER = "entry.properties";
+    // uploaded next to each object of the remote store, with its SHA-256 digest and size
+    private static final String DIGEST_SUFFIX = ".sha256";
+
+    // the settings that change the image, the others (cache, daemon, sizing, benchmark...) only
+    // change how it is built or what is done with it. New Config fields that reach the builder
+    // must be added here. The builder command line and the generated config files, including
+    // the PGO profile, are part of the key as well
+    private static final List<String> IMAGE_FIELDS = Arrays.asList(
+            "graalLibsVersion", "javaStaticSdkVersion", "javafxStaticSdkVersion",
+            "depsRoot", "JavaFXRoot", "StaticRoot", "useJavaFX", "target", "backend",
+            "appName", "mainClassName",
+            "bundlesList", "resourcesList", "resourcesIncludeList", "resourcesExcludeList",
+            "reflectionList", "jniList", "delayInitList", "runtimeArgsList", "releaseSymbolsList",
+            "reflectionMinimization", "classInitAnalysis", "pgoInstrument",
+            "useTracingAgent", "tracingAgentArgs");
+
+    private final Path root;
+    private final long maxSize;
+
+    private CacheStore remoteStore;
+    private boolean remotePush;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong remoteHits = new AtomicLong();
+
+    public BuildCache(Path root, long maxSize) {
+        this.root = root;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets a store shared with other machines. It is checked when an object is not in the local
+     * cache, and objects found there are added to the local cache once they match the digest
+     * uploaded with them. Errors reaching the store, and objects that are truncated or don't
+     * match their digest, are logged and handled as cache misses
+     * @param remoteStore the shared store, or null
+     * @param push true to also upload the objects stored in the local cache
+     */
+    public void setRemoteStore(CacheStore remoteStore, boolean push) {
+        this.remoteStore = remoteStore;
+        this.remotePush = push;
+    }
+
+    /**
+     * Computes the cache key for a native-image build. Machine specific paths (the work dir,
+     * the class path entries, the Omega repository, the JDK and the user home) are replaced
+     * with placeholders, so the same sources give the same key on every machine
+     * @param classPath the application class path
+     * @param configFiles generated files passed to the builder (reflection, jni, ...)
+     * @param config the required configuration
+     * @param command the full builder command line
+     * @param workDir the directory where the builder runs
+     * @return a hex encoded SHA-256 digest of all the inputs
+     * @throws IOException
+     */
+    public static String computeKey(List<Path> classPath, List<Path> configFiles, Config config,
+                                    List<String> command, Path workDir) throws IOException {
+        Map<String, String> roots = new HashMap<>();
+        roots.put(System.getProperty("user.home"), "$HOME");
+        roots.put(System.getProperty("java.home"), "$JAVA_HOME");
+        roots.put(SVMBridge.USER_OMEGA_PATH.toAbsolutePath().toString(), "$OMEGA");
+        roots.put(workDir.toAbsolutePath().toString(), "$WORK");
+        for (int i = 0; i < classPath.size(); i++) {
+            roots.put(classPath.get(i).toAbsolutePath().toString(), "$CP" + i);
+        }
+        // longest first, so that nested roots are replaced before their parents
+        List<String> prefixes = new ArrayList<>(roots.keySet());
+        prefixes.sort(Comparator.comparing(String::length).reversed());
+
+        MessageDigest digest = newDigest();
+        for (Path path : classPath) {
+            update(digest, "cp:" + path.getFileName());
+            digestPath(digest, path);
+        }
+        for (Path path : configFiles) {
+            update(digest, "config:" + path.getFileName());
+            digestPath(digest, path);
+        }
+        update(digest, "fields:" + normalize(describe(config), prefixes, roots));
+        for (String arg : command) {
+            update(digest, "arg:" + normalize(arg, prefixes, roots));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Restores a cached object file, if any
+     * @param key the cache key
+     * @param name the name of the object file (e.g. demo.o)
+     * @param target the file where the object will be copied
+     * @return the restored file, or empty if there was a cache miss
+     */
+    public Optional<Path> restore(String key, String name, Path target) throws IOException {
+        Path entry = root.resolve(key);
+        Path object = entry.resolve(name);
+        Files.createDirectories(target.getParent());
+        // under the eviction lock, so the entry isn't deleted while it is copied
+        boolean restored = Files.isDirectory(root) && withLock(() -> {
+            if (! Files.isRegularFile(object)) {
+                return false;
+            }
+            Files.copy(object, target, StandardCopyOption.REPLACE_EXISTING);
+            touch(entry);
+            return true;
+        });
+        if (! restored) {
+            if (fetchRemote(key, name, target)) {
+                hits.incrementAndGet();
+                remoteHits.incrementAndGet();
+                updateStats(1, 0);
+                storeLocal(key, target);
+                return Optional.of(target);
+            }
+            misses.incrementAndGet();
+            updateStats(0, 1);
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        updateStats(1, 0);
+        return Optional.of(target);
+    }
+
+    /**
+     * Adds an object file to the cache, evicting old entries if the disk budget is exceeded,
+     * and uploads it to the remote store, if there is one
+     * @param key the cache key
+     * @param object the object file produced by the builder
+     */
+    public void store(String key, Path object) throws IOException {
+        storeLocal(key, object);
+        if (remoteStore != null && remotePush) {
+            Path digestFile = object.resolveSibling(object.getFileName() + DIGEST_SUFFIX);
+            try {
+                // the digest goes last, an object without it is never used
+                remoteStore.put(key, object);
+                Files.write(digestFile, digestOf(object).getBytes(StandardCharsets.UTF_8));
+                remoteStore.put(key, digestFile);
+                System.err.println("Uploaded " + object.getFileName() + " to the remote build cache " + remoteStore);
+            } catch (IOException e) {
+                System.err.println("Error uploading to the remote build cache " + remoteStore + ": " + e.getMessage());
+            } finally {
+                Files.deleteIfExists(digestFile);
+            }
+        }
+    }
+
+    private boolean fetchRemote(String key, String name, Path target) throws IOException {
+        if (remoteStore == null) {
+            return false;
+        }
+        Path digestFile = target.resolveSibling(target.getFileName() + DIGEST_SUFFIX);
+        try {
+            Files.createDirectories(target.getParent());
+            if (! remoteStore.fetch(key, name + DIGEST_SUFFIX, digestFile)) {
+                return false;
+            }
+            String expected = new String(Files.readAllBytes(digestFile), StandardCharsets.UTF_8).trim();
+            if (! remoteStore.fetch(key, name, target)) {
+                return false;
+            }
+            String actual = digestOf(target);
+            if (! expected.equals(actual)) {
+                // a truncated upload or download, or a corrupted entry: the object is built again
+                System.err.println("Discarding " + name + " from the remote build cache " + remoteStore +
+                        ": expected digest and size " + expected + ", got " + actual);
+                Files.delete(target);
+                return false;
+            }
+            System.err.println("Downloaded " + name + " from the remote build cache " + remoteStore);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error reading the remote build cache " + remoteStore + ": " + e.getMessage());
+            Files.deleteIfExists(target);
+        } finally {
+            Files.deleteIfExists(digestFile);
+        }
+        return false;
+    }
+
+    // the SHA-256 digest of a file, followed by its size
+    private static String digestOf(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        digestFile(digest, file);
+        return toHex(digest.digest()) + " " + Files.size(file);
+    }
+
+    private void storeLocal(String key, Path object) throws IOException {
+        Path entry = root.resolve(key);
+        if (Files.isRegularFile(entry.resolve(object.getFileName()))) {
+            touch(entry);
+            return;
+        }
+        Files.createDirectories(root);
+        Path staging = root.resolve(".tmp-" + UUID.randomUUID());
+        Files.createDirectories(staging);
+        try {
+            Files.copy(object, staging.resolve(object.getFileName()));
+            Properties properties = new Properties();
+            properties.setProperty("object", object.getFileName().toString());
+            properties.setProperty("size", Long.toString(Files.size(object)));
+            try (OutputStream os = Files.newOutputStream(staging.resolve(ENTRY_MARKER))) {
+                properties.store(os, "Omega build cache entry");
+            }
+            Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // another build stored the same entry concurrently
+            FileOps.deleteDir(staging);
+            if (! Files.isDirectory(entry)) {
+                throw e;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Removes least recently used entries until the cache fits in its disk budget
+     * @return the number of bytes reclaimed
+     */
+    public long evict() throws IOException {
+        if (! Files.isDirectory(root)) {
+            return 0;
+        }
+        return withLock(() -> {
+            List<Path> entries;
+            try (Stream<Path> list = Files.list(root)) {
+                entries = list.filter(p -> Files.isRegularFile(p.resolve(ENTRY_MARKER)))
+                        .sorted(Comparator.comparing(BuildCache::lastUsed))
+                        .collect(Collectors.toList());
+            }
+            long total = 0;
+            for (Path entry : entries) {
+                total += sizeOf(entry);
+            }
+            long reclaimed = 0;
+            for (Path entry : entries) {
+                if (total <= maxSize) {
+                    break;
+                }
+                long size = sizeOf(entry);
+                FileOps.deleteDir(entry);
+                total -= size;
+                reclaimed += size;
+                System.err.println("Evicted build cache entry " + entry.getFileName());
+            }
+            return reclaimed;
+        });
+    }
+
+    /**
+     * Returns the entries of the local cache
+     * @return the keys of the entries, with the time they were last used
+     * @throws IOException
+     */
+    public Map<String, FileTime> getEntries() throws IOException {
+        Map<String, FileTime> entries = new HashMap<>();
+        if (Files.isDirectory(root)) {
+            try (Stream<Path> list = Files.list(root)) {
+                list.filter(p -> Files.isRegularFile(p.resolve(ENTRY_MARKER)))
+                        .forEach(p -> entries.put(p.getFileName().toString(), lastUsed(p)));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Removes an entry from the local cache
+     * @param key the cache key
+     * @return the number of bytes reclaimed
+     * @throws IOException
+     */
+    public long remove(String key) throws IOException {
+        return withLock(() -> {
+            Path entry = root.resolve(key);
+            if (! Files.isDirectory(entry)) {
+                return 0L;
+            }
+            long size = sizeOf(entry);
+            FileOps.deleteDir(entry);
+            return size;
+        });
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the hits that were downloaded from the remote store
+     */
+    public long getRemoteHits() {
+        return remoteHits.get();
+    }
+
+    /**
+     * Returns the hit and miss totals accumulated by all the builds that used this cache
+     * @return a two element array with the hits and misses
+     */
+    public long[] getTotalStats() {
+        Properties stats = readStats();
+        return new long[] {
+                Long.parseLong(stats.getProperty("hits", "0")),
+                Long.parseLong(stats.getProperty("misses", "0"))};
+    }
+
+    private void updateStats(long newHits, long newMisses) throws IOException {
+        Files.createDirectories(root);
+        withLock(() -> {
+            Properties stats = readStats();
+            stats.setProperty("hits", Long.toString(Long.parseLong(stats.getProperty("hits", "0")) + newHits));
+            stats.setProperty("misses", Long.toString(Long.parseLong(stats.getProperty("misses", "0")) + newMisses));
+            try (OutputStream os = Files.newOutputStream(root.resolve(STATS_FILE))) {
+                stats.store(os, "Omega build cache statistics");
+            }
+            return null;
+        });
+    }
+
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    // file locks are held per JVM, so builds running in this process serialize on the class first
+    private <T> T withLock(LockedAction<T> action) throws IOException {
+        synchronized (BuildCache.class) {
+            try (FileChannel channel = FileChannel.open(root.resolve(LOCK_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock lock = channel.lock()) {
+                return action.run();
+            }
+        }
+    }
+
+    private Properties readStats() {
+        Properties stats = new Properties();
+        Path file = root.resolve(STATS_FILE);
+        if (Files.isRegularFile(file)) {
+            try (InputStream is = Files.newInputStream(file)) {
+                stats.load(is);
+            } catch (IOException e) {
+                System.err.println("Error reading build cache stats: " + e.getMessage());
+            }
+        }
+        return stats;
+    }
+
+    private static void touch(Path entry) throws IOException {
+        Files.setLastModifiedTime(entry.resolve(ENTRY_MARKER), FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    private static FileTime lastUsed(Path entry) {
+        try {
+            return Files.getLastModifiedTime(entry.resolve(ENTRY_MARKER));
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static long sizeOf(Path entry) throws IOException {
+        try (Stream<Path> files = Files.walk(entry)) {
+            return files.filter(Files::isRegularFile)
+                    .mapToLong(p -> {
+                        try {
+                            return Files.size(p);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .sum();
+        }
+    }
+
+    private static String normalize(String value, List<String> prefixes, Map<String, String> roots) {
+        for (String prefix : prefixes) {
+            if (! prefix.isEmpty()) {
+                value = value.replace(prefix, roots.get(prefix));
+            }
+        }
+        return value;
+    }
+
+    private static String describe(Config config) {
+        List<String> names = new ArrayList<>(IMAGE_FIELDS);
+        names.sort(Comparator.naturalOrder());
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            try {
+                Field field = Config.class.getDeclaredField(name);
+                field.setAccessible(true);
+                sb.append(name).append('=').append(field.get(config)).append(';');
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new RuntimeException("Error reading config field " + name, e);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Digests the content of a file, or of all the files of a directory tree with their
+     * relative paths, so any nested change gives a different digest
+     * @param digest the digest to update
+     * @param path a file or a directory, that may not exist
+     * @throws IOException if a file can't be read
+     */
+    public static void digestPath(MessageDigest digest, Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(path)) {
+                files = walk.filter(Files::isRegularFile)
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                update(digest, path.relativize(file).toString());
+                digestFile(digest, file);
+            }
+        } else if (Files.isRegularFile(path)) {
+            digestFile(digest, path);
+        } else {
+            update(digest, "missing");
+        }
+    }
+
+    private static void digestFile(MessageDigest digest, Path file) throws IOException {
+        byte[] buffer = new byte[65536];
+        try (InputStream is = Files.newInputStream(file)) {
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Derives a key from a build key and values that don't change the image but change
+     * what is produced from it, e.g. the arguments of a training run
+     * @param key the key of the build
+     * @param values the values, in a fixed order
+     * @return the derived key
+     */
+    public static String deriveKey(String key, List<String> values) {
+        MessageDigest digest = newDigest();
+        update(digest, "key:" + key);
+        for (String value : values) {
+            update(digest, "value:" + value);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
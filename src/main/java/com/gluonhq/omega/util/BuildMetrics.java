@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Timers, counters and peak memory of the subprocesses of a build phase.
+ *
+ * Metrics can be written as a JSON report and in the Prometheus text format.
+ * All the methods are thread safe.
+ */
+public class BuildMetrics {
+
+    private static final boolean LINUX = System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("linux");
+
+    private final Instant start = Instant.now();
+    private final Map<String, TimerStats> timers = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> peakRss = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService sampler;
+
+    /**
+     * A running timer, that records its duration when stopped
+     */
+    public class Timer implements AutoCloseable {
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private boolean stopped;
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        public void stop() {
+            if (! stopped) {
+                stopped = true;
+                record(name, System.nanoTime() - startNanos);
+            }
+        }
+
+        @Override
+        public void close() {
+            stop();
+        }
+    }
+
+    private static class TimerStats {
+        private long count;
+        private long total;
+        private long max;
+
+        synchronized void add(long nanos) {
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+    }
+
+    /**
+     * Starts a timer
+     * @param name the name of the timer
+     * @return the running timer
+     */
+    public Timer start(String name) {
+        return new Timer(name);
+    }
+
+    /**
+     * Adds a duration to a timer
+     * @param name the name of the timer
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(String name, long nanos) {
+        timers.computeIfAbsent(name, n -> new TimerStats()).add(nanos);
+    }
+
+    public void increment(String name) {
+        increment(name, 1);
+    }
+
+    public void increment(String name, long delta) {
+        counters.computeIfAbsent(name, n -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public long getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Returns the total time recorded by a timer
+     * @param name the name of the timer
+     * @return the total time in milliseconds
+     */
+    public long getTotalMillis(String name) {
+        TimerStats stats = timers.get(name);
+        if (stats == null) {
+            return 0;
+        }
+        synchronized (stats) {
+            return TimeUnit.NANOSECONDS.toMillis(stats.total);
+        }
+    }
+
+    /**
+     * Sets a value reported by a tool, replacing any previous one
+     * @param name the name of the value (e.g. builder.reachable-methods)
+     * @param value the value
+     */
+    public void setGauge(String name, long value) {
+        gauges.computeIfAbsent(name, n -> new AtomicLong()).set(value);
+    }
+
+    public boolean hasGauge(String name) {
+        return gauges.containsKey(name);
+    }
+
+    public long getGauge(String name) {
+        AtomicLong gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.get();
+    }
+
+    /**
+     * Records the resident memory of a process, if it is higher than the previous peak
+     * @param name the name of the process
+     * @param bytes the resident memory in bytes
+     */
+    public void recordPeakRss(String name, long bytes) {
+        peakRss.computeIfAbsent(name, n -> new AtomicLong()).accumulateAndGet(bytes, Math::max);
+    }
+
+    public long getPeakRss(String name) {
+        AtomicLong rss = peakRss.get(name);
+        return rss == null ? 0 : rss.get();
+    }
+
+    /**
+     * Waits for a process, recording its duration and peak resident memory
+     * @param name the name of the process (e.g. native-image, link, codesign)
+     * @param process the process
+     * @return the exit value of the process
+     * @throws InterruptedException
+     */
+    public int waitFor(String name, Process process) throws InterruptedException {
+        Instant waitStart = Instant.now();
+        ScheduledFuture<?> sampling = sample(name, process);
+        try {
+            return process.waitFor();
+        } finally {
+            finish(name, process, sampling, waitStart);
+        }
+    }
+
+    /**
+     * Waits for a process up to a timeout, recording its duration and peak resident memory
+     * @param name the name of the process
+     * @param process the process
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the process has exited
+     * @throws InterruptedException
+     */
+    public boolean waitFor(String name, Process process, long timeout, TimeUnit unit) throws InterruptedException {
+        Instant waitStart = Instant.now();
+        ScheduledFuture<?> sampling = sample(name, process);
+        try {
+            return process.waitFor(timeout, unit);
+        } finally {
+            finish(name, process, sampling, waitStart);
+        }
+    }
+
+    private void finish(String name, Process process, ScheduledFuture<?> sampling, Instant waitStart) {
+        sampling.cancel(false);
+        Instant started = process.info().startInstant().orElse(waitStart);
+        record("process." + name, TimeUnit.MILLISECONDS.toNanos(
+                Math.max(0, Instant.now().toEpochMilli() - started.toEpochMilli())));
+    }
+
+    private synchronized ScheduledFuture<?> sample(String name, Process process) {
+        if (sampler == null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "omega-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        long pid = process.pid();
+        // on Linux the kernel keeps the high water mark, so it can be sampled more often at no cost
+        long period = LINUX ? 100 : 1000;
+        return sampler.scheduleAtFixedRate(() -> {
+            if (process.isAlive()) {
+                long rss = readRss(pid);
+                if (rss > 0) {
+                    recordPeakRss(name, rss);
+                }
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static long readRss(long pid) {
+        if (LINUX) {
+            Path status = Paths.get("/proc", Long.toString(pid), "status");
+            try (Stream<String> lines = Files.lines(status)) {
+                return lines.filter(l -> l.startsWith("VmHWM:"))
+                        .findFirst()
+                        .map(l -> Long.parseLong(l.replaceAll("[^0-9]", "")) * 1024)
+                        .orElse(0L);
+            } catch (IOException | RuntimeException e) {
+                return 0;
+            }
+        }
+        try {
+            Process ps = new ProcessBuilder("ps", "-o", "rss=", "-p", Long.toString(pid)).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(ps.getInputStream()))) {
+                String line = reader.readLine();
+                ps.waitFor();
+                return line == null ? 0 : Long.parseLong(line.trim()) * 1024;
+            }
+        } catch (IOException | InterruptedException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the metrics as JSON
+     * @param file the report file
+     * @param labels identify the build (e.g. app, target, phase)
+     * @throws IOException
+     */
+    public void writeReport(Path file, Map<String, String> labels) throws IOException {
+        StringBuilder sb = new StringBuilder("{\n");
+        for (Map.Entry<String, String> label : new TreeMap<>(labels).entrySet()) {
+            sb.append("  ").append(quote(label.getKey())).append(" : ").append(quote(label.getValue())).append(",\n");
+        }
+        sb.append("  \"start\" : ").append(quote(start.toString())).append(",\n");
+        sb.append("  \"durationMs\" : ").append(Instant.now().toEpochMilli() - start.toEpochMilli()).append(",\n");
+        sb.append("  \"timers\" : {");
+        String sep = "\n";
+        for (Map.Entry<String, TimerStats> timer : new TreeMap<>(timers).entrySet()) {
+            TimerStats stats = timer.getValue();
+            synchronized (stats) {
+                sb.append(sep).append("    ").append(quote(timer.getKey())).append(" : { ")
+                        .append("\"count\" : ").append(stats.count)
+                        .append(", \"totalMs\" : ").append(TimeUnit.NANOSECONDS.toMillis(stats.total))
+                        .append(", \"maxMs\" : ").append(TimeUnit.NANOSECONDS.toMillis(stats.max))
+                        .append(" }");
+            }
+            sep = ",\n";
+        }
+        sb.append("\n  },\n");
+        appendValues(sb, "counters", counters);
+        sb.append(",\n");
+        appendValues(sb, "peakRssBytes", peakRss);
+        sb.append(",\n");
+        appendValues(sb, "gauges", gauges);
+        sb.append("\n}\n");
+        write(file, sb.toString());
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format, e.g. for the node exporter textfile collector
+     * @param file the metrics file
+     * @param labels identify the build (e.g. app, target, phase)
+     * @throws IOException
+     */
+    public void writePrometheus(Path file, Map<String, String> labels) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP omega_timer_seconds Time spent in each part of the build\n");
+        sb.append("# TYPE omega_timer_seconds gauge\n");
+        for (Map.Entry<String, TimerStats> timer : new TreeMap<>(timers).entrySet()) {
+            double seconds;
+            synchronized (timer.getValue()) {
+                seconds = timer.getValue().total / 1e9;
+            }
+            sb.append("omega_timer_seconds").append(labels(labels, timer.getKey()))
+                    .append(' ').append(String.format(Locale.ROOT, "%.3f", seconds)).append('\n');
+        }
+        sb.append("# HELP omega_counter Counters of the build\n");
+        sb.append("# TYPE omega_counter gauge\n");
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(counters).entrySet()) {
+            sb.append("omega_counter").append(labels(labels, counter.getKey()))
+                    .append(' ').append(counter.getValue().get()).append('\n');
+        }
+        sb.append("# HELP omega_peak_rss_bytes Peak resident memory of the build subprocesses\n");
+        sb.append("# TYPE omega_peak_rss_bytes gauge\n");
+        for (Map.Entry<String, AtomicLong> rss : new TreeMap<>(peakRss).entrySet()) {
+            sb.append("omega_peak_rss_bytes").append(labels(labels, rss.getKey()))
+                    .append(' ').append(rss.getValue().get()).append('\n');
+        }
+        sb.append("# HELP omega_gauge Values reported by the build tools\n");
+        sb.append("# TYPE omega_gauge gauge\n");
+        for (Map.Entry<String, AtomicLong> gauge : new TreeMap<>(gauges).entrySet()) {
+            sb.append("omega_gauge").append(labels(labels, gauge.getKey()))
+                    .append(' ').append(gauge.getValue().get()).append('\n');
+        }
+        write(file, sb.toString());
+    }
+
+    private static void appendValues(StringBuilder sb, String name, Map<String, AtomicLong> values) {
+        sb.append("  ").append(quote(name)).append(" : {");
+        String sep = "\n";
+        for (Map.Entry<String, AtomicLong> value : new TreeMap<>(values).entrySet()) {
+            sb.append(sep).append("    ").append(quote(value.getKey())).append(" : ").append(value.getValue().get());
+            sep = ",\n";
+        }
+        sb.append("\n  }");
+    }
+
+    private static String labels(Map<String, String> labels, String name) {
+        Map<String, String> all = new TreeMap<>(labels);
+        all.put("name", name);
+        StringBuilder sb = new StringBuilder("{");
+        String sep = "";
+        for (Map.Entry<String, String> label : all.entrySet()) {
+            sb.append(sep).append(label.getKey()).append("=\"")
+                    .append(label.getValue().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+            sep = ",";
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // written to a temporary file first, so that collectors never read a partial file
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(content);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Stops the memory sampling thread
+     */
+    public synchronized void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+/**
+ * A figure reported by the native-image builder, see {@link BuilderOutputParser}
+ */
+public abstract class BuilderEvent {
+
+    private final String name;
+
+    BuilderEvent(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of the figure, without brackets or parentheses (e.g. analysis, total, reachable-methods)
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The end of a builder phase, like {@code [total]: 60,000.00 ms, 3.00 GB}
+     */
+    public static final class Phase extends BuilderEvent {
+
+        private final boolean subPhase;
+        private final long millis;
+        private final long heapBytes;
+
+        Phase(String name, boolean subPhase, long millis, long heapBytes) {
+            super(name);
+            this.subPhase = subPhase;
+            this.millis = millis;
+            this.heapBytes = heapBytes;
+        }
+
+        /**
+         * @return true for the steps the builder prints in parentheses, e.g. (typeflow) or (clinit)
+         */
+        public boolean isSubPhase() {
+            return subPhase;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return the heap in use at the end of the phase, or 0 if it wasn't reported
+         */
+        public long getHeapBytes() {
+            return heapBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Phase{" + getName() + ", " + millis + " ms, " + heapBytes + " bytes}";
+        }
+    }
+
+    /**
+     * A number of elements found by the analysis, like the reachable methods
+     */
+    public static final class Count extends BuilderEvent {
+
+        private final long value;
+
+        Count(String name, long value) {
+            super(name);
+            this.value = value;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "Count{" + getName() + " = " + value + "}";
+        }
+    }
+
+    /**
+     * A memory figure of the builder process, like its peak RSS
+     */
+    public static final class Memory extends BuilderEvent {
+
+        private final long bytes;
+
+        Memory(String name, long bytes) {
+            super(name);
+            this.bytes = bytes;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Memory{" + getName() + " = " + bytes + " bytes}";
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming parser of the native-image builder output.
+ *
+ * It is fed one line at a time and turns the phase timings, like
+ * {@code [demo:1234]     analysis:  20,123.45 ms,  2.34 GB}, and the analysis
+ * statistics into {@link BuilderEvent}s that are passed to the registered listeners.
+ * Lines that don't match any known format are ignored.
+ */
+public class BuilderOutputParser implements Consumer<String> {
+
+    private static final String NUMBER = "([0-9][0-9,]*(?:\\.[0-9]+)?)";
+    private static final String UNIT = "\\s*(GB|MB|kB|KB|B)";
+
+    // [demo:1234]    [total]:  60,000.00 ms,  3.00 GB
+    private static final Pattern PHASE = Pattern.compile(
+            "^\\[[^\\]]+\\]\\s+([\\[(]?)([A-Za-z][\\w ./-]*?)[\\])]?:\\s+" + NUMBER + "\\s*ms(?:,\\s*" + NUMBER + UNIT + ")?\\s*$");
+    // 12,345 (85.12%) of 15,000 methods reachable
+    private static final Pattern REACHABLE = Pattern.compile(
+            NUMBER + "\\s+\\(\\s*[0-9.]+%\\)\\s+of\\s+" + NUMBER + "\\s+(types|classes|fields|methods)\\s+reachable");
+    // Reachable methods: 12,345
+    private static final Pattern REACHABLE_LABEL = Pattern.compile(
+            "[Rr]eachable (types|classes|fields|methods):\\s*" + NUMBER);
+    // Peak RSS: 2.70GB | CPU load: 7.29
+    private static final Pattern PEAK_RSS = Pattern.compile("Peak RSS:\\s*" + NUMBER + UNIT);
+
+    private final List<BuilderOutputListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(BuilderOutputListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(BuilderOutputListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void accept(String line) {
+        BuilderEvent event = parse(line);
+        if (event != null) {
+            for (BuilderOutputListener listener : listeners) {
+                try {
+                    listener.onEvent(event);
+                } catch (RuntimeException e) {
+                    System.err.println("Error in builder output listener: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a line of the builder output
+     * @param line the line
+     * @return the event reported in the line, or null if there is none
+     */
+    public static BuilderEvent parse(String line) {
+        Matcher matcher = PHASE.matcher(line);
+        if (matcher.find()) {
+            String name = matcher.group(2).trim().toLowerCase(Locale.ROOT).replace(' ', '-');
+            long millis = (long) parseNumber(matcher.group(3));
+            long heap = matcher.group(4) == null ? 0 : toBytes(matcher.group(4), matcher.group(5));
+            return new BuilderEvent.Phase(name, "(".equals(matcher.group(1)), millis, heap);
+        }
+        matcher = REACHABLE.matcher(line);
+        if (matcher.find()) {
+            return new BuilderEvent.Count("reachable-" + matcher.group(3), (long) parseNumber(matcher.group(1)));
+        }
+        matcher = REACHABLE_LABEL.matcher(line);
+        if (matcher.find()) {
+            return new BuilderEvent.Count("reachable-" + matcher.group(1), (long) parseNumber(matcher.group(2)));
+        }
+        matcher = PEAK_RSS.matcher(line);
+        if (matcher.find()) {
+            return new BuilderEvent.Memory("peak-rss", toBytes(matcher.group(1), matcher.group(2)));
+        }
+        return null;
+    }
+
+    // the builder runs with -Duser.language=en, so ',' is always the grouping separator
+    private static double parseNumber(String number) {
+        return Double.parseDouble(number.replace(",", ""));
+    }
+
+    private static long toBytes(String number, String unit) {
+        double value = parseNumber(number);
+        switch (unit) {
+            case "GB": return (long) (value * 1024 * 1024 * 1024);
+            case "MB": return (long) (value * 1024 * 1024);
+            case "kB":
+            case "KB": return (long) (value * 1024);
+            default: return (long) value;
+        }
+    }
+}
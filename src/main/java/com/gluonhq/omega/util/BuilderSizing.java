@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import com.gluonhq.omega.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Chooses the heap, garbage collector and number of threads of the native-image builder
+ * from the memory and CPUs available to the build.
+ *
+ * The available memory is the physical memory, capped by the cgroup (v1 or v2) limit
+ * when running in a container. The heap estimate grows with the size of the class path
+ * and with the peak heap reported by the previous build of the same application.
+ */
+public class BuilderSizing {
+
+    private static final long MB = 1024L * 1024;
+    private static final long GB = 1024 * MB;
+
+    private static final String HISTORY_FILE = "builder-memory.properties";
+
+    private final long maxHeap;
+    private final long initialHeap;
+    private final long stackSize;
+    private final String gc;
+    private final int threads;
+
+    private BuilderSizing(long maxHeap, long initialHeap, long stackSize, String gc, int threads) {
+        this.maxHeap = maxHeap;
+        this.initialHeap = initialHeap;
+        this.stackSize = stackSize;
+        this.gc = gc;
+        this.threads = threads;
+    }
+
+    /**
+     * Computes the builder settings
+     * @param config the required configuration, with the explicit overrides
+     * @param classPath the application class path
+     * @param workDir the directory where the previous peak heap usage is recorded
+     * @return the builder settings
+     */
+    public static BuilderSizing compute(Config config, List<Path> classPath, Path workDir) {
+        if (! config.isBuilderAutoSizing()) {
+            long maxHeap = config.getBuilderMaxHeap() > 0 ? config.getBuilderMaxHeap() : 13441813704L;
+            return new BuilderSizing(maxHeap, Math.min(GB, maxHeap), config.getBuilderStackSize(),
+                    config.getBuilderGC(), config.getBuilderThreads());
+        }
+
+        long memory = getAvailableMemory();
+        int cpus = getAvailableProcessors();
+        long cap = memory * 7 / 10;
+
+        long maxHeap = config.getBuilderMaxHeap();
+        if (maxHeap <= 0) {
+            long estimate = (config.isUseJavaFX() ? 3 * GB : 2 * GB) + 8 * sizeOf(classPath);
+            long peak = getPreviousPeak(workDir);
+            if (peak > 0) {
+                estimate = Math.max(estimate, peak + peak / 3);
+            }
+            if (estimate > cap) {
+                System.err.println("Warning: the builder may need " + toMB(estimate) + " MB of heap but only "
+                        + toMB(cap) + " MB can be used out of " + toMB(memory) + " MB available");
+            }
+            // rounded, so that small class path changes don't change the builder command line
+            long step = 256 * MB;
+            maxHeap = Math.max(GB, Math.min((estimate + step - 1) / step * step, cap / step * step));
+        }
+
+        String gc = config.getBuilderGC();
+        if (gc == null || gc.isEmpty()) {
+            gc = maxHeap < 2 * GB || cpus <= 2 ? "Serial" : "Parallel";
+        }
+
+        int threads = config.getBuilderThreads();
+        if (threads <= 0) {
+            threads = (int) Math.max(1, Math.min(cpus, maxHeap / (512 * MB)));
+        }
+
+        System.err.println("Builder sizing: memory = " + toMB(memory) + " MB, cpus = " + cpus +
+                ", heap = " + toMB(maxHeap) + " MB, gc = " + gc + ", threads = " + threads);
+        return new BuilderSizing(maxHeap, Math.min(GB, maxHeap), config.getBuilderStackSize(), gc, threads);
+    }
+
+    /**
+     * Returns the builder JVM options
+     * @return a list with the heap, stack and GC options
+     */
+    public List<String> getJvmArgs() {
+        List<String> args = new ArrayList<>();
+        args.add("-Xss" + toKB(stackSize) + "k");
+        args.add("-Xms" + toMB(initialHeap) + "m");
+        args.add("-Xmx" + maxHeap);
+        if (gc != null && ! gc.isEmpty()) {
+            args.add("-XX:+Use" + gc + "GC");
+        }
+        return args;
+    }
+
+    /**
+     * Returns the native-image options
+     * @return a list with the number of threads, if set
+     */
+    public List<String> getBuilderArgs() {
+        List<String> args = new ArrayList<>();
+        if (threads > 0) {
+            args.add("-H:NumberOfThreads=" + threads);
+        }
+        return args;
+    }
+
+    public long getMaxHeap() {
+        return maxHeap;
+    }
+
+    public String getGC() {
+        return gc;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Records the peak heap used by a build, to size the next one
+     * @param workDir the directory where the peak heap usage is recorded
+     * @param peak the peak heap in bytes
+     */
+    public static void recordPeak(Path workDir, long peak) {
+        if (peak <= 0) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty("peakHeap", Long.toString(peak));
+        try (OutputStream os = Files.newOutputStream(workDir.resolve(HISTORY_FILE))) {
+            properties.store(os, "Omega builder memory usage");
+        } catch (IOException e) {
+            System.err.println("Error recording builder memory usage: " + e.getMessage());
+        }
+    }
+
+    private static long getPreviousPeak(Path workDir) {
+        Path file = workDir.resolve(HISTORY_FILE);
+        if (! Files.isRegularFile(file)) {
+            return 0;
+        }
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+            return Long.parseLong(properties.getProperty("peakHeap", "0"));
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the memory available to the build
+     * @return the physical memory, or the cgroup limit if it is lower
+     */
+    public static long getAvailableMemory() {
+        long memory = getTotalMemorySize();
+        // cgroup v2, then v1
+        long limit = readLimit(Paths.get("/sys/fs/cgroup/memory.max"));
+        if (limit <= 0) {
+            limit = readLimit(Paths.get("/sys/fs/cgroup/memory/memory.limit_in_bytes"));
+        }
+        if (limit > 0 && limit < memory) {
+            memory = limit;
+        }
+        return memory == Long.MAX_VALUE ? 8 * GB : memory;
+    }
+
+    // getTotalPhysicalMemorySize is deprecated since JDK 14, in favor of getTotalMemorySize
+    private static long getTotalMemorySize() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        for (String name : new String[] {"getTotalMemorySize", "getTotalPhysicalMemorySize"}) {
+            try {
+                Method method = Class.forName("com.sun.management.OperatingSystemMXBean").getMethod(name);
+                if (method.getDeclaringClass().isInstance(os)) {
+                    return (long) method.invoke(os);
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // not available in this JDK, try the next one
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the CPUs available to the build
+     * @return the number of processors, or the cgroup CPU quota if it is lower
+     */
+    public static int getAvailableProcessors() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        double quota = -1;
+        String v2 = readFirstLine(Paths.get("/sys/fs/cgroup/cpu.max"));
+        if (v2 != null) {
+            String[] parts = v2.trim().split("\\s+");
+            if (parts.length == 2 && ! "max".equals(parts[0])) {
+                quota = Double.parseDouble(parts[0]) / Double.parseDouble(parts[1]);
+            }
+        } else {
+            long q = readLimit(Paths.get("/sys/fs/cgroup/cpu/cpu.cfs_quota_us"));
+            long period = readLimit(Paths.get("/sys/fs/cgroup/cpu/cpu.cfs_period_us"));
+            if (q > 0 && period > 0) {
+                quota = (double) q / period;
+            }
+        }
+        if (quota > 0) {
+            cpus = Math.min(cpus, (int) Math.max(1, Math.ceil(quota)));
+        }
+        return cpus;
+    }
+
+    private static long readLimit(Path file) {
+        String line = readFirstLine(file);
+        if (line == null || line.trim().isEmpty() || "max".equals(line.trim())) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(line.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readFirstLine(Path file) {
+        if (! Files.isReadable(file)) {
+            return null;
+        }
+        try (Stream<String> lines = Files.lines(file)) {
+            return lines.findFirst().orElse(null);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static long sizeOf(List<Path> classPath) {
+        long size = 0;
+        for (Path path : classPath) {
+            try {
+                if (Files.isDirectory(path)) {
+                    try (Stream<Path> files = Files.walk(path)) {
+                        size += files.filter(Files::isRegularFile)
+                                .mapToLong(p -> p.toFile().length())
+                                .sum();
+                    }
+                } else if (Files.isRegularFile(path)) {
+                    size += Files.size(path);
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading size of " + path + ": " + e.getMessage());
+            }
+        }
+        return size;
+    }
+
+    private static long toMB(long bytes) {
+        return bytes / MB;
+    }
+
+    private static long toKB(long bytes) {
+        return bytes / 1024;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "BuilderSizing{heap=%d MB, gc=%s, threads=%d}", toMB(maxHeap), gc, threads);
+    }
+}
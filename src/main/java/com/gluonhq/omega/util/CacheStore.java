@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A build cache shared by several machines, see {@link BuildCache}
+ */
+public interface CacheStore {
+
+    /**
+     * Downloads an object
+     * @param key the cache key
+     * @param name the name of the object file (e.g. demo.o)
+     * @param target the file where the object is written
+     * @return true if the object was found, false if it is not in the store
+     * @throws IOException if the store can't be reached
+     */
+    boolean fetch(String key, String name, Path target) throws IOException;
+
+    /**
+     * Uploads an object
+     * @param key the cache key
+     * @param object the object file
+     * @throws IOException if the store can't be reached
+     */
+    void put(String key, Path object) throws IOException;
+
+    /**
+     * Creates a store from its location
+     * @param location a directory, a file: URL or an http(s) URL
+     * @return the store
+     */
+    static CacheStore of(String location) {
+        if (location.startsWith("http://") || location.startsWith("https://")) {
+            return new HttpCacheStore(URI.create(location));
+        }
+        if (location.startsWith("file:")) {
+            return new DirectoryCacheStore(Paths.get(URI.create(location)));
+        }
+        return new DirectoryCacheStore(Paths.get(location));
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A minimal class file reader: the constant pool, the class hierarchy, with the
+ * implemented interfaces, and the code of each method. Attributes other than Code
+ * are skipped.
+ */
+class ClassFile {
+
+    static final int ACC_NATIVE = 0x0100;
+
+    // constant pool tags
+    private static final int UTF8 = 1, INTEGER = 3, FLOAT = 4, LONG = 5, DOUBLE = 6, CLASS = 7, STRING = 8,
+            FIELDREF = 9, METHODREF = 10, INTERFACE_METHODREF = 11, NAME_AND_TYPE = 12, METHOD_HANDLE = 15,
+            METHOD_TYPE = 16, DYNAMIC = 17, INVOKE_DYNAMIC = 18, MODULE = 19, PACKAGE = 20;
+
+    final ConstantPool pool;
+    final String name;
+    final String superName;
+    final List<String> interfaces;
+    final List<Method> methods;
+
+    private ClassFile(ConstantPool pool, String name, String superName, List<String> interfaces,
+                      List<Method> methods) {
+        this.pool = pool;
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+        this.methods = methods;
+    }
+
+    static class Method {
+        final int access;
+        final String name;
+        final String descriptor;
+        // null for abstract and native methods
+        final byte[] code;
+
+        Method(int access, String name, String descriptor, byte[] code) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.code = code;
+        }
+    }
+
+    /**
+     * Reads a class file
+     * @param bytes the contents of the file
+     * @return the class, or null if the bytes are not a class file
+     * @throws IOException
+     */
+    static ClassFile read(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != 0xCAFEBABE) {
+            return null;
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        int count = in.readUnsignedShort();
+        int[] tags = new int[count];
+        Object[] values = new Object[count];
+        int[][] refs = new int[count][];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            tags[i] = tag;
+            switch (tag) {
+                case UTF8: values[i] = in.readUTF(); break;
+                case INTEGER:
+                case FLOAT: in.readInt(); break;
+                case LONG:
+                case DOUBLE: in.readLong(); i++; break;
+                case CLASS:
+                case STRING:
+                case METHOD_TYPE:
+                case MODULE:
+                case PACKAGE: refs[i] = new int[] {in.readUnsignedShort()}; break;
+                case FIELDREF:
+                case METHODREF:
+                case INTERFACE_METHODREF:
+                case NAME_AND_TYPE:
+                case DYNAMIC:
+                case INVOKE_DYNAMIC: refs[i] = new int[] {in.readUnsignedShort(), in.readUnsignedShort()}; break;
+                case METHOD_HANDLE: in.readUnsignedByte(); in.readUnsignedShort(); break;
+                default: throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        ConstantPool pool = new ConstantPool(tags, values, refs);
+
+        in.readUnsignedShort();
+        String thisClass = pool.className(in.readUnsignedShort());
+        String superClass = pool.className(in.readUnsignedShort());
+        int interfaceCount = in.readUnsignedShort();
+        List<String> interfaces = new ArrayList<>(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaces.add(pool.className(in.readUnsignedShort()));
+        }
+        int fieldCount = in.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            skipAttributes(in);
+        }
+        int methodCount = in.readUnsignedShort();
+        List<Method> methods = new ArrayList<>(methodCount);
+        for (int i = 0; i < methodCount; i++) {
+            int access = in.readUnsignedShort();
+            String name = (String) values[in.readUnsignedShort()];
+            String descriptor = (String) values[in.readUnsignedShort()];
+            byte[] instructions = null;
+            int attributes = in.readUnsignedShort();
+            for (int a = 0; a < attributes; a++) {
+                String attributeName = (String) values[in.readUnsignedShort()];
+                int length = in.readInt();
+                byte[] attribute = new byte[length];
+                in.readFully(attribute);
+                if ("Code".equals(attributeName)) {
+                    DataInputStream code = new DataInputStream(new ByteArrayInputStream(attribute));
+                    code.readUnsignedShort();
+                    code.readUnsignedShort();
+                    instructions = new byte[code.readInt()];
+                    code.readFully(instructions);
+                }
+            }
+            methods.add(new Method(access, name, descriptor, instructions));
+        }
+        return new ClassFile(pool, thisClass, superClass, Collections.unmodifiableList(interfaces),
+                Collections.unmodifiableList(methods));
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int attributes = in.readUnsignedShort();
+        for (int a = 0; a < attributes; a++) {
+            in.readUnsignedShort();
+            in.skipBytes(in.readInt());
+        }
+    }
+
+    static class ConstantPool {
+        final int[] tags;
+        final Object[] values;
+        final int[][] refs;
+
+        ConstantPool(int[] tags, Object[] values, int[][] refs) {
+            this.tags = tags;
+            this.values = values;
+            this.refs = refs;
+        }
+
+        String className(int index) {
+            if (index <= 0 || index >= tags.length || tags[index] != CLASS) {
+                return null;
+            }
+            return ((String) values[refs[index][0]]).replace('/', '.');
+        }
+
+        String string(int index) {
+            if (index <= 0 || index >= tags.length || tags[index] != STRING) {
+                return null;
+            }
+            return (String) values[refs[index][0]];
+        }
+
+        // returns owner, name, descriptor of a method
+        String[] member(int index) {
+            if (index <= 0 || index >= tags.length ||
+                    (tags[index] != METHODREF && tags[index] != INTERFACE_METHODREF)) {
+                return null;
+            }
+            return reference(index);
+        }
+
+        // returns owner, name, descriptor of a field
+        String[] field(int index) {
+            if (index <= 0 || index >= tags.length || tags[index] != FIELDREF) {
+                return null;
+            }
+            return reference(index);
+        }
+
+        private String[] reference(int index) {
+            String owner = className(refs[index][0]);
+            int[] nameAndType = refs[refs[index][1]];
+            return new String[] {owner, (String) values[nameAndType[0]], (String) values[nameAndType[1]]};
+        }
+    }
+
+    static int u2(byte[] code, int pos) {
+        return ((code[pos] & 0xff) << 8) | (code[pos + 1] & 0xff);
+    }
+
+    private static int s4(byte[] code, int pos) {
+        return ((code[pos] & 0xff) << 24) | ((code[pos + 1] & 0xff) << 16) |
+                ((code[pos + 2] & 0xff) << 8) | (code[pos + 3] & 0xff);
+    }
+
+    // length of the instruction at pc, in bytes
+    static int length(byte[] code, int pc) {
+        int opcode = code[pc] & 0xff;
+        switch (opcode) {
+            case 0x10: // bipush
+            case 0x12: // ldc
+            case 0xbc: // newarray
+                return 2;
+            case 0x15: case 0x16: case 0x17: case 0x18: case 0x19: // loads
+            case 0x36: case 0x37: case 0x38: case 0x39: case 0x3a: // stores
+            case 0xa9: // ret
+                return 2;
+            case 0x11: // sipush
+            case 0x13: case 0x14: // ldc_w, ldc2_w
+            case 0x84: // iinc
+            case 0xb2: case 0xb3: case 0xb4: case 0xb5: // field access
+            case 0xb6: case 0xb7: case 0xb8: // invokes
+            case 0xbb: case 0xbd: case 0xc0: case 0xc1: // new, anewarray, checkcast, instanceof
+            case 0xc6: case 0xc7: // ifnull, ifnonnull
+                return 3;
+            case 0xc5: // multianewarray
+                return 4;
+            case 0xb9: case 0xba: // invokeinterface, invokedynamic
+            case 0xc8: case 0xc9: // goto_w, jsr_w
+                return 5;
+            case 0xc4: // wide
+                return (code[pc + 1] & 0xff) == 0x84 ? 6 : 4;
+            case 0xaa: { // tableswitch
+                int pad = 3 - (pc % 4);
+                int base = pc + 1 + pad;
+                int low = s4(code, base + 4);
+                int high = s4(code, base + 8);
+                return 1 + pad + 12 + 4 * (high - low + 1);
+            }
+            case 0xab: { // lookupswitch
+                int pad = 3 - (pc % 4);
+                int base = pc + 1 + pad;
+                int pairs = s4(code, base + 4);
+                return 1 + pad + 8 + 8 * pairs;
+            }
+            default:
+                // branches take a 2 byte offset
+                if (opcode >= 0x99 && opcode <= 0xa8) {
+                    return 3;
+                }
+                return 1;
+        }
+    }
+}
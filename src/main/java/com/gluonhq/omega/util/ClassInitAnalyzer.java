@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds the classes of the class path that can be initialized when the image is built.
+ *
+ * The static initializer of a class is safe when it, and everything it calls in the class
+ * path, doesn't do I/O, start threads, use random numbers or the clock, read the
+ * environment or call native code. Initializing a class also initializes its superclass
+ * and the classes whose static members or constructors it uses, so those must be safe too.
+ * JDK methods are trusted unless they are in the list of unsafe calls.
+ *
+ * This is a conservative, flow-insensitive analysis: a class is kept at run time as soon
+ * as any path of its initializer reaches an unsafe call, or when a call can't be resolved.
+ * Virtual and interface calls are followed to the resolved method, including the default
+ * methods of the superinterfaces, and to all its overrides in the class path. Receivers are
+ * not tracked, so a virtual or interface call to a non-final method of a non-final JDK type
+ * (e.g. {@code Supplier.get} or {@code HashMap.put}, that calls {@code hashCode}) could run
+ * application code and keeps the class at run time.
+ */
+public class ClassInitAnalyzer {
+
+    // classes, methods (Class#method) or packages (ending with a dot) that are not safe at build time
+    private static final List<String> UNSAFE = Arrays.asList(
+            "java.io.File", "java.io.FileInputStream", "java.io.FileOutputStream", "java.io.FileReader",
+            "java.io.FileWriter", "java.io.RandomAccessFile", "java.io.Console",
+            "java.nio.file.", "java.nio.channels.", "java.net.", "javax.net.",
+            "java.lang.Thread#<init>", "java.lang.Thread#start", "java.lang.Thread#sleep",
+            "java.util.Timer", "java.util.concurrent.Executors", "java.util.concurrent.ThreadPoolExecutor",
+            "java.util.concurrent.ScheduledThreadPoolExecutor", "java.util.concurrent.ForkJoinPool",
+            "java.util.concurrent.CompletableFuture", "java.lang.ref.Cleaner",
+            "java.util.Random", "java.util.SplittableRandom", "java.util.concurrent.ThreadLocalRandom",
+            "java.security.SecureRandom", "java.lang.Math#random", "java.lang.StrictMath#random",
+            "java.util.UUID#randomUUID",
+            "java.lang.System#currentTimeMillis", "java.lang.System#nanoTime", "java.lang.System#getProperty",
+            "java.lang.System#getProperties", "java.lang.System#getenv", "java.lang.System#load",
+            "java.lang.System#loadLibrary", "java.lang.System#setProperty", "java.lang.Integer#getInteger",
+            "java.lang.Long#getLong", "java.lang.Boolean#getBoolean",
+            "java.lang.Runtime", "java.lang.ProcessBuilder", "java.lang.ProcessHandle",
+            "java.lang.Class#getResource", "java.lang.Class#getResourceAsStream",
+            "java.lang.ClassLoader#getResource", "java.lang.ClassLoader#getResourceAsStream",
+            "java.lang.ClassLoader#getResources", "java.lang.ClassLoader#getSystemResource",
+            "java.lang.ClassLoader#getSystemResourceAsStream", "java.util.ServiceLoader",
+            "java.util.logging.", "java.util.prefs.", "java.awt.", "javax.swing.",
+            "java.time.Clock", "java.time.Instant#now", "java.time.LocalDate#now",
+            "java.time.LocalDateTime#now", "java.time.LocalTime#now", "java.time.ZonedDateTime#now",
+            "java.time.ZoneId#systemDefault", "java.util.TimeZone#getDefault", "java.util.Locale#getDefault",
+            "java.util.Date#<init>", "java.util.Calendar#getInstance",
+            "sun.misc.Unsafe", "jdk.internal.misc.Unsafe");
+
+    private static final Set<String> JDK_PACKAGES = new HashSet<>(Arrays.asList(
+            "java.", "javax.", "jdk.", "sun.", "com.sun."));
+
+    // the JDK superclasses whose inherited methods are trusted when called on an application class
+    private static final Set<String> TRUSTED_BASES = new HashSet<>(Arrays.asList(
+            "java.lang.Object", "java.lang.Enum", "java.lang.Record"));
+
+    // bounds the number of methods walked from a single initializer
+    private static final int MAX_METHODS = 5000;
+
+    /**
+     * The classes that are safe to initialize at build time, and the reason why the other
+     * classes with a static initializer are not
+     */
+    public static class Result {
+
+        private final Set<String> buildTime;
+        private final Map<String, String> runTime;
+
+        Result(Set<String> buildTime, Map<String, String> runTime) {
+            this.buildTime = Collections.unmodifiableSet(buildTime);
+            this.runTime = Collections.unmodifiableMap(runTime);
+        }
+
+        /**
+         * @return the sorted names of the classes that can be initialized at build time
+         */
+        public Set<String> getBuildTimeClasses() {
+            return buildTime;
+        }
+
+        /**
+         * @return the classes that have to be initialized at run time, with the first unsafe
+         * call or reference found
+         */
+        public Map<String, String> getRunTimeClasses() {
+            return runTime;
+        }
+
+        /**
+         * Writes the recommended policy, that can be copied to the delayInitList of the
+         * configuration, followed by the classes kept at run time
+         * @param file the report file
+         * @throws IOException
+         */
+        public void write(Path file) throws IOException {
+            try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                bw.write("# Classes that can be initialized at build time\n");
+                for (String className : buildTime) {
+                    bw.write(className + "\n");
+                }
+                bw.write("\n# Classes initialized at run time\n");
+                for (Map.Entry<String, String> entry : runTime.entrySet()) {
+                    bw.write("# " + entry.getKey() + ": " + entry.getValue() + "\n");
+                }
+            }
+        }
+
+        /**
+         * Reads the classes that can be initialized at build time from a report
+         * @param file the report written by {@link #write(Path)}
+         * @return the names of the classes
+         * @throws IOException
+         */
+        public static Set<String> readBuildTimeClasses(Path file) throws IOException {
+            try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+                return lines.map(String::trim)
+                        .filter(line -> ! line.isEmpty() && ! line.startsWith("#"))
+                        .collect(Collectors.toCollection(TreeSet::new));
+            }
+        }
+    }
+
+    private final Map<String, ClassFile> classes = new ConcurrentHashMap<>();
+    // the result for each class: null if safe, the reason otherwise
+    private final Map<String, String> verdicts = new HashMap<>();
+    private final Set<String> inProgress = new HashSet<>();
+    // the direct subclasses and implementations of each class and interface
+    private Map<String, List<String>> subtypes;
+    // the result of virtual calls to JDK methods: empty if safe, the reason otherwise
+    private final Map<String, String> jdkCalls = new HashMap<>();
+
+    private ClassInitAnalyzer() {
+    }
+
+    /**
+     * Analyzes the static initializers of a class path
+     * @param classPath the jars and class directories of the application
+     * @return the classes with a static initializer, split by when they can be initialized
+     * @throws IOException
+     */
+    public static Result analyze(List<Path> classPath) throws IOException {
+        ClassInitAnalyzer analyzer = new ClassInitAnalyzer();
+        List<IOException> errors = classPath.parallelStream()
+                .map(path -> {
+                    try {
+                        analyzer.index(path);
+                        return null;
+                    } catch (IOException e) {
+                        return e;
+                    }
+                })
+                .filter(e -> e != null)
+                .collect(Collectors.toList());
+        if (! errors.isEmpty()) {
+            throw errors.get(0);
+        }
+
+        Set<String> buildTime = new TreeSet<>();
+        Map<String, String> runTime = new TreeMap<>();
+        for (ClassFile classFile : analyzer.classes.values()) {
+            if (classFile.name == null || findMethod(classFile, "<clinit>", "()V") == null) {
+                continue;
+            }
+            String reason = analyzer.check(classFile.name);
+            if (reason == null) {
+                buildTime.add(classFile.name);
+            } else {
+                runTime.put(classFile.name, reason);
+            }
+        }
+        return new Result(buildTime, runTime);
+    }
+
+    private void index(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(path)) {
+                files = walk.filter(p -> p.toString().endsWith(".class")).collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                add(file.toString(), Files.readAllBytes(file));
+            }
+        } else if (Files.isRegularFile(path) && path.toString().endsWith(".jar")) {
+            try (ZipFile zip = new ZipFile(path.toFile())) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.getName().endsWith(".class")) {
+                        try (InputStream is = zip.getInputStream(entry)) {
+                            add(entry.getName(), is.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void add(String name, byte[] bytes) throws IOException {
+        if (name.endsWith("module-info.class") || name.contains("META-INF/versions/")) {
+            return;
+        }
+        try {
+            ClassFile classFile = ClassFile.read(bytes);
+            if (classFile != null && classFile.name != null) {
+                classes.putIfAbsent(classFile.name, classFile);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error reading " + name + ": " + e);
+        }
+    }
+
+    /*
+     * Returns null if initializing the class is safe. A class that is being checked is
+     * assumed to be safe, which resolves cycles between initializers
+     */
+    private String check(String className) {
+        if (verdicts.containsKey(className) || inProgress.contains(className)) {
+            return verdicts.get(className);
+        }
+        ClassFile classFile = classes.get(className);
+        if (classFile == null) {
+            return isJdk(className) ? null : "unknown class " + className;
+        }
+        inProgress.add(className);
+        String reason = null;
+        if (classFile.superName != null) {
+            String superReason = check(classFile.superName);
+            if (superReason != null) {
+                reason = "superclass " + classFile.superName;
+            }
+        }
+        if (reason == null) {
+            ClassFile.Method clinit = findMethod(classFile, "<clinit>", "()V");
+            if (clinit != null) {
+                reason = walk(classFile, clinit, new HashSet<>());
+            }
+        }
+        inProgress.remove(className);
+        verdicts.put(className, reason);
+        return reason;
+    }
+
+    private String walk(ClassFile classFile, ClassFile.Method method, Set<String> visited) {
+        if (! visited.add(classFile.name + "#" + method.name + method.descriptor)) {
+            return null;
+        }
+        if (visited.size() > MAX_METHODS) {
+            return "too many methods to analyze";
+        }
+        if ((method.access & ClassFile.ACC_NATIVE) != 0) {
+            return "native method " + classFile.name + "." + method.name;
+        }
+        if (method.code == null) {
+            return null;
+        }
+        byte[] code = method.code;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc] & 0xff;
+            String reason = null;
+            switch (opcode) {
+                case 0xb2: // getstatic
+                case 0xb3: // putstatic
+                    String[] field = classFile.pool.field(ClassFile.u2(code, pc + 1));
+                    if (field != null && ! field[0].equals(classFile.name)) {
+                        reason = checkReference(field[0], null);
+                    }
+                    break;
+                case 0xbb: // new
+                    String type = classFile.pool.className(ClassFile.u2(code, pc + 1));
+                    if (type != null && ! type.equals(classFile.name)) {
+                        reason = checkReference(type, "<init>");
+                    }
+                    break;
+                case 0xb6: // invokevirtual
+                case 0xb7: // invokespecial
+                case 0xb8: // invokestatic
+                case 0xb9: // invokeinterface
+                    String[] member = classFile.pool.member(ClassFile.u2(code, pc + 1));
+                    if (member != null) {
+                        reason = checkCall(member, opcode == 0xb6 || opcode == 0xb9, visited);
+                    }
+                    break;
+                case 0xba: // invokedynamic
+                    // the lambda may run during the initialization
+                    for (ClassFile.Method lambda : classFile.methods) {
+                        if (reason == null && lambda.name.startsWith("lambda$")) {
+                            reason = walk(classFile, lambda, visited);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (reason != null) {
+                return reason;
+            }
+            pc += ClassFile.length(code, pc);
+        }
+        return null;
+    }
+
+    private String checkCall(String[] member, boolean virtual, Set<String> visited) {
+        String owner = member[0];
+        String reason = checkReference(owner, member[1]);
+        if (reason != null || owner.startsWith("[")) {
+            return reason;
+        }
+        reason = walkTarget(owner, member[1], member[2], virtual, visited);
+        if (reason != null || ! virtual) {
+            return reason;
+        }
+        // the receiver can be an instance of any subtype in the class path
+        for (String subtype : getSubtypes(owner)) {
+            reason = walkTarget(subtype, member[1], member[2], true, visited);
+            if (reason != null) {
+                return reason;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Walks the method a call resolves to: the first one found in the class chain, or else
+     * a default method of the superinterfaces. An abstract method is only reached through
+     * its overrides, which the caller walks
+     */
+    private String walkTarget(String className, String name, String descriptor, boolean virtual,
+                              Set<String> visited) {
+        List<String> interfaces = new ArrayList<>();
+        String current = className;
+        while (current != null) {
+            ClassFile classFile = classes.get(current);
+            if (classFile == null) {
+                break;
+            }
+            ClassFile.Method method = findMethod(classFile, name, descriptor);
+            if (method != null) {
+                if (method.code == null && (method.access & ClassFile.ACC_NATIVE) == 0) {
+                    return virtual ? null : "call to abstract method " + current + "." + name;
+                }
+                return walk(classFile, method, visited);
+            }
+            interfaces.addAll(classFile.interfaces);
+            current = classFile.superName;
+        }
+        if (current != null) {
+            if (! isJdk(current)) {
+                return "unknown class " + current;
+            }
+            if (findJdkMethod(current, name, descriptor) != null) {
+                if (! virtual) {
+                    return null;
+                }
+                if (! current.equals(className) && TRUSTED_BASES.contains(current)) {
+                    // the overrides are walked by the caller, and the inherited methods only call
+                    // back the receiver through Object.toString, that calls hashCode
+                    return "toString".equals(name) && "()Ljava/lang/String;".equals(descriptor) ?
+                            checkCall(new String[] {className, "hashCode", "()I"}, true, visited) : null;
+                }
+                return checkJdkCall(current, name, descriptor);
+            }
+        }
+        Deque<String> queue = new ArrayDeque<>(interfaces);
+        Set<String> seen = new HashSet<>();
+        while (! queue.isEmpty()) {
+            String itf = queue.poll();
+            if (! seen.add(itf)) {
+                continue;
+            }
+            ClassFile classFile = classes.get(itf);
+            if (classFile == null) {
+                if (! isJdk(itf)) {
+                    return "unknown class " + itf;
+                }
+                if (findJdkMethod(itf, name, descriptor) != null) {
+                    return virtual ? checkJdkCall(itf, name, descriptor) : null;
+                }
+                continue;
+            }
+            ClassFile.Method method = findMethod(classFile, name, descriptor);
+            if (method != null && method.code != null) {
+                return walk(classFile, method, visited);
+            }
+            queue.addAll(classFile.interfaces);
+        }
+        return virtual && ! classes.containsKey(className) ? "unknown method " + className + "." + name : null;
+    }
+
+    /*
+     * A virtual call to a JDK method can only run JDK code when the method can't be
+     * overridden, as the receiver may be an application class
+     */
+    private String checkJdkCall(String className, String name, String descriptor) {
+        String key = className + "#" + name + descriptor;
+        String reason = jdkCalls.get(key);
+        if (reason == null) {
+            Method method = findJdkMethod(className, name, descriptor);
+            if (method == null) {
+                reason = "unknown method " + className + "." + name;
+            } else if (Modifier.isFinal(method.getDeclaringClass().getModifiers()) ||
+                    (method.getModifiers() & (Modifier.FINAL | Modifier.STATIC | Modifier.PRIVATE)) != 0) {
+                reason = "";
+            } else {
+                reason = "virtual call to " + className + "." + name + " may run application code";
+            }
+            jdkCalls.put(key, reason);
+        }
+        return reason.isEmpty() ? null : reason;
+    }
+
+    // finds a JDK method in the running JDK, without initializing its class
+    private static Method findJdkMethod(String className, String name, String descriptor) {
+        Class<?> type;
+        try {
+            type = Class.forName(className, false, ClassLoader.getPlatformClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+        Set<Class<?>> types = new LinkedHashSet<>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            types.add(c);
+        }
+        Deque<Class<?>> queue = new ArrayDeque<>(types);
+        while (! queue.isEmpty()) {
+            Class<?> c = queue.poll();
+            for (Method method : c.getDeclaredMethods()) {
+                if (method.getName().equals(name) && descriptor.equals(MethodType.methodType(
+                        method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString())) {
+                    return method;
+                }
+            }
+            for (Class<?> itf : c.getInterfaces()) {
+                if (types.add(itf)) {
+                    queue.add(itf);
+                }
+            }
+        }
+        return null;
+    }
+
+    // the classes and interfaces of the class path that extend or implement a type, transitively
+    private Set<String> getSubtypes(String className) {
+        if (subtypes == null) {
+            subtypes = new HashMap<>();
+            for (ClassFile classFile : classes.values()) {
+                if (classFile.superName != null) {
+                    subtypes.computeIfAbsent(classFile.superName, k -> new ArrayList<>()).add(classFile.name);
+                }
+                for (String itf : classFile.interfaces) {
+                    subtypes.computeIfAbsent(itf, k -> new ArrayList<>()).add(classFile.name);
+                }
+            }
+        }
+        Set<String> result = new TreeSet<>();
+        Deque<String> queue = new ArrayDeque<>(subtypes.getOrDefault(className, Collections.emptyList()));
+        while (! queue.isEmpty()) {
+            String subtype = queue.poll();
+            if (result.add(subtype)) {
+                queue.addAll(subtypes.getOrDefault(subtype, Collections.emptyList()));
+            }
+        }
+        return result;
+    }
+
+    // checks the use of a class, or of one of its members, from an initializer
+    private String checkReference(String className, String memberName) {
+        for (String unsafe : UNSAFE) {
+            if (unsafe.endsWith(".") ? className.startsWith(unsafe) :
+                    unsafe.equals(className) || memberName != null && unsafe.equals(className + "#" + memberName)) {
+                return "uses " + (memberName == null ? className : className + "." + memberName);
+            }
+        }
+        if (classes.containsKey(className)) {
+            String reason = check(className);
+            return reason == null ? null : "initializes " + className;
+        }
+        return isJdk(className) || className.startsWith("[") ? null : "unknown class " + className;
+    }
+
+    private static boolean isJdk(String className) {
+        return JDK_PACKAGES.stream().anyMatch(className::startsWith);
+    }
+
+    private static ClassFile.Method findMethod(ClassFile classFile, String name, String descriptor) {
+        for (ClassFile.Method method : classFile.methods) {
+            if (method.name.equals(name) && method.descriptor.equals(descriptor)) {
+                return method;
+            }
+        }
+        return null;
+    }
+}
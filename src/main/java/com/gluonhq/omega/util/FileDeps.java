@@ -32,43 +32,66 @@ import com.gluonhq.omega.Omega;
 import com.gluonhq.omega.SVMBridge;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class FileDeps {
 
     private static final Logger LOGGER = Logger.getLogger(FileDeps.class.getName());
 
-    private static final boolean SKIP_HASH = true;
+    private static final Map<Path, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
 
-    private static final String URL_GRAAL_LIBS = "http://download2.gluonhq.com/omega/graallibs/graallibs-${version}.zip";
-    private static final String URL_JAVA_STATIC_SDK = "http://download2.gluonhq.com/omega/javastaticsdk/${target}-libs-${version}.zip";
-    private static final String URL_JAVAFX_STATIC_SDK = "http://download2.gluonhq.com/omega/javafxstaticsdk/${target}-libsfx-${version}.zip";
+    private static final String DEFAULT_MIRROR = "http://download2.gluonhq.com/omega/";
+
+    // the paths of the zips, relative to a mirror
+    private static final String URL_GRAAL_LIBS = "graallibs/graallibs-${version}.zip";
+    private static final String URL_JAVA_STATIC_SDK = "javastaticsdk/${target}-libs-${version}.zip";
+    private static final String URL_JAVAFX_STATIC_SDK = "javafxstaticsdk/${target}-libsfx-${version}.zip";
+
+    // the installed versions a delta is looked for, most recently installed first
+    private static final int MAX_DELTA_BASES = 3;
+
+    // the zip names, without extension, also name the manifests of the installed SDKs
+    private static final String GRAAL_ZIP = "graallibs-${version}";
+    private static final String JAVA_ZIP = "${target}-libs-${version}";
+    private static final String JAVAFX_ZIP = "${target}-libsfx-${version}";
 
     private static final List<String> GRAAL_FILES = Arrays.asList(
             "/svm/library-support.jar", "/svm/builder/objectfile.jar",
             "/svm/builder/pointsto.jar", "/svm/builder/svm.jar",
+            "/jvmci/graal-sdk.jar", "/jvmci/graal.jar",
+            "/truffle/truffle-api.jar"
+    );
+
+    // only used by the llvm backend, they are extracted when it is selected
+    private static final List<String> LLVM_FILES = Arrays.asList(
             "/svm/builder/svm-llvm.jar", "/svm/builder/graal-llvm.jar",
             "/svm/builder/javacpp.jar", "/svm/builder/llvm-wrapper.jar",
-            "/svm/builder/llvm-platform-specific.jar", "/jvmci/graal-sdk.jar",
-            "/jvmci/graal.jar", "/truffle/truffle-api.jar"
+            "/svm/builder/llvm-platform-specific.jar"
     );
 
     private static final List<String> JAVA_FILES = Arrays.asList(
@@ -82,227 +105,478 @@ public class FileDeps {
     );
 
     public static void setupDependencies(Config config) throws IOException {
-        String target = Omega.getTarget(config);
+        // without a session the SDK versions are only marked as used
+        setupDependencies(config, new BuildMetrics(), RepositoryEviction.Lease::close);
+    }
 
-        boolean downloadGraalLibs = false, downloadJavaStatic = false, downloadJavaFXStatic = false;
+    /**
+     * Downloads the SDKs that are missing or don't match their manifests. Only the
+     * components needed by the target and backend of the configuration are installed:
+     * the LLVM jars are extracted for the llvm backend, and the JavaFX static SDK is
+     * only downloaded when JavaFX is used.
+     * @param config the required configuration
+     * @param metrics records the downloaded bytes and the download time
+     * @param leases takes the leases on the SDK versions, that keep them from being evicted
+     *               until the build that uses them ends
+     * @throws IOException
+     */
+    public static void setupDependencies(Config config, BuildMetrics metrics,
+                                         Consumer<RepositoryEviction.Lease> leases) throws IOException {
+        String target = Omega.getTarget(config);
+        boolean useLLVM = "llvm".equals(config.getBackend());
+        List<String> graalFiles = new ArrayList<>(GRAAL_FILES);
+        if (useLLVM) {
+            graalFiles.addAll(LLVM_FILES);
+        }
+        Predicate<String> graalMembers = name -> useLLVM || LLVM_FILES.stream().noneMatch(name::endsWith);
 
-        if (! SVMBridge.USER_OMEGA_PATH.toFile().isDirectory()) {
+        Path omegaPath = SVMBridge.USER_OMEGA_PATH;
+        if (! omegaPath.toFile().isDirectory()) {
             LOGGER.info("User Omega repository not found");
-            Files.createDirectories(SVMBridge.USER_OMEGA_PATH);
-            downloadGraalLibs = true;
-            downloadJavaStatic = true;
-            downloadJavaFXStatic = true;
-        } else {
-            // GraalLibs
-
-            LOGGER.info("Process graalLibs dependencies");
-            Path graallibs = Path.of(config.getDepsRoot());
-
-            if (! graallibs.toFile().isDirectory()) {
-                LOGGER.info("graalLibs/" + config.getGraalLibsVersion() + "/lib folder not found");
-                downloadGraalLibs = true;
-            } else {
-                String path = graallibs.toString();
-                if (GRAAL_FILES.stream()
-                        .map(s -> new File(path, s))
-                        .anyMatch(f -> ! f.exists())) {
-                    LOGGER.info("jar file not found");
-                    downloadGraalLibs = true;
-                } else if (! graallibs
-                            .resolve("svm")
-                            .resolve("clibraries").toFile().isDirectory()) {
-                        LOGGER.info("graalLibs/" + config.getGraalLibsVersion() + "/lib/svm/clibraries not found");
-                        downloadGraalLibs = true;
-                } else if (! SKIP_HASH) {
-                    LOGGER.info("Checking graalLibs hashes");
-                    Map<String, String> hashes = getHashMap(graallibs.getParent().toString() + File.separator + "graalLibs.md5");
-                    if (hashes == null) {
-                        LOGGER.info("graalLibs/" + config.getGraalLibsVersion() + "/graalLibs.md5 not found");
-                        downloadGraalLibs = true;
-                    } else if (GRAAL_FILES.stream()
-                                .map(s -> new File(path, s))
-                                .anyMatch(f -> !hashes.get(f.getName()).equals(calculateCheckSum(f)))) {
-                        LOGGER.info("jar file has invalid hashcode");
-                        downloadGraalLibs = true;
-                    }
-                }
-            }
+            Files.createDirectories(omegaPath);
+        }
 
-            // Java Static
-
-            LOGGER.info("Process JavaStatic dependencies");
-            Path javaStatic = Path.of(config.getStaticRoot());
-
-            if (! javaStatic.toFile().isDirectory()) {
-                LOGGER.info("javaStaticSdk/" + config.getGraalLibsVersion() + "/" + target + "-libs folder not found");
-                downloadJavaStatic = true;
-            } else {
-                String path = javaStatic.toString();
-                if (JAVA_FILES.stream()
-                        .map(s -> new File(path, s))
-                        .anyMatch(f -> ! f.exists())) {
-                    LOGGER.info("jar file not found");
-                    downloadJavaStatic = true;
-                } else if (! SKIP_HASH) {
-                    LOGGER.info("Checking java static sdk hashes");
-                    Map<String, String> hashes = getHashMap(javaStatic.getParent().toString() + File.separator + "javaStaticSdk.md5");
-                    if (hashes == null) {
-                        LOGGER.info("javaStaticSdk/" + config.getGraalLibsVersion() + "/javaStaticSdk.md5 not found");
-                        downloadJavaStatic = true;
-                    } else if (JAVA_FILES.stream()
-                                .map(s -> new File(path, s))
-                                .anyMatch(f -> !hashes.get(f.getName()).equals(calculateCheckSum(f)))) {
-                        LOGGER.info("jar file has invalid hashcode");
-                        downloadJavaStatic = true;
-                    }
-                }
+        // each SDK is checked and installed holding its lock, so a build waiting for
+        // another one installing the same SDK finds it installed once it gets the lock
+        String graalZip = zipName(GRAAL_ZIP, config.getGraalLibsVersion(), target);
+        String javaZip = zipName(JAVA_ZIP, config.getJavaStaticSdkVersion(), target);
+        String javafxZip = zipName(JAVAFX_ZIP, config.getJavafxStaticSdkVersion(), target);
+        List<Callable<Void>> installs = new ArrayList<>();
+        installs.add(() -> withLock(omegaPath.resolve("graalLibs").resolve(config.getGraalLibsVersion()), graalZip, metrics, leases, () -> {
+            if (! isGraalLibsInstalled(config, graalFiles, graalZip, metrics)) {
+                downloadGraalZip(omegaPath, config, graalMembers, metrics);
             }
-
-            // JavaFX Static
-
-            LOGGER.info("Process JavaFXStatic dependencies");
-            Path javafxStatic = Path.of(config.getJavaFXRoot())
-                    .resolve("lib");
-
-            if (! javafxStatic.toFile().isDirectory()) {
-                LOGGER.info("javafxStaticSdk/" + config.getGraalLibsVersion() + "/" + target + "-sdk/lib folder not found");
-                downloadJavaFXStatic = true;
-            } else {
-                String path = javafxStatic.toString();
-                if (JAVAFX_FILES.stream()
-                        .map(s -> new File(path, s))
-                        .anyMatch(f -> ! f.exists())) {
-                    LOGGER.info("jar file not found");
-                    downloadJavaFXStatic = true;
-                } else if (! SKIP_HASH) {
-                    LOGGER.info("Checking javafx static sdk hashes");
-                    Map<String, String> hashes = getHashMap(javafxStatic.getParent().getParent().toString() + File.separator + "javafxStaticSdk.md5");
-                    if (hashes == null) {
-                        LOGGER.info("javafxStaticSdk/" + config.getGraalLibsVersion() + "/javafxStaticSdk.md5 not found");
-                        downloadJavaFXStatic = true;
-                    } else if (JAVAFX_FILES.stream()
-                                .map(s -> new File(path, s))
-                                .anyMatch(f -> ! hashes.get(f.getName()).equals(calculateCheckSum(f)))) {
-                        LOGGER.info("jar file has invalid hashcode");
-                        downloadJavaFXStatic = true;
-                    }
-                }
+            return null;
+        }));
+        installs.add(() -> withLock(omegaPath.resolve("javaStaticSdk").resolve(config.getJavaStaticSdkVersion()), javaZip, metrics, leases, () -> {
+            if (! isJavaStaticInstalled(config, target, javaZip, metrics)) {
+                downloadJavaZip(target, omegaPath, config, metrics);
             }
+            return null;
+        }));
+        if (config.isUseJavaFX()) {
+            installs.add(() -> withLock(omegaPath.resolve("javafxStaticSdk").resolve(config.getJavafxStaticSdkVersion()), javafxZip, metrics, leases, () -> {
+                if (! isJavaFXStaticInstalled(config, target, javafxZip, metrics)) {
+                    downloadJavaFXZip(target, omegaPath, config, metrics);
+                }
+                return null;
+            }));
+        } else {
+            LOGGER.info("JavaFX not used, skip JavaFXStatic dependencies");
         }
+        runConcurrently(installs);
+
         try {
-            if (downloadGraalLibs) {
-                downloadGraalZip(SVMBridge.USER_OMEGA_PATH, config);
+            new RepositoryEviction(omegaPath, config.getRepositorySize()).evictIfDue(metrics);
+        } catch (IOException e) {
+            LOGGER.info("Error evicting SDKs and caches: " + e.getMessage());
+        }
+        LOGGER.info("Setup dependencies done");
+    }
+
+    /**
+     * Returns the SDK version directory a zip is installed to
+     * @param omegaPath the user Omega repository
+     * @param zipFileName the name of the zip (e.g. graallibs-20.0.0.zip)
+     * @return the version directory (e.g. graalLibs/20.0.0), or null if the zip isn't an SDK
+     */
+    static Path getVersionDir(Path omegaPath, String zipFileName) {
+        if (! zipFileName.endsWith(".zip")) {
+            return null;
+        }
+        String name = zipFileName.substring(0, zipFileName.length() - ".zip".length());
+        String[][] patterns = {
+                {GRAAL_ZIP, "graalLibs"}, {JAVAFX_ZIP, "javafxStaticSdk"}, {JAVA_ZIP, "javaStaticSdk"}};
+        for (String[] pattern : patterns) {
+            String infix = pattern[0].replace("${target}", "").replace("${version}", "");
+            int index = name.indexOf(infix);
+            if (index >= 0 && (index == 0) == pattern[0].startsWith(infix)) {
+                return omegaPath.resolve(pattern[1]).resolve(name.substring(index + infix.length()));
             }
+        }
+        return null;
+    }
+
+    private static boolean isGraalLibsInstalled(Config config, List<String> graalFiles, String zipName,
+                                                BuildMetrics metrics) throws IOException {
+        LOGGER.info("Process graalLibs dependencies");
+        Path graallibs = Path.of(config.getDepsRoot());
+
+        if (! graallibs.toFile().isDirectory()) {
+            LOGGER.info("graalLibs/" + config.getGraalLibsVersion() + "/lib folder not found");
+            return false;
+        }
+        String path = graallibs.toString();
+        if (graalFiles.stream()
+                .map(s -> new File(path, s))
+                .anyMatch(f -> ! f.exists())) {
+            LOGGER.info("jar file not found");
+            return false;
+        }
+        if (! graallibs
+                .resolve("svm")
+                .resolve("clibraries").toFile().isDirectory()) {
+            LOGGER.info("graalLibs/" + config.getGraalLibsVersion() + "/lib/svm/clibraries not found");
+            return false;
+        }
+        return verify(graallibs.getParent(), zipName, graallibs, metrics);
+    }
+
+    private static boolean isJavaStaticInstalled(Config config, String target, String zipName,
+                                                 BuildMetrics metrics) throws IOException {
+        LOGGER.info("Process JavaStatic dependencies");
+        Path javaStatic = Path.of(config.getStaticRoot());
 
-            if (downloadJavaStatic) {
-                downloadJavaZip(target, SVMBridge.USER_OMEGA_PATH, config);
+        if (! javaStatic.toFile().isDirectory()) {
+            LOGGER.info("javaStaticSdk/" + config.getGraalLibsVersion() + "/" + target + "-libs folder not found");
+            return false;
+        }
+        String path = javaStatic.toString();
+        if (JAVA_FILES.stream()
+                .map(s -> new File(path, s))
+                .anyMatch(f -> ! f.exists())) {
+            LOGGER.info("jar file not found");
+            return false;
+        }
+        return verify(javaStatic.getParent(), zipName, javaStatic, metrics);
+    }
+
+    private static boolean isJavaFXStaticInstalled(Config config, String target, String zipName,
+                                                   BuildMetrics metrics) throws IOException {
+        LOGGER.info("Process JavaFXStatic dependencies");
+        Path javafxStatic = Path.of(config.getJavaFXRoot())
+                .resolve("lib");
+
+        if (! javafxStatic.toFile().isDirectory()) {
+            LOGGER.info("javafxStaticSdk/" + config.getGraalLibsVersion() + "/" + target + "-sdk/lib folder not found");
+            return false;
+        }
+        String path = javafxStatic.toString();
+        if (JAVAFX_FILES.stream()
+                .map(s -> new File(path, s))
+                .anyMatch(f -> ! f.exists())) {
+            LOGGER.info("jar file not found");
+            return false;
+        }
+        return verify(javafxStatic.getParent().getParent(), zipName, javafxStatic.getParent(), metrics);
+    }
+
+    /**
+     * Runs a task holding the lock of an SDK version. The lock is held across processes
+     * with a file lock, and across the threads of this process with a {@link ReentrantLock},
+     * as file locks are held on behalf of the whole JVM. The SDK version is leased first,
+     * so it isn't evicted while the build uses it.
+     * @param versionDir the SDK version directory (e.g. ~/.gluon/omega/graalLibs/20.0.0)
+     * @param zipName the name of the SDK zip, without extension, that names the lock file
+     * @param metrics records the time spent waiting for the lock
+     * @param leases takes the lease on the SDK version
+     * @param task the task
+     * @return the result of the task
+     * @throws Exception if the task fails
+     */
+    private static <T> T withLock(Path versionDir, String zipName, BuildMetrics metrics,
+                                  Consumer<RepositoryEviction.Lease> leases, Callable<T> task) throws Exception {
+        leases.accept(RepositoryEviction.lease(versionDir));
+        Path lockFile = versionDir.resolveSibling(zipName + ".lock").toAbsolutePath();
+        ReentrantLock threadLock = LOCKS.computeIfAbsent(lockFile, p -> new ReentrantLock());
+        BuildMetrics.Timer wait = metrics.start("sdk-lock-wait");
+        threadLock.lock();
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                LOGGER.info("Waiting for another build installing " + zipName);
+                lock = channel.lock();
             }
+            wait.stop();
+            try {
+                return task.call();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            wait.stop();
+            threadLock.unlock();
+        }
+    }
 
-            if (downloadJavaFXStatic) {
-                downloadJavaFXZip(target, SVMBridge.USER_OMEGA_PATH, config);
+    // the SDKs are independent, so they are downloaded at the same time
+    private static void runConcurrently(List<Callable<Void>> downloads) {
+        ExecutorService executor = Executors.newFixedThreadPool(downloads.size(), r -> {
+            Thread t = new Thread(r, "omega-download");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            RuntimeException failure = null;
+            for (Future<Void> future : executor.invokeAll(downloads)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new RuntimeException("Error downloading zips: " + e.getCause().getMessage(), e.getCause());
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                }
             }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while downloading zips", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
+    /**
+     * Verifies an installed SDK against its manifest. Installs without a manifest
+     * get one, created from the files on disk.
+     * @param zipDir the SDK version directory
+     * @param zipName the name of the SDK zip, without extension
+     * @param dir the directory with the SDK files, inside zipDir
+     * @param metrics records the verification time
+     * @return true if all the files of the manifest are valid
+     * @throws IOException if the manifest can't be created
+     */
+    private static boolean verify(Path zipDir, String zipName, Path dir, BuildMetrics metrics) throws IOException {
+        Path file = zipDir.resolve(zipName + SdkManifest.EXTENSION);
+        SdkManifest manifest;
+        try {
+            manifest = SdkManifest.read(file);
         } catch (IOException e) {
-            throw new RuntimeException("Error downloading zips: " + e.getMessage());
+            LOGGER.info(e.getMessage());
+            return false;
         }
-        LOGGER.info("Setup dependencies done");
+        if (manifest == null) {
+            LOGGER.info(file.getFileName() + " not found, creating it");
+            SdkManifest.create(zipDir, dir).write(file);
+            return true;
+        }
+        LOGGER.info("Checking " + zipName + " checksums");
+        List<String> invalid = manifest.verify(zipDir, metrics);
+        if (! invalid.isEmpty()) {
+            LOGGER.info("Files missing or with invalid checksum: " + invalid);
+            return false;
+        }
+        if (manifest.isModified()) {
+            manifest.write(file);
+        }
+        return true;
     }
 
-    private static Map<String, String> getHashMap(String nameFile) {
-        Map<String, String> hashes = null;
-        try (FileInputStream fis = new FileInputStream(new File(nameFile));
-             ObjectInputStream ois = new ObjectInputStream(fis)) {
-            hashes = (Map<String, String>) ois.readObject();
-        } catch (ClassNotFoundException | IOException e) {}
-        return hashes;
+    private static String zipName(String pattern, String version, String target) {
+        return pattern.replace("${version}", version).replace("${target}", target);
     }
 
-    private static void downloadGraalZip(Path omegaPath, Config config) throws IOException {
+    private static Void downloadGraalZip(Path omegaPath, Config config, Predicate<String> members,
+                                         BuildMetrics metrics) throws IOException {
         LOGGER.info("Process zip graalLibs");
-        processZip(URL_GRAAL_LIBS.replace("${version}", config.getGraalLibsVersion()),
-                omegaPath.resolve("graallibs-${version}.zip".replace("${version}", config.getGraalLibsVersion())),
-                "graalLibs", config.getGraalLibsVersion());
+        processZip(config, zipName(URL_GRAAL_LIBS, config.getGraalLibsVersion(), ""),
+                omegaPath.resolve(zipName(GRAAL_ZIP, config.getGraalLibsVersion(), "") + ".zip"),
+                "graalLibs", config.getGraalLibsVersion(), GRAAL_ZIP, "", members, metrics);
         LOGGER.info("Processing zip graalLibs done");
+        return null;
     }
 
-    private static void downloadJavaZip(String target, Path omegaPath, Config config) throws IOException {
+    private static Void downloadJavaZip(String target, Path omegaPath, Config config, BuildMetrics metrics) throws IOException {
         LOGGER.info("Process zip javaStaticSdk");
-        processZip(URL_JAVA_STATIC_SDK.replace("${version}", config.getJavaStaticSdkVersion()).replace("${target}", target),
-                omegaPath.resolve("${target}-libs-${version}.zip".replace("${version}", config.getJavaStaticSdkVersion()).replace("${target}", target)),
-                "javaStaticSdk", config.getJavaStaticSdkVersion());
+        processZip(config, zipName(URL_JAVA_STATIC_SDK, config.getJavaStaticSdkVersion(), target),
+                omegaPath.resolve(zipName(JAVA_ZIP, config.getJavaStaticSdkVersion(), target) + ".zip"),
+                "javaStaticSdk", config.getJavaStaticSdkVersion(), JAVA_ZIP, target, name -> true, metrics);
+        return null;
     }
 
-    private static void downloadJavaFXZip(String target, Path omegaPath, Config config) throws IOException {
+    private static Void downloadJavaFXZip(String target, Path omegaPath, Config config, BuildMetrics metrics) throws IOException {
         LOGGER.info("Process zip javafxStaticSdk");
-        processZip(URL_JAVAFX_STATIC_SDK.replace("${version}", config.getJavafxStaticSdkVersion()).replace("${target}", target),
-                omegaPath.resolve("${target}-libsfx-${version}.zip".replace("${version}", config.getJavafxStaticSdkVersion()).replace("${target}", target)),
-                "javafxStaticSdk", config.getJavafxStaticSdkVersion());
+        processZip(config, zipName(URL_JAVAFX_STATIC_SDK, config.getJavafxStaticSdkVersion(), target),
+                omegaPath.resolve(zipName(JAVAFX_ZIP, config.getJavafxStaticSdkVersion(), target) + ".zip"),
+                "javafxStaticSdk", config.getJavafxStaticSdkVersion(), JAVAFX_ZIP, target, name -> true, metrics);
 
         System.err.println("Process zips done");
+        return null;
     }
 
-    private static void processZip(String urlZip, Path zipPath, String folder, String version) throws IOException {
-        URL url = new URL(urlZip);
-        url.openConnection();
-        try (InputStream reader = url.openStream();
-             FileOutputStream writer = new FileOutputStream(zipPath.toFile())) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = reader.read(buffer)) > 0) {
-                writer.write(buffer, 0, bytesRead);
-                buffer = new byte[8192];
-            }
-        }
+    /**
+     * Installs the members of an SDK zip into its version directory, from a zip downloaded
+     * before, a delta against an installed version, or the mirrors, and writes its manifest
+     * @param urlPath the path of the zip, relative to a mirror
+     * @param zipPath where the zip is downloaded, in the user Omega repository
+     * @param folder the SDK directory (e.g. graalLibs)
+     * @param zipPattern the name of the zip, that names the manifests of the installed versions
+     * @throws IOException if the zip can't be downloaded or extracted
+     */
+    static void processZip(Config config, String urlPath, Path zipPath, String folder, String version,
+                           String zipPattern, String target, Predicate<String> members,
+                           BuildMetrics metrics) throws IOException {
         Path zipDir = zipPath.getParent().resolve(folder).resolve(version);
-        if (! zipPath.toFile().isDirectory()) {
+        String zipName = zipPath.getFileName().toString();
+        Path manifestFile = zipDir.resolve(zipName.substring(0, zipName.length() - ".zip".length()) + SdkManifest.EXTENSION);
+        SdkManifest installed = null;
+        try {
+            installed = SdkManifest.read(manifestFile);
+        } catch (IOException e) {
+            LOGGER.info(e.getMessage());
+        }
+        // files installed before for other components are extracted again, as they might be invalid
+        Predicate<String> selected = installed == null ? members : members.or(installed::contains);
+
+        // extracted into a staging directory, so an interrupted install never leaves
+        // partial files where other builds look for them
+        Path staging = zipDir.getParent().resolve("." + version + "-" + zipName + ".staging");
+        if (Files.exists(staging)) {
+            FileOps.deleteDir(staging);
+        }
+        try {
+            SdkManifest manifest = null;
+            if (Files.isRegularFile(zipPath)) {
+                // a component is missing, but the zip was downloaded before
+                try {
+                    Files.setLastModifiedTime(zipPath, FileTime.fromMillis(System.currentTimeMillis()));
+                    manifest = SdkDownloader.extract(zipPath, staging, selected);
+                } catch (IOException e) {
+                    LOGGER.info("Invalid zip " + zipPath + ": " + e.getMessage());
+                    Files.delete(zipPath);
+                }
+            }
+            if (manifest == null && installed == null && config.isSdkDeltaUpdates()) {
+                manifest = downloadDelta(config, urlPath, zipPath, zipDir, zipPattern, target, staging, selected, metrics);
+            }
+            if (manifest == null) {
+                manifest = download(config, urlPath, zipPath, staging, selected, metrics);
+            }
             Files.createDirectories(zipDir);
+            try (Stream<Path> children = Files.list(staging)) {
+                for (Path child : children.collect(Collectors.toList())) {
+                    publish(child, zipDir.resolve(child.getFileName().toString()));
+                }
+            }
+            // the manifest is written last, once all the files are in place
+            if (installed != null) {
+                installed.addAll(manifest);
+                manifest = installed;
+            }
+            manifest.write(manifestFile);
+        } finally {
+            if (Files.exists(staging)) {
+                FileOps.deleteDir(staging);
+            }
         }
-        Map<String, String> hashes = new HashMap<>();
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipPath.toFile()))) {
-            ZipEntry zipEntry = zis.getNextEntry();
-            while (zipEntry != null) {
-                File destFile = new File(zipDir.toFile(), zipEntry.getName());
-                if (zipEntry.isDirectory()) {
-                    if (! destFile.exists()) {
-                        Files.createDirectories(destFile.toPath());
-                    }
-                } else {
-                    byte[] buffer = new byte[1024];
-                    try (FileOutputStream fos = new FileOutputStream(destFile)) {
-                        int len;
-                        while ((len = zis.read(buffer)) > 0) {
-                            fos.write(buffer, 0, len);
-                        }
-                    }
-                    String sum = calculateCheckSum(destFile);
-                    hashes.put(destFile.getName(), sum);
+    }
+
+    // tries the mirrors in order
+    private static SdkManifest download(Config config, String urlPath, Path zipPath, Path staging,
+                                        Predicate<String> members, BuildMetrics metrics) throws IOException {
+        List<String> mirrors = config.getSdkMirrors().isEmpty() ?
+                List.of(DEFAULT_MIRROR) : config.getSdkMirrors();
+        IOException failure = null;
+        boolean found = false;
+        for (String mirror : mirrors) {
+            String url = (mirror.endsWith("/") ? mirror : mirror + "/") + urlPath;
+            try {
+                return new SdkDownloader(metrics).download(url, zipPath, staging, members);
+            } catch (FileNotFoundException e) {
+                if (failure == null) {
+                    failure = e;
                 }
-                zipEntry = zis.getNextEntry();
+            } catch (IOException e) {
+                LOGGER.info("Error downloading from " + mirror + ": " + e.getMessage());
+                failure = e;
+                found = true;
             }
-            zis.closeEntry();
+            if (Files.exists(staging)) {
+                FileOps.deleteDir(staging);
+            }
+        }
+        if (! found) {
+            throw new FileNotFoundException(urlPath + " not found in " + mirrors);
         }
+        throw failure;
+    }
 
-        try (FileOutputStream fos =
-                      new FileOutputStream(zipDir.toString() + File.separator + folder + ".md5");
-             ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-            oos.writeObject(hashes);
+    /**
+     * Installs a new SDK version from a delta against an installed version
+     * @return the manifest of the new version, or null if there is no valid installed
+     * version with a delta
+     */
+    private static SdkManifest downloadDelta(Config config, String urlPath, Path zipPath, Path zipDir,
+                                             String zipPattern, String target, Path staging,
+                                             Predicate<String> members, BuildMetrics metrics) throws IOException {
+        if (! Files.isDirectory(zipDir.getParent())) {
+            return null;
+        }
+        List<Path> bases;
+        try (Stream<Path> list = Files.list(zipDir.getParent())) {
+            bases = list.filter(p -> Files.isDirectory(p) && ! p.equals(zipDir) &&
+                            ! p.getFileName().toString().startsWith("."))
+                    .filter(p -> Files.isRegularFile(baseManifest(p, zipPattern, target)))
+                    .sorted(Comparator.comparing((Path p) -> lastModified(baseManifest(p, zipPattern, target))).reversed())
+                    .limit(MAX_DELTA_BASES)
+                    .collect(Collectors.toList());
+        }
+        String urlBase = urlPath.substring(0, urlPath.length() - ".zip".length());
+        String zipName = zipPath.getFileName().toString();
+        for (Path base : bases) {
+            String baseVersion = base.getFileName().toString();
+            Path deltaZip = zipPath.resolveSibling(zipName.substring(0, zipName.length() - ".zip".length()) +
+                    ".delta-" + baseVersion + ".zip");
+            // the installed files don't depend on the base once the delta is applied
+            try (RepositoryEviction.Lease baseLease = RepositoryEviction.lease(base)) {
+                SdkManifest baseManifest = SdkManifest.read(baseManifest(base, zipPattern, target));
+                if (baseManifest == null || ! baseManifest.verify(base, metrics).isEmpty()) {
+                    continue;
+                }
+                SdkManifest extracted = download(config, urlBase + ".delta-" + baseVersion + ".zip", deltaZip,
+                        staging, members.or(name -> name.startsWith(SdkDelta.DIR + "/")), metrics);
+                SdkManifest manifest = SdkDelta.apply(staging, extracted, base, baseManifest, members);
+                LOGGER.info("Installed " + zipDir.getFileName() + " from a delta against " + baseVersion);
+                metrics.increment("download.delta");
+                return manifest;
+            } catch (FileNotFoundException e) {
+                LOGGER.info("No delta against " + baseVersion + ": " + e.getMessage());
+            } catch (IOException e) {
+                LOGGER.info("Error installing a delta against " + baseVersion + ": " + e.getMessage());
+                if (Files.exists(staging)) {
+                    FileOps.deleteDir(staging);
+                }
+            } finally {
+                Files.deleteIfExists(deltaZip);
+                Files.deleteIfExists(deltaZip.resolveSibling(deltaZip.getFileName() + ".part"));
+            }
         }
+        return null;
+    }
+
+    private static Path baseManifest(Path versionDir, String zipPattern, String target) {
+        return versionDir.resolve(zipName(zipPattern, versionDir.getFileName().toString(), target) + SdkManifest.EXTENSION);
     }
 
-    private static String calculateCheckSum(File file) {
+    private static long lastModified(Path file) {
         try {
-            // not looking for security, just a checksum. MD5 should be faster than SHA
-            try (final InputStream stream = new FileInputStream(file);
-                 final DigestInputStream dis = new DigestInputStream(stream, MessageDigest.getInstance("MD5"))) {
-                dis.getMessageDigest().reset();
-                byte[] buffer = new byte[4096];
-                while (dis.read(buffer) != -1) { /* empty loop body is intentional */ }
-                return Arrays.toString(dis.getMessageDigest().digest());
-            }
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
 
-        } catch (IllegalArgumentException | NoSuchAlgorithmException | IOException | SecurityException e) {
+    // moves a staged directory in place with an atomic rename, or merges it file by file
+    // with an existing one, when a component is added to an installed SDK
+    private static void publish(Path staged, Path target) throws IOException {
+        if (! Files.exists(target)) {
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE);
+        } else if (Files.isDirectory(staged) && Files.isDirectory(target)) {
+            try (Stream<Path> children = Files.list(staged)) {
+                for (Path child : children.collect(Collectors.toList())) {
+                    publish(child, target.resolve(child.getFileName().toString()));
+                }
+            }
+        } else {
+            if (Files.isDirectory(target)) {
+                FileOps.deleteDir(target);
+            }
+            Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         }
-        return Arrays.toString(new byte[0]);
     }
 
 }
@@ -29,13 +29,11 @@ package com.gluonhq.omega.util;
 
 import com.gluonhq.omega.Omega;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
@@ -114,15 +112,14 @@ public class FileOps {
         }
     }
 
-    private static Path objectPath;
     public static Path findObject(Path workDir, String name) throws IOException {
-
+        final Path[] objectPath = new Path[1];
         SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                 Path fileName = file.getFileName();
                 if (fileName != null && fileName.toString().endsWith(name + ".o")) {
-                    objectPath = file;
+                    objectPath[0] = file;
                     return FileVisitResult.TERMINATE;
                 }
                 return FileVisitResult.CONTINUE;
@@ -134,11 +131,11 @@ public class FileOps {
             }
         };
 
-        Files.walkFileTree(workDir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
-        if (objectPath == null) {
+        Files.walkFileTree(workDir, EnumSet.noneOf(FileVisitOption.class), Integer.MAX_VALUE, visitor);
+        if (objectPath[0] == null) {
             throw new RuntimeException("File " + name + ".o not found in " + workDir);
         }
-        return objectPath;
+        return objectPath[0];
     }
 
     public static void deleteDir(Path start) throws IOException {
@@ -176,20 +173,6 @@ public class FileOps {
                 .reduce(0, (Integer accum, File p) -> accum + getTotalFilesCount(p), (a, b) -> a + b);
     }
 
-    public static void mergeProcessOutput(final InputStream is) {
-        Runnable r = () -> {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    System.err.println("[SUB] " + line);
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        };
-        new Thread(r).start();
-    }
-
     public static void createScript(Path script, String cmd) throws IOException {
         File f = script.toFile();
         if (f.exists()) {
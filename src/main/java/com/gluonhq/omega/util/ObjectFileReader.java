@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Reads the symbol table of a 64-bit ELF or Mach-O object file, without binutils.
+ *
+ * Mach-O symbols have no size, and some ELF symbols don't either: their size is the
+ * distance to the next symbol of the same section, or to the end of the section.
+ */
+public class ObjectFileReader {
+
+    private static final int ELF_MAGIC = 0x464c457f;
+    private static final int MACHO_MAGIC_64 = 0xfeedfacf;
+
+    private static final int ET_REL = 1;
+    private static final int SHT_SYMTAB = 2;
+    private static final int SHF_EXECINSTR = 0x4;
+    private static final int STT_OBJECT = 1;
+    private static final int STT_FUNC = 2;
+
+    private static final int LC_SEGMENT_64 = 0x19;
+    private static final int LC_SYMTAB = 0x2;
+    private static final int N_STAB = 0xe0;
+    private static final int N_TYPE = 0x0e;
+    private static final int N_SECT = 0x0e;
+    private static final int S_ATTR_PURE_INSTRUCTIONS = 0x80000000;
+    private static final int S_ATTR_SOME_INSTRUCTIONS = 0x400;
+
+    /**
+     * A defined symbol of the object file
+     */
+    public static class Symbol {
+
+        private final String name;
+        private final int section;
+        private final long address;
+        private long size;
+        private final boolean code;
+
+        Symbol(String name, int section, long address, long size, boolean code) {
+            this.name = name;
+            this.section = section;
+            this.address = address;
+            this.size = size;
+            this.code = code;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return true if the symbol is in a section with instructions
+         */
+        public boolean isCode() {
+            return code;
+        }
+    }
+
+    // the address range of a section, and whether it has instructions
+    private static class Section {
+        final long address;
+        final long size;
+        final boolean code;
+
+        Section(long address, long size, boolean code) {
+            this.address = address;
+            this.size = size;
+            this.code = code;
+        }
+    }
+
+    /**
+     * Reads the defined symbols of an object file
+     * @param file an ELF or Mach-O 64-bit object file
+     * @return the symbols, with their sizes
+     * @throws IOException if the file can't be read or is not a supported object file
+     */
+    public static List<Symbol> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buffer.getInt(0);
+            if (magic == ELF_MAGIC) {
+                if (buffer.get(4) != 2) {
+                    throw new IOException("Only 64-bit ELF files are supported: " + file);
+                }
+                if (buffer.get(5) == 2) {
+                    buffer.order(ByteOrder.BIG_ENDIAN);
+                }
+                return readElf(buffer);
+            } else if (magic == MACHO_MAGIC_64) {
+                return readMachO(buffer);
+            }
+            throw new IOException("Not an ELF or Mach-O 64-bit object file: " + file);
+        }
+    }
+
+    private static List<Symbol> readElf(ByteBuffer buffer) {
+        boolean relocatable = buffer.getShort(0x10) == ET_REL;
+        long shoff = buffer.getLong(0x28);
+        int shentsize = buffer.getShort(0x3a) & 0xffff;
+        int shnum = buffer.getShort(0x3c) & 0xffff;
+        if (shnum == 0 && shoff != 0) {
+            // more sections than fit in the header, the count is in the first section
+            shnum = (int) buffer.getLong((int) shoff + 0x20);
+        }
+        List<Section> sections = new ArrayList<>(shnum);
+        int symtab = -1;
+        for (int i = 0; i < shnum; i++) {
+            int header = (int) (shoff + (long) i * shentsize);
+            long flags = buffer.getLong(header + 0x08);
+            // the symbols of an object file have offsets in their section, not addresses
+            long address = relocatable ? 0 : buffer.getLong(header + 0x10);
+            sections.add(new Section(address, buffer.getLong(header + 0x20), (flags & SHF_EXECINSTR) != 0));
+            if (buffer.getInt(header + 0x04) == SHT_SYMTAB) {
+                symtab = i;
+            }
+        }
+        List<Symbol> symbols = new ArrayList<>();
+        if (symtab < 0) {
+            return symbols;
+        }
+        int symtabHeader = (int) (shoff + (long) symtab * shentsize);
+        long offset = buffer.getLong(symtabHeader + 0x18);
+        long size = buffer.getLong(symtabHeader + 0x20);
+        long entsize = buffer.getLong(symtabHeader + 0x38);
+        int strtab = buffer.getInt(symtabHeader + 0x28);
+        long stroff = buffer.getLong((int) (shoff + (long) strtab * shentsize) + 0x18);
+        for (long entry = offset; entry + entsize <= offset + size; entry += entsize) {
+            int e = (int) entry;
+            int type = buffer.get(e + 4) & 0xf;
+            int shndx = buffer.getShort(e + 6) & 0xffff;
+            if ((type != STT_FUNC && type != STT_OBJECT) || shndx == 0 || shndx >= sections.size()) {
+                continue;
+            }
+            String name = readString(buffer, (int) (stroff + (buffer.getInt(e) & 0xffffffffL)));
+            symbols.add(new Symbol(name, shndx, buffer.getLong(e + 8), buffer.getLong(e + 16),
+                    sections.get(shndx).code));
+        }
+        computeSizes(symbols, sections);
+        return symbols;
+    }
+
+    private static List<Symbol> readMachO(ByteBuffer buffer) {
+        int ncmds = buffer.getInt(16);
+        // section numbers start at 1
+        List<Section> sections = new ArrayList<>();
+        sections.add(null);
+        int symoff = 0, nsyms = 0, stroff = 0;
+        int command = 32;
+        for (int i = 0; i < ncmds; i++) {
+            int cmd = buffer.getInt(command);
+            int cmdsize = buffer.getInt(command + 4);
+            if (cmd == LC_SEGMENT_64) {
+                int nsects = buffer.getInt(command + 64);
+                for (int s = 0; s < nsects; s++) {
+                    int section = command + 72 + s * 80;
+                    int flags = buffer.getInt(section + 64);
+                    sections.add(new Section(buffer.getLong(section + 32), buffer.getLong(section + 40),
+                            (flags & (S_ATTR_PURE_INSTRUCTIONS | S_ATTR_SOME_INSTRUCTIONS)) != 0));
+                }
+            } else if (cmd == LC_SYMTAB) {
+                symoff = buffer.getInt(command + 8);
+                nsyms = buffer.getInt(command + 12);
+                stroff = buffer.getInt(command + 16);
+            }
+            command += cmdsize;
+        }
+        List<Symbol> symbols = new ArrayList<>(nsyms);
+        for (int i = 0; i < nsyms; i++) {
+            int entry = symoff + i * 16;
+            int type = buffer.get(entry + 4) & 0xff;
+            int sect = buffer.get(entry + 5) & 0xff;
+            if ((type & N_STAB) != 0 || (type & N_TYPE) != N_SECT || sect >= sections.size()) {
+                continue;
+            }
+            String name = readString(buffer, stroff + buffer.getInt(entry));
+            // C symbols have a leading underscore
+            if (name.startsWith("_")) {
+                name = name.substring(1);
+            }
+            symbols.add(new Symbol(name, sect, buffer.getLong(entry + 8), 0, sections.get(sect).code));
+        }
+        computeSizes(symbols, sections);
+        return symbols;
+    }
+
+    /*
+     * The symbols without a size extend to the next symbol of their section. ELF sections of
+     * an object file start at 0, Mach-O sections at their address
+     */
+    private static void computeSizes(List<Symbol> symbols, List<Section> sections) {
+        Map<Integer, List<Symbol>> bySection = symbols.stream()
+                .collect(Collectors.groupingBy(s -> s.section));
+        for (Map.Entry<Integer, List<Symbol>> entry : bySection.entrySet()) {
+            List<Symbol> list = entry.getValue();
+            list.sort(Comparator.comparingLong(s -> s.address));
+            Section section = sections.get(entry.getKey());
+            for (int i = 0; i < list.size(); i++) {
+                Symbol symbol = list.get(i);
+                if (symbol.size > 0) {
+                    continue;
+                }
+                // aliases at the same address get a size of 0
+                long end = i + 1 < list.size() ? list.get(i + 1).address : section.address + section.size;
+                symbol.size = Math.max(0, end - symbol.address);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buffer, int offset) {
+        int end = offset;
+        while (buffer.get(end) != 0) {
+            end++;
+        }
+        byte[] bytes = new byte[end - offset];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
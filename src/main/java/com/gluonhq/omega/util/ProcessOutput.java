@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Copies the output of a subprocess to the console and to the log of its stage.
+ *
+ * A pump thread reads the output as fast as the process writes it: each line goes to
+ * the stage log (e.g. gvm/log/link.log), to a ring buffer with the last lines and to
+ * the listener, and is queued for the console. The queue is bounded and a second
+ * thread prints it, so a slow console never blocks the process: lines that don't fit
+ * are only counted, they are still in the log. Both threads are daemons, named after
+ * the stage, and virtual threads when the JDK has them.
+ *
+ * Output that doesn't come from a process stream (e.g. the frames of the builder
+ * daemon) is written to {@link #getSink()} instead, which takes the place of the pump
+ * thread and never blocks the writer either.
+ *
+ * {@link #close()} waits until the whole output has been read and printed, so it
+ * doesn't interleave with the output of the next stage.
+ */
+public class ProcessOutput implements AutoCloseable {
+
+    public static final String LOG_DIR = "log";
+
+    private static final int QUEUE_SIZE = 4096;
+    private static final int TAIL_LINES = 50;
+    private static final long JOIN_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    // marks the end of the output in the console queue, compared by identity
+    private static final String END = new String("end");
+
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+    private static final Method BUILDER_NAME = findMethod(findClass("java.lang.Thread$Builder"), "name", String.class);
+    private static final Method BUILDER_UNSTARTED = findMethod(findClass("java.lang.Thread$Builder"), "unstarted", Runnable.class);
+
+    private final String stage;
+    private final Path logFile;
+    private final Consumer<String> listener;
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Deque<String> tail = new ArrayDeque<>(TAIL_LINES);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread printer;
+    private Thread pump;
+    private LineSink sink;
+    private BufferedWriter log;
+    private boolean listenerFailed;
+    private boolean finished;
+
+    private ProcessOutput(String stage, Path logFile, Consumer<String> listener) {
+        this.stage = stage;
+        this.logFile = logFile;
+        this.listener = listener;
+        this.printer = newThread("omega-" + stage + "-console", this::print);
+    }
+
+    /**
+     * Starts copying the output of a process
+     * @param stage the stage the process runs for (e.g. link), that names the threads and the log
+     * @param is the output of the process
+     * @param gvmPath the work dir, where the log is written to log/&lt;stage&gt;.log, or null for no log
+     * @return the running output
+     */
+    public static ProcessOutput start(String stage, InputStream is, Path gvmPath) {
+        return start(stage, is, gvmPath, line -> {});
+    }
+
+    /**
+     * Starts copying the output of a process, passing each line to a listener
+     * @param stage the stage the process runs for (e.g. link), that names the threads and the log
+     * @param is the output of the process
+     * @param gvmPath the work dir, where the log is written to log/&lt;stage&gt;.log, or null for no log
+     * @param listener called for each line on the pump thread
+     * @return the running output
+     */
+    public static ProcessOutput start(String stage, InputStream is, Path gvmPath, Consumer<String> listener) {
+        ProcessOutput output = new ProcessOutput(stage, logFile(stage, gvmPath), listener);
+        output.pump = newThread("omega-" + stage + "-output", () -> output.pump(is));
+        output.openLog();
+        output.printer.start();
+        output.pump.start();
+        return output;
+    }
+
+    /**
+     * Starts an output that is written to its {@link #getSink() sink} rather than read
+     * from a process
+     * @param stage the stage the output belongs to (e.g. native-image), that names the thread and the log
+     * @param gvmPath the work dir, where the log is written to log/&lt;stage&gt;.log, or null for no log
+     * @param listener called for each line on the thread that writes to the sink
+     * @return the running output, to be closed once the whole output has been written
+     */
+    public static ProcessOutput open(String stage, Path gvmPath, Consumer<String> listener) {
+        ProcessOutput output = new ProcessOutput(stage, logFile(stage, gvmPath), listener);
+        output.sink = output.new LineSink();
+        output.openLog();
+        output.printer.start();
+        return output;
+    }
+
+    /**
+     * @return the stream that takes the output of an output created with
+     * {@link #open(String, Path, Consumer)}, split into lines as it is written
+     */
+    public OutputStream getSink() {
+        if (sink == null) {
+            throw new IllegalStateException("The output of " + stage + " is read from a process");
+        }
+        return sink;
+    }
+
+    /**
+     * Waits until the output has been read and printed, or for 10 seconds at most if the
+     * output isn't closed (e.g. a child of the process keeps it open). The output of a
+     * sink ends when it is closed.
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        if (pump != null) {
+            pump.join(JOIN_TIMEOUT);
+            if (pump.isAlive()) {
+                System.err.println("The output of " + stage + " is still open, not waiting for it");
+                return;
+            }
+        }
+        printer.join(JOIN_TIMEOUT);
+    }
+
+    /**
+     * Ends the output of a sink and waits until the output has been printed, like
+     * {@link #await()}. If the thread is interrupted, it stops waiting and keeps its
+     * interrupt status.
+     */
+    @Override
+    public void close() {
+        if (sink != null) {
+            sink.flushLine();
+            finish();
+        }
+        try {
+            await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the last lines of the output
+     */
+    public List<String> getTail() {
+        synchronized (tail) {
+            return new ArrayList<>(tail);
+        }
+    }
+
+    /**
+     * @return the number of lines that weren't printed because the console was too slow
+     */
+    public long getDroppedLines() {
+        return dropped.get();
+    }
+
+    /**
+     * Prints the last lines of the output and the location of the log, once the
+     * process has failed
+     */
+    public void printTail() {
+        List<String> lines = getTail();
+        if (lines.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("Last ").append(lines.size()).append(" lines of the ")
+                .append(stage).append(" output");
+        if (logFile != null) {
+            sb.append(" (full output in ").append(logFile).append(")");
+        }
+        sb.append(":");
+        for (String line : lines) {
+            sb.append(System.lineSeparator()).append("    ").append(line);
+        }
+        System.err.println(sb);
+    }
+
+    private static Path logFile(String stage, Path gvmPath) {
+        return gvmPath == null ? null : gvmPath.resolve(LOG_DIR).resolve(stage + ".log");
+    }
+
+    private void openLog() {
+        if (logFile != null) {
+            try {
+                Files.createDirectories(logFile.getParent());
+                log = Files.newBufferedWriter(logFile);
+            } catch (IOException e) {
+                System.err.println("Error creating " + logFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void pump(InputStream is) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line(line);
+            }
+        } catch (IOException ex) {
+            System.err.println("Error reading the output of " + stage + ": " + ex.getMessage());
+        } finally {
+            finish();
+        }
+    }
+
+    private void line(String line) {
+        if (log != null) {
+            try {
+                log.write(line);
+                log.newLine();
+            } catch (IOException e) {
+                System.err.println("Error writing " + logFile + ": " + e.getMessage());
+                closeLog();
+            }
+        }
+        synchronized (tail) {
+            if (tail.size() == TAIL_LINES) {
+                tail.removeFirst();
+            }
+            tail.addLast(line);
+        }
+        try {
+            listener.accept(line);
+        } catch (RuntimeException e) {
+            // the output is still copied, only the listener misses it
+            if (! listenerFailed) {
+                listenerFailed = true;
+                System.err.println("Error processing the output of " + stage + ": " + e);
+            }
+        }
+        if (! queue.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        closeLog();
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            printer.interrupt();
+        }
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.err.println("Error writing " + logFile + ": " + e.getMessage());
+            }
+            log = null;
+        }
+    }
+
+    private void print() {
+        try {
+            String line;
+            while ((line = queue.take()) != END) {
+                System.err.println("[SUB] " + line);
+            }
+            if (dropped.get() > 0) {
+                System.err.println("[SUB] " + dropped.get() + " lines not shown" +
+                        (logFile == null ? "" : ", see " + logFile));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Splits the bytes written to it into lines, like the pump thread does with the
+     * output of a process
+     */
+    private class LineSink extends OutputStream {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                emitLine();
+            } else {
+                buffer.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    buffer.write(b, start, i - start);
+                    emitLine();
+                    start = i + 1;
+                }
+            }
+            buffer.write(b, start, off + len - start);
+        }
+
+        synchronized void flushLine() {
+            if (buffer.size() > 0) {
+                emitLine();
+            }
+        }
+
+        private void emitLine() {
+            if (finished) {
+                buffer.reset();
+                return;
+            }
+            String line = new String(buffer.toByteArray(), Charset.defaultCharset());
+            buffer.reset();
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            line(line);
+        }
+
+        @Override
+        public void close() {
+            ProcessOutput.this.close();
+        }
+    }
+
+    private static Thread newThread(String name, Runnable runnable) {
+        if (OF_VIRTUAL != null && BUILDER_NAME != null && BUILDER_UNSTARTED != null) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+            } catch (ReflectiveOperationException e) {
+                // platform thread
+            }
+        }
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static Class<?> findClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Class<?> type, String name, Class<?>... parameters) {
+        if (type == null) {
+            return null;
+        }
+        try {
+            return type.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The content of a reflection or JNI configuration file for the native-image builder.
+ *
+ * Classes keep the order in which they are first added. Adding a class again merges its
+ * flags and members, so each class is written once.
+ */
+public class ReflectionConfig {
+
+    public static final String ALL_DECLARED_CONSTRUCTORS = "allDeclaredConstructors";
+    public static final String ALL_PUBLIC_CONSTRUCTORS = "allPublicConstructors";
+    public static final String ALL_DECLARED_FIELDS = "allDeclaredFields";
+    public static final String ALL_PUBLIC_FIELDS = "allPublicFields";
+    public static final String ALL_DECLARED_METHODS = "allDeclaredMethods";
+    public static final String ALL_PUBLIC_METHODS = "allPublicMethods";
+
+    public static final List<String> ALL = Collections.unmodifiableList(Arrays.asList(
+            ALL_DECLARED_CONSTRUCTORS, ALL_PUBLIC_CONSTRUCTORS, ALL_DECLARED_FIELDS,
+            ALL_PUBLIC_FIELDS, ALL_DECLARED_METHODS, ALL_PUBLIC_METHODS));
+
+    public static final List<String> CONSTRUCTORS = Collections.unmodifiableList(Arrays.asList(
+            ALL_DECLARED_CONSTRUCTORS, ALL_PUBLIC_CONSTRUCTORS));
+
+    private static class Entry {
+        final Set<String> flags = new TreeSet<>(Comparator.comparingInt(ALL::indexOf));
+        // method name -> parameter type lists, joined with commas, or ANY_PARAMETERS for all the overloads
+        final Map<String, Set<String>> methods = new TreeMap<>();
+        final Set<String> fields = new TreeSet<>();
+    }
+
+    private static final String ANY_PARAMETERS = "*";
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Adds a class with all its constructors, fields and methods
+     * @param className the name of the class
+     */
+    public void addClass(String className) {
+        addClass(className, ALL);
+    }
+
+    /**
+     * Adds a class
+     * @param className the name of the class
+     * @param flags the members to register, like {@link #ALL_PUBLIC_METHODS}, or none to only register the class
+     */
+    public void addClass(String className, List<String> flags) {
+        entries.computeIfAbsent(className, c -> new Entry()).flags.addAll(flags);
+    }
+
+    /**
+     * Adds a method. All the overloads with the same name are registered
+     * @param className the name of the class
+     * @param method the name of the method
+     */
+    public void addMethod(String className, String method) {
+        Set<String> overloads = entries.computeIfAbsent(className, c -> new Entry()).methods
+                .computeIfAbsent(method, m -> new TreeSet<>());
+        overloads.clear();
+        overloads.add(ANY_PARAMETERS);
+    }
+
+    /**
+     * Adds a method with the given parameter types
+     * @param className the name of the class
+     * @param method the name of the method, or {@code <init>} for a constructor
+     * @param parameterTypes the names of the parameter types
+     */
+    public void addMethod(String className, String method, List<String> parameterTypes) {
+        Set<String> overloads = entries.computeIfAbsent(className, c -> new Entry()).methods
+                .computeIfAbsent(method, m -> new TreeSet<>());
+        if (! overloads.contains(ANY_PARAMETERS)) {
+            overloads.add(String.join(",", parameterTypes));
+        }
+    }
+
+    public void addField(String className, String field) {
+        entries.computeIfAbsent(className, c -> new Entry()).fields.add(field);
+    }
+
+    public boolean contains(String className) {
+        return entries.containsKey(className);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of flags, methods and fields of all the classes
+     */
+    public int getMemberCount() {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            count += entry.flags.size() + entry.fields.size();
+            for (Set<String> overloads : entry.methods.values()) {
+                count += overloads.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the classes of a configuration file, like the ones written by the native-image tracing agent
+     * @param file a reflection or JNI configuration file
+     * @return the number of classes that were not in this configuration
+     * @throws IOException if the file can't be read or parsed
+     */
+    @SuppressWarnings("unchecked")
+    public int merge(Path file) throws IOException {
+        Object json = JsonParser.parse(file);
+        if (! (json instanceof List)) {
+            throw new IOException("Expected an array in " + file);
+        }
+        int added = 0;
+        for (Object item : (List<Object>) json) {
+            if (! (item instanceof Map)) {
+                continue;
+            }
+            Map<String, Object> entry = (Map<String, Object>) item;
+            String className = (String) entry.get("name");
+            if (className == null) {
+                continue;
+            }
+            if (! contains(className)) {
+                added++;
+            }
+            List<String> flags = new ArrayList<>();
+            for (String flag : ALL) {
+                if (Boolean.TRUE.equals(entry.get(flag))) {
+                    flags.add(flag);
+                }
+            }
+            addClass(className, flags);
+            for (Map<String, Object> method : members(entry.get("methods"))) {
+                Object types = method.get("parameterTypes");
+                if (types instanceof List) {
+                    List<String> parameterTypes = new ArrayList<>();
+                    for (Object type : (List<Object>) types) {
+                        parameterTypes.add(String.valueOf(type));
+                    }
+                    addMethod(className, (String) method.get("name"), parameterTypes);
+                } else {
+                    addMethod(className, (String) method.get("name"));
+                }
+            }
+            for (Map<String, Object> field : members(entry.get("fields"))) {
+                addField(className, (String) field.get("name"));
+            }
+        }
+        return added;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> members(Object value) {
+        List<Map<String, Object>> members = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object member : (List<Object>) value) {
+                if (member instanceof Map && ((Map<String, Object>) member).get("name") instanceof String) {
+                    members.add((Map<String, Object>) member);
+                }
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Writes the configuration file
+     * @param file the file, e.g. reflectionconfig-linux.json
+     * @throws IOException
+     */
+    public void write(Path file) throws IOException {
+        try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            bw.write("[\n");
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                writeEntry(bw, entry.getKey(), entry.getValue());
+                bw.write(iterator.hasNext() ? ",\n" : "\n");
+            }
+            bw.write("]");
+        }
+    }
+
+    private static void writeEntry(BufferedWriter bw, String className, Entry entry) throws IOException {
+        bw.write("  {\n");
+        bw.write("    \"name\" : \"" + className + "\"");
+        for (String flag : entry.flags) {
+            bw.write(",\n    \"" + flag + "\" : true");
+        }
+        writeMethods(bw, entry.methods);
+        writeMembers(bw, "fields", entry.fields);
+        bw.write("\n  }");
+    }
+
+    private static void writeMethods(BufferedWriter bw, Map<String, Set<String>> methods) throws IOException {
+        if (methods.isEmpty()) {
+            return;
+        }
+        bw.write(",\n    \"methods\" : [");
+        String sep = "";
+        for (Map.Entry<String, Set<String>> method : methods.entrySet()) {
+            for (String parameters : method.getValue()) {
+                bw.write(sep + "{ \"name\" : \"" + method.getKey() + "\"");
+                if (! ANY_PARAMETERS.equals(parameters)) {
+                    bw.write(", \"parameterTypes\" : [");
+                    if (! parameters.isEmpty()) {
+                        bw.write("\"" + parameters.replace(",", "\", \"") + "\"");
+                    }
+                    bw.write("]");
+                }
+                bw.write(" }");
+                sep = ", ";
+            }
+        }
+        bw.write("]");
+    }
+
+    private static void writeMembers(BufferedWriter bw, String kind, Set<String> names) throws IOException {
+        if (names.isEmpty()) {
+            return;
+        }
+        bw.write(",\n    \"" + kind + "\" : [");
+        String sep = "";
+        for (String name : names) {
+            bw.write(sep + "{ \"name\" : \"" + name + "\" }");
+            sep = ", ";
+        }
+        bw.write("]");
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds the classes and members that an application accesses through reflection.
+ *
+ * Each jar or class directory is scanned in parallel. In the bytecode, calls to
+ * {@code Class.forName}, {@code ClassLoader.loadClass}, {@code Class.getMethod},
+ * {@code getDeclaredMethod}, {@code getField}, {@code getDeclaredField},
+ * {@code getConstructor}, {@code getDeclaredConstructor} and {@code Class.newInstance}
+ * are resolved when their class and member names are constants. FXML files add their
+ * controllers and the classes of their elements.
+ *
+ * This is not a data flow analysis: names computed at runtime can't be resolved, and
+ * are reported as unresolved calls, with the method that makes them.
+ */
+public class ReflectionScanner {
+
+    private static final Pattern FXML_CONTROLLER = Pattern.compile("fx:controller\\s*=\\s*\"([^\"]+)\"");
+    private static final Pattern FXML_IMPORT = Pattern.compile("<\\?import\\s+([\\w.]+?)(\\.\\*)?\\s*\\?>");
+    private static final Pattern FXML_ELEMENT = Pattern.compile("<([A-Z][\\w]*)[\\s/>]");
+
+    // the classes with a TYPE field for their primitive type, e.g. Integer.TYPE for int.class
+    private static final Set<String> PRIMITIVE_WRAPPERS = Set.of(
+            "java.lang.Boolean", "java.lang.Byte", "java.lang.Character", "java.lang.Short",
+            "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double", "java.lang.Void");
+
+    /**
+     * The reflection accesses found in the class path
+     */
+    public static class Usage {
+
+        private final Map<String, Set<String>> methods = new ConcurrentHashMap<>();
+        private final Map<String, Set<String>> fields = new ConcurrentHashMap<>();
+        private final Set<String> classes = ConcurrentHashMap.newKeySet();
+        private final Set<String> constructors = ConcurrentHashMap.newKeySet();
+        private final Set<String> fxmlControllers = ConcurrentHashMap.newKeySet();
+        private final Set<String> fxmlTypes = ConcurrentHashMap.newKeySet();
+        private final Set<String> knownClasses = ConcurrentHashMap.newKeySet();
+        private final List<String[]> fxmlImports = new ArrayList<>();
+        private final List<String> unresolved = new ArrayList<>();
+
+        void addClass(String name) {
+            classes.add(name);
+        }
+
+        void addMethod(String className, String name) {
+            classes.add(className);
+            methods.computeIfAbsent(className, c -> ConcurrentHashMap.newKeySet()).add(name);
+        }
+
+        void addField(String className, String name) {
+            classes.add(className);
+            fields.computeIfAbsent(className, c -> ConcurrentHashMap.newKeySet()).add(name);
+        }
+
+        void addConstructors(String className) {
+            classes.add(className);
+            constructors.add(className);
+        }
+
+        synchronized void addUnresolved(String caller, String[] member) {
+            unresolved.add(caller + " calls " + member[0] + "." + member[1]);
+        }
+
+        /**
+         * @return the names of all the classes accessed through reflection
+         */
+        public Set<String> getClasses() {
+            Set<String> all = new TreeSet<>(classes);
+            all.addAll(fxmlControllers);
+            all.addAll(fxmlTypes);
+            return all;
+        }
+
+        /**
+         * @return the number of reflective calls whose class or member name is not a constant
+         */
+        public synchronized int getUnresolved() {
+            return unresolved.size();
+        }
+
+        /**
+         * @return the reflective calls whose class or member name is not a constant, sorted,
+         * e.g. "com.acme.Plugins.load calls java.lang.Class.forName"
+         */
+        public synchronized List<String> getUnresolvedCalls() {
+            return unresolved.stream().sorted().collect(Collectors.toList());
+        }
+
+        public boolean isFxmlController(String className) {
+            return fxmlControllers.contains(className);
+        }
+
+        public boolean isFxmlType(String className) {
+            return fxmlTypes.contains(className);
+        }
+
+        public boolean hasConstructors(String className) {
+            return constructors.contains(className);
+        }
+
+        public Set<String> getMethods(String className) {
+            return new TreeSet<>(methods.getOrDefault(className, Set.of()));
+        }
+
+        public Set<String> getFields(String className) {
+            return new TreeSet<>(fields.getOrDefault(className, Set.of()));
+        }
+
+        // FXML elements are resolved once all the class names are known
+        private void resolveFxmlTypes() {
+            Map<String, String> explicit = new HashMap<>();
+            List<String> packages = new ArrayList<>();
+            synchronized (fxmlImports) {
+                for (String[] fxmlImport : fxmlImports) {
+                    if (fxmlImport[1] == null) {
+                        packages.add(fxmlImport[0]);
+                    } else {
+                        explicit.put(fxmlImport[1], fxmlImport[0]);
+                    }
+                }
+            }
+            for (String type : new ArrayList<>(fxmlTypes)) {
+                if (! type.startsWith("?")) {
+                    continue;
+                }
+                fxmlTypes.remove(type);
+                String simpleName = type.substring(1);
+                String resolved = explicit.get(simpleName);
+                if (resolved == null) {
+                    resolved = packages.stream()
+                            .map(p -> p + "." + simpleName)
+                            .filter(knownClasses::contains)
+                            .findFirst()
+                            .orElse(null);
+                }
+                if (resolved != null) {
+                    fxmlTypes.add(resolved);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans a class path
+     * @param classPath the jars and class directories to scan
+     * @return the reflection accesses found
+     * @throws IOException
+     */
+    public static Usage scan(List<Path> classPath) throws IOException {
+        Usage usage = new Usage();
+        List<IOException> errors = classPath.parallelStream()
+                .map(path -> {
+                    try {
+                        scanPath(path, usage);
+                        return null;
+                    } catch (IOException e) {
+                        return e;
+                    }
+                })
+                .filter(e -> e != null)
+                .collect(Collectors.toList());
+        if (! errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        usage.resolveFxmlTypes();
+        return usage;
+    }
+
+    private static void scanPath(Path path, Usage usage) throws IOException {
+        if (Files.isDirectory(path)) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(path)) {
+                files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                try (InputStream is = Files.newInputStream(file)) {
+                    scanEntry(file.getFileName().toString(), is, usage);
+                }
+            }
+        } else if (Files.isRegularFile(path) && path.toString().endsWith(".jar")) {
+            try (ZipFile zip = new ZipFile(path.toFile())) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (! entry.isDirectory()) {
+                        try (InputStream is = zip.getInputStream(entry)) {
+                            scanEntry(entry.getName(), is, usage);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void scanEntry(String name, InputStream is, Usage usage) throws IOException {
+        if (name.endsWith(".class") && ! name.endsWith("module-info.class")) {
+            try {
+                scanClass(is.readAllBytes(), usage);
+            } catch (RuntimeException e) {
+                System.err.println("Error scanning " + name + ": " + e);
+            }
+        } else if (name.endsWith(".fxml")) {
+            scanFxml(new String(is.readAllBytes(), StandardCharsets.UTF_8), usage);
+        }
+    }
+
+    static void scanFxml(String fxml, Usage usage) {
+        Matcher matcher = FXML_CONTROLLER.matcher(fxml);
+        while (matcher.find()) {
+            usage.fxmlControllers.add(matcher.group(1));
+        }
+        matcher = FXML_IMPORT.matcher(fxml);
+        while (matcher.find()) {
+            String imported = matcher.group(1);
+            synchronized (usage.fxmlImports) {
+                if (matcher.group(2) != null) {
+                    usage.fxmlImports.add(new String[] {imported, null});
+                } else {
+                    usage.fxmlImports.add(new String[] {imported, imported.substring(imported.lastIndexOf('.') + 1)});
+                }
+            }
+        }
+        matcher = FXML_ELEMENT.matcher(fxml);
+        while (matcher.find()) {
+            usage.fxmlTypes.add("?" + matcher.group(1));
+        }
+    }
+
+    static void scanClass(byte[] bytes, Usage usage) throws IOException {
+        ClassFile classFile = ClassFile.read(bytes);
+        if (classFile == null) {
+            return;
+        }
+        if (classFile.name != null) {
+            usage.knownClasses.add(classFile.name);
+        }
+        for (ClassFile.Method method : classFile.methods) {
+            if (method.code != null) {
+                scanCode(classFile.name + "." + method.name, method.code, classFile.pool, usage);
+            }
+        }
+    }
+
+    /*
+     * Walks the instructions keeping the last class and string constants. A string constant
+     * remembers the class constant pushed before it, which is the receiver of getMethod("name", ...),
+     * and "anewarray Class" remembers the receiver of getConstructor(Class...). The primitive
+     * types of the parameters, e.g. int.class, are read from Integer.TYPE and keep the constants
+     */
+    private static void scanCode(String caller, byte[] code, ClassFile.ConstantPool pool, Usage usage) {
+        String lastClass = null;
+        String lastString = null;
+        String stringReceiver = null;
+        String arrayReceiver = null;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc] & 0xff;
+            int index;
+            switch (opcode) {
+                case 0x12: // ldc
+                case 0x13: // ldc_w
+                    index = opcode == 0x12 ? code[pc + 1] & 0xff : ClassFile.u2(code, pc + 1);
+                    String s = pool.string(index);
+                    if (s != null) {
+                        lastString = s;
+                        stringReceiver = lastClass;
+                    } else if (pool.className(index) != null) {
+                        lastClass = pool.className(index);
+                    }
+                    break;
+                case 0xbd: // anewarray
+                    if ("java.lang.Class".equals(pool.className(ClassFile.u2(code, pc + 1)))) {
+                        arrayReceiver = lastClass;
+                    }
+                    break;
+                case 0xb6: // invokevirtual
+                case 0xb8: // invokestatic
+                    String[] member = pool.member(ClassFile.u2(code, pc + 1));
+                    String loaded = member == null ? null :
+                            resolveCall(caller, member, lastString, stringReceiver, arrayReceiver, lastClass, usage);
+                    // any other call consumes or replaces the constants
+                    lastClass = loaded;
+                    lastString = null;
+                    stringReceiver = null;
+                    arrayReceiver = null;
+                    break;
+                case 0xb2: // getstatic
+                    String[] field = pool.field(ClassFile.u2(code, pc + 1));
+                    if (field != null && "TYPE".equals(field[1]) && PRIMITIVE_WRAPPERS.contains(field[0])) {
+                        break;
+                    }
+                    lastClass = null;
+                    lastString = null;
+                    stringReceiver = null;
+                    arrayReceiver = null;
+                    break;
+                case 0xb4: // getfield
+                case 0xb7: // invokespecial
+                case 0xb9: // invokeinterface
+                case 0xba: // invokedynamic
+                    lastClass = null;
+                    lastString = null;
+                    stringReceiver = null;
+                    arrayReceiver = null;
+                    break;
+                default:
+                    break;
+            }
+            pc += ClassFile.length(code, pc);
+        }
+    }
+
+    // returns the class loaded by forName or loadClass
+    private static String resolveCall(String caller, String[] member, String lastString, String stringReceiver,
+                                      String arrayReceiver, String lastClass, Usage usage) {
+        String owner = member[0];
+        String name = member[1];
+        if ("java.lang.ClassLoader".equals(owner) && "loadClass".equals(name) ||
+                "java.lang.Class".equals(owner) && "forName".equals(name)) {
+            if (lastString == null) {
+                usage.addUnresolved(caller, member);
+                return null;
+            }
+            usage.addClass(lastString);
+            return lastString;
+        }
+        if (! "java.lang.Class".equals(owner)) {
+            return null;
+        }
+        switch (name) {
+            case "getMethod":
+            case "getDeclaredMethod":
+                if (lastString == null || stringReceiver == null) {
+                    usage.addUnresolved(caller, member);
+                } else {
+                    usage.addMethod(stringReceiver, lastString);
+                }
+                break;
+            case "getField":
+            case "getDeclaredField":
+                if (lastString == null || stringReceiver == null) {
+                    usage.addUnresolved(caller, member);
+                } else {
+                    usage.addField(stringReceiver, lastString);
+                }
+                break;
+            case "getConstructor":
+            case "getDeclaredConstructor":
+                if (arrayReceiver == null) {
+                    usage.addUnresolved(caller, member);
+                } else {
+                    usage.addConstructors(arrayReceiver);
+                }
+                break;
+            case "newInstance":
+                if (lastClass == null) {
+                    usage.addUnresolved(caller, member);
+                } else {
+                    usage.addConstructors(lastClass);
+                }
+                break;
+            default:
+                break;
+        }
+        return null;
+    }
+}
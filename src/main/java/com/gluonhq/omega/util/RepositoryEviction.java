@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the user Omega repository (~/.gluon/omega) within a disk budget.
+ *
+ * The repository holds SDK versions (e.g. graalLibs/20.0.0), the zips they were extracted
+ * from, the build cache entries and the PGO profiles. Builds take a shared lease on the
+ * SDK versions and profiles they use, held until their session is closed, and the modification
+ * time of the lease file records when each one was last used. Eviction removes the least
+ * recently used entries until the repository fits in its budget, skipping the ones that
+ * a running build holds.
+ */
+public class RepositoryEviction {
+
+    private static final String LEASE_EXTENSION = ".lease";
+    private static final String STAMP_FILE = ".eviction";
+    private static final List<String> SDK_FOLDERS = List.of("graalLibs", "javaStaticSdk", "javafxStaticSdk");
+
+    // walking the repository takes a while, so it is checked at most once an hour
+    private static final long INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    // the leases held by this process, by lease file, counted as sessions can lease the same entry
+    private static final Map<Path, Holder> LEASES = new HashMap<>();
+
+    private final Path omegaPath;
+    private final long maxSize;
+
+    /**
+     * Creates the eviction of a repository
+     * @param omegaPath the repository (e.g. ~/.gluon/omega)
+     * @param maxSize the disk budget in bytes
+     */
+    public RepositoryEviction(Path omegaPath, long maxSize) {
+        this.omegaPath = omegaPath;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Takes a shared lease on an entry of the repository, so it isn't evicted until the
+     * lease is closed, and records that it was used. Waits if the entry is being evicted.
+     * @param entry the SDK version directory or the profile directory
+     * @return the lease, usually owned by the {@link com.gluonhq.omega.BuildSession} that uses the entry
+     * @throws IOException
+     */
+    public static Lease lease(Path entry) throws IOException {
+        Path file = leaseFile(entry);
+        synchronized (LEASES) {
+            Holder holder = LEASES.get(file);
+            if (holder == null) {
+                Files.createDirectories(file.getParent());
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                try {
+                    holder = new Holder(channel.lock(0, Long.MAX_VALUE, true));
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                LEASES.put(file, holder);
+            }
+            holder.count++;
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Lease(entry, file);
+        }
+    }
+
+    /**
+     * Evicts entries if the repository wasn't checked in the last hour
+     * @param metrics records the size of the repository and the reclaimed bytes
+     * @return the number of bytes reclaimed
+     * @throws IOException
+     */
+    public long evictIfDue(BuildMetrics metrics) throws IOException {
+        if (maxSize <= 0 || ! Files.isDirectory(omegaPath)) {
+            return 0;
+        }
+        Path stamp = omegaPath.resolve(STAMP_FILE);
+        long now = System.currentTimeMillis();
+        if (Files.isRegularFile(stamp) && now - Files.getLastModifiedTime(stamp).toMillis() < INTERVAL) {
+            return 0;
+        }
+        if (! Files.exists(stamp)) {
+            Files.createFile(stamp);
+        }
+        Files.setLastModifiedTime(stamp, FileTime.fromMillis(now));
+        return evict(metrics);
+    }
+
+    /**
+     * Removes the least recently used entries that no running build holds, until the
+     * repository fits in its budget
+     * @param metrics records the size of the repository and the reclaimed bytes
+     * @return the number of bytes reclaimed
+     * @throws IOException
+     */
+    public long evict(BuildMetrics metrics) throws IOException {
+        try (BuildMetrics.Timer timer = metrics.start("repository-eviction")) {
+            List<Entry> entries = findEntries();
+            long total = entries.stream().mapToLong(e -> e.size).sum();
+            long reclaimed = 0;
+            int evicted = 0;
+            entries.sort(Comparator.comparingLong(e -> e.lastUsed));
+            for (Entry entry : entries) {
+                if (total <= maxSize) {
+                    break;
+                }
+                long size = entry.evict();
+                if (size < 0) {
+                    System.err.println("Not evicting " + omegaPath.relativize(entry.path) + ", a build is using it");
+                    continue;
+                }
+                System.err.println("Evicted " + omegaPath.relativize(entry.path) + " (" + toMB(size) + " MB)");
+                total -= size;
+                reclaimed += size;
+                evicted++;
+            }
+            metrics.setGauge("repository.size", total);
+            metrics.setGauge("repository.reclaimed", reclaimed);
+            metrics.increment("repository.evicted", evicted);
+            if (evicted > 0) {
+                System.err.println("Reclaimed " + toMB(reclaimed) + " MB from " + omegaPath + ", " + evicted +
+                        " entries evicted, " + toMB(total) + " MB used of " + toMB(maxSize) + " MB");
+            }
+            if (total > maxSize) {
+                System.err.println("The Omega repository " + omegaPath + " uses " + toMB(total) +
+                        " MB, over its budget of " + toMB(maxSize) + " MB, but its entries are in use");
+            }
+            return reclaimed;
+        }
+    }
+
+    private List<Entry> findEntries() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (String folder : SDK_FOLDERS) {
+            for (Path version : list(omegaPath.resolve(folder))) {
+                if (Files.isDirectory(version) && ! version.getFileName().toString().startsWith(".")) {
+                    entries.add(new Entry(version, leaseFile(version)));
+                }
+            }
+        }
+        for (Path file : list(omegaPath)) {
+            // .part files are downloads in progress, or ones that can be resumed
+            if (file.getFileName().toString().endsWith(".zip") && Files.isRegularFile(file)) {
+                Path version = FileDeps.getVersionDir(omegaPath, file.getFileName().toString());
+                entries.add(new Entry(file, version == null ? null : leaseFile(version)));
+            }
+        }
+        for (Path profile : list(omegaPath.resolve("cache").resolve("pgo"))) {
+            if (Files.isDirectory(profile)) {
+                entries.add(new Entry(profile, leaseFile(profile)));
+            }
+        }
+        Path cacheRoot = omegaPath.resolve("cache").resolve("native-image");
+        BuildCache cache = new BuildCache(cacheRoot, 0);
+        for (Map.Entry<String, FileTime> e : cache.getEntries().entrySet()) {
+            entries.add(new Entry(cacheRoot.resolve(e.getKey()), e.getValue().toMillis(),
+                    () -> cache.remove(e.getKey())));
+        }
+        return entries;
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        if (! Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.collect(Collectors.toList());
+        }
+    }
+
+    private static Path leaseFile(Path entry) {
+        return entry.resolveSibling(entry.getFileName() + LEASE_EXTENSION).toAbsolutePath().normalize();
+    }
+
+    private static long sizeOf(Path path) throws IOException {
+        if (! Files.isDirectory(path)) {
+            return Files.size(path);
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile)
+                    .mapToLong(p -> {
+                        try {
+                            return Files.size(p);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .sum();
+        }
+    }
+
+    private static long toMB(long bytes) {
+        return bytes / 1024 / 1024;
+    }
+
+    private interface Removal {
+        long run() throws IOException;
+    }
+
+    private static class Entry {
+        final Path path;
+        final long size;
+        final long lastUsed;
+        final Path lease;
+        final Removal removal;
+
+        // an SDK version, a zip or a profile, protected by a lease
+        Entry(Path path, Path lease) throws IOException {
+            this.path = path;
+            this.size = sizeOf(path);
+            this.lease = lease;
+            this.removal = null;
+            // a zip is only used to install its SDK, which touches it
+            this.lastUsed = Files.isDirectory(path) && lease != null && Files.isRegularFile(lease) ?
+                    Files.getLastModifiedTime(lease).toMillis() : Files.getLastModifiedTime(path).toMillis();
+        }
+
+        // a build cache entry, removed by the cache holding its own lock
+        Entry(Path path, long lastUsed, Removal removal) throws IOException {
+            this.path = path;
+            this.size = sizeOf(path);
+            this.lastUsed = lastUsed;
+            this.lease = null;
+            this.removal = removal;
+        }
+
+        // returns the reclaimed bytes, or -1 if a build holds the entry
+        long evict() throws IOException {
+            if (removal != null) {
+                return removal.run();
+            }
+            if (lease == null) {
+                return delete();
+            }
+            synchronized (LEASES) {
+                if (LEASES.containsKey(lease)) {
+                    return -1;
+                }
+                try (FileChannel channel = FileChannel.open(lease, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    FileLock lock;
+                    try {
+                        lock = channel.tryLock();
+                    } catch (OverlappingFileLockException e) {
+                        return -1;
+                    }
+                    if (lock == null) {
+                        return -1;
+                    }
+                    try {
+                        return delete();
+                    } finally {
+                        lock.release();
+                    }
+                }
+            }
+        }
+
+        private long delete() throws IOException {
+            if (Files.isDirectory(path)) {
+                FileOps.deleteDir(path);
+            } else {
+                Files.deleteIfExists(path);
+            }
+            return size;
+        }
+    }
+
+    private static class Holder {
+        private final FileLock lock;
+        private int count;
+
+        Holder(FileLock lock) {
+            this.lock = lock;
+        }
+    }
+
+    /**
+     * A shared lease on an entry of the repository, released when it is closed
+     */
+    public static final class Lease implements AutoCloseable {
+        private final Path entry;
+        private final Path file;
+        private boolean closed;
+
+        private Lease(Path entry, Path file) {
+            this.entry = entry;
+            this.file = file;
+        }
+
+        /**
+         * @return the leased entry
+         */
+        public Path getEntry() {
+            return entry;
+        }
+
+        @Override
+        public void close() {
+            synchronized (LEASES) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                Holder holder = LEASES.get(file);
+                if (holder != null && --holder.count == 0) {
+                    LEASES.remove(file);
+                    try {
+                        // releases the lock
+                        holder.lock.channel().close();
+                    } catch (IOException e) {
+                        System.err.println("Error releasing the lease on " + entry + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The resources of the class path that are included in the image.
+ *
+ * Each jar or directory is indexed in parallel. A resource is selected when its name
+ * ends with one of the configured extensions, or when it matches an include rule, and
+ * it is not matched by an exclude rule. A rule is a glob for the resource name, like
+ * {@code META-INF/**}, optionally preceded by a glob for the file name of the jar and
+ * a colon, like {@code javafx-*.jar:**.css}.
+ *
+ * The selected names are written as exact patterns to a resource configuration file,
+ * so the builder doesn't match regular expressions against the whole class path.
+ */
+public class ResourceIndex {
+
+    /**
+     * The rules that apply when none are configured
+     */
+    public static final List<String> DEFAULT_EXCLUDES = Collections.singletonList("META-INF/**");
+
+    private final Map<Path, Map<String, Long>> resources;
+
+    private ResourceIndex(Map<Path, Map<String, Long>> resources) {
+        this.resources = resources;
+    }
+
+    /**
+     * Indexes the class path
+     * @param classPath the jars and directories of the application
+     * @param extensions the extensions of the resources to include
+     * @param includes rules for resources to include, whatever their extension
+     * @param excludes rules for resources to leave out
+     * @return the index with the selected resources of each class path entry
+     * @throws IOException
+     */
+    public static ResourceIndex build(List<Path> classPath, List<String> extensions,
+                                      List<String> includes, List<String> excludes) throws IOException {
+        List<Rule> includeRules = includes.stream().map(Rule::new).collect(Collectors.toList());
+        List<Rule> excludeRules = excludes.stream().map(Rule::new).collect(Collectors.toList());
+        Map<Path, Map<String, Long>> resources = Collections.synchronizedMap(new LinkedHashMap<>());
+        classPath.forEach(path -> resources.put(path, Collections.emptyMap()));
+        List<IOException> errors = classPath.parallelStream()
+                .map(path -> {
+                    try {
+                        Map<String, Long> entries = new LinkedHashMap<>();
+                        for (Map.Entry<String, Long> entry : list(path).entrySet()) {
+                            String name = entry.getKey();
+                            boolean selected = extensions.stream().anyMatch(name::endsWith) ||
+                                    includeRules.stream().anyMatch(r -> r.matches(path, name));
+                            if (selected && excludeRules.stream().noneMatch(r -> r.matches(path, name))) {
+                                entries.put(name, entry.getValue());
+                            }
+                        }
+                        resources.put(path, entries);
+                        return null;
+                    } catch (IOException e) {
+                        return e;
+                    }
+                })
+                .filter(e -> e != null)
+                .collect(Collectors.toList());
+        if (! errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        return new ResourceIndex(resources);
+    }
+
+    private static Map<String, Long> list(Path path) throws IOException {
+        Map<String, Long> entries = new LinkedHashMap<>();
+        if (Files.isDirectory(path)) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(path)) {
+                files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                String name = path.relativize(file).toString().replace('\\', '/');
+                if (isResource(name)) {
+                    entries.put(name, Files.size(file));
+                }
+            }
+        } else if (Files.isRegularFile(path) && path.toString().endsWith(".jar")) {
+            try (ZipFile zip = new ZipFile(path.toFile())) {
+                Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry entry = zipEntries.nextElement();
+                    if (! entry.isDirectory() && isResource(entry.getName())) {
+                        entries.put(entry.getName(), Math.max(entry.getSize(), 0));
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static boolean isResource(String name) {
+        return ! name.endsWith(".class");
+    }
+
+    /**
+     * @return the sorted names of the selected resources
+     */
+    public Set<String> getNames() {
+        Set<String> names = new TreeSet<>();
+        resources.values().forEach(entries -> names.addAll(entries.keySet()));
+        return names;
+    }
+
+    /**
+     * @return the total size of the selected resources, in bytes
+     */
+    public long getBytes() {
+        return resources.values().stream()
+                .flatMap(entries -> entries.values().stream())
+                .mapToLong(Long::longValue)
+                .sum();
+    }
+
+    /**
+     * Prints the number and size of the resources selected from each class path entry,
+     * largest first
+     */
+    public void printReport() {
+        System.err.println("Resources included: " + getNames().size() + ", " + getBytes() + " bytes");
+        resources.entrySet().stream()
+                .filter(e -> ! e.getValue().isEmpty())
+                .sorted((a, b) -> Long.compare(sum(b.getValue()), sum(a.getValue())))
+                .forEach(e -> System.err.println(String.format("  %12d bytes %6d files  %s",
+                        sum(e.getValue()), e.getValue().size(), e.getKey().getFileName())));
+    }
+
+    private static long sum(Map<String, Long> entries) {
+        return entries.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Writes the resource configuration file
+     * @param file the file, e.g. resourceconfig-linux.json
+     * @param patterns additional regular expressions, like the ones found by the tracing agent
+     * @throws IOException
+     */
+    public void write(Path file, List<String> patterns) throws IOException {
+        List<String> all = getNames().stream()
+                .map(Pattern::quote)
+                .collect(Collectors.toCollection(ArrayList::new));
+        patterns.stream()
+                .filter(p -> ! all.contains(p))
+                .forEach(all::add);
+        try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            bw.write("{\n  \"resources\" : [\n");
+            Iterator<String> iterator = all.iterator();
+            while (iterator.hasNext()) {
+                String pattern = iterator.next().replace("\\", "\\\\").replace("\"", "\\\"");
+                bw.write("    { \"pattern\" : \"" + pattern + "\" }");
+                bw.write(iterator.hasNext() ? ",\n" : "\n");
+            }
+            bw.write("  ]\n}");
+        }
+    }
+
+    private static class Rule {
+
+        private final PathMatcher jar;
+        private final PathMatcher resource;
+
+        Rule(String rule) {
+            int colon = rule.indexOf(':');
+            jar = colon < 0 ? null : FileSystems.getDefault().getPathMatcher("glob:" + rule.substring(0, colon));
+            resource = FileSystems.getDefault().getPathMatcher("glob:" + rule.substring(colon + 1));
+        }
+
+        boolean matches(Path path, String name) {
+            if (jar != null && (path.getFileName() == null || ! jar.matches(path.getFileName()))) {
+                return false;
+            }
+            return resource.matches(Paths.get(name));
+        }
+    }
+}
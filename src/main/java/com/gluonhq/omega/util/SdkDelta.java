@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Builds a new version of an SDK from an installed version and a delta.
+ *
+ * A delta is a zip with the files that were added or changed since the installed
+ * version, at the same paths as in the full zip of the new version, and a
+ * {@code .delta} directory with:
+ * <ul>
+ *     <li>{@code manifest}: the {@link SdkManifest} of the new version</li>
+ *     <li>{@code moves} (optional): lines {@code <new prefix> <old prefix>} for the directories
+ *     renamed between versions (e.g. {@code ios-libs-14/ ios-libs-13/})</li>
+ * </ul>
+ * The other files of the new version are linked, or copied, from the installed
+ * version, once their checksums are checked against both manifests.
+ */
+public class SdkDelta {
+
+    public static final String DIR = ".delta";
+
+    private static final String MANIFEST = "manifest";
+    private static final String MOVES = "moves";
+
+    /**
+     * Completes the new version of an SDK
+     * @param staging the directory where the delta was extracted
+     * @param extracted the manifest of the extracted files
+     * @param baseDir the installed version directory (e.g. graalLibs/20.0.0)
+     * @param base the verified manifest of the installed version
+     * @param members selects the files of the new version to install
+     * @return the manifest of the new version, relative to staging
+     * @throws IOException if the delta doesn't apply to the installed version
+     */
+    public static SdkManifest apply(Path staging, SdkManifest extracted, Path baseDir, SdkManifest base,
+                                    Predicate<String> members) throws IOException {
+        Path deltaDir = staging.resolve(DIR);
+        SdkManifest target = SdkManifest.read(deltaDir.resolve(MANIFEST));
+        if (target == null) {
+            throw new IOException("Invalid delta, " + DIR + "/" + MANIFEST + " not found");
+        }
+        Map<String, String> moves = readMoves(deltaDir.resolve(MOVES));
+
+        SdkManifest manifest = new SdkManifest();
+        for (String path : target.getPaths()) {
+            long checksum = target.getChecksum(path);
+            Path file = staging.resolve(path);
+            if (extracted.contains(path)) {
+                if (extracted.getChecksum(path) != checksum) {
+                    throw new IOException("Invalid checksum for " + path + " in the delta");
+                }
+            } else if (members.test(path)) {
+                String basePath = move(path, moves);
+                Long baseChecksum = base.getChecksum(basePath);
+                if (baseChecksum == null || baseChecksum != checksum) {
+                    throw new IOException(path + " is not in the delta, and has changed since " + baseDir.getFileName());
+                }
+                Files.createDirectories(file.getParent());
+                try {
+                    // both versions share the unchanged files
+                    Files.createLink(file, baseDir.resolve(basePath));
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(baseDir.resolve(basePath), file);
+                }
+            } else {
+                continue;
+            }
+            manifest.add(staging, file, checksum);
+        }
+        FileOps.deleteDir(deltaDir);
+        return manifest;
+    }
+
+    private static Map<String, String> readMoves(Path file) throws IOException {
+        Map<String, String> moves = new LinkedHashMap<>();
+        if (Files.isRegularFile(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length == 2) {
+                        moves.put(parts[0], parts[1]);
+                    }
+                }
+            }
+        }
+        return moves;
+    }
+
+    private static String move(String path, Map<String, String> moves) {
+        for (Map.Entry<String, String> move : moves.entrySet()) {
+            if (path.startsWith(move.getKey())) {
+                return move.getValue() + path.substring(move.getKey().length());
+            }
+        }
+        return path;
+    }
+}
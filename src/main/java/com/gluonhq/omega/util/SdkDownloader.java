@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads a zip file and extracts it while the bytes stream in. Both http(s) and
+ * file URLs are supported.
+ *
+ * The downloaded bytes are kept in a {@code .part} file next to the zip. If the
+ * connection fails, the download resumes from the end of that file with an HTTP
+ * Range request, and the extraction starts again from the bytes already on disk.
+ * A connection that stops sending data is closed after a read timeout, so a stalled
+ * download is resumed too. The CRC32C checksum of each extracted file is computed as it is written, and
+ * collected in a {@link SdkManifest}.
+ */
+public class SdkDownloader {
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(1);
+    // the time a read of the response body can wait for data
+    private static final Duration READ_TIMEOUT = Duration.ofMinutes(1);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    // closes the connections of the reads that wait for too long
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "omega-download-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final HttpClient client;
+    private final BuildMetrics metrics;
+    private final Duration readTimeout;
+
+    /**
+     * Creates a downloader
+     * @param metrics records the downloaded bytes, the resumed downloads and the download time
+     */
+    public SdkDownloader(BuildMetrics metrics) {
+        this(metrics, READ_TIMEOUT);
+    }
+
+    SdkDownloader(BuildMetrics metrics, Duration readTimeout) {
+        this.metrics = metrics;
+        this.readTimeout = readTimeout;
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    /**
+     * Downloads and extracts a zip file
+     * @param url the location of the zip file
+     * @param zipPath where the zip file is kept once downloaded
+     * @param targetDir the directory where the zip file is extracted
+     * @return the manifest of the extracted files, relative to targetDir
+     * @throws IOException if the download failed after several attempts, or the zip is invalid
+     */
+    public SdkManifest download(String url, Path zipPath, Path targetDir) throws IOException {
+        return download(url, zipPath, targetDir, name -> true);
+    }
+
+    /**
+     * Downloads a zip file and extracts some of its entries. The whole zip file is
+     * kept, so other entries can be extracted later without downloading it again.
+     * @param url the location of the zip file
+     * @param zipPath where the zip file is kept once downloaded
+     * @param targetDir the directory where the zip file is extracted
+     * @param members selects the entries to extract, by entry name
+     * @return the manifest of the extracted files, relative to targetDir
+     * @throws FileNotFoundException if the zip file doesn't exist
+     * @throws IOException if the download failed after several attempts, or the zip is invalid
+     */
+    public SdkManifest download(String url, Path zipPath, Path targetDir, Predicate<String> members) throws IOException {
+        Path part = zipPath.resolveSibling(zipPath.getFileName() + ".part");
+        Files.createDirectories(targetDir);
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try (BuildMetrics.Timer timer = metrics.start("download")) {
+                SdkManifest manifest = downloadOnce(URI.create(url), part, targetDir, members);
+                Files.move(part, zipPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                metrics.increment("download.files");
+                return manifest;
+            } catch (FileNotFoundException e) {
+                // not worth retrying
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+                System.err.println("Download of " + url + " failed (attempt " + attempt + " of " +
+                        MAX_ATTEMPTS + "): " + e.getMessage());
+            }
+        }
+        throw new IOException("Error downloading " + url, failure);
+    }
+
+    private SdkManifest downloadOnce(URI uri, Path part, Path targetDir, Predicate<String> members) throws IOException {
+        long downloaded = Files.isRegularFile(part) ? Files.size(part) : 0;
+        InputStream network;
+        if ("file".equals(uri.getScheme())) {
+            // a mirror on a local or mounted directory
+            Path source = Path.of(uri);
+            if (! Files.isRegularFile(source)) {
+                throw new FileNotFoundException(uri.toString());
+            }
+            if (downloaded > Files.size(source)) {
+                downloaded = 0;
+            }
+            network = Files.newInputStream(source);
+            long skipped = 0;
+            while (skipped < downloaded) {
+                long n = network.skip(downloaded - skipped);
+                if (n <= 0) {
+                    network.close();
+                    throw new IOException("Error resuming the copy of " + uri);
+                }
+                skipped += n;
+            }
+            if (downloaded > 0) {
+                metrics.increment("download.resumed");
+            }
+        } else {
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT).GET();
+            if (downloaded > 0) {
+                request.header("Range", "bytes=" + downloaded + "-");
+            }
+            HttpResponse<InputStream> response;
+            try {
+                response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading " + uri, e);
+            }
+
+            network = response.body();
+            int status = response.statusCode();
+            if (status == 206) {
+                String range = response.headers().firstValue("Content-Range").orElse("");
+                Matcher matcher = CONTENT_RANGE.matcher(range);
+                if (! matcher.matches() || Long.parseLong(matcher.group(1)) != downloaded) {
+                    // appending a different range would corrupt the zip, the next attempt starts over
+                    network.close();
+                    Files.deleteIfExists(part);
+                    throw new IOException("GET " + uri + " returned the range '" + range +
+                            "' instead of bytes " + downloaded + "-");
+                }
+                metrics.increment("download.resumed");
+            } else if (status == 416 && downloaded > 0) {
+                // the file was complete, only the extraction was interrupted
+                network.close();
+                network = InputStream.nullInputStream();
+            } else if (status == 200) {
+                downloaded = 0;
+            } else if (status == 404) {
+                network.close();
+                throw new FileNotFoundException(uri.toString());
+            } else {
+                network.close();
+                throw new IOException("GET " + uri + " returned " + status);
+            }
+        }
+
+        StandardOpenOption mode = downloaded > 0 ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        try (InputStream remote = network;
+             OutputStream out = Files.newOutputStream(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+             InputStream local = new LimitedInputStream(Files.newInputStream(part), downloaded);
+             TeeInputStream tee = new TeeInputStream(remote, out, metrics);
+             InputStream source = new SequenceInputStream(local, tee)) {
+            long period = Math.max(1, readTimeout.toMillis() / 4);
+            ScheduledFuture<?> watchdog = WATCHDOG.scheduleWithFixedDelay(() -> tee.closeIfStalled(readTimeout),
+                    period, period, TimeUnit.MILLISECONDS);
+            try {
+                SdkManifest manifest = extract(source, targetDir, members);
+                // the central directory is not needed to extract, but the zip file is kept whole
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (source.read(buffer) >= 0) { /* empty loop body is intentional */ }
+                return manifest;
+            } finally {
+                watchdog.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Extracts some of the entries of a zip file that was already downloaded. Only the
+     * selected entries are read.
+     * @param zipPath the zip file
+     * @param targetDir the directory where the zip file is extracted
+     * @param members selects the entries to extract, by entry name
+     * @return the manifest of the extracted files, relative to targetDir
+     * @throws IOException if the zip is invalid
+     */
+    public static SdkManifest extract(Path zipPath, Path targetDir, Predicate<String> members) throws IOException {
+        SdkManifest manifest = new SdkManifest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Path root = targetDir.toAbsolutePath().normalize();
+        try (ZipFile zip = new ZipFile(zipPath.toFile())) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (members.test(entry.getName())) {
+                    try (InputStream is = zip.getInputStream(entry)) {
+                        extractEntry(entry, is, root, manifest, buffer);
+                    }
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private static SdkManifest extract(InputStream source, Path targetDir, Predicate<String> members) throws IOException {
+        SdkManifest manifest = new SdkManifest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Path root = targetDir.toAbsolutePath().normalize();
+        ZipInputStream zis = new ZipInputStream(source);
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            if (members.test(entry.getName())) {
+                extractEntry(entry, zis, root, manifest, buffer);
+            }
+        }
+        return manifest;
+    }
+
+    private static void extractEntry(ZipEntry entry, InputStream is, Path root, SdkManifest manifest,
+                                     byte[] buffer) throws IOException {
+        Path destFile = root.resolve(entry.getName()).normalize();
+        if (! destFile.startsWith(root)) {
+            throw new IOException("Zip entry outside of the target directory: " + entry.getName());
+        }
+        if (entry.isDirectory()) {
+            Files.createDirectories(destFile);
+            return;
+        }
+        Files.createDirectories(destFile.getParent());
+        // not looking for security, just a checksum
+        CRC32C crc = new CRC32C();
+        try (OutputStream fos = Files.newOutputStream(destFile)) {
+            int len;
+            while ((len = is.read(buffer)) > 0) {
+                fos.write(buffer, 0, len);
+                crc.update(buffer, 0, len);
+            }
+        }
+        manifest.add(root, destFile, crc.getValue());
+    }
+
+    /*
+     * Copies the bytes read from the network to the part file. A read that waits for data
+     * for too long is failed by closing the connection, which unblocks it
+     */
+    private static class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream out;
+        private final BuildMetrics metrics;
+        // when the pending read started, 0 if there is none
+        private volatile long readStart;
+        private volatile boolean stalled;
+        private volatile Duration timeout;
+
+        TeeInputStream(InputStream in, OutputStream out, BuildMetrics metrics) {
+            super(in);
+            this.out = out;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read > 0 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read;
+            readStart = System.nanoTime();
+            try {
+                read = in.read(b, off, len);
+            } catch (IOException e) {
+                throw stalled ? stalledException() : e;
+            } finally {
+                readStart = 0;
+            }
+            if (stalled) {
+                throw stalledException();
+            }
+            if (read > 0) {
+                out.write(b, off, read);
+                metrics.increment("download.bytes", read);
+            }
+            return read;
+        }
+
+        void closeIfStalled(Duration timeout) {
+            long start = readStart;
+            if (start != 0 && System.nanoTime() - start > timeout.toNanos() && ! stalled) {
+                this.timeout = timeout;
+                stalled = true;
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // the read fails anyway
+                }
+            }
+        }
+
+        private IOException stalledException() {
+            return new IOException("No data received for " + timeout.toMillis() + " ms");
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes are read, so they are written too
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+    }
+
+    // reads the bytes that were on disk when the download started
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+}
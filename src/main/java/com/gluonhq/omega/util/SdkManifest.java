@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The files of an installed SDK, with their size, modification time and CRC32C checksum.
+ *
+ * The manifest is a text file with one line per file:
+ * <pre>
+ *     crc32c size mtime relative/path
+ * </pre>
+ * Paths are relative to the SDK version directory (e.g. graalLibs/20.0.0) and use '/'
+ * as separator. A file whose size and modification time match the manifest is trusted,
+ * only the other files are hashed again, in parallel and over memory-mapped buffers.
+ */
+public class SdkManifest {
+
+    public static final String EXTENSION = ".manifest";
+
+    // mapped in windows, so files larger than 2 GB can be hashed too
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private boolean modified;
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final long checksum;
+
+        Entry(long size, long modified, long checksum) {
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Reads a manifest
+     * @param file the manifest file
+     * @return the manifest, or null if the file doesn't exist
+     * @throws IOException if the manifest can't be read or is corrupted
+     */
+    public static SdkManifest read(Path file) throws IOException {
+        if (! Files.isRegularFile(file)) {
+            return null;
+        }
+        SdkManifest manifest = new SdkManifest();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split(" ", 4);
+                if (parts.length != 4) {
+                    throw new IOException("Invalid line in manifest " + file + ": " + line);
+                }
+                try {
+                    manifest.entries.put(parts[3], new Entry(Long.parseLong(parts[1]),
+                            Long.parseLong(parts[2]), Long.parseLong(parts[0], 16)));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid line in manifest " + file + ": " + line, e);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Creates the manifest of the files already on disk, hashing them in parallel
+     * @param root the SDK version directory, paths are relative to it
+     * @param dir the directory with the files to add, inside root
+     * @return the manifest
+     * @throws IOException if a file can't be read
+     */
+    public static SdkManifest create(Path root, Path dir) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        SdkManifest manifest = new SdkManifest();
+        try {
+            files.parallelStream().forEach(file -> {
+                try {
+                    long checksum = hash(file);
+                    synchronized (manifest) {
+                        manifest.add(root, file, checksum);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        return manifest;
+    }
+
+    /**
+     * Adds a file once it has been written and closed
+     * @param root the SDK version directory
+     * @param file the file
+     * @param checksum the CRC32C checksum of its content
+     * @throws IOException if the attributes of the file can't be read
+     */
+    public void add(Path root, Path file, long checksum) throws IOException {
+        entries.put(relativize(root, file), new Entry(Files.size(file),
+                Files.getLastModifiedTime(file).toMillis(), checksum));
+    }
+
+    /**
+     * Adds the entries of another manifest, replacing the ones with the same path
+     * @param other the other manifest
+     */
+    public void addAll(SdkManifest other) {
+        entries.putAll(other.entries);
+    }
+
+    /**
+     * Writes the manifest, replacing the existing file atomically
+     * @param file the manifest file
+     * @throws IOException
+     */
+    public void write(Path file) throws IOException {
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+            writer.write("# crc32c size mtime path");
+            writer.newLine();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(String.format("%08x %d %d %s", entry.checksum, entry.size, entry.modified, e.getKey()));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Verifies the files of the manifest. Files with the expected size and modification
+     * time are trusted, the other ones are hashed again in parallel. The modification time
+     * of a file that was touched but has the expected content is updated in the manifest.
+     * @param root the SDK version directory
+     * @param metrics records the verification time and the number of files hashed
+     * @return the paths of the files that are missing or have a different content
+     */
+    public List<String> verify(Path root, BuildMetrics metrics) {
+        try (BuildMetrics.Timer timer = metrics.start("sdk-verify")) {
+            List<String> changed = new ArrayList<>();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Path file = root.resolve(e.getKey());
+                try {
+                    if (Files.size(file) != e.getValue().size ||
+                            Files.getLastModifiedTime(file).toMillis() != e.getValue().modified) {
+                        changed.add(e.getKey());
+                    }
+                } catch (IOException ex) {
+                    changed.add(e.getKey());
+                }
+            }
+            AtomicLong hashed = new AtomicLong();
+            List<String> invalid = changed.parallelStream()
+                    .filter(name -> {
+                        Entry entry = entries.get(name);
+                        Path file = root.resolve(name);
+                        try {
+                            if (! Files.isRegularFile(file) || Files.size(file) != entry.size) {
+                                return true;
+                            }
+                            hashed.incrementAndGet();
+                            return hash(file) != entry.checksum;
+                        } catch (IOException ex) {
+                            return true;
+                        }
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+            metrics.increment("sdk.verify.files", entries.size());
+            metrics.increment("sdk.verify.hashed", hashed.get());
+            Set<String> invalidSet = new HashSet<>(invalid);
+            for (String name : changed) {
+                if (! invalidSet.contains(name)) {
+                    try {
+                        Entry entry = entries.get(name);
+                        FileTime modified = Files.getLastModifiedTime(root.resolve(name));
+                        entries.put(name, new Entry(entry.size, modified.toMillis(), entry.checksum));
+                        this.modified = true;
+                    } catch (IOException ex) {
+                        // hashed again next time
+                    }
+                }
+            }
+            return invalid;
+        }
+    }
+
+    /**
+     * @return true if modification times were updated by {@link #verify(Path, BuildMetrics)},
+     * so the manifest should be written again
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    public boolean contains(String path) {
+        return entries.containsKey(path);
+    }
+
+    /**
+     * Returns the CRC32C checksum of a file
+     * @param path the relative path of the file
+     * @return the checksum, or null if the file is not in the manifest
+     */
+    public Long getChecksum(String path) {
+        Entry entry = entries.get(path);
+        return entry == null ? null : entry.checksum;
+    }
+
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Computes the CRC32C checksum of a file, reading it through memory-mapped buffers
+     * @param file the file
+     * @return the checksum
+     * @throws IOException if the file can't be read
+     */
+    public static long hash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_WINDOW, size - position));
+                crc.update(buffer);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static String relativize(Path root, Path file) {
+        return root.toAbsolutePath().normalize()
+                .relativize(file.toAbsolutePath().normalize())
+                .toString().replace('\\', '/');
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Attributes the size of a native image object file to Java packages, classes and methods.
+ *
+ * Method symbols are either the full signature, like
+ * {@code java.util.HashMap.get(java.lang.Object)java.lang.Object}, or the short unique name
+ * of the class and method followed by a digest, like {@code HashMap_get_<sha1>}. Short names
+ * are resolved to their package with the names of the classes of the class path and the JDK.
+ *
+ * A report can be written, read back and compared with the report of a previous build.
+ */
+public class SizeReport {
+
+    public static final String FILE_NAME = "size-report.properties";
+
+    public static final String UNRESOLVED = "<unresolved>";
+    public static final String AMBIGUOUS = "<ambiguous>";
+    public static final String OTHER = "<other>";
+
+    private static final Pattern SHORT_NAME = Pattern.compile("(.+)_([0-9a-f]{40})");
+
+    private final Map<String, Long> packages = new TreeMap<>();
+    private final Map<String, Long> classes = new TreeMap<>();
+    private final Map<String, Long> methods = new HashMap<>();
+    private long code;
+    private long data;
+
+    private SizeReport() {
+    }
+
+    /**
+     * Reads the symbols of an object file and adds up their sizes
+     * @param objectFile the ELF or Mach-O object file produced by native-image
+     * @param classNames the fully qualified names of the classes that can be in the image,
+     *                   to resolve short symbol names
+     * @return the report
+     * @throws IOException
+     */
+    public static SizeReport create(Path objectFile, Set<String> classNames) throws IOException {
+        Map<String, List<String>> simpleNames = classNames.stream()
+                .collect(Collectors.groupingBy(c -> c.substring(c.lastIndexOf('.') + 1)));
+        SizeReport report = new SizeReport();
+        for (ObjectFileReader.Symbol symbol : ObjectFileReader.read(objectFile)) {
+            if (! symbol.isCode()) {
+                report.data += symbol.getSize();
+                continue;
+            }
+            report.code += symbol.getSize();
+            String[] member = resolve(symbol.getName(), simpleNames);
+            report.packages.merge(member[0], symbol.getSize(), Long::sum);
+            if (member[1] != null) {
+                report.classes.merge(member[1], symbol.getSize(), Long::sum);
+                report.methods.merge(member[1] + "." + member[2], symbol.getSize(), Long::sum);
+            }
+        }
+        return report;
+    }
+
+    // returns the package, class and method of a symbol
+    static String[] resolve(String symbol, Map<String, List<String>> simpleNames) {
+        int parenthesis = symbol.indexOf('(');
+        if (parenthesis > 0) {
+            String qualified = symbol.substring(0, parenthesis);
+            int dot = qualified.lastIndexOf('.');
+            if (dot > 0) {
+                String className = qualified.substring(0, dot);
+                return new String[] {packageName(className), className, qualified.substring(dot + 1)};
+            }
+        }
+        Matcher matcher = SHORT_NAME.matcher(symbol);
+        if (matcher.matches()) {
+            String name = matcher.group(1);
+            for (int i = name.indexOf('_'); i > 0; i = name.indexOf('_', i + 1)) {
+                List<String> candidates = simpleNames.get(name.substring(0, i));
+                if (candidates != null) {
+                    String method = name.substring(i + 1);
+                    if (candidates.size() > 1) {
+                        // java.lang.String rather than an internal String class
+                        List<String> java = candidates.stream()
+                                .filter(c -> c.startsWith("java."))
+                                .collect(Collectors.toList());
+                        candidates = java.size() == 1 ? java : candidates;
+                    }
+                    if (candidates.size() == 1) {
+                        String className = candidates.get(0);
+                        return new String[] {packageName(className), className, method};
+                    }
+                    return new String[] {AMBIGUOUS, AMBIGUOUS + "." + name.substring(0, i), method};
+                }
+            }
+            int i = name.indexOf('_');
+            return i > 0 ? new String[] {UNRESOLVED, UNRESOLVED + "." + name.substring(0, i), name.substring(i + 1)} :
+                    new String[] {UNRESOLVED, null, null};
+        }
+        return new String[] {OTHER, null, null};
+    }
+
+    private static String packageName(String className) {
+        int dot = className.lastIndexOf('.');
+        return dot < 0 ? "" : className.substring(0, dot);
+    }
+
+    /**
+     * Finds the names of the classes of a class path and of the running JDK
+     * @param classPath the jars and class directories
+     * @return the fully qualified class names
+     * @throws IOException
+     */
+    public static Set<String> getClassNames(List<Path> classPath) throws IOException {
+        Set<String> names = ConcurrentHashMap.newKeySet();
+        List<IOException> errors = classPath.parallelStream()
+                .map(path -> {
+                    try {
+                        addClassNames(path, 0, names);
+                        return null;
+                    } catch (IOException e) {
+                        return e;
+                    }
+                })
+                .filter(e -> e != null)
+                .collect(Collectors.toList());
+        if (! errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        FileSystem jrt;
+        try {
+            jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        } catch (FileSystemNotFoundException | UnsupportedOperationException e) {
+            return names;
+        }
+        // the first element of the path is the module
+        addClassNames(jrt.getPath("/modules"), 1, names);
+        return names;
+    }
+
+    private static void addClassNames(Path path, int skip, Set<String> names) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> walk = Files.walk(path)) {
+                walk.filter(p -> p.toString().endsWith(".class"))
+                        .map(p -> path.relativize(p))
+                        .filter(p -> p.getNameCount() > skip)
+                        .map(p -> p.subpath(skip, p.getNameCount()).toString())
+                        .forEach(name -> addClassName(name, names));
+            }
+        } else if (Files.isRegularFile(path) && path.toString().endsWith(".jar")) {
+            try (ZipFile zip = new ZipFile(path.toFile())) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    addClassName(entries.nextElement().getName(), names);
+                }
+            }
+        }
+    }
+
+    private static void addClassName(String name, Set<String> names) {
+        if (name.endsWith(".class") && ! name.endsWith("module-info.class") && ! name.startsWith("META-INF/")) {
+            names.add(name.substring(0, name.length() - 6).replace('/', '.').replace('\\', '.'));
+        }
+    }
+
+    /**
+     * Reads a report written by {@link #write(Path)}
+     * @param file the report file
+     * @return the report, without the sizes of the methods
+     * @throws IOException
+     */
+    public static SizeReport read(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+        }
+        SizeReport report = new SizeReport();
+        for (String key : properties.stringPropertyNames()) {
+            long value = Long.parseLong(properties.getProperty(key));
+            if (key.equals("code")) {
+                report.code = value;
+            } else if (key.equals("data")) {
+                report.data = value;
+            } else if (key.startsWith("package.")) {
+                report.packages.put(key.substring(8), value);
+            } else if (key.startsWith("class.")) {
+                report.classes.put(key.substring(6), value);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Writes the sizes of the code, the data, and of each package and class
+     * @param file the report file
+     * @throws IOException
+     */
+    public void write(Path file) throws IOException {
+        try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1)) {
+            bw.write("code=" + code + "\n");
+            bw.write("data=" + data + "\n");
+            for (Map.Entry<String, Long> entry : packages.entrySet()) {
+                bw.write("package." + escape(entry.getKey()) + "=" + entry.getValue() + "\n");
+            }
+            for (Map.Entry<String, Long> entry : classes.entrySet()) {
+                bw.write("class." + escape(entry.getKey()) + "=" + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    private static String escape(String key) {
+        return key.replace("\\", "\\\\").replace(":", "\\:").replace("=", "\\=").replace(" ", "\\ ");
+    }
+
+    /**
+     * @return the size of the code, in bytes
+     */
+    public long getCodeSize() {
+        return code;
+    }
+
+    /**
+     * @return the size of the data, like the image heap, in bytes
+     */
+    public long getDataSize() {
+        return data;
+    }
+
+    /**
+     * @return the code size of each package
+     */
+    public Map<String, Long> getPackages() {
+        return packages;
+    }
+
+    /**
+     * @return the code size of each class
+     */
+    public Map<String, Long> getClasses() {
+        return classes;
+    }
+
+    /**
+     * Prints the largest packages, classes and methods
+     * @param top the number of items of each list
+     */
+    public void print(int top) {
+        System.err.println("Code: " + code / 1024 + " kB, data: " + data / 1024 + " kB");
+        printTop("packages", packages, top);
+        printTop("classes", classes, top);
+        printTop("methods", methods, top);
+    }
+
+    private void printTop(String title, Map<String, Long> sizes, int top) {
+        if (sizes.isEmpty()) {
+            return;
+        }
+        System.err.println("Largest " + title + ":");
+        sizes.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
+                .limit(top)
+                .forEach(e -> System.err.println(String.format(Locale.ROOT, "  %10d kB %5.1f%%  %s",
+                        e.getValue() / 1024, code == 0 ? 0.0 : 100.0 * e.getValue() / code, e.getKey())));
+    }
+
+    /**
+     * Prints the packages whose code size changed the most since a previous build
+     * @param previous the report of the previous build
+     * @param top the number of packages
+     */
+    public void printDiff(SizeReport previous, int top) {
+        System.err.println(String.format(Locale.ROOT, "Code: %+d kB, data: %+d kB since the previous build",
+                (code - previous.code) / 1024, (data - previous.data) / 1024));
+        Set<String> names = new HashSet<>(packages.keySet());
+        names.addAll(previous.packages.keySet());
+        Map<String, Long> deltas = new TreeMap<>();
+        for (String name : names) {
+            long delta = packages.getOrDefault(name, 0L) - previous.packages.getOrDefault(name, 0L);
+            if (delta != 0) {
+                deltas.put(name, delta);
+            }
+        }
+        deltas.entrySet().stream()
+                .sorted((a, b) -> Long.compare(Math.abs(b.getValue()), Math.abs(a.getValue())))
+                .limit(top)
+                .forEach(e -> System.err.println(String.format(Locale.ROOT, "  %+10d bytes  %s%s",
+                        e.getValue(), e.getKey(), previous.packages.containsKey(e.getKey()) ? "" :
+                                " (new)")));
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures the startup and footprint of an executable.
+ *
+ * The time to main is taken when the process prints a line containing a marker, or
+ * when it writes its first byte of output if there is no marker, since nothing is
+ * written before the main method runs. Runs where that doesn't happen, e.g. JavaFX
+ * applications that print nothing, have no time to main, and are reported as such,
+ * separately from the time to exit.
+ *
+ * On Linux, the peak resident memory and the page faults are sampled from
+ * /proc/&lt;pid&gt;/status and /proc/&lt;pid&gt;/stat while the process runs, and the
+ * processes can be pinned to some CPUs with taskset.
+ */
+public class StartupBenchmark {
+
+    private static final boolean LINUX = System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("linux");
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    // the peak RSS and the fault counters are cumulative, a sample only misses what happens
+    // after it. Sampling more often would compete with the process for the CPUs
+    private static final long SAMPLE_INTERVAL_MS = 20;
+
+    /**
+     * One run of the executable
+     */
+    public static class Sample {
+
+        private final long timeToMain;
+        private final long timeToExit;
+        private final int exitValue;
+        private final long peakRss;
+        private final long minorFaults;
+        private final long majorFaults;
+
+        Sample(long timeToMain, long timeToExit, int exitValue, long peakRss, long minorFaults, long majorFaults) {
+            this.timeToMain = timeToMain;
+            this.timeToExit = timeToExit;
+            this.exitValue = exitValue;
+            this.peakRss = peakRss;
+            this.minorFaults = minorFaults;
+            this.majorFaults = majorFaults;
+        }
+
+        /**
+         * @return the time until the marker or the first output, in nanoseconds, or -1 if
+         * it was not printed
+         */
+        public long getTimeToMain() {
+            return timeToMain;
+        }
+
+        /**
+         * @return the time until the process exited, in nanoseconds, or -1 if it was stopped
+         */
+        public long getTimeToExit() {
+            return timeToExit;
+        }
+
+        public int getExitValue() {
+            return exitValue;
+        }
+
+        /**
+         * @return the peak resident memory in bytes, or -1 if it is not available
+         */
+        public long getPeakRss() {
+            return peakRss;
+        }
+
+        /**
+         * @return the page faults served without I/O, or -1 if they are not available
+         */
+        public long getMinorFaults() {
+            return minorFaults;
+        }
+
+        /**
+         * @return the page faults that required I/O, or -1 if they are not available
+         */
+        public long getMajorFaults() {
+            return majorFaults;
+        }
+    }
+
+    /**
+     * Runs a command several times, one run at a time
+     * @param command the executable and its arguments
+     * @param dir the working directory
+     * @param runs the number of runs
+     * @param timeout the maximum time of each run, in seconds, after which the process is stopped
+     * @return the samples of each run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static List<Sample> run(List<String> command, Path dir, int runs, long timeout)
+            throws IOException, InterruptedException {
+        return run(command, dir, 0, runs, null, null, timeout);
+    }
+
+    /**
+     * Runs a command several times, one run at a time, after some runs that are not measured
+     * @param command the executable and its arguments
+     * @param dir the working directory
+     * @param warmupRuns the number of runs that are not measured
+     * @param runs the number of measured runs
+     * @param cpus the CPUs the process is pinned to (e.g. "2-3"), or null
+     * @param marker the text printed once the application has started, or null to use the first output
+     * @param timeout the maximum time of each run, in seconds, after which the process is stopped
+     * @return the samples of the measured runs
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static List<Sample> run(List<String> command, Path dir, int warmupRuns, int runs, String cpus,
+                                   String marker, long timeout) throws IOException, InterruptedException {
+        List<String> pinned = new ArrayList<>();
+        if (cpus != null && ! cpus.isEmpty()) {
+            if (LINUX) {
+                // taskset execs the command, so the pid is the one of the application
+                pinned.addAll(List.of("taskset", "-c", cpus));
+            } else {
+                System.err.println("CPU pinning is only supported on Linux, running " + command.get(0) + " unpinned");
+            }
+        }
+        pinned.addAll(command);
+        for (int i = 0; i < warmupRuns; i++) {
+            runOnce(pinned, dir, marker, timeout);
+        }
+        List<Sample> samples = new ArrayList<>(runs);
+        for (int i = 0; i < runs; i++) {
+            samples.add(runOnce(pinned, dir, marker, timeout));
+        }
+        return samples;
+    }
+
+    private static Sample runOnce(List<String> command, Path dir, String marker, long timeout)
+            throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(dir.toFile());
+        builder.redirectErrorStream(true);
+        long start = System.nanoTime();
+        Process process = builder.start();
+        long[] started = {-1};
+        Thread reader = new Thread(() -> {
+            try (InputStream is = process.getInputStream()) {
+                if (marker == null) {
+                    byte[] buffer = new byte[8192];
+                    int read = is.read(buffer);
+                    if (read > 0) {
+                        started[0] = System.nanoTime() - start;
+                    }
+                    while (read >= 0) {
+                        read = is.read(buffer);
+                    }
+                } else {
+                    BufferedReader lines = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = lines.readLine()) != null) {
+                        if (started[0] < 0 && line.contains(marker)) {
+                            started[0] = System.nanoTime() - start;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the process was stopped
+            }
+        }, "omega-startup");
+        reader.setDaemon(true);
+        reader.start();
+        // rss, minor faults, major faults
+        long[] stats = {-1, -1, -1};
+        Thread sampler = null;
+        if (LINUX) {
+            sampler = new Thread(() -> {
+                while (process.isAlive()) {
+                    readStats(process.pid(), stats);
+                    try {
+                        Thread.sleep(SAMPLE_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "omega-startup-stats");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+        boolean exited = process.waitFor(timeout, TimeUnit.SECONDS);
+        long timeToExit = exited ? System.nanoTime() - start : -1;
+        if (! exited) {
+            process.destroyForcibly().waitFor();
+        }
+        reader.join(TimeUnit.SECONDS.toMillis(1));
+        if (sampler != null) {
+            sampler.join(TimeUnit.SECONDS.toMillis(1));
+        }
+        return new Sample(started[0], timeToExit, exited ? process.exitValue() : -1, stats[0], stats[1], stats[2]);
+    }
+
+    // keeps the last values read, the files are gone once the process has exited
+    private static void readStats(long pid, long[] stats) {
+        Path proc = Paths.get("/proc", Long.toString(pid));
+        try (Stream<String> lines = Files.lines(proc.resolve("status"))) {
+            lines.filter(l -> l.startsWith("VmHWM:"))
+                    .findFirst()
+                    .ifPresent(l -> stats[0] = Long.parseLong(l.replaceAll("[^0-9]", "")) * 1024);
+            // the command name can contain spaces, the fields start after it
+            String stat = new String(Files.readAllBytes(proc.resolve("stat")), StandardCharsets.US_ASCII);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            stats[1] = Long.parseLong(fields[7]);
+            stats[2] = Long.parseLong(fields[9]);
+        } catch (IOException | RuntimeException e) {
+            // the process has exited
+        }
+    }
+
+    /**
+     * Records the percentiles of the samples as gauges, e.g. native.time-to-main-us.p50. The
+     * runs without a time to main, or that were stopped, are left out of the percentiles, and
+     * counted in the time-to-main-missing and timed-out-runs gauges
+     * @param name the name of the measured executable (e.g. native, hotspot)
+     * @param samples the samples of the runs
+     * @param metrics the metrics of the build report
+     */
+    public static void record(String name, List<Sample> samples, BuildMetrics metrics) {
+        recordPercentiles(name + ".time-to-main-us", samples,
+                s -> s.getTimeToMain() < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(s.getTimeToMain()), metrics);
+        recordPercentiles(name + ".time-to-exit-us", samples,
+                s -> s.getTimeToExit() < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(s.getTimeToExit()), metrics);
+        recordPercentiles(name + ".peak-rss", samples, Sample::getPeakRss, metrics);
+        recordPercentiles(name + ".minor-faults", samples, Sample::getMinorFaults, metrics);
+        recordPercentiles(name + ".major-faults", samples, Sample::getMajorFaults, metrics);
+        metrics.setGauge(name + ".runs", samples.size());
+        metrics.setGauge(name + ".failed-runs", samples.stream().filter(s -> s.getExitValue() != 0).count());
+        metrics.setGauge(name + ".time-to-main-missing", samples.stream().filter(s -> s.getTimeToMain() < 0).count());
+        metrics.setGauge(name + ".timed-out-runs", samples.stream().filter(s -> s.getTimeToExit() < 0).count());
+    }
+
+    /**
+     * Describes the recorded medians for the build log, with n/a for the values that were not measured
+     * @param name the name of the measured executable (e.g. native, hotspot)
+     * @param metrics the metrics where the samples were recorded
+     * @return e.g. "time to main 12 ms, time to exit 40 ms, peak RSS 25 MB (p50)"
+     */
+    public static String summary(String name, BuildMetrics metrics) {
+        return String.format("time to main %s, time to exit %s, peak RSS %s (p50)",
+                format(metrics, name + ".time-to-main-us.p50", 1000, "ms"),
+                format(metrics, name + ".time-to-exit-us.p50", 1000, "ms"),
+                format(metrics, name + ".peak-rss.p50", 1024 * 1024, "MB"));
+    }
+
+    /**
+     * @param metrics the metrics where the samples were recorded
+     * @param gauge the name of the gauge
+     * @param unit the divisor of the gauge value
+     * @param suffix the name of the unit
+     * @return the value of the gauge in the given unit, or n/a if it was not recorded
+     */
+    public static String format(BuildMetrics metrics, String gauge, long unit, String suffix) {
+        return metrics.hasGauge(gauge) ? metrics.getGauge(gauge) / unit + " " + suffix : "n/a";
+    }
+
+    private static void recordPercentiles(String name, List<Sample> samples, ToLongFunction<Sample> value,
+                                          BuildMetrics metrics) {
+        List<Long> values = samples.stream().map(value::applyAsLong).collect(Collectors.toList());
+        for (double p : PERCENTILES) {
+            long v = percentile(values, p);
+            if (v >= 0) {
+                metrics.setGauge(name + ".p" + (int) p, v);
+            }
+        }
+        long max = percentile(values, 100);
+        if (max >= 0) {
+            metrics.setGauge(name + ".max", max);
+        }
+    }
+
+    /**
+     * @param values the measured values, negative values are ignored
+     * @return the median value, or -1 if there are none
+     */
+    public static long median(List<Long> values) {
+        return percentile(values, 50);
+    }
+
+    /**
+     * @param values the measured values, negative values are ignored
+     * @param percentile the percentile, between 0 and 100
+     * @return the nearest-rank percentile, or -1 if there are no values
+     */
+    public static long percentile(List<Long> values, double percentile) {
+        List<Long> sorted = values.stream().filter(v -> v >= 0).sorted().collect(Collectors.toList());
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size(), rank) - 1));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import com.gluonhq.omega.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Runs an application on a JVM with the native-image tracing agent, which records the
+ * classes, members and resources it accesses dynamically.
+ *
+ * The application either exits by itself, e.g. driven by a script passed as arguments, or
+ * it is stopped once the timeout expires. The agent writes its files when the JVM exits.
+ */
+public class TracingAgent {
+
+    public static final String REFLECTION_CONFIG = "reflect-config.json";
+    public static final String JNI_CONFIG = "jni-config.json";
+    public static final String RESOURCE_CONFIG = "resource-config.json";
+
+    /**
+     * Runs the application with the tracing agent
+     * @param config the required configuration, with the tracing agent settings
+     * @param classPath the application class path
+     * @param mainClass the main class of the application
+     * @param outputDir the directory where the agent writes its configuration files
+     * @param metrics records the run time and memory
+     * @throws IOException if the JVM can't be started, or it didn't produce any configuration
+     * @throws InterruptedException
+     */
+    public static void run(Config config, List<Path> classPath, String mainClass, Path outputDir,
+                           BuildMetrics metrics) throws IOException, InterruptedException {
+        if (Files.isDirectory(outputDir)) {
+            FileOps.deleteDir(outputDir);
+        }
+        Files.createDirectories(outputDir);
+        String javaHome = config.getTracingAgentJavaHome() != null ?
+                config.getTracingAgentJavaHome() : System.getProperty("java.home");
+
+        ProcessBuilder processBuilder = new ProcessBuilder(Paths.get(javaHome, "bin", "java").toString());
+        processBuilder.command().add("-agentlib:native-image-agent=config-output-dir=" + outputDir.toAbsolutePath());
+        processBuilder.command().add("-cp");
+        processBuilder.command().add(classPath.stream()
+                .map(Path::toString)
+                .collect(Collectors.joining(File.pathSeparator)));
+        processBuilder.command().add(mainClass);
+        processBuilder.command().addAll(config.getTracingAgentArgs());
+        processBuilder.redirectErrorStream(true);
+        System.err.println("Running with the tracing agent: " + String.join(" ", processBuilder.command()));
+
+        Process process = processBuilder.start();
+        ProcessOutput output = ProcessOutput.start("tracing-agent", process.getInputStream(), outputDir.getParent());
+        if (! metrics.waitFor("tracing-agent", process, config.getTracingAgentTimeout(), TimeUnit.SECONDS)) {
+            System.err.println("Stopping the application after " + config.getTracingAgentTimeout() + " seconds");
+            // a normal termination request, so the agent can write its files
+            process.destroy();
+            if (! process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                output.close();
+                throw new IOException("The application didn't stop, the tracing agent configuration was not written");
+            }
+        }
+        output.close();
+        if (! Files.isRegularFile(outputDir.resolve(REFLECTION_CONFIG))) {
+            throw new IOException("The tracing agent didn't write " + outputDir.resolve(REFLECTION_CONFIG) +
+                    ", check that " + javaHome + " is a GraalVM JDK with the native-image agent");
+        }
+    }
+
+    /**
+     * Returns the resource patterns captured by the agent
+     * @param outputDir the directory with the agent configuration files
+     * @return a list of regular expressions, or an empty list if there is no resource configuration
+     * @throws IOException
+     */
+    public static List<String> getResourcePatterns(Path outputDir) throws IOException {
+        return getNames(outputDir, "resources", "pattern");
+    }
+
+    /**
+     * Returns the resource bundles captured by the agent
+     * @param outputDir the directory with the agent configuration files
+     * @return a list of bundle names, or an empty list if there is no resource configuration
+     * @throws IOException
+     */
+    public static List<String> getBundles(Path outputDir) throws IOException {
+        return getNames(outputDir, "bundles", "name");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> getNames(Path outputDir, String section, String key) throws IOException {
+        List<String> names = new ArrayList<>();
+        Path file = outputDir.resolve(RESOURCE_CONFIG);
+        if (! Files.isRegularFile(file)) {
+            return names;
+        }
+        Object json = JsonParser.parse(file);
+        if (! (json instanceof Map)) {
+            return names;
+        }
+        Object items = ((Map<String, Object>) json).get(section);
+        // newer agents nest the patterns in an "includes" list
+        if (items instanceof Map) {
+            items = ((Map<String, Object>) items).get("includes");
+        }
+        if (items instanceof List) {
+            for (Object item : (List<Object>) items) {
+                if (item instanceof Map && ((Map<String, Object>) item).get(key) instanceof String) {
+                    names.add((String) ((Map<String, Object>) item).get(key));
+                }
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.pipeline;
+
+import com.gluonhq.omega.util.BuildMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BuildPipelineTest {
+
+    @TempDir
+    Path tmp;
+
+    private final List<String> runs = Collections.synchronizedList(new ArrayList<>());
+    private final BuildMetrics metrics = new BuildMetrics();
+
+    @AfterEach
+    public void tearDown() {
+        metrics.close();
+    }
+
+    @Test
+    public void runsTheStagesAfterTheirDependencies() throws Exception {
+        BuildPipeline pipeline = new BuildPipeline(tmp.resolve("checkpoints"), metrics);
+        pipeline.add(stage("link", "compile", "launcher"));
+        pipeline.add(stage("compile", "configs"));
+        pipeline.add(stage("launcher"));
+        pipeline.add(stage("configs"));
+
+        pipeline.run();
+
+        assertEquals(4, runs.size());
+        assertTrue(runs.indexOf("configs") < runs.indexOf("compile"));
+        assertTrue(runs.indexOf("compile") < runs.indexOf("link"));
+        assertTrue(runs.indexOf("launcher") < runs.indexOf("link"));
+    }
+
+    @Test
+    public void runsIndependentStagesConcurrently() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        BuildStage.Action action = () -> {
+            started.countDown();
+            // fails unless both stages run at the same time
+            if (! started.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("stages ran sequentially");
+            }
+        };
+        BuildPipeline pipeline = new BuildPipeline(tmp.resolve("checkpoints"), metrics);
+        pipeline.add(new BuildStage("native-image", action));
+        pipeline.add(new BuildStage("launcher", action));
+
+        pipeline.run();
+    }
+
+    @Test
+    public void resumesFromTheCheckpoints() throws Exception {
+        Path output = Files.write(tmp.resolve("configs.json"), new byte[0]);
+        String[] fingerprint = {"a"};
+
+        run(fingerprint, output);
+        run(fingerprint, output);
+
+        // the image stage has no fingerprint of its own, it always runs
+        assertEquals(Arrays.asList("configs", "image", "image"), runs);
+        assertEquals(1, metrics.getCounter("stage.skipped.configs"));
+        assertEquals(0, metrics.getCounter("stage.skipped.image"));
+    }
+
+    @Test
+    public void rerunsAStageWhenItsInputsChange() throws Exception {
+        Path output = Files.write(tmp.resolve("configs.json"), new byte[0]);
+        String[] fingerprint = {"a"};
+        run(fingerprint, output);
+
+        fingerprint[0] = "b";
+        run(fingerprint, output);
+
+        assertEquals(Arrays.asList("configs", "image", "configs", "image"), runs);
+    }
+
+    @Test
+    public void rerunsAStageWhenItsOutputsAreMissing() throws Exception {
+        Path output = Files.write(tmp.resolve("configs.json"), new byte[0]);
+        String[] fingerprint = {"a"};
+        run(fingerprint, output);
+
+        Files.delete(output);
+        run(fingerprint, output);
+
+        assertEquals(Arrays.asList("configs", "image", "configs", "image"), runs);
+    }
+
+    @Test
+    public void doesNotCheckpointAFailedStage() throws Exception {
+        Path checkpoints = tmp.resolve("checkpoints");
+        IOException failure = new IOException("native-image failed");
+        BuildPipeline pipeline = new BuildPipeline(checkpoints, metrics);
+        pipeline.add(fingerprinted("configs", "a"));
+        BuildStage image = new BuildStage("image", () -> {
+            runs.add("image");
+            throw failure;
+        }, "configs");
+        image.setFingerprint(() -> "a");
+        pipeline.add(image);
+        pipeline.add(stage("link", "image"));
+
+        assertSame(failure, assertThrows(IOException.class, pipeline::run));
+        assertEquals(Arrays.asList("configs", "image"), runs);
+        assertTrue(Files.exists(checkpoints.resolve("configs.properties")));
+        assertFalse(Files.exists(checkpoints.resolve("image.properties")));
+
+        pipeline = new BuildPipeline(checkpoints, metrics);
+        pipeline.add(fingerprinted("configs", "a"));
+        pipeline.add(fingerprinted("image", "a", "configs"));
+        pipeline.run();
+        assertEquals(Arrays.asList("configs", "image", "image"), runs);
+    }
+
+    @Test
+    public void rejectsInvalidGraphs() {
+        BuildPipeline pipeline = new BuildPipeline(tmp.resolve("checkpoints"), metrics);
+        pipeline.add(stage("a", "b"));
+        pipeline.add(stage("b", "a"));
+        assertThrows(IllegalStateException.class, pipeline::run);
+
+        BuildPipeline unknown = new BuildPipeline(tmp.resolve("checkpoints"), metrics);
+        unknown.add(stage("a", "missing"));
+        assertThrows(IllegalStateException.class, unknown::run);
+
+        assertThrows(IllegalArgumentException.class, () -> unknown.add(stage("a")));
+        assertTrue(runs.isEmpty());
+    }
+
+    private void run(String[] fingerprint, Path output) throws Exception {
+        BuildPipeline pipeline = new BuildPipeline(tmp.resolve("checkpoints"), metrics);
+        BuildStage configs = new BuildStage("configs", () -> runs.add("configs"));
+        configs.setFingerprint(() -> fingerprint[0]);
+        configs.setOutputs(() -> Collections.singletonList(output));
+        pipeline.add(configs);
+        pipeline.add(stage("image", "configs"));
+        pipeline.run();
+    }
+
+    private BuildStage stage(String name, String... dependencies) {
+        return new BuildStage(name, () -> runs.add(name), dependencies);
+    }
+
+    private BuildStage fingerprinted(String name, String fingerprint, String... dependencies) {
+        BuildStage stage = stage(name, dependencies);
+        stage.setFingerprint(() -> fingerprint);
+        return stage;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.target;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AbstractTargetConfigurationTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void findsTheLinkInputs() throws IOException {
+        Path work = Files.createDirectories(tmp.resolve("gvm/tmp"));
+        Path sdk = Files.createDirectories(tmp.resolve("sdk"));
+        Path clibraries = Files.createDirectories(sdk.resolve("svm/clibraries/linux-amd64"));
+        Path java = Files.createDirectories(tmp.resolve("java"));
+        touch(clibraries.resolve("libffi.a"));
+        touch(java.resolve("libffi.a"));
+        touch(java.resolve("libjava.a"));
+        touch(java.resolve("special.a"));
+
+        List<String> command = Arrays.asList("gcc",
+                "-o", "../linux/app/app",
+                "-Wl,-exported_symbols_list,../release.symbols",
+                "../linux/app/launcher.o",
+                "app.o",
+                "-L" + sdk + "/svm/clibraries/linux-amd64",
+                "-L", "../../java",
+                "-lffi", "-l", "java", "-l:special.a", "-lmissing",
+                "-Wl,-framework,Foundation");
+
+        assertEquals(Arrays.asList(
+                tmp.resolve("gvm/release.symbols"),
+                tmp.resolve("gvm/linux/app/launcher.o"),
+                work.resolve("app.o"),
+                // the first -L directory with the archive wins
+                clibraries.resolve("libffi.a"),
+                java.resolve("libjava.a"),
+                java.resolve("special.a"),
+                work.resolve("Foundation")),
+                AbstractTargetConfiguration.getLinkInputs(command, work));
+    }
+
+    private static void touch(Path file) throws IOException {
+        Files.write(file, new byte[0]);
+    }
+}
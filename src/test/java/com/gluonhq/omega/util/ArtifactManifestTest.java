@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ArtifactManifestTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void readsTheWrittenArtifacts() throws Exception {
+        Path app = Files.write(tmp.resolve("demo.o"), new byte[] {1, 2, 3});
+        Path llvm = Files.write(tmp.resolve("llvm.o"), new byte[] {4, 5});
+        ArtifactManifest manifest = new ArtifactManifest();
+        manifest.add("demo", app);
+        manifest.add("llvm", llvm);
+        manifest.write(tmp);
+
+        ArtifactManifest read = ArtifactManifest.read(tmp);
+        assertTrue(read.contains("demo"));
+        assertFalse(read.contains("other"));
+        assertEquals(app.toAbsolutePath(), read.get("demo"));
+        assertEquals(Arrays.asList(app.toAbsolutePath(), llvm.toAbsolutePath()), read.getPaths());
+        assertEquals(BuildCache.toHex(MessageDigest.getInstance("SHA-256").digest(new byte[] {1, 2, 3})),
+                read.getDigest(app));
+        assertFalse(Files.exists(tmp.resolve(ArtifactManifest.FILE_NAME + ".tmp")));
+    }
+
+    @Test
+    public void missingManifestAsksToCompileFirst() {
+        IOException e = assertThrows(IOException.class, () -> ArtifactManifest.read(tmp));
+        assertTrue(e.getMessage().contains("has to be compiled first"));
+    }
+
+    @Test
+    public void rejectsModifiedArtifacts() throws IOException {
+        Path app = Files.write(tmp.resolve("demo.o"), new byte[] {1, 2, 3});
+        ArtifactManifest manifest = new ArtifactManifest();
+        manifest.add("demo", app);
+        manifest.write(tmp);
+
+        // same size, other modification time
+        Files.write(app, new byte[] {3, 2, 1});
+        Files.setLastModifiedTime(app, FileTime.fromMillis(Files.getLastModifiedTime(app).toMillis() + 2000));
+        ArtifactManifest read = ArtifactManifest.read(tmp);
+        assertThrows(IOException.class, () -> read.get("demo"));
+        assertNull(read.getDigest(app));
+
+        Files.delete(app);
+        assertThrows(IOException.class, () -> read.get("demo"));
+        assertThrows(IOException.class, () -> read.get("other"));
+    }
+}
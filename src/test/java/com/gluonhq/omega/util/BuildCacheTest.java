@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import com.gluonhq.omega.Config;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BuildCacheTest {
+
+    private static final String KEY = "0123456789abcdef";
+    private static final byte[] OBJECT = randomBytes(100_000);
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void keyDoesNotDependOnTheWorkDirectory() throws IOException {
+        assertEquals(key("a", "demo", "Main"), key("b", "demo", "Main"));
+    }
+
+    @Test
+    public void keyChangesWithTheClassPathContent() throws IOException {
+        String key = key("a", "demo", "Main");
+        Files.write(tmp.resolve("a/classes/Main.class"), new byte[] {1, 2, 3});
+        assertNotEquals(key, key("a", "demo", "Main"));
+    }
+
+    @Test
+    public void keyOnlyDependsOnTheImageSettings() throws IOException {
+        Config config = config("demo");
+        config.setBenchmarkRuns(3);
+        assertEquals(key("a", "demo", "Main"), key("a", config, "Main"));
+        assertNotEquals(key("a", "demo", "Main"), key("a", "other", "Main"));
+        assertNotEquals(key("a", "demo", "Main"), key("a", "demo", "Other"));
+    }
+
+    @Test
+    public void restoresALocalEntry() throws IOException {
+        BuildCache cache = new BuildCache(tmp.resolve("cache"), Long.MAX_VALUE);
+        Path target = tmp.resolve("b-work/demo.o");
+        assertEquals(Optional.empty(), cache.restore(KEY, "demo.o", target));
+        cache.store(KEY, write(tmp.resolve("a-work/demo.o"), OBJECT));
+
+        assertEquals(Optional.of(target), cache.restore(KEY, "demo.o", target));
+        assertArrayEquals(OBJECT, Files.readAllBytes(target));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertArrayEquals(new long[] {1, 1}, new BuildCache(tmp.resolve("cache"), Long.MAX_VALUE).getTotalStats());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntries() throws Exception {
+        // room for two objects and their entry files
+        BuildCache cache = new BuildCache(tmp.resolve("cache"), 2 * OBJECT.length + 1000);
+        Path object = write(tmp.resolve("a-work/demo.o"), OBJECT);
+        cache.store("first", object);
+        Thread.sleep(20);
+        cache.store("second", object);
+        Thread.sleep(20);
+        assertTrue(cache.restore("first", "demo.o", tmp.resolve("b-work/demo.o")).isPresent());
+        Thread.sleep(20);
+        cache.store("third", object);
+
+        assertEquals(Set.of("first", "third"), cache.getEntries().keySet());
+        assertEquals(Optional.empty(), cache.restore("second", "demo.o", tmp.resolve("b-work/demo.o")));
+    }
+
+    @Test
+    public void downloadsAVerifiedRemoteObject() throws IOException {
+        DirectoryCacheStore remote = new DirectoryCacheStore(tmp.resolve("remote"));
+        upload(remote, OBJECT);
+
+        BuildCache cache = cache("b", remote, false);
+        Path target = tmp.resolve("b-work/demo.o");
+        assertEquals(Optional.of(target), cache.restore(KEY, "demo.o", target));
+        assertArrayEquals(OBJECT, Files.readAllBytes(target));
+        assertEquals(1, cache.getRemoteHits());
+        assertTrue(cache.getEntries().containsKey(KEY));
+    }
+
+    @Test
+    public void discardsATruncatedRemoteObject() throws IOException {
+        DirectoryCacheStore remote = new DirectoryCacheStore(tmp.resolve("remote"));
+        upload(remote, OBJECT);
+        Path remoteObject = tmp.resolve("remote").resolve(KEY).resolve("demo.o");
+        Files.write(remoteObject, Arrays.copyOf(OBJECT, OBJECT.length / 2));
+
+        assertMiss(cache("b", remote, false));
+    }
+
+    @Test
+    public void discardsACorruptedRemoteObject() throws IOException {
+        DirectoryCacheStore remote = new DirectoryCacheStore(tmp.resolve("remote"));
+        upload(remote, OBJECT);
+        byte[] corrupted = OBJECT.clone();
+        corrupted[1000] ^= 1;
+        Files.write(tmp.resolve("remote").resolve(KEY).resolve("demo.o"), corrupted);
+
+        assertMiss(cache("b", remote, false));
+    }
+
+    @Test
+    public void ignoresARemoteObjectWithoutDigest() throws IOException {
+        DirectoryCacheStore remote = new DirectoryCacheStore(tmp.resolve("remote"));
+        Path object = write(tmp.resolve("a-work/demo.o"), OBJECT);
+        remote.put(KEY, object);
+
+        assertMiss(cache("b", remote, false));
+    }
+
+    @Test
+    public void rebuiltObjectReplacesTheCorruptedOne() throws IOException {
+        DirectoryCacheStore remote = new DirectoryCacheStore(tmp.resolve("remote"));
+        upload(remote, Arrays.copyOf(OBJECT, 10));
+        Files.write(tmp.resolve("remote").resolve(KEY).resolve("demo.o"), new byte[10]);
+
+        BuildCache cache = cache("b", remote, true);
+        assertMiss(cache);
+        // the build runs again and stores its object
+        cache.store(KEY, write(tmp.resolve("b-work/demo.o"), OBJECT));
+
+        Path target = tmp.resolve("c-work/demo.o");
+        assertTrue(cache("c", remote, false).restore(KEY, "demo.o", target).isPresent());
+        assertArrayEquals(OBJECT, Files.readAllBytes(target));
+    }
+
+    // the same class path and command line, in a work directory of its own
+    private String key(String work, String appName, String mainClass) throws IOException {
+        return key(work, config(appName), mainClass);
+    }
+
+    private String key(String work, Config config, String mainClass) throws IOException {
+        Path workDir = tmp.resolve(work);
+        Path classes = workDir.resolve("classes");
+        if (! Files.isDirectory(classes)) {
+            write(classes.resolve("Main.class"), new byte[] {(byte) 0xca, (byte) 0xfe});
+        }
+        List<String> command = Arrays.asList("native-image", "-cp", classes.toString(),
+                "-H:Path=" + workDir.resolve("tmp"), mainClass);
+        return BuildCache.computeKey(Collections.singletonList(classes), Collections.emptyList(),
+                config, command, workDir);
+    }
+
+    private static Config config(String appName) {
+        Config config = new Config();
+        config.setAppName(appName);
+        return config;
+    }
+
+    private void upload(CacheStore remote, byte[] content) throws IOException {
+        cache("a", remote, true).store(KEY, write(tmp.resolve("a-work/demo.o"), content));
+    }
+
+    private void assertMiss(BuildCache cache) throws IOException {
+        Path target = tmp.resolve("b-work/demo.o");
+        assertEquals(Optional.empty(), cache.restore(KEY, "demo.o", target));
+        assertFalse(Files.exists(target));
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getRemoteHits());
+        assertFalse(cache.getEntries().containsKey(KEY));
+    }
+
+    private BuildCache cache(String name, CacheStore remote, boolean push) {
+        BuildCache cache = new BuildCache(tmp.resolve(name + "-cache"), Long.MAX_VALUE);
+        cache.setRemoteStore(remote, push);
+        return cache;
+    }
+
+    private static Path write(Path file, byte[] content) throws IOException {
+        Files.createDirectories(file.getParent());
+        return Files.write(file, content);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
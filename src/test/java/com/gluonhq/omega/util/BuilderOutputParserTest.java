@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BuilderOutputParserTest {
+
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Test
+    public void parsesPhases() {
+        BuilderEvent.Phase phase = phase("[demo:1234]     analysis:  20,123.45 ms,  2.34 GB");
+        assertEquals("analysis", phase.getName());
+        assertFalse(phase.isSubPhase());
+        assertEquals(20123, phase.getMillis());
+        assertEquals((long) (2.34 * GB), phase.getHeapBytes());
+
+        phase = phase("[demo:1234]    [total]:  60,000.00 ms,  3.00 GB");
+        assertEquals("total", phase.getName());
+        assertFalse(phase.isSubPhase());
+        assertEquals(60000, phase.getMillis());
+        assertEquals(3 * GB, phase.getHeapBytes());
+    }
+
+    @Test
+    public void parsesSubPhases() {
+        BuilderEvent.Phase phase = phase("[demo:1234]   (typeflow):  12,000.00 ms,  1.50 GB");
+        assertEquals("typeflow", phase.getName());
+        assertTrue(phase.isSubPhase());
+        assertEquals(12000, phase.getMillis());
+
+        phase = phase("[demo:1234]      (clinit):     512.30 ms");
+        assertEquals("clinit", phase.getName());
+        assertTrue(phase.isSubPhase());
+        assertEquals(512, phase.getMillis());
+        assertEquals(0, phase.getHeapBytes());
+    }
+
+    @Test
+    public void normalizesPhaseNames() {
+        assertEquals("setup", phase("[hello.world:42]        Setup:     1,234.50 ms,  512.00 MB").getName());
+        assertEquals("class-init", phase("[demo:1]  class init:  100.00 ms,  1.00 GB").getName());
+        assertEquals(512L * 1024 * 1024,
+                phase("[hello.world:42]        Setup:     1,234.50 ms,  512.00 MB").getHeapBytes());
+    }
+
+    @Test
+    public void parsesReachableCounts() {
+        BuilderEvent.Count count = count("12,345 (85.12%) of 15,000 methods reachable");
+        assertEquals("reachable-methods", count.getName());
+        assertEquals(12345, count.getValue());
+
+        count = count("   2,100 ( 91.3%) of  2,300 types reachable");
+        assertEquals("reachable-types", count.getName());
+        assertEquals(2100, count.getValue());
+
+        count = count("Reachable fields: 4,567");
+        assertEquals("reachable-fields", count.getName());
+        assertEquals(4567, count.getValue());
+    }
+
+    @Test
+    public void parsesPeakRss() {
+        BuilderEvent event = BuilderOutputParser.parse("Peak RSS: 2.70GB | CPU load: 7.29");
+        assertTrue(event instanceof BuilderEvent.Memory);
+        assertEquals("peak-rss", event.getName());
+        assertEquals((long) (2.70 * GB), ((BuilderEvent.Memory) event).getBytes());
+
+        event = BuilderOutputParser.parse("Peak RSS: 900 MB");
+        assertEquals(900L * 1024 * 1024, ((BuilderEvent.Memory) event).getBytes());
+    }
+
+    @Test
+    public void ignoresOtherLines() {
+        assertNull(BuilderOutputParser.parse(""));
+        assertNull(BuilderOutputParser.parse("Warning: Aborting stand-alone image build"));
+        assertNull(BuilderOutputParser.parse("[demo:1234]    classlist:  not a number"));
+        assertNull(BuilderOutputParser.parse("analysis: 20,123.45 ms"));
+    }
+
+    @Test
+    public void notifiesTheListeners() {
+        BuilderOutputParser parser = new BuilderOutputParser();
+        List<String> events = new ArrayList<>();
+        parser.addListener(event -> events.add(event.getName()));
+        parser.addListener(event -> {
+            throw new IllegalStateException("failing listener");
+        });
+
+        parser.accept("[demo:1234]     analysis:  20,123.45 ms,  2.34 GB");
+        parser.accept("Compiling methods...");
+        parser.accept("Peak RSS: 2.70GB | CPU load: 7.29");
+
+        assertEquals(List.of("analysis", "peak-rss"), events);
+    }
+
+    private static BuilderEvent.Phase phase(String line) {
+        BuilderEvent event = BuilderOutputParser.parse(line);
+        assertTrue(event instanceof BuilderEvent.Phase, line);
+        return (BuilderEvent.Phase) event;
+    }
+
+    private static BuilderEvent.Count count(String line) {
+        BuilderEvent event = BuilderOutputParser.parse(line);
+        assertTrue(event instanceof BuilderEvent.Count, line);
+        return (BuilderEvent.Count) event;
+    }
+}
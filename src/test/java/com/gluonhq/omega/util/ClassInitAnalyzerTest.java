@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ClassInitAnalyzerTest {
+
+    @TempDir
+    static Path tmp;
+
+    private static ClassInitAnalyzer.Result result;
+
+    @BeforeAll
+    public static void analyze() throws IOException {
+        Path classes = compile(
+                "app/Constants.java",
+                "package app; public class Constants {\n" +
+                "    static final int[] VALUES = {1, 2, 3};\n" +
+                "    static final String NAME = new StringBuilder(\"a\").append(1).toString();\n" +
+                "}",
+
+                "app/Color.java",
+                "package app; public enum Color { RED, GREEN; static final Color DEFAULT = valueOf(\"RED\"); }",
+
+                "app/Clock.java",
+                "package app; public class Clock { static final long START = System.currentTimeMillis(); }",
+
+                "app/Child.java",
+                "package app; public class Child extends Clock { static int x = 1; }",
+
+                "app/Callback.java",
+                "package app; import java.util.function.Supplier;\n" +
+                "public class Callback {\n" +
+                "    static final Object VALUE;\n" +
+                "    static {\n" +
+                "        Supplier<Object> supplier = new Supplier<Object>() {\n" +
+                "            public Object get() { new Thread().start(); return null; }\n" +
+                "        };\n" +
+                "        VALUE = supplier.get();\n" +
+                "    }\n" +
+                "}",
+
+                "app/Key.java",
+                "package app; public class Key {\n" +
+                "    public int hashCode() { return (int) System.nanoTime(); }\n" +
+                "}",
+
+                "app/Registry.java",
+                "package app; import java.util.HashMap; import java.util.Map;\n" +
+                "public class Registry {\n" +
+                "    static final Map<Object, String> MAP = new HashMap<>();\n" +
+                "    static { MAP.put(new Key(), \"key\"); }\n" +
+                "}",
+
+                "app/Task.java",
+                "package app; public class Task { public void run() { } }",
+
+                "app/TimedTask.java",
+                "package app; public class TimedTask extends Task {\n" +
+                "    public void run() { System.getenv(\"HOME\"); }\n" +
+                "}",
+
+                "app/Tasks.java",
+                "package app; public class Tasks {\n" +
+                "    static final Task TASK = create();\n" +
+                "    static { TASK.run(); }\n" +
+                "    static Task create() { return new TimedTask(); }\n" +
+                "}",
+
+                "app/PlainTasks.java",
+                "package app; public class PlainTasks {\n" +
+                "    static final Task TASK = new Task();\n" +
+                "    static { TASK.run(); }\n" +
+                "}",
+
+                "app/Greeter.java",
+                "package app; public interface Greeter {\n" +
+                "    default String greet() { return System.getProperty(\"user.name\"); }\n" +
+                "}",
+
+                "app/Hello.java",
+                "package app; public class Hello implements Greeter { }",
+
+                "app/Greetings.java",
+                "package app; public class Greetings { static final String TEXT = new Hello().greet(); }",
+
+                "app/Named.java",
+                "package app; public class Named {\n" +
+                "    static final String NAME = Color.GREEN.name();\n" +
+                "    static final int HASH = Color.RED.hashCode() + Color.RED.compareTo(Color.GREEN);\n" +
+                "}",
+
+                "app/Described.java",
+                "package app; public class Described { static final String TEXT = new Key().toString(); }");
+
+        result = ClassInitAnalyzer.analyze(Collections.singletonList(classes));
+    }
+
+    @Test
+    public void initializesSafeClassesAtBuildTime() {
+        assertBuildTime("app.Constants");
+        assertBuildTime("app.Color");
+        // methods inherited from Enum run JDK code
+        assertBuildTime("app.Named");
+    }
+
+    @Test
+    public void keepsUnsafeInitializersAtRunTime() {
+        assertRunTime("app.Clock", "uses java.lang.System.currentTimeMillis");
+        assertRunTime("app.Child", "superclass app.Clock");
+    }
+
+    @Test
+    public void keepsCallsThroughJdkInterfacesAtRunTime() {
+        assertRunTime("app.Callback", "virtual call to java.util.function.Supplier.get may run application code");
+        assertRunTime("app.Registry", "virtual call to java.util.Map.put may run application code");
+        // javac qualifies the calls to the methods of Object with Object
+        assertRunTime("app.Described", "virtual call to java.lang.Object.toString may run application code");
+    }
+
+    @Test
+    public void followsOverrides() {
+        assertRunTime("app.Tasks", "uses java.lang.System.getenv");
+        // Task.run is safe, but a subclass of the class path overrides it
+        assertRunTime("app.PlainTasks", "uses java.lang.System.getenv");
+    }
+
+    @Test
+    public void followsDefaultMethods() {
+        assertRunTime("app.Greetings", "uses java.lang.System.getProperty");
+    }
+
+    @Test
+    public void writesAndReadsTheReport() throws IOException {
+        Path report = tmp.resolve("class-init.txt");
+        result.write(report);
+
+        assertEquals(result.getBuildTimeClasses(), ClassInitAnalyzer.Result.readBuildTimeClasses(report));
+        assertTrue(Files.readString(report).contains("# app.Clock: uses java.lang.System.currentTimeMillis"));
+    }
+
+    private static void assertBuildTime(String className) {
+        assertTrue(result.getBuildTimeClasses().contains(className),
+                className + ": " + result.getRunTimeClasses().get(className));
+    }
+
+    private static void assertRunTime(String className, String reason) {
+        assertFalse(result.getBuildTimeClasses().contains(className), className);
+        assertEquals(reason, result.getRunTimeClasses().get(className));
+    }
+
+    // compiles pairs of file names and sources
+    private static Path compile(String... sources) throws IOException {
+        Path src = tmp.resolve("src");
+        Path classes = Files.createDirectories(tmp.resolve("classes"));
+        List<String> args = new ArrayList<>(Arrays.asList("-d", classes.toString()));
+        for (int i = 0; i < sources.length; i += 2) {
+            Path file = src.resolve(sources[i]);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, sources[i + 1]);
+            args.add(file.toString());
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, compiler.run(null, null, null, args.toArray(new String[0])));
+        return classes;
+    }
+}
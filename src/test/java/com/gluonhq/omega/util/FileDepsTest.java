@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import com.gluonhq.omega.Config;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FileDepsTest {
+
+    private static final String ZIP_PATTERN = "${target}-libs-${version}";
+
+    @TempDir
+    Path tmp;
+
+    private Path omega;
+    private Path mirror;
+    private Config config;
+    private final BuildMetrics metrics = new BuildMetrics();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        omega = Files.createDirectories(tmp.resolve("omega"));
+        mirror = Files.createDirectories(tmp.resolve("mirror"));
+        config = new Config();
+        config.setSdkDeltaUpdates(false);
+        config.setSdkMirrors(Arrays.asList(
+                tmp.resolve("empty").toUri().toString(), mirror.toUri().toString()));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        metrics.close();
+    }
+
+    @Test
+    public void fallsBackToTheNextMirror() throws IOException {
+        publishZip("1", files("1"));
+
+        install("1");
+
+        assertInstalled("1", files("1"));
+    }
+
+    @Test
+    public void failsWhenNoMirrorHasTheZip() {
+        assertThrows(FileNotFoundException.class, () -> install("1"));
+        assertTrue(Files.notExists(omega.resolve("javaStaticSdk").resolve("1")));
+    }
+
+    @Test
+    public void appliesADeltaAgainstTheInstalledVersion() throws IOException {
+        publishZip("1", files("1"));
+        install("1");
+        Map<String, String> files = files("1");
+        files.put("linux-libs/libjava.a", "libjava 2");
+        // libnet.a is unchanged, but moved
+        files.remove("linux-libs/libnet.a");
+        files.put("linux-libs/net/libnet.a", "libnet 1");
+        Map<String, String> changed = new LinkedHashMap<>();
+        changed.put("linux-libs/libjava.a", "libjava 2");
+        changed.put(SdkDelta.DIR + "/moves", "linux-libs/net/ linux-libs/\n");
+        publishDelta("2", "1", files, changed);
+        config.setSdkDeltaUpdates(true);
+
+        install("2");
+
+        assertInstalled("2", files);
+        assertEquals(1, metrics.getCounter("download.delta"));
+        assertTrue(Files.notExists(omega.resolve("javaStaticSdk").resolve("2").resolve(SdkDelta.DIR)));
+        assertTrue(Files.notExists(omega.resolve("linux-libs-2.delta-1.zip")));
+        // the base is left untouched
+        assertInstalled("1", files("1"));
+    }
+
+    @Test
+    public void downloadsTheFullZipWhenTheBaseHasChanged() throws IOException {
+        publishZip("1", files("1"));
+        install("1");
+        Files.write(omega.resolve("javaStaticSdk/1/linux-libs/libzip.a"), "corrupted".getBytes());
+        Map<String, String> changed = new LinkedHashMap<>();
+        changed.put("linux-libs/libjava.a", "libjava 2");
+        publishDelta("2", "1", files("2"), changed);
+        publishZip("2", files("2"));
+        config.setSdkDeltaUpdates(true);
+
+        install("2");
+
+        assertInstalled("2", files("2"));
+        assertEquals(0, metrics.getCounter("download.delta"));
+    }
+
+    private void install(String version) throws IOException {
+        FileDeps.processZip(config, "javastaticsdk/linux-libs-" + version + ".zip",
+                omega.resolve("linux-libs-" + version + ".zip"), "javaStaticSdk", version,
+                ZIP_PATTERN, "linux", name -> true, metrics);
+    }
+
+    private void assertInstalled(String version, Map<String, String> files) throws IOException {
+        Path dir = omega.resolve("javaStaticSdk").resolve(version);
+        SdkManifest manifest = SdkManifest.read(dir.resolve("linux-libs-" + version + SdkManifest.EXTENSION));
+        assertEquals(files.keySet(), manifest.getPaths());
+        assertTrue(manifest.verify(dir, metrics).isEmpty());
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            assertArrayEquals(file.getValue().getBytes(), Files.readAllBytes(dir.resolve(file.getKey())));
+        }
+    }
+
+    private static Map<String, String> files(String version) {
+        Map<String, String> files = new LinkedHashMap<>();
+        for (String lib : Arrays.asList("libjava", "libnet", "libnio", "libzip")) {
+            files.put("linux-libs/" + lib + ".a", lib + " " + version);
+        }
+        return files;
+    }
+
+    private void publishZip(String version, Map<String, String> files) throws IOException {
+        writeZip(mirror.resolve("javastaticsdk/linux-libs-" + version + ".zip"), files);
+    }
+
+    private void publishDelta(String version, String base, Map<String, String> files,
+                              Map<String, String> changed) throws IOException {
+        // the manifest of the new version, from its files
+        Path dir = tmp.resolve("delta-" + version);
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            Path path = dir.resolve(file.getKey());
+            Files.createDirectories(path.getParent());
+            Files.write(path, file.getValue().getBytes());
+        }
+        Path manifest = tmp.resolve("manifest-" + version);
+        SdkManifest.create(dir, dir).write(manifest);
+
+        Map<String, String> entries = new LinkedHashMap<>(changed);
+        entries.put(SdkDelta.DIR + "/manifest", new String(Files.readAllBytes(manifest)));
+        writeZip(mirror.resolve("javastaticsdk/linux-libs-" + version + ".delta-" + base + ".zip"), entries);
+    }
+
+    private static void writeZip(Path zip, Map<String, String> entries) throws IOException {
+        Files.createDirectories(zip.getParent());
+        try (OutputStream os = Files.newOutputStream(zip);
+             ZipOutputStream zos = new ZipOutputStream(os)) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                zos.putNextEntry(new ZipEntry(entry.getKey()));
+                zos.write(entry.getValue().getBytes());
+                zos.closeEntry();
+            }
+        }
+    }
+}
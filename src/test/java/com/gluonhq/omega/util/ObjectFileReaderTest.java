@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ObjectFileReaderTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void readsElfSymbols() throws IOException {
+        assertElfSymbols(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void readsBigEndianElfSymbols() throws IOException {
+        assertElfSymbols(ByteOrder.BIG_ENDIAN);
+    }
+
+    @Test
+    public void readsMachOSymbols() throws IOException {
+        Map<String, ObjectFileReader.Symbol> symbols = read(machO());
+
+        assertEquals(3, symbols.size());
+        // the size is the distance to the next symbol, or to the end of the section
+        assertEquals(0x20, symbols.get("main").getSize());
+        assertTrue(symbols.get("main").isCode());
+        assertEquals(0x10, symbols.get("helper").getSize());
+        assertEquals(0x10, symbols.get("counter").getSize());
+        assertFalse(symbols.get("counter").isCode());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Path text = Files.write(tmp.resolve("text.o"), "not an object file".getBytes());
+        assertThrows(IOException.class, () -> ObjectFileReader.read(text));
+
+        byte[] elf32 = elf(ByteOrder.LITTLE_ENDIAN);
+        elf32[4] = 1;
+        Path file = Files.write(tmp.resolve("elf32.o"), elf32);
+        assertThrows(IOException.class, () -> ObjectFileReader.read(file));
+    }
+
+    private void assertElfSymbols(ByteOrder order) throws IOException {
+        Map<String, ObjectFileReader.Symbol> symbols = read(elf(order));
+
+        assertEquals(4, symbols.size());
+        // without a size, up to the next symbol of the section
+        assertEquals(0x10, symbols.get("main").getSize());
+        assertTrue(symbols.get("main").isCode());
+        assertEquals(0x08, symbols.get("helper").getSize());
+        // without a size, up to the end of the section
+        assertEquals(0x10, symbols.get("last").getSize());
+        assertEquals(4, symbols.get("counter").getSize());
+        assertFalse(symbols.get("counter").isCode());
+    }
+
+    private Map<String, ObjectFileReader.Symbol> read(byte[] bytes) throws IOException {
+        Path file = Files.write(tmp.resolve("test.o"), bytes);
+        return ObjectFileReader.read(file).stream()
+                .collect(Collectors.toMap(ObjectFileReader.Symbol::getName, Function.identity()));
+    }
+
+    /*
+     * A relocatable ELF with .text (0x40 bytes), .data (0x20 bytes), .symtab and .strtab
+     */
+    private static byte[] elf(ByteOrder order) {
+        ByteBuffer buffer = ByteBuffer.allocate(0x500).order(order);
+        String strings = "\0main\0helper\0last\0counter\0undefined\0test.c\0";
+        int strtab = 0x100;
+        int symtab = 0x200;
+        int shoff = 0x300;
+
+        buffer.put(0, (byte) 0x7f).put(1, (byte) 'E').put(2, (byte) 'L').put(3, (byte) 'F');
+        buffer.put(4, (byte) 2).put(5, (byte) (order == ByteOrder.BIG_ENDIAN ? 2 : 1)).put(6, (byte) 1);
+        buffer.putShort(0x10, (short) 1);
+        buffer.putLong(0x28, shoff);
+        buffer.putShort(0x34, (short) 64);
+        buffer.putShort(0x3a, (short) 64);
+        buffer.putShort(0x3c, (short) 5);
+
+        buffer.position(strtab);
+        buffer.put(strings.getBytes(StandardCharsets.US_ASCII));
+
+        int[][] symbols = {
+                // name, type, section, value, size
+                {0, 0, 0, 0, 0},
+                {strings.indexOf("test.c"), 4, 0xfff1, 0, 0},
+                {strings.indexOf("main"), 2, 1, 0, 0},
+                {strings.indexOf("helper"), 2, 1, 0x10, 0x08},
+                {strings.indexOf("last"), 2, 1, 0x30, 0},
+                {strings.indexOf("counter"), 1, 2, 0, 4},
+                {strings.indexOf("undefined"), 2, 0, 0, 0},
+                {0, 3, 1, 0, 0},
+        };
+        for (int i = 0; i < symbols.length; i++) {
+            int entry = symtab + i * 24;
+            buffer.putInt(entry, symbols[i][0]);
+            buffer.put(entry + 4, (byte) (symbols[i][1] == 0 ? 0 : 0x10 | symbols[i][1]));
+            buffer.putShort(entry + 6, (short) symbols[i][2]);
+            buffer.putLong(entry + 8, symbols[i][3]);
+            buffer.putLong(entry + 16, symbols[i][4]);
+        }
+
+        // type, flags, offset, size, link, entsize
+        long[][] sections = {
+                {0, 0, 0, 0, 0, 0},
+                {1, 0x6, 0x40, 0x40, 0, 0},
+                {1, 0x3, 0x80, 0x20, 0, 0},
+                {2, 0, symtab, symbols.length * 24, 4, 24},
+                {3, 0, strtab, strings.length(), 0, 0},
+        };
+        for (int i = 0; i < sections.length; i++) {
+            int header = shoff + i * 64;
+            buffer.putInt(header + 0x04, (int) sections[i][0]);
+            buffer.putLong(header + 0x08, sections[i][1]);
+            buffer.putLong(header + 0x18, sections[i][2]);
+            buffer.putLong(header + 0x20, sections[i][3]);
+            buffer.putInt(header + 0x28, (int) sections[i][4]);
+            buffer.putLong(header + 0x38, sections[i][5]);
+        }
+        return buffer.array();
+    }
+
+    /*
+     * A Mach-O object with __text (0x30 bytes at 0) and __data (0x10 bytes at 0x30)
+     */
+    private static byte[] machO() {
+        ByteBuffer buffer = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        String strings = "\0_main\0_helper\0_counter\0_printf\0test.c\0";
+        int symoff = 0x200;
+        int stroff = 0x300;
+
+        buffer.putInt(0, 0xfeedfacf);
+        buffer.putInt(12, 1);
+        buffer.putInt(16, 2);
+
+        int segment = 32;
+        int segmentSize = 72 + 2 * 80;
+        buffer.putInt(segment, 0x19);
+        buffer.putInt(segment + 4, segmentSize);
+        buffer.putInt(segment + 64, 2);
+        long[][] sections = {
+                // address, size, flags
+                {0, 0x30, 0x80000400L},
+                {0x30, 0x10, 0},
+        };
+        for (int i = 0; i < sections.length; i++) {
+            int section = segment + 72 + i * 80;
+            buffer.putLong(section + 32, sections[i][0]);
+            buffer.putLong(section + 40, sections[i][1]);
+            buffer.putInt(section + 64, (int) sections[i][2]);
+        }
+
+        int[][] symbols = {
+                // name, type, section, value
+                {strings.indexOf("test.c"), 0x64, 0, 0},
+                {strings.indexOf("_main"), 0x0f, 1, 0},
+                {strings.indexOf("_helper"), 0x0e, 1, 0x20},
+                {strings.indexOf("_counter"), 0x0f, 2, 0x30},
+                {strings.indexOf("_printf"), 0x01, 0, 0},
+        };
+        int symtab = segment + segmentSize;
+        buffer.putInt(symtab, 0x2);
+        buffer.putInt(symtab + 4, 24);
+        buffer.putInt(symtab + 8, symoff);
+        buffer.putInt(symtab + 12, symbols.length);
+        buffer.putInt(symtab + 16, stroff);
+        buffer.putInt(symtab + 20, strings.length());
+        buffer.putInt(20, segmentSize + 24);
+
+        for (int i = 0; i < symbols.length; i++) {
+            int entry = symoff + i * 16;
+            buffer.putInt(entry, symbols[i][0]);
+            buffer.put(entry + 4, (byte) symbols[i][1]);
+            buffer.put(entry + 5, (byte) symbols[i][2]);
+            buffer.putLong(entry + 8, symbols[i][3]);
+        }
+        buffer.position(stroff);
+        buffer.put(strings.getBytes(StandardCharsets.US_ASCII));
+        return buffer.array();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProcessOutputTest {
+
+    @TempDir
+    Path tmp;
+
+    private final ByteArrayOutputStream console = new ByteArrayOutputStream();
+    private final CountDownLatch consoleReady = new CountDownLatch(1);
+    private PrintStream err;
+
+    @BeforeEach
+    public void captureConsole() {
+        err = System.err;
+        // blocks until the console is ready, like a terminal that is not read
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    consoleReady.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                synchronized (console) {
+                    console.write(b, off, len);
+                }
+            }
+        }, true));
+    }
+
+    @AfterEach
+    public void restoreConsole() {
+        consoleReady.countDown();
+        System.setErr(err);
+    }
+
+    @Test
+    public void closeWaitsForTheWholeOutput() throws IOException {
+        consoleReady.countDown();
+        List<String> lines = lines(100);
+        List<String> seen = new CopyOnWriteArrayList<>();
+        ProcessOutput output = ProcessOutput.start("cc", input(lines), tmp, seen::add);
+        output.close();
+
+        assertEquals(lines, seen);
+        assertEquals(lines, Files.readAllLines(tmp.resolve(ProcessOutput.LOG_DIR).resolve("cc.log")));
+        assertEquals(lines.subList(50, 100), output.getTail());
+        List<String> printed = lines.stream().map(l -> "[SUB] " + l).collect(Collectors.toList());
+        assertEquals(printed, consoleLines());
+        assertEquals(0, output.getDroppedLines());
+    }
+
+    @Test
+    public void slowConsoleDoesNotBlockTheProcess() throws Exception {
+        List<String> lines = lines(10_000);
+        CountDownLatch read = new CountDownLatch(lines.size());
+        ProcessOutput output = ProcessOutput.start("link", input(lines), tmp, line -> read.countDown());
+
+        // the whole output is read while the console doesn't print anything
+        assertTrue(read.await(10, TimeUnit.SECONDS));
+        consoleReady.countDown();
+        output.close();
+
+        assertTrue(output.getDroppedLines() > 0);
+        assertEquals(lines, Files.readAllLines(tmp.resolve(ProcessOutput.LOG_DIR).resolve("link.log")));
+        List<String> printed = consoleLines();
+        assertEquals(lines.size() - output.getDroppedLines(), printed.size() - 1);
+        assertTrue(printed.get(printed.size() - 1).startsWith("[SUB] " + output.getDroppedLines() + " lines not shown"));
+    }
+
+    @Test
+    public void sinkSplitsTheWrittenBytesIntoLines() throws IOException {
+        consoleReady.countDown();
+        ProcessOutput output = ProcessOutput.open("native-image", tmp, line -> {});
+        OutputStream sink = output.getSink();
+        sink.write("first\nsec".getBytes(StandardCharsets.UTF_8));
+        sink.write("ond\r\nlast".getBytes(StandardCharsets.UTF_8));
+        sink.close();
+
+        List<String> lines = Arrays.asList("first", "second", "last");
+        assertEquals(lines, output.getTail());
+        assertEquals(lines, Files.readAllLines(tmp.resolve(ProcessOutput.LOG_DIR).resolve("native-image.log")));
+    }
+
+    private List<String> consoleLines() {
+        synchronized (console) {
+            String text = new String(console.toByteArray(), StandardCharsets.UTF_8);
+            return new ArrayList<>(Arrays.asList(text.split(System.lineSeparator())));
+        }
+    }
+
+    private static List<String> lines(int count) {
+        return IntStream.range(0, count).mapToObj(i -> "line " + i).collect(Collectors.toList());
+    }
+
+    private static ByteArrayInputStream input(List<String> lines) {
+        return new ByteArrayInputStream((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
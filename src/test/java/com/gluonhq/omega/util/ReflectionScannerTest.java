@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReflectionScannerTest {
+
+    @TempDir
+    static Path tmp;
+
+    private static ReflectionScanner.Usage usage;
+
+    @BeforeAll
+    public static void scan() throws IOException {
+        Path classes = compile(
+                "app/Target.java",
+                "package app; public class Target {\n" +
+                "    public int count;\n" +
+                "    public Target(int value) { }\n" +
+                "    public void plain() { }\n" +
+                "    public void primitive(int value, long other) { }\n" +
+                "    public void mixed(String name, boolean flag) { }\n" +
+                "}",
+
+                "app/Reflective.java",
+                "package app; public class Reflective {\n" +
+                "    void access() throws Exception {\n" +
+                "        Target.class.getMethod(\"plain\");\n" +
+                "        Target.class.getMethod(\"primitive\", int.class, long.class);\n" +
+                "        Target.class.getDeclaredMethod(\"mixed\", String.class, boolean.class);\n" +
+                "        Target.class.getField(\"count\");\n" +
+                "        Target.class.getConstructor(int.class);\n" +
+                "        Class.forName(\"app.Loaded\");\n" +
+                "    }\n" +
+                "    void dynamic(String name) throws Exception {\n" +
+                "        Class.forName(name);\n" +
+                "        Target.class.getMethod(name, int.class);\n" +
+                "    }\n" +
+                "}");
+        usage = ReflectionScanner.scan(Collections.singletonList(classes));
+    }
+
+    @Test
+    public void resolvesConstantNames() {
+        assertTrue(usage.getClasses().containsAll(Arrays.asList("app.Target", "app.Loaded")));
+        assertEquals(Set.of("count"), usage.getFields("app.Target"));
+        assertTrue(usage.hasConstructors("app.Target"));
+    }
+
+    @Test
+    public void primitiveParameterTypesAreKnown() {
+        assertEquals(Set.of("plain", "primitive", "mixed"), usage.getMethods("app.Target"));
+    }
+
+    @Test
+    public void listsTheUnresolvedCallSites() {
+        assertEquals(2, usage.getUnresolved());
+        assertEquals(Arrays.asList(
+                "app.Reflective.dynamic calls java.lang.Class.forName",
+                "app.Reflective.dynamic calls java.lang.Class.getMethod"), usage.getUnresolvedCalls());
+    }
+
+    private static Path compile(String... sources) throws IOException {
+        Path src = tmp.resolve("src");
+        Path classes = Files.createDirectories(tmp.resolve("classes"));
+        List<String> args = new ArrayList<>(Arrays.asList("-d", classes.toString()));
+        for (int i = 0; i < sources.length; i += 2) {
+            Path file = src.resolve(sources[i]);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, sources[i + 1]);
+            args.add(file.toString());
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, compiler.run(null, null, null, args.toArray(new String[0])));
+        return classes;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RepositoryEvictionTest {
+
+    private static final int SIZE = 1000;
+
+    @TempDir
+    Path tmp;
+
+    private final BuildMetrics metrics = new BuildMetrics();
+
+    @AfterEach
+    public void closeMetrics() {
+        metrics.close();
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntries() throws IOException {
+        Path first = sdk("graalLibs/1", 3);
+        Path second = sdk("graalLibs/2", 1);
+        Path third = sdk("javaStaticSdk/3", 2);
+
+        assertEquals(SIZE, new RepositoryEviction(tmp, 2 * SIZE).evict(metrics));
+        assertFalse(Files.exists(first));
+        assertTrue(Files.isDirectory(second));
+        assertTrue(Files.isDirectory(third));
+        assertEquals(2 * SIZE, metrics.getGauge("repository.size"));
+        assertEquals(1, metrics.getCounter("repository.evicted"));
+    }
+
+    @Test
+    public void leaseRecordsTheUse() throws IOException {
+        Path first = sdk("graalLibs/1", 2);
+        Path second = sdk("graalLibs/2", 1);
+        RepositoryEviction.lease(first).close();
+
+        new RepositoryEviction(tmp, SIZE).evict(metrics);
+        assertTrue(Files.isDirectory(first));
+        assertFalse(Files.exists(second));
+    }
+
+    @Test
+    public void heldEntriesAreNotEvicted() throws IOException {
+        Path first = sdk("graalLibs/1", 1);
+        Path second = sdk("graalLibs/2", 2);
+        RepositoryEviction.Lease lease = RepositoryEviction.lease(first);
+        RepositoryEviction.Lease other = RepositoryEviction.lease(first);
+        // leasing touches the entry, so it is made the oldest again
+        setLastUsed(first, 3);
+
+        // a budget of one byte evicts all the entries that are not held
+        RepositoryEviction eviction = new RepositoryEviction(tmp, 1);
+        assertEquals(SIZE, eviction.evict(metrics));
+        assertTrue(Files.isDirectory(first));
+        assertFalse(Files.exists(second));
+
+        lease.close();
+        assertEquals(0, eviction.evict(metrics));
+        assertTrue(Files.isDirectory(first));
+
+        other.close();
+        assertEquals(SIZE, eviction.evict(metrics));
+        assertFalse(Files.exists(first));
+    }
+
+    @Test
+    public void evictsBuildCacheEntries() throws Exception {
+        Path object = Files.write(tmp.resolve("demo.o"), new byte[SIZE]);
+        BuildCache cache = new BuildCache(tmp.resolve("cache").resolve("native-image"), Long.MAX_VALUE);
+        cache.store("old", object);
+        Thread.sleep(20);
+        cache.store("new", object);
+        Files.delete(object);
+
+        // the new entry and its entry file
+        new RepositoryEviction(tmp, SIZE + 200).evict(metrics);
+        assertEquals("[new]", cache.getEntries().keySet().toString());
+    }
+
+    @Test
+    public void noBudgetDisablesTheEviction() throws IOException {
+        Path version = sdk("graalLibs/1", 1);
+        assertEquals(0, new RepositoryEviction(tmp, 0).evictIfDue(metrics));
+        assertTrue(Files.isDirectory(version));
+    }
+
+    @Test
+    public void checksAtMostOnceAnHour() throws IOException {
+        sdk("graalLibs/1", 1);
+        RepositoryEviction eviction = new RepositoryEviction(tmp, 1);
+        assertEquals(SIZE, eviction.evictIfDue(metrics));
+
+        sdk("graalLibs/2", 2);
+        assertEquals(0, eviction.evictIfDue(metrics));
+        assertEquals(SIZE, eviction.evict(metrics));
+    }
+
+    // an SDK version of SIZE bytes, last used age hours ago
+    private Path sdk(String name, int age) throws IOException {
+        Path version = Files.createDirectories(tmp.resolve(name));
+        Files.write(version.resolve("lib.a"), new byte[SIZE]);
+        setLastUsed(version, age);
+        return version;
+    }
+
+    private static void setLastUsed(Path version, int age) throws IOException {
+        FileTime time = FileTime.fromMillis(System.currentTimeMillis() - age * 3_600_000L);
+        Files.setLastModifiedTime(version, time);
+        Path lease = version.resolveSibling(version.getFileName() + ".lease");
+        if (Files.exists(lease)) {
+            Files.setLastModifiedTime(lease, time);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ResourceIndexTest {
+
+    private static final List<String> EXTENSIONS = Arrays.asList(".png", ".css");
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void selectsByExtensionAndRules() throws IOException {
+        Path classes = tmp.resolve("classes");
+        write(classes.resolve("app/Main.class"), 10);
+        write(classes.resolve("app/icon.png"), 100);
+        write(classes.resolve("app/notes.txt"), 5);
+        write(classes.resolve("data/table.bin"), 20);
+        write(classes.resolve("META-INF/cover.png"), 7);
+        Path controls = jar("javafx-controls.jar", "com/sun/modena.css", "com/sun/close.png");
+        Path library = jar("library.jar", "lib/theme.css", "lib/Util.class");
+
+        ResourceIndex index = ResourceIndex.build(Arrays.asList(classes, controls, library), EXTENSIONS,
+                Collections.singletonList("data/**"),
+                Arrays.asList("META-INF/**", "javafx-*.jar:**.css"));
+
+        assertEquals(Set.of("app/icon.png", "data/table.bin", "com/sun/close.png", "lib/theme.css"),
+                index.getNames());
+        assertEquals(100 + 20 + 3 + 3, index.getBytes());
+    }
+
+    @Test
+    public void writesExactPatterns() throws IOException {
+        Path classes = tmp.resolve("classes");
+        write(classes.resolve("app/style.css"), 1);
+        write(classes.resolve("app/a+b.png"), 1);
+        ResourceIndex index = ResourceIndex.build(Collections.singletonList(classes), EXTENSIONS,
+                Collections.emptyList(), ResourceIndex.DEFAULT_EXCLUDES);
+
+        Path config = tmp.resolve("resourceconfig.json");
+        index.write(config, Arrays.asList("\\Qapp/style.css\\E", "agent/.*\\.properties"));
+        assertEquals("{\n  \"resources\" : [\n" +
+                "    { \"pattern\" : \"\\\\Qapp/a+b.png\\\\E\" },\n" +
+                "    { \"pattern\" : \"\\\\Qapp/style.css\\\\E\" },\n" +
+                "    { \"pattern\" : \"agent/.*\\\\.properties\" }\n" +
+                "  ]\n}", Files.readString(config));
+    }
+
+    private Path jar(String name, String... entries) throws IOException {
+        Path jar = tmp.resolve(name);
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (String entry : entries) {
+                zip.putNextEntry(new ZipEntry(entry));
+                zip.write("abc".getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static void write(Path file, int size) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (OutputStream os = Files.newOutputStream(file)) {
+            os.write(new byte[size]);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SdkDownloaderTest {
+
+    private static final byte[] LIB = randomBytes(300_000);
+    private static final byte[] JAR = randomBytes(50_000);
+    private static final byte[] ZIP = zip();
+
+    private interface Handler {
+        void handle(HttpExchange exchange, String range) throws IOException;
+    }
+
+    @TempDir
+    Path tmp;
+
+    private HttpServer server;
+    private Handler handler;
+    // the Range header of each request, "" when there was none
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private final BuildMetrics metrics = new BuildMetrics();
+    // releases the handlers that hold a response open
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/sdk.zip", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(range == null ? "" : range);
+            try {
+                handler.handle(exchange, range);
+            } finally {
+                exchange.close();
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        release.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+        metrics.close();
+    }
+
+    @Test
+    public void downloadsAndExtracts() throws IOException {
+        handler = SdkDownloaderTest::serveWithRanges;
+
+        SdkManifest manifest = download(null);
+
+        assertEquals(Arrays.asList(""), ranges);
+        assertExtracted(manifest);
+    }
+
+    @Test
+    public void resumesFromThePartFile() throws IOException {
+        handler = SdkDownloaderTest::serveWithRanges;
+
+        SdkManifest manifest = download(Arrays.copyOf(ZIP, 100_000));
+
+        assertEquals(Arrays.asList("bytes=100000-"), ranges);
+        assertEquals(1, metrics.getCounter("download.resumed"));
+        assertExtracted(manifest);
+    }
+
+    @Test
+    public void resumesAnInterruptedDownload() throws IOException {
+        handler = (exchange, range) -> {
+            if (range == null) {
+                // announces the whole zip but stops halfway
+                exchange.sendResponseHeaders(200, ZIP.length);
+                exchange.getResponseBody().write(ZIP, 0, ZIP.length / 2);
+                exchange.getResponseBody().flush();
+                throw new IOException("connection lost");
+            }
+            serveWithRanges(exchange, range);
+        };
+
+        SdkManifest manifest = download(null);
+
+        assertEquals(2, ranges.size());
+        assertEquals("", ranges.get(0));
+        assertTrue(ranges.get(1).startsWith("bytes="));
+        assertNotEquals("bytes=0-", ranges.get(1));
+        assertExtracted(manifest);
+    }
+
+    @Test
+    public void resumesAStalledDownload() throws IOException {
+        handler = (exchange, range) -> {
+            if (range == null) {
+                // announces the whole zip but stops sending halfway, keeping the connection open
+                exchange.sendResponseHeaders(200, ZIP.length);
+                exchange.getResponseBody().write(ZIP, 0, ZIP.length / 2);
+                exchange.getResponseBody().flush();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            serveWithRanges(exchange, range);
+        };
+
+        Path zip = tmp.resolve("sdk.zip");
+        SdkManifest manifest = new SdkDownloader(metrics, Duration.ofMillis(500))
+                .download(url(), zip, tmp.resolve("sdk"));
+
+        assertEquals(2, ranges.size());
+        assertEquals("", ranges.get(0));
+        assertTrue(ranges.get(1).startsWith("bytes="));
+        assertNotEquals("bytes=0-", ranges.get(1));
+        assertExtracted(manifest);
+    }
+
+    @Test
+    public void startsOverWhenTheServerSendsAnotherRange() throws IOException {
+        handler = (exchange, range) -> {
+            if (range == null) {
+                send(exchange, 200, ZIP, 0);
+                return;
+            }
+            // the whole file, as a range
+            exchange.getResponseHeaders().add("Content-Range", "bytes 0-" + (ZIP.length - 1) + "/" + ZIP.length);
+            send(exchange, 206, ZIP, 0);
+        };
+
+        SdkManifest manifest = download(Arrays.copyOf(ZIP, 100_000));
+
+        assertEquals(Arrays.asList("bytes=100000-", ""), ranges);
+        assertEquals(0, metrics.getCounter("download.resumed"));
+        assertExtracted(manifest);
+    }
+
+    @Test
+    public void extractsACompletePartFileOn416() throws IOException {
+        handler = (exchange, range) -> exchange.sendResponseHeaders(416, -1);
+
+        SdkManifest manifest = download(ZIP);
+
+        assertEquals(Arrays.asList("bytes=" + ZIP.length + "-"), ranges);
+        assertExtracted(manifest);
+    }
+
+    @Test
+    public void restartsWhenTheServerIgnoresTheRange() throws IOException {
+        handler = (exchange, range) -> send(exchange, 200, ZIP, 0);
+
+        // a part file that doesn't match the zip, it must not be kept
+        SdkManifest manifest = download(new byte[100_000]);
+
+        assertEquals(Arrays.asList("bytes=100000-"), ranges);
+        assertEquals(0, metrics.getCounter("download.resumed"));
+        assertExtracted(manifest);
+    }
+
+    @Test
+    public void doesNotRetryAMissingFile() {
+        handler = (exchange, range) -> exchange.sendResponseHeaders(404, -1);
+
+        assertThrows(FileNotFoundException.class, () -> download(null));
+        assertEquals(1, ranges.size());
+    }
+
+    @Test
+    public void extractsTheSelectedMembers() throws IOException {
+        handler = SdkDownloaderTest::serveWithRanges;
+        Path zip = tmp.resolve("sdk.zip");
+        Path target = tmp.resolve("sdk");
+
+        SdkManifest manifest = new SdkDownloader(metrics).download(url(), zip, target, name -> name.endsWith(".a"));
+
+        assertEquals(1, manifest.size());
+        assertTrue(Files.isRegularFile(target.resolve("lib/libjava.a")));
+        assertTrue(Files.notExists(target.resolve("lib/svm.jar")));
+        // the whole zip is kept, so the other members can be extracted later
+        assertArrayEquals(ZIP, Files.readAllBytes(zip));
+        SdkManifest jar = SdkDownloader.extract(zip, target, name -> name.endsWith(".jar"));
+        assertArrayEquals(JAR, Files.readAllBytes(target.resolve("lib/svm.jar")));
+        assertEquals(SdkManifest.hash(target.resolve("lib/svm.jar")), (long) jar.getChecksum("lib/svm.jar"));
+    }
+
+    private SdkManifest download(byte[] part) throws IOException {
+        Path zip = tmp.resolve("sdk.zip");
+        if (part != null) {
+            Files.write(tmp.resolve("sdk.zip.part"), part);
+        }
+        return new SdkDownloader(metrics).download(url(), zip, tmp.resolve("sdk"));
+    }
+
+    private void assertExtracted(SdkManifest manifest) throws IOException {
+        Path target = tmp.resolve("sdk");
+        assertArrayEquals(ZIP, Files.readAllBytes(tmp.resolve("sdk.zip")));
+        assertTrue(Files.notExists(tmp.resolve("sdk.zip.part")));
+        assertArrayEquals(LIB, Files.readAllBytes(target.resolve("lib/libjava.a")));
+        assertArrayEquals(JAR, Files.readAllBytes(target.resolve("lib/svm.jar")));
+        assertEquals(2, manifest.size());
+        assertEquals(SdkManifest.hash(target.resolve("lib/libjava.a")), (long) manifest.getChecksum("lib/libjava.a"));
+        assertNotNull(manifest.getChecksum("lib/svm.jar"));
+        assertNull(manifest.getChecksum("lib/missing.a"));
+    }
+
+    private String url() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/sdk.zip";
+    }
+
+    private static void serveWithRanges(HttpExchange exchange, String range) throws IOException {
+        if (range == null) {
+            send(exchange, 200, ZIP, 0);
+            return;
+        }
+        int start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        if (start >= ZIP.length) {
+            exchange.sendResponseHeaders(416, -1);
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (ZIP.length - 1) + "/" + ZIP.length);
+        send(exchange, 206, ZIP, start);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] bytes, int start) throws IOException {
+        exchange.sendResponseHeaders(status, bytes.length - start);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes, start, bytes.length - start);
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] zip() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bytes)) {
+            zos.putNextEntry(new ZipEntry("lib/"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("lib/libjava.a"));
+            zos.write(LIB);
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("lib/svm.jar"));
+            zos.write(JAR);
+            zos.closeEntry();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
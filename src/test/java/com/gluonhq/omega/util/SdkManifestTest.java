@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2019, Gluon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL GLUON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gluonhq.omega.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SdkManifestTest {
+
+    @TempDir
+    Path root;
+
+    private final BuildMetrics metrics = new BuildMetrics();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        write("lib/svm/svm.jar", "svm");
+        write("lib/svm/clibraries/libffi.a", "libffi");
+        write("lib/graal.jar", "graal");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        metrics.close();
+    }
+
+    @Test
+    public void createsTheManifestOfADirectory() throws IOException {
+        SdkManifest manifest = SdkManifest.create(root, root.resolve("lib"));
+
+        assertEquals(Set.of("lib/svm/svm.jar", "lib/svm/clibraries/libffi.a", "lib/graal.jar"), manifest.getPaths());
+        assertEquals(3, manifest.size());
+        assertEquals(crc("svm"), (long) manifest.getChecksum("lib/svm/svm.jar"));
+        assertEquals(crc("libffi"), (long) manifest.getChecksum("lib/svm/clibraries/libffi.a"));
+        assertTrue(manifest.contains("lib/graal.jar"));
+        assertFalse(manifest.contains("lib/svm"));
+        assertNull(manifest.getChecksum("lib/missing.jar"));
+    }
+
+    @Test
+    public void writesAndReadsTheManifest() throws IOException {
+        SdkManifest manifest = SdkManifest.create(root, root.resolve("lib"));
+        Path file = root.resolve("graallibs" + SdkManifest.EXTENSION);
+        manifest.write(file);
+
+        SdkManifest read = SdkManifest.read(file);
+
+        assertEquals(manifest.getPaths(), read.getPaths());
+        for (String path : manifest.getPaths()) {
+            assertEquals(manifest.getChecksum(path), read.getChecksum(path));
+        }
+        assertTrue(read.verify(root, metrics).isEmpty());
+        assertEquals(0, metrics.getCounter("sdk.verify.hashed"));
+    }
+
+    @Test
+    public void readsMissingAndCorruptedManifests() throws IOException {
+        assertNull(SdkManifest.read(root.resolve("missing" + SdkManifest.EXTENSION)));
+
+        Path file = root.resolve("corrupted" + SdkManifest.EXTENSION);
+        Files.write(file, List.of("# crc32c size mtime path", "", "0000002a 3 0 lib/graal.jar"));
+        assertEquals(42L, (long) SdkManifest.read(file).getChecksum("lib/graal.jar"));
+
+        Files.write(file, List.of("0000002a 3 lib/graal.jar"));
+        assertThrows(IOException.class, () -> SdkManifest.read(file));
+        Files.write(file, List.of("not-hex 3 0 lib/graal.jar"));
+        assertThrows(IOException.class, () -> SdkManifest.read(file));
+    }
+
+    @Test
+    public void keepsPathsWithSpaces() throws IOException {
+        write("lib/with space.jar", "space");
+        SdkManifest manifest = SdkManifest.create(root, root.resolve("lib"));
+        Path file = root.resolve("graallibs" + SdkManifest.EXTENSION);
+        manifest.write(file);
+
+        assertEquals(crc("space"), (long) SdkManifest.read(file).getChecksum("lib/with space.jar"));
+    }
+
+    @Test
+    public void hashesOnlyTouchedFiles() throws IOException {
+        SdkManifest manifest = SdkManifest.create(root, root.resolve("lib"));
+        touch("lib/graal.jar");
+
+        assertTrue(manifest.verify(root, metrics).isEmpty());
+        assertEquals(1, metrics.getCounter("sdk.verify.hashed"));
+        assertEquals(3, metrics.getCounter("sdk.verify.files"));
+        // the new modification time is trusted from now on
+        assertTrue(manifest.isModified());
+        assertTrue(manifest.verify(root, metrics).isEmpty());
+        assertEquals(1, metrics.getCounter("sdk.verify.hashed"));
+    }
+
+    @Test
+    public void reportsChangedAndMissingFiles() throws IOException {
+        SdkManifest manifest = SdkManifest.create(root, root.resolve("lib"));
+        // same size, different content
+        write("lib/graal.jar", "GRAAL");
+        touch("lib/graal.jar");
+        write("lib/svm/svm.jar", "longer svm");
+        Files.delete(root.resolve("lib/svm/clibraries/libffi.a"));
+
+        List<String> invalid = manifest.verify(root, metrics);
+
+        assertEquals(List.of("lib/graal.jar", "lib/svm/clibraries/libffi.a", "lib/svm/svm.jar"), invalid);
+        assertFalse(manifest.isModified());
+    }
+
+    @Test
+    public void mergesManifests() throws IOException {
+        SdkManifest manifest = SdkManifest.create(root, root.resolve("lib/svm"));
+        SdkManifest other = new SdkManifest();
+        write("lib/graal.jar", "new graal");
+        other.add(root, root.resolve("lib/graal.jar"), crc("new graal"));
+
+        manifest.addAll(other);
+
+        assertEquals(3, manifest.size());
+        assertEquals(crc("new graal"), (long) manifest.getChecksum("lib/graal.jar"));
+        assertTrue(manifest.verify(root, metrics).isEmpty());
+    }
+
+    @Test
+    public void hashesFiles() throws IOException {
+        assertEquals(crc("graal"), SdkManifest.hash(root.resolve("lib/graal.jar")));
+        Path empty = Files.write(root.resolve("empty"), new byte[0]);
+        assertEquals(0, SdkManifest.hash(empty));
+        assertEquals(Collections.emptySet(), new SdkManifest().getPaths());
+    }
+
+    private void write(String path, String content) throws IOException {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes());
+    }
+
+    private void touch(String path) throws IOException {
+        Path file = root.resolve(path);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10_000));
+    }
+
+    private static long crc(String content) {
+        CRC32C crc = new CRC32C();
+        crc.update(content.getBytes());
+        return crc.getValue();
+    }
+}